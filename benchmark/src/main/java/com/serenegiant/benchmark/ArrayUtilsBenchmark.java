@@ -0,0 +1,88 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.ArrayUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utils.ArrayUtilsの配列変換のベンチマーク
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArrayUtilsBenchmark {
+	@Param({"16", "4096"})
+	public int size;
+
+	private float[] mFloats;
+	private byte[] mFloatBytes;
+	private int[] mInts;
+	private byte[] mIntBytes;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(0);
+		mFloats = new float[size];
+		mInts = new int[size];
+		for (int i = 0; i < size; i++) {
+			mFloats[i] = random.nextFloat();
+			mInts[i] = random.nextInt();
+		}
+		mFloatBytes = ArrayUtils.floatArrayToByteArray(mFloats, 0, size);
+		mIntBytes = ArrayUtils.intArrayToByteArray(mInts, 0, size);
+	}
+
+	@Benchmark
+	public byte[] floatArrayToByteArray() {
+		return ArrayUtils.floatArrayToByteArray(mFloats, 0, size);
+	}
+
+	@Benchmark
+	public float[] byteArrayToFloatArray() {
+		return ArrayUtils.byteArrayToFloatArray(mFloatBytes);
+	}
+
+	@Benchmark
+	public byte[] intArrayToByteArray() {
+		return ArrayUtils.intArrayToByteArray(mInts, 0, size);
+	}
+
+	@Benchmark
+	public int[] byteArrayToIntArray() {
+		return ArrayUtils.byteArrayToIntArray(mIntBytes);
+	}
+}
@@ -0,0 +1,91 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.BufferHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BufferHelper#findAnnexBのベンチマーク
+ * 先頭にスタートマーカーがある場合と、末尾近くにしかない(ほぼ全体を走査する)場合を計測する
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferHelperBenchmark {
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	private byte[] mHead;
+	private byte[] mTail;
+
+	@Setup
+	public void setup() {
+		mHead = createFrame(size, 0);
+		mTail = createFrame(size, size - 16);
+	}
+
+	@Benchmark
+	public int findAnnexBHead() {
+		return BufferHelper.findAnnexB(mHead, 0);
+	}
+
+	@Benchmark
+	public int findAnnexBTail() {
+		return BufferHelper.findAnnexB(mTail, 0);
+	}
+
+	/**
+	 * 指定した位置に4バイトのスタートマーカーを持つ疑似NALユニットを生成する
+	 * スタートマーカー以外には0x00が連続しないようにする
+	 * @param size
+	 * @param markerPos
+	 * @return
+	 */
+	private static byte[] createFrame(final int size, final int markerPos) {
+		final byte[] result = new byte[size];
+		final Random random = new Random(0);
+		for (int i = 0; i < size; i++) {
+			result[i] = (byte)(random.nextInt(255) + 1);
+		}
+		result[markerPos] = 0x00;
+		result[markerPos + 1] = 0x00;
+		result[markerPos + 2] = 0x00;
+		result[markerPos + 3] = 0x01;
+		result[markerPos + 4] = 0x65;	// IDR
+		return result;
+	}
+}
@@ -0,0 +1,110 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ByteBufferOutputStream;
+import com.serenegiant.utils.ByteBufferArena;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ByteBufferOutputStreamへ数MBのデータ(ビットマップや映像フレーム相当)を書き込んでチャネルへ書き出すベンチマーク
+ * 容量が足りなくなる度にバッファ全体を再確保＆コピーするautoEnlargeと
+ * ByteBufferArenaのセグメントを連結するセグメントモードを比較する
+ * メモリー確保量の違いはgcプロファイラーの結果(gc.alloc.rate.norm)で確認する
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteBufferOutputStreamBenchmark {
+	private static final int CHUNK_SIZE = 16 * 1024;
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	@Param({"1048576", "8388608"})
+	public int payloadSize;
+
+	private byte[] mChunk;
+	private ByteBufferArena mArena;
+	private MemoryByteChannel mChannel;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mChunk = new byte[CHUNK_SIZE];
+		mArena = new ByteBufferArena(false);
+		// 書き込んだ全セグメントをプールへ戻せるようにバジェットを設定する
+		mArena.setBudget(SEGMENT_SIZE, payloadSize);
+		mChannel = new MemoryByteChannel(payloadSize);
+	}
+
+	/**
+	 * autoEnlargeで書き込む(拡張毎にそれまでの内容をコピーする)
+	 * @throws IOException
+	 */
+	@Benchmark
+	public int autoEnlarge() throws IOException {
+		final ByteBufferOutputStream out
+			= new ByteBufferOutputStream(ByteBuffer.allocate(INITIAL_CAPACITY), true);
+		fill(out);
+		mChannel.rewind();
+		mChannel.write(out.toByteBuffer());
+		return out.size();
+	}
+
+	/**
+	 * セグメントモードで書き込んでgathering writeで書き出す
+	 * @throws IOException
+	 */
+	@Benchmark
+	public int segmented() throws IOException {
+		final ByteBufferOutputStream out = new ByteBufferOutputStream(mArena, SEGMENT_SIZE);
+		try {
+			fill(out);
+			mChannel.rewind();
+			out.writeTo(mChannel);
+			return out.size();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void fill(final ByteBufferOutputStream out) {
+		for (int i = 0; i < payloadSize; i += CHUNK_SIZE) {
+			out.write(mChunk, 0, Math.min(CHUNK_SIZE, payloadSize - i));
+		}
+	}
+}
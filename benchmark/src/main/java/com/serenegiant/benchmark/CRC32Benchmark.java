@@ -0,0 +1,73 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.CRC32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utils.CRC32のベンチマーク
+ * 比較用にjava.util.zip.CRC32も計測する(計算結果は異なる)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRC32Benchmark {
+	@Param({"64", "4096", "65536"})
+	public int size;
+
+	private byte[] mData;
+	private java.util.zip.CRC32 mZipCrc;
+
+	@Setup
+	public void setup() {
+		mData = new byte[size];
+		new Random(0).nextBytes(mData);
+		mZipCrc = new java.util.zip.CRC32();
+	}
+
+	@Benchmark
+	public int crc32() {
+		return CRC32.crc32(mData);
+	}
+
+	@Benchmark
+	public long zipCrc32() {
+		mZipCrc.reset();
+		mZipCrc.update(mData, 0, mData.length);
+		return mZipCrc.getValue();
+	}
+}
@@ -0,0 +1,130 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ChannelWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PostMuxの中間ファイルと同じフレームヘッダー＋フレームデータの書き込みのベンチマーク
+ * フィールド毎にChannelHelperで書き込む場合とChannelWriterでヘッダーをまとめて
+ * フレームデータと一緒にgathering writeする場合を比較する
+ * システムコールの回数の違いを見るために実ファイルのFileChannelへ書き込む
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelGatheringBenchmark {
+	private static final byte[] RESERVED = new byte[40];
+	/**
+	 * ファイルが大きくなりすぎないように先頭へ戻すフレーム数
+	 */
+	private static final int FRAMES_PER_FILE = 256;
+
+	@Param({"256", "65536"})
+	public int frameSize;
+
+	private File mFile;
+	private RandomAccessFile mRaf;
+	private FileChannel mChannel;
+	private ChannelWriter mWriter;
+	private ByteBuffer mFrame;
+	private int mFrameNumber;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mFile = File.createTempFile("gathering", ".raw");
+		mRaf = new RandomAccessFile(mFile, "rw");
+		mChannel = mRaf.getChannel();
+		mWriter = new ChannelWriter(mChannel);
+		mFrame = ByteBuffer.allocateDirect(frameSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mChannel.close();
+		mRaf.close();
+		//noinspection ResultOfMethodCallIgnored
+		mFile.delete();
+	}
+
+	/**
+	 * フィールド毎にChannelHelperで書き込む(フィールド毎にシステムコールが発生する)
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void writeSeparate() throws IOException {
+		rewindIfNeeded();
+		mFrame.clear();
+		ChannelHelper.write(mChannel, 0);
+		ChannelHelper.write(mChannel, mFrameNumber);
+		ChannelHelper.write(mChannel, (long)mFrameNumber * 33333);
+		ChannelHelper.write(mChannel, frameSize);
+		ChannelHelper.write(mChannel, 0);
+		ChannelHelper.write(mChannel, RESERVED);
+		ChannelHelper.write(mChannel, mFrame);
+	}
+
+	/**
+	 * ChannelWriterでヘッダーをまとめてフレームデータと一緒にgathering writeする
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void writeGathering() throws IOException {
+		rewindIfNeeded();
+		mFrame.clear();
+		mWriter.write(0);
+		mWriter.write(mFrameNumber);
+		mWriter.write((long)mFrameNumber * 33333);
+		mWriter.write(frameSize);
+		mWriter.write(0);
+		mWriter.write(RESERVED);
+		mWriter.write(mFrame);
+	}
+
+	private void rewindIfNeeded() throws IOException {
+		if (++mFrameNumber % FRAMES_PER_FILE == 0) {
+			mChannel.position(0);
+		}
+	}
+}
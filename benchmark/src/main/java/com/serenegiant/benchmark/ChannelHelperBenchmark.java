@@ -0,0 +1,172 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ChannelReader;
+import com.serenegiant.io.ChannelWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChannelHelperの読み書きのベンチマーク
+ * I/Oの影響を除くためにメモリー上のByteChannelを使う
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelHelperBenchmark {
+	/**
+	 * 1レコードあたりのスカラー値の数
+	 */
+	private static final int NUM_SCALARS = 16;
+
+	@Param({"16", "4096"})
+	public int arraySize;
+
+	private MemoryByteChannel mChannel;
+	private ByteBuffer mWork;
+	private int[] mArray;
+	private ChannelReader mReader;
+	private ChannelWriter mWriter;
+	private int[] mReadArray;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mChannel = new MemoryByteChannel(arraySize * 4 + NUM_SCALARS * 8 + 64);
+		mWork = ByteBuffer.allocateDirect(64);
+		mArray = new int[arraySize];
+		for (int i = 0; i < arraySize; i++) {
+			mArray[i] = i;
+		}
+		mReader = new ChannelReader(mChannel);
+		mWriter = new ChannelWriter(mChannel);
+		mReadArray = new int[arraySize];
+		writeRecord();
+	}
+
+	/**
+	 * スカラー値を1つずつ書き込む(毎回作業用バッファを生成する)
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void writeScalars() throws IOException {
+		mChannel.rewind();
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			ChannelHelper.write(mChannel, (long)i);
+		}
+	}
+
+	/**
+	 * スカラー値を1つずつ書き込む(作業用バッファを再利用する)
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void writeScalarsWithWork() throws IOException {
+		mChannel.rewind();
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			ChannelHelper.write(mChannel, (long)i, mWork);
+		}
+	}
+
+	/**
+	 * スカラー値をChannelWriterでまとめて書き込む
+	 * @throws IOException
+	 */
+	@Benchmark
+	public void writeScalarsWithWriter() throws IOException {
+		mChannel.rewind();
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			mWriter.write((long)i);
+		}
+		mWriter.flush();
+	}
+
+	@Benchmark
+	public void writeIntArray() throws IOException {
+		mChannel.rewind();
+		ChannelHelper.write(mChannel, mArray);
+	}
+
+	@Benchmark
+	public int[] readIntArray() throws IOException {
+		mChannel.rewind();
+		ChannelHelper.write(mChannel, mArray);
+		return ChannelHelper.readIntArray(mChannel);
+	}
+
+	/**
+	 * スカラー値と配列を含む1レコード分を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public long readRecord() throws IOException {
+		mChannel.rewindRead();
+		long result = 0;
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			result += ChannelHelper.readLong(mChannel);
+		}
+		result += ChannelHelper.readIntArray(mChannel).length;
+		return result;
+	}
+
+	/**
+	 * スカラー値と配列を含む1レコード分をChannelReaderで読み込む
+	 * 配列は事前に確保した配列へ読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@Benchmark
+	public long readRecordWithReader() throws IOException {
+		mChannel.rewindRead();
+		long result = 0;
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			result += mReader.readLong();
+		}
+		result += mReader.readInto(mReadArray);
+		return result;
+	}
+
+	private void writeRecord() throws IOException {
+		mChannel.rewind();
+		for (int i = 0; i < NUM_SCALARS; i++) {
+			ChannelHelper.write(mChannel, (long)i);
+		}
+		ChannelHelper.write(mChannel, mArray);
+	}
+}
@@ -0,0 +1,149 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.DiskLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DiskLruCacheの読み込みのスケーラビリティのベンチマーク
+ * 読み込みスレッド数を1/4と変えて#getのスループットを計測する
+ * getWithCommitは読み込み3スレッドと別のキーへ書き込み(コミット)する1スレッドを同時に実行する
+ * (ThumbnailCacheのディスクキャッシュでサムネイルの読み込み中に新しいサムネイルを書き込む場合を想定)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskLruCacheBenchmark {
+	private static final int NUM_KEYS = 256;
+	private static final int KEY_MASK = NUM_KEYS - 1;
+	private static final int VALUE_BYTES = 16 * 1024;
+
+	private File mDir;
+	private DiskLruCache mCache;
+	private String[] mKeys;
+	private final byte[] mValue = new byte[VALUE_BYTES];
+
+	/**
+	 * スレッド毎のキーの選択位置
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int mIndex;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			mIndex = (int)(Thread.currentThread().getId() * 7);
+		}
+
+		private int next() {
+			return (mIndex++) & KEY_MASK;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mDir = Files.createTempDirectory("disklrucache").toFile();
+		mCache = DiskLruCache.open(mDir, 1, 1, Long.MAX_VALUE);
+		mKeys = new String[NUM_KEYS];
+		for (int i = 0; i < NUM_KEYS; i++) {
+			mKeys[i] = "key" + i;
+			put(mKeys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		mCache.delete();
+		//noinspection ResultOfMethodCallIgnored
+		mDir.delete();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean get1(final Cursor cursor) throws IOException {
+		return get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean get4(final Cursor cursor) throws IOException {
+		return get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Group("getWithCommit")
+	@GroupThreads(3)
+	public boolean reader(final Cursor cursor) throws IOException {
+		return get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Group("getWithCommit")
+	@GroupThreads(1)
+	public void writer(final Cursor cursor) throws IOException {
+		put("new" + cursor.next());
+	}
+
+	private boolean get(final String key) throws IOException {
+		final DiskLruCache.Snapshot snapshot = mCache.get(key);
+		if (snapshot != null) {
+			snapshot.close();
+			return true;
+		}
+		return false;
+	}
+
+	private void put(final String key) throws IOException {
+		final DiskLruCache.Editor editor = mCache.edit(key);
+		if (editor != null) {
+			final OutputStream out = editor.newOutputStream(0);
+			try {
+				out.write(mValue);
+			} finally {
+				out.close();
+			}
+			editor.commit();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.Endian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utils.Endianのベンチマーク
+ * 比較用にByteBufferでの変換も計測する
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndianBenchmark {
+	private static final int NUM = 1024;
+
+	private byte[] mData;
+	private ByteBuffer mLeBuffer;
+
+	@Setup
+	public void setup() {
+		mData = new byte[NUM * 8];
+		new Random(0).nextBytes(mData);
+		mLeBuffer = ByteBuffer.wrap(mData).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM)
+	public long le2int() {
+		long result = 0;
+		for (int i = 0; i < NUM; i++) {
+			result += Endian.le2int(mData, i * 4);
+		}
+		return result;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM)
+	public long le2long() {
+		long result = 0;
+		for (int i = 0; i < NUM; i++) {
+			result += Endian.le2long(mData, i * 8);
+		}
+		return result;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM)
+	public long byteBufferGetInt() {
+		long result = 0;
+		for (int i = 0; i < NUM; i++) {
+			result += mLeBuffer.getInt(i * 4);
+		}
+		return result;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM)
+	public byte[] int2be() {
+		for (int i = 0; i < NUM; i++) {
+			Endian.int2be(mData, i * 4, i);
+		}
+		return mData;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NUM)
+	public byte[] long2be() {
+		for (int i = 0; i < NUM; i++) {
+			Endian.long2be(mData, i * 8, i);
+		}
+		return mData;
+	}
+}
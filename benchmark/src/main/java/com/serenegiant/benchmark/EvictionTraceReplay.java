@@ -0,0 +1,195 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.DiskLruCache;
+import com.serenegiant.io.WTinyLfuEvictionPolicy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * 記録したアクセスログ(トレース)をDiskLruCacheで再生して追い出しポリシー毎のヒット率を比較するためのハーネス
+ * 各ポリシー毎に一時ディレクトリにDiskLruCacheを生成し、トレースの各アクセスについて
+ * #getで見つからなければその場で値を書き込む(サムネイルキャッシュと同じ使い方)
+ * 追い出しはバックグラウンドで行われるので、再生結果が実行毎に変わらないように書き込み毎に#flushする
+ *
+ * 実行方法:
+ *   ./gradlew :benchmark:replayTrace -PtraceArgs="trace.txt 1048576"
+ * 引数: [トレースファイル [キャッシュの最大バイト数]]
+ * トレースファイルは1行1アクセスで"キー [値のバイト数]"の形式, #で始まる行は無視する
+ * 値のバイト数を省略すると1バイト, トレースファイルを省略すると
+ * 頻繁に参照するサムネイルとギャラリーのスクロールによる1回だけの参照が混ざった合成トレースを使う
+ */
+public class EvictionTraceReplay {
+	private static final long DEFAULT_MAX_SIZE = 1000;
+	/** 合成トレースのアクセス数 */
+	private static final int SYNTHETIC_ACCESSES = 100000;
+	/** 合成トレースの頻繁に参照するキーの数 */
+	private static final int SYNTHETIC_HOT_KEYS = 2000;
+
+	/**
+	 * トレースの1アクセス
+	 */
+	private static final class Access {
+		private final String key;
+		private final int size;
+
+		private Access(final String key, final int size) {
+			this.key = key;
+			this.size = size;
+		}
+	}
+
+	public static void main(final String[] args) throws IOException {
+		final List<Access> trace = args.length > 0 ? load(new File(args[0])) : synthetic();
+		final long maxSize = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MAX_SIZE;
+		int maxValue = 1;
+		for (final Access access: trace) {
+			maxValue = Math.max(maxValue, access.size);
+		}
+		System.out.printf(Locale.US, "accesses=%d,maxSize=%d%n", trace.size(), maxSize);
+		final byte[] value = new byte[maxValue];
+		System.out.println("lru: " + replay(trace, maxSize, null, value));
+		final int expectedEntries = (int)Math.min(Integer.MAX_VALUE,
+			Math.max(1, maxSize / Math.max(1, averageSize(trace))));
+		System.out.println("w-tinylfu: " + replay(trace, maxSize,
+			new WTinyLfuEvictionPolicy(maxSize, expectedEntries), value));
+	}
+
+	/**
+	 * トレースを再生する
+	 * @param trace
+	 * @param maxSize
+	 * @param policy nullならLRU
+	 * @param value 書き込む値
+	 * @return
+	 * @throws IOException
+	 */
+	private static DiskLruCache.Stats replay(final List<Access> trace,
+		final long maxSize, final DiskLruCache.EvictionPolicy policy,
+		final byte[] value) throws IOException {
+
+		final File dir = Files.createTempDirectory("tracereplay").toFile();
+		final DiskLruCache cache = DiskLruCache.open(dir, 1, 1, maxSize);
+		try {
+			cache.setEvictionPolicy(policy);
+			for (final Access access: trace) {
+				final DiskLruCache.Snapshot snapshot = cache.get(access.key);
+				if (snapshot != null) {
+					snapshot.close();
+					continue;
+				}
+				final DiskLruCache.Editor editor = cache.edit(access.key);
+				if (editor != null) {
+					final OutputStream out = editor.newOutputStream(0);
+					try {
+						out.write(value, 0, access.size);
+					} finally {
+						out.close();
+					}
+					editor.commit();
+					cache.flush();
+				}
+			}
+			return cache.getStats();
+		} finally {
+			cache.delete();
+			//noinspection ResultOfMethodCallIgnored
+			dir.delete();
+		}
+	}
+
+	/**
+	 * トレースファイルを読み込む
+	 * キーはDiskLruCacheのキー(ファイル名)に使える文字列へ置き換える
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<Access> load(final File file) throws IOException {
+		final List<Access> result = new ArrayList<Access>();
+		final HashMap<String, String> keys = new HashMap<String, String>();
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] parts = line.split("\\s+");
+				String key = keys.get(parts[0]);
+				if (key == null) {
+					key = "k" + keys.size();
+					keys.put(parts[0], key);
+				}
+				final int size = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+				result.add(new Access(key, Math.max(size, 0)));
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+
+	/**
+	 * 合成トレースを生成する
+	 * 頻繁に参照するキー(Zipf分布に近い偏り)へのアクセスの合間に
+	 * 1回だけ参照するキーを連続してアクセスする(ギャラリーのスクロールを想定)
+	 * @return
+	 */
+	private static List<Access> synthetic() {
+		final Random random = new Random(12345);
+		final List<Access> result = new ArrayList<Access>(SYNTHETIC_ACCESSES);
+		int oneOff = 0;
+		while (result.size() < SYNTHETIC_ACCESSES) {
+			if (random.nextInt(1000) < 1) {
+				// スクロール: 1回だけ参照するキーを連続してアクセスする
+				final int n = 200 + random.nextInt(800);
+				for (int i = 0; i < n; i++) {
+					result.add(new Access("s" + (oneOff++), 1));
+				}
+			} else {
+				// 0〜1の一様乱数を3乗して小さいキーほど頻繁に参照されるようにする
+				final double r = random.nextDouble();
+				final int key = (int)(r * r * r * SYNTHETIC_HOT_KEYS);
+				result.add(new Access("h" + key, 1));
+			}
+		}
+		return result;
+	}
+
+	private static long averageSize(final List<Access> trace) {
+		long total = 0;
+		for (final Access access: trace) {
+			total += access.size;
+		}
+		return trace.isEmpty() ? 1 : total / trace.size();
+	}
+}
@@ -0,0 +1,127 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.IMediaQueue;
+import com.serenegiant.media.MemMediaQueue;
+import com.serenegiant.media.RecycleMediaData;
+import com.serenegiant.media.RingMediaQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IMediaQueue実装(MemMediaQueue/RingMediaQueue)のベンチマーク
+ * プロデューサー(obtain/queueFrame)とコンシューマー(poll/recycle)を
+ * 別スレッドで実行する場合と同一スレッドで実行する場合を計測する
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaQueueBenchmark {
+	private static final int FRAME_SIZE = 4096;
+
+	@Param({"mem", "ring"})
+	public String queueType;
+
+	private IMediaQueue<RecycleMediaData> mQueue;
+	private ByteBuffer mFrame;
+	private long mPts;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if ("ring".equals(queueType)) {
+			mQueue = new RingMediaQueue(8, 64, 32);
+		} else {
+			mQueue = new MemMediaQueue(8, 64, 32);
+		}
+		mQueue.init(FRAME_SIZE);
+		mFrame = ByteBuffer.allocateDirect(FRAME_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mQueue.clear();
+	}
+
+	/**
+	 * 1フレーム分の追加と取り出しを同一スレッドで行う
+	 * @return
+	 */
+	@Benchmark
+	@Group("roundTrip")
+	@GroupThreads(1)
+	public RecycleMediaData roundTrip() {
+		final RecycleMediaData data = produce();
+		final RecycleMediaData result = mQueue.poll();
+		if (result != null) {
+			mQueue.recycle(result);
+		}
+		return data;
+	}
+
+	@Benchmark
+	@Group("spsc")
+	@GroupThreads(1)
+	public RecycleMediaData producer() {
+		return produce();
+	}
+
+	@Benchmark
+	@Group("spsc")
+	@GroupThreads(1)
+	public RecycleMediaData consumer() throws InterruptedException {
+		final RecycleMediaData result = mQueue.poll(10, TimeUnit.MILLISECONDS);
+		if (result != null) {
+			mQueue.recycle(result);
+		}
+		return result;
+	}
+
+	private RecycleMediaData produce() {
+		final RecycleMediaData data = mQueue.obtain(FRAME_SIZE);
+		if (data != null) {
+			mFrame.clear();
+			data.set(mFrame, FRAME_SIZE, mPts++);
+			if (!mQueue.queueFrame(data)) {
+				mQueue.recycle(data);
+			}
+		}
+		return data;
+	}
+}
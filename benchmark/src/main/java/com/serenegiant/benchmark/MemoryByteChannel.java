@@ -0,0 +1,84 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * ByteBufferへ読み書きするだけのByteChannel実装
+ * ファイルI/Oの影響を受けずにChannelHelperの処理時間を計測するために使う
+ */
+class MemoryByteChannel implements ByteChannel {
+	@NonNull
+	private final ByteBuffer mBuffer;
+	private int mReadPos;
+
+	MemoryByteChannel(final int capacity) {
+		mBuffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * 書き込み位置と読み込み位置を先頭へ戻す
+	 */
+	void rewind() {
+		mBuffer.clear();
+		mReadPos = 0;
+	}
+
+	/**
+	 * 読み込み位置のみを先頭へ戻す
+	 */
+	void rewindRead() {
+		mReadPos = 0;
+	}
+
+	@Override
+	public int read(final ByteBuffer dst) {
+		final int limit = mBuffer.position();
+		if (mReadPos >= limit) {
+			return -1;
+		}
+		final ByteBuffer src = mBuffer.duplicate();
+		src.limit(limit).position(mReadPos);
+		final int n = Math.min(src.remaining(), dst.remaining());
+		src.limit(mReadPos + n);
+		dst.put(src);
+		mReadPos += n;
+		return n;
+	}
+
+	@Override
+	public int write(final ByteBuffer src) {
+		final int n = src.remaining();
+		mBuffer.put(src);
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
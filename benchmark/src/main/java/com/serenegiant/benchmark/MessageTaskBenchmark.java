@@ -0,0 +1,147 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.MessageTask;
+import com.serenegiant.utils.MessageTaskExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageTaskのリクエスト送信から処理完了までのベンチマーク
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTaskBenchmark {
+	private static final int REQUEST_ADD = 1;
+	private static final int BURST = 64;
+
+	@Param({"false", "true"})
+	public boolean batchMode;
+
+	/**
+	 * trueなら専用スレッドの代わりに共有ワーカースレッド上で実行する
+	 */
+	@Param({"false", "true"})
+	public boolean shared;
+
+	private CounterTask mTask;
+	private MessageTaskExecutor mExecutor;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mTask = new CounterTask();
+		mTask.setBatchMode(batchMode);
+		if (shared) {
+			mExecutor = new MessageTaskExecutor("CounterTask", 2);
+			mTask.start(mExecutor);
+		} else {
+			new Thread(mTask, "CounterTask").start();
+		}
+		if (!mTask.waitReady()) {
+			throw new IllegalStateException("failed to start MessageTask");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mTask.release();
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
+	/**
+	 * 1リクエスト毎に処理完了を待つ場合
+	 * @return
+	 */
+	@Benchmark
+	public Object offerAndWait() {
+		return mTask.offerAndWait(REQUEST_ADD, 1, 0, null);
+	}
+
+	/**
+	 * 複数のリクエストをまとめて送信してから最後の1つの処理完了を待つ場合
+	 * @return
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public Object offerBurst() {
+		for (int i = 0; i < BURST - 1; i++) {
+			mTask.offer(REQUEST_ADD, 1);
+		}
+		return mTask.offerAndWait(REQUEST_ADD, 1, 0, null);
+	}
+
+	/**
+	 * リクエストで指定された値を加算するだけのMessageTask
+	 */
+	private static class CounterTask extends MessageTask {
+		private long mCount;
+
+		private CounterTask() {
+			super(BURST * 2);
+			init(0, 0, null);
+		}
+
+		@Override
+		protected void onInit(final int arg1, final int arg2, final Object obj) {
+		}
+
+		@Override
+		protected void onStart() {
+		}
+
+		@Override
+		protected void onStop() {
+		}
+
+		@Override
+		protected void onRelease() {
+		}
+
+		@Override
+		protected Object processRequest(final int request,
+			final int arg1, final int arg2, final Object obj) throws TaskBreak {
+
+			mCount += arg1;
+			return mCount;
+		}
+	}
+}
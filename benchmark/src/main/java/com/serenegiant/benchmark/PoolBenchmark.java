@@ -0,0 +1,84 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.Pool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * utils.Poolの取得/返却のベンチマーク
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+	/**
+	 * スレッド毎のキャッシュサイズ, 0ならキャッシュしない
+	 */
+	@Param({"0", "16"})
+	public int threadCacheSize;
+
+	private Pool<Object> mPool;
+
+	@Setup
+	public void setup() {
+		mPool = new Pool<Object>(64, 256) {
+			@Override
+			protected Object createObject(@Nullable final Object... args) {
+				return new Object();
+			}
+		};
+		mPool.setThreadCacheSize(threadCacheSize);
+	}
+
+	@Benchmark
+	public Object obtainRecycle() {
+		final Object obj = mPool.obtain();
+		if (obj != null) {
+			mPool.recycle(obj);
+		}
+		return obj;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object obtainRecycleContended() {
+		return obtainRecycle();
+	}
+}
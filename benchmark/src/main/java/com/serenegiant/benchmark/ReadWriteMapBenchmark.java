@@ -0,0 +1,134 @@
+package com.serenegiant.benchmark;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.collections.ReentrantReadWriteMap;
+import com.serenegiant.collections.StripedReadWriteMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReentrantReadWriteMapとStripedReadWriteMapの読み込みのスケーラビリティのベンチマーク
+ * 読み込みスレッド数を1/2/4/8と変えて#getのスループットを計測する
+ * (Surfaceの管理用マップやリスナーの登録用マップのように書き込みがほとんどない場合を想定)
+ * readWithWriterは読み込み3スレッドと書き込み1スレッドを同時に実行する
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteMapBenchmark {
+	private static final int NUM_KEYS = 64;
+	private static final int KEY_MASK = NUM_KEYS - 1;
+
+	@Param({"rwlock", "striped"})
+	public String mapType;
+
+	private Map<Integer, Object> mMap;
+	private Integer[] mKeys;
+
+	/**
+	 * スレッド毎のキーの選択位置
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int mIndex;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			mIndex = (int)(Thread.currentThread().getId() * 7);
+		}
+
+		private int next() {
+			return (mIndex++) & KEY_MASK;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		if ("striped".equals(mapType)) {
+			mMap = new StripedReadWriteMap<Integer, Object>();
+		} else {
+			mMap = new ReentrantReadWriteMap<Integer, Object>();
+		}
+		mKeys = new Integer[NUM_KEYS];
+		for (int i = 0; i < NUM_KEYS; i++) {
+			mKeys[i] = i * 31;
+			mMap.put(mKeys[i], new Object());
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object get1(final Cursor cursor) {
+		return mMap.get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public Object get2(final Cursor cursor) {
+		return mMap.get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object get4(final Cursor cursor) {
+		return mMap.get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object get8(final Cursor cursor) {
+		return mMap.get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Group("readWithWriter")
+	@GroupThreads(3)
+	public Object reader(final Cursor cursor) {
+		return mMap.get(mKeys[cursor.next()]);
+	}
+
+	@Benchmark
+	@Group("readWithWriter")
+	@GroupThreads(1)
+	public Object writer(final Cursor cursor) {
+		final Integer key = mKeys[cursor.next()];
+		return mMap.put(key, key);
+	}
+}
@@ -0,0 +1,46 @@
+package android.os;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+/**
+ * ベンチマーク用のandroid.os.Buildのスタブ
+ * 常に最新のAPIレベルで実行しているとみなす
+ */
+public final class Build {
+	private Build() {
+	}
+
+	public static final class VERSION {
+		public static final int SDK_INT = VERSION_CODES.R;
+	}
+
+	public static final class VERSION_CODES {
+		public static final int JELLY_BEAN = 16;
+		public static final int JELLY_BEAN_MR1 = 17;
+		public static final int JELLY_BEAN_MR2 = 18;
+		public static final int KITKAT = 19;
+		public static final int LOLLIPOP = 21;
+		public static final int M = 23;
+		public static final int N = 24;
+		public static final int O = 26;
+		public static final int P = 28;
+		public static final int Q = 29;
+		public static final int R = 30;
+	}
+}
@@ -0,0 +1,37 @@
+package android.os;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+/**
+ * ベンチマーク用のandroid.os.Handlerのスタブ
+ * MediaQueueStats.Reporterのコンパイル用でベンチマークからは使わない
+ */
+public class Handler {
+	public final boolean post(final Runnable r) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public final boolean postDelayed(final Runnable r, final long delayMillis) {
+		throw new RuntimeException("Stub!");
+	}
+
+	public final void removeCallbacks(final Runnable r) {
+		throw new RuntimeException("Stub!");
+	}
+}
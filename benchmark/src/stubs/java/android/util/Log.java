@@ -0,0 +1,68 @@
+package android.util;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+/**
+ * ベンチマーク用のandroid.util.Logのスタブ
+ * 警告/エラーのみ標準エラー出力へ出力する
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int v(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int d(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int i(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int w(final String tag, final String msg) {
+		return println(tag, msg, null);
+	}
+
+	public static int w(final String tag, final Throwable tr) {
+		return println(tag, null, tr);
+	}
+
+	public static int w(final String tag, final String msg, final Throwable tr) {
+		return println(tag, msg, tr);
+	}
+
+	public static int e(final String tag, final String msg) {
+		return println(tag, msg, null);
+	}
+
+	public static int e(final String tag, final String msg, final Throwable tr) {
+		return println(tag, msg, tr);
+	}
+
+	private static int println(final String tag, final String msg, final Throwable tr) {
+		System.err.println(tag + ": " + (msg != null ? msg : ""));
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
@@ -18,36 +18,126 @@ package com.serenegiant.collections;
  *  limitations under the License.
 */
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Map holds multiple values for each key
  * This class use HashMap as Map and ArrayList as Collection as default.
  * You can override this by overriding #createContentsMap and #createCollection.
+ * 値コレクションの種類はコンストラクタでBUCKET_XXXを指定して切り替えることもできる
+ * また逆引きインデックス(値→キー)を有効にすると#containsInValue/#keysOfが
+ * 値コレクションを全て走査せずに済むようになる
  * @param <K>
  * @param <V>
  */
 public class CollectionMap<K, V> implements Map<K, Collection<V>> {
+	/**
+	 * 値コレクションとしてArrayListを使う(デフォルト)
+	 */
+	public static final int BUCKET_LIST = 0;
+	/**
+	 * 値コレクションとして配列ベースのコンパクトなコレクションを使う
+	 * 値の数が少ない(数個程度の)場合にメモリー使用量を抑えることができる
+	 */
+	public static final int BUCKET_COMPACT = 1;
+	/**
+	 * 値コレクションとしてHashSetを使う
+	 * 値コレクション毎のcontains/removeがO(1)になるが同じ値の重複は保持できない
+	 */
+	public static final int BUCKET_HASH_SET = 2;
+
+	@IntDef({
+		BUCKET_LIST,
+		BUCKET_COMPACT,
+		BUCKET_HASH_SET})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface BucketType {}
+
 	@NonNull
 	private final Map<K, Collection<V>> contents;
+	@BucketType
+	private final int bucketType;
+	/**
+	 * 逆引きインデックス, 値→(キー→そのキーの値コレクションに含まれている個数)
+	 * 逆引きインデックスが無効な場合はnull
+	 */
+	@Nullable
+	private final Map<V, Map<K, int[]>> reverseIndex;
 
 	/**
 	 * コンストラクタ
+	 * 値コレクションはArrayList, 逆引きインデックスは無効
 	 */
 	public CollectionMap() {
+		this(BUCKET_LIST, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 逆引きインデックスは無効
+	 * @param bucketType 値コレクションの種類
+	 */
+	public CollectionMap(@BucketType final int bucketType) {
+		this(bucketType, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * 逆引きインデックスを有効にした場合、値コレクションは値の追加削除を逆引きインデックスへ
+	 * 反映するラッパーになる。また#keySet/#values/#entrySetは変更不可のビューを返すので
+	 * キーの削除等は#remove等のこのクラスのメソッドを使うこと
+	 * ただし#entrySetのEntry#setValue(とそれを使う#replaceAll)は#putと同様に
+	 * 逆引きインデックスへ反映する
+	 * @param bucketType 値コレクションの種類
+	 * @param withReverseIndex 逆引きインデックスを有効にするかどうか
+	 */
+	public CollectionMap(@BucketType final int bucketType, final boolean withReverseIndex) {
+		this.bucketType = bucketType;
+		reverseIndex = withReverseIndex ? new HashMap<V, Map<K, int[]>>() : null;
 		contents = createContentsMap();
 	}
 
+	/**
+	 * 値コレクションの種類を取得
+	 * @return
+	 */
+	@BucketType
+	public int getBucketType() {
+		return bucketType;
+	}
+
+	/**
+	 * 逆引きインデックスが有効かどうかを取得
+	 * @return
+	 */
+	public boolean hasReverseIndex() {
+		return reverseIndex != null;
+	}
+
 	@Override
 	public void clear() {
 		contents.clear();
+		if (reverseIndex != null) {
+			reverseIndex.clear();
+		}
 	}
 
 	@Override
@@ -69,10 +159,15 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 
 	/**
 	 * 指定したオブジェクトが値コレクションのいずれかに含まれているかどうかを取得
+	 * 逆引きインデックスが有効な場合はO(1)、
+	 * そうでなければ全ての値コレクションを走査する(BUCKET_HASH_SETなら値コレクション毎にはO(1))
 	 * @param value
 	 * @return
 	 */
 	public boolean containsInValue(final V value) {
+		if (reverseIndex != null) {
+			return reverseIndex.containsKey(value);
+		}
 		for (final Collection<V> collection : contents.values()) {
 			if (collection.contains(value)) {
 				return true;
@@ -81,10 +176,38 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 		return false;
 	}
 
+	/**
+	 * 指定した値を値コレクションに含んでいるキーを取得する
+	 * 逆引きインデックスが有効な場合はO(1)で変更不可のビューを返す、
+	 * そうでなければ全ての値コレクションを走査して生成したSetを返す
+	 * @param value
+	 * @return
+	 */
+	@NonNull
+	public Set<K> keysOf(final V value) {
+		if (reverseIndex != null) {
+			final Map<K, int[]> keys = reverseIndex.get(value);
+			return keys != null ? Collections.unmodifiableSet(keys.keySet()) : Collections.<K>emptySet();
+		}
+		final Set<K> result = new HashSet<>();
+		for (final Entry<K, Collection<V>> entry: contents.entrySet()) {
+			if (entry.getValue().contains(value)) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 逆引きインデックスが有効な場合はエントリーの追加削除ができないビューを返す
+	 * その場合もEntry#setValueは#putと同様に逆引きインデックスへ反映するので
+	 * Entry#setValueを使う#replaceAllもそのまま使える
+	 * @return
+	 */
 	@Override
 	@NonNull
 	public Set<Entry<K, Collection<V>>> entrySet() {
-		return contents.entrySet();
+		return reverseIndex != null ? new IndexedEntrySet() : contents.entrySet();
 	}
 
 	@Nullable
@@ -98,21 +221,37 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 		return contents.isEmpty();
 	}
 
+	/**
+	 * 逆引きインデックスが有効な場合は変更不可のビューを返す
+	 * @return
+	 */
 	@Override
 	@NonNull
 	public Set<K> keySet() {
-		return contents.keySet();
+		return reverseIndex != null
+			? Collections.unmodifiableSet(contents.keySet()) : contents.keySet();
 	}
 
 	/**
 	 * 指定したキーに対応する値コレクションが存在する場合には置き換える、
 	 * 指定したキーに対応する値コレクションが存在しない場合には新規追加する
+	 * 逆引きインデックスが有効な場合は指定した値コレクションをそのまま保持せずに
+	 * 新しく生成した値コレクションへコピーして保持する
 	 * @param key
 	 * @param value
 	 * @return
 	 */
 	@Override
 	public Collection<V> put(final K key, final Collection<V> value) {
+		if (reverseIndex != null) {
+			final Collection<V> bucket = newBucket(key);
+			bucket.addAll(value);
+			final Collection<V> prev = contents.put(key, bucket);
+			if (prev != null) {
+				unindexAll(key, prev);
+			}
+			return prev;
+		}
 		return contents.put(key, value);
 	}
 
@@ -126,7 +265,7 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 	public boolean add(final K key, final V value) {
 		Collection<V> collection = get(key);
 		if (collection == null) {
-			collection = createCollection();
+			collection = newBucket(key);
 			contents.put(key, collection);
 		}
 		return collection.add(value);
@@ -134,7 +273,13 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 
 	@Override
 	public void putAll(@NonNull final Map<? extends K, ? extends Collection<V>> m) {
-		contents.putAll(m);
+		if (reverseIndex != null) {
+			for (final Entry<? extends K, ? extends Collection<V>> entry : m.entrySet()) {
+				put(entry.getKey(), entry.getValue());
+			}
+		} else {
+			contents.putAll(m);
+		}
 	}
 
 	/**
@@ -157,15 +302,20 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 	public boolean addAll(@NonNull final K key, @NonNull final Collection<? extends V> values) {
 		Collection<V> collection = internalGet(key);
 		if (collection == null) {
-			collection = createCollection();
+			collection = newBucket(key);
 			contents.put(key, collection);
 		}
 		return collection.addAll(values);
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public Collection<V> remove(final Object key) {
-		return contents.remove(key);
+		final Collection<V> result = contents.remove(key);
+		if ((reverseIndex != null) && (result != null)) {
+			unindexAll((K)key, result);
+		}
+		return result;
 	}
 
 	@Override
@@ -192,16 +342,19 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 
 	/**
 	 * このMapに含まれる値コレクションを取得する
+	 * 逆引きインデックスが有効な場合は変更不可のビューを返す
 	 * @return
 	 */
 	@NonNull
 	@Override
 	public Collection<Collection<V>> values() {
-		return contents.values();
+		return reverseIndex != null
+			? Collections.unmodifiableCollection(contents.values()) : contents.values();
 	}
 
 	/**
 	 * このMapに含まれる値コレクション内のすべての値を取得する
+	 * 新しく生成したコレクションへコピーして返すので、コピーが不要な場合は#valuesAllViewを使うこと
 	 * @return
 	 */
 	@NonNull
@@ -213,6 +366,49 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 		return result;
 	}
 
+	/**
+	 * このMapに含まれる値コレクション内のすべての値をコピーせずに参照するビューを取得する
+	 * 各値コレクションを順にイテレートする。Iterator#removeで値コレクションから値を削除できる
+	 * #sizeは値コレクションの数に比例する時間がかかる
+	 * #containsは#containsInValueと同じ
+	 * @return
+	 */
+	@NonNull
+	public Collection<V> valuesAllView() {
+		return new AbstractCollection<V>() {
+			@NonNull
+			@Override
+			public Iterator<V> iterator() {
+				return new ValuesAllIterator();
+			}
+
+			@Override
+			public int size() {
+				int result = 0;
+				for (final Collection<V> v: contents.values()) {
+					result += v.size();
+				}
+				return result;
+			}
+
+			@Override
+			public boolean isEmpty() {
+				for (final Collection<V> v: contents.values()) {
+					if (!v.isEmpty()) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public boolean contains(final Object o) {
+				return containsInValue((V)o);
+			}
+		};
+	}
+
 //--------------------------------------------------------------------------------
 	/**
 	 * Key-Valueペア保持用のMapオブジェクト生成メソッド
@@ -226,16 +422,419 @@ public class CollectionMap<K, V> implements Map<K, Collection<V>> {
 
 	/**
 	 * 値用のコレクション生成メソッド
-	 * デフォルトではArrayListを使う
+	 * デフォルトではコンストラクタで指定したBUCKET_XXXに対応するコレクションを生成する
+	 * (BUCKET_LISTならArrayList)
 	 * @return
 	 */
 	@NonNull
 	protected Collection<V> createCollection() {
-		return new ArrayList<>();
+		switch (bucketType) {
+		case BUCKET_COMPACT:
+			return new CompactCollection<>();
+		case BUCKET_HASH_SET:
+			return new HashSet<>();
+		case BUCKET_LIST:
+		default:
+			return new ArrayList<>();
+		}
 	}
 
 	@Nullable
 	private Collection<V> internalGet(final Object key) {
 		return contents.containsKey(key) ? contents.get(key) : null;
 	}
+
+	/**
+	 * 指定したキー用の値コレクションを生成する
+	 * 逆引きインデックスが有効な場合は#createCollectionで生成したコレクションを
+	 * IndexedCollectionでラップする
+	 * @param key
+	 * @return
+	 */
+	@NonNull
+	private Collection<V> newBucket(final K key) {
+		final Collection<V> collection = createCollection();
+		return reverseIndex != null ? new IndexedCollection(key, collection) : collection;
+	}
+
+	/**
+	 * 逆引きインデックスへ値を追加する
+	 * @param key
+	 * @param value
+	 */
+	private void index(final K key, final V value) {
+		//noinspection ConstantConditions
+		Map<K, int[]> keys = reverseIndex.get(value);
+		if (keys == null) {
+			keys = new HashMap<>(4);
+			reverseIndex.put(value, keys);
+		}
+		final int[] count = keys.get(key);
+		if (count != null) {
+			count[0]++;
+		} else {
+			keys.put(key, new int[] {1});
+		}
+	}
+
+	/**
+	 * 逆引きインデックスから値を削除する
+	 * @param key
+	 * @param value
+	 */
+	private void unindex(final K key, final V value) {
+		//noinspection ConstantConditions
+		final Map<K, int[]> keys = reverseIndex.get(value);
+		if (keys != null) {
+			final int[] count = keys.get(key);
+			if ((count != null) && (--count[0] <= 0)) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					reverseIndex.remove(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 指定した値コレクションの値を全て逆引きインデックスから削除する
+	 * @param key
+	 * @param values
+	 */
+	private void unindexAll(final K key, @NonNull final Collection<V> values) {
+		for (final V v: values) {
+			unindex(key, v);
+		}
+		if (values instanceof CollectionMap<?, ?>.IndexedCollection) {
+			// 削除した値コレクションを後から変更しても逆引きインデックスへ反映されないようにする
+			((CollectionMap<?, ?>.IndexedCollection)values).detached = true;
+		}
+	}
+
+	/**
+	 * 逆引きインデックスが有効な場合に使う値コレクションのラッパー
+	 * 値の追加削除を逆引きインデックスへ反映する
+	 */
+	private class IndexedCollection extends AbstractCollection<V> {
+		private final K key;
+		@NonNull
+		private final Collection<V> collection;
+		/**
+		 * CollectionMapから削除されたときにtrue
+		 */
+		private boolean detached;
+
+		private IndexedCollection(final K key, @NonNull final Collection<V> collection) {
+			this.key = key;
+			this.collection = collection;
+		}
+
+		@Override
+		public int size() {
+			return collection.size();
+		}
+
+		@Override
+		public boolean contains(final Object o) {
+			return collection.contains(o);
+		}
+
+		@Override
+		public boolean add(final V v) {
+			final boolean result = collection.add(v);
+			if (result && !detached) {
+				index(key, v);
+			}
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public boolean remove(final Object o) {
+			final boolean result = collection.remove(o);
+			if (result && !detached) {
+				unindex(key, (V)o);
+			}
+			return result;
+		}
+
+		@Override
+		public void clear() {
+			if (!detached) {
+				for (final V v: collection) {
+					unindex(key, v);
+				}
+			}
+			collection.clear();
+		}
+
+		@NonNull
+		@Override
+		public Iterator<V> iterator() {
+			final Iterator<V> it = collection.iterator();
+			return new Iterator<V>() {
+				private V current;
+
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public V next() {
+					current = it.next();
+					return current;
+				}
+
+				@Override
+				public void remove() {
+					it.remove();
+					if (!detached) {
+						unindex(key, current);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * 逆引きインデックスが有効な場合の#entrySet用のビュー
+	 * エントリーの追加削除はできないがEntry#setValueは逆引きインデックスへ反映する
+	 */
+	private class IndexedEntrySet extends AbstractSet<Entry<K, Collection<V>>> {
+		@Override
+		public int size() {
+			return contents.size();
+		}
+
+		@Override
+		public boolean contains(final Object o) {
+			return contents.entrySet().contains(o);
+		}
+
+		@NonNull
+		@Override
+		public Iterator<Entry<K, Collection<V>>> iterator() {
+			final Iterator<Entry<K, Collection<V>>> it = contents.entrySet().iterator();
+			return new Iterator<Entry<K, Collection<V>>>() {
+				@Override
+				public boolean hasNext() {
+					return it.hasNext();
+				}
+
+				@Override
+				public Entry<K, Collection<V>> next() {
+					return new IndexedEntry(it.next());
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * 逆引きインデックスが有効な場合の#entrySet用のエントリー
+	 * #setValueは#putと同様に新しく生成した値コレクションへコピーして保持し
+	 * 以前の値コレクションの値を逆引きインデックスから削除する
+	 */
+	private class IndexedEntry implements Entry<K, Collection<V>> {
+		@NonNull
+		private final Entry<K, Collection<V>> entry;
+
+		private IndexedEntry(@NonNull final Entry<K, Collection<V>> entry) {
+			this.entry = entry;
+		}
+
+		@Override
+		public K getKey() {
+			return entry.getKey();
+		}
+
+		@Override
+		public Collection<V> getValue() {
+			return entry.getValue();
+		}
+
+		@Override
+		public Collection<V> setValue(final Collection<V> value) {
+			final K key = entry.getKey();
+			final Collection<V> bucket = newBucket(key);
+			bucket.addAll(value);
+			final Collection<V> prev = entry.setValue(bucket);
+			if (prev != null) {
+				unindexAll(key, prev);
+			}
+			return prev;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return entry.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return entry.hashCode();
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return entry.toString();
+		}
+	}
+
+	/**
+	 * #valuesAllView用のイテレータ
+	 * 値コレクションを順にイテレートする
+	 */
+	private class ValuesAllIterator implements Iterator<V> {
+		@NonNull
+		private final Iterator<Collection<V>> buckets = contents.values().iterator();
+		@Nullable
+		private Iterator<V> current;
+		@Nullable
+		private Iterator<V> last;
+
+		@Override
+		public boolean hasNext() {
+			while ((current == null) || !current.hasNext()) {
+				if (!buckets.hasNext()) {
+					return false;
+				}
+				current = buckets.next().iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public V next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = current;
+			//noinspection ConstantConditions
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			last.remove();
+			last = null;
+		}
+	}
+
+	/**
+	 * 配列ベースのコンパクトな値コレクション
+	 * ArrayListと違って最初は小さな配列を使い、modCount等の付加的なフィールドも持たない
+	 * 値の数が少ない場合を想定しているのでcontains/removeは線形探索
+	 * 追加した順序は維持する
+	 * @param <E>
+	 */
+	public static class CompactCollection<E> extends AbstractCollection<E> {
+		private static final int INITIAL_CAPACITY = 2;
+		private static final Object[] EMPTY = new Object[0];
+
+		@NonNull
+		private Object[] items = EMPTY;
+		private int size;
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean add(final E e) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items,
+					size < INITIAL_CAPACITY ? INITIAL_CAPACITY : size + (size >> 1) + 1);
+			}
+			items[size++] = e;
+			return true;
+		}
+
+		@Override
+		public boolean contains(final Object o) {
+			return indexOf(o) >= 0;
+		}
+
+		@Override
+		public boolean remove(final Object o) {
+			final int index = indexOf(o);
+			if (index >= 0) {
+				removeAt(index);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void clear() {
+			Arrays.fill(items, 0, size, null);
+			size = 0;
+		}
+
+		@NonNull
+		@Override
+		public Iterator<E> iterator() {
+			return new Iterator<E>() {
+				private int cursor;
+				private int last = -1;
+				private int expectedSize = size;
+
+				@Override
+				public boolean hasNext() {
+					return cursor < size;
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public E next() {
+					if (expectedSize != size) {
+						throw new ConcurrentModificationException();
+					}
+					if (cursor >= size) {
+						throw new NoSuchElementException();
+					}
+					last = cursor++;
+					return (E)items[last];
+				}
+
+				@Override
+				public void remove() {
+					if (last < 0) {
+						throw new IllegalStateException();
+					}
+					removeAt(last);
+					cursor = last;
+					last = -1;
+					expectedSize = size;
+				}
+			};
+		}
+
+		private int indexOf(final Object o) {
+			for (int i = 0; i < size; i++) {
+				if ((o == null) ? items[i] == null : o.equals(items[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void removeAt(final int index) {
+			final int n = size - index - 1;
+			if (n > 0) {
+				System.arraycopy(items, index + 1, items, index, n);
+			}
+			items[--size] = null;
+		}
+	}
 }
@@ -0,0 +1,234 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * プリミティブ型をキーとするマップ(IntKeyIndex/LongObjectMap)の
+ * ハッシュテーブル部分の共通処理
+ * エントリーはインデックス0〜size-1の密な配列へ保持し、
+ * キーからインデックスへの対応はオープンアドレス法(線形探索)のハッシュテーブルで保持する
+ * キーの型に依存するキーの比較(#findSlot相当)は継承クラスで実装し、
+ * 挿入/削除/再構築はキーのハッシュ値(#hashAt)とインデックスだけで行う
+ * 削除時は最後のエントリーを削除した位置へ移動する
+ * スレッドセーフではないので必要であれば呼び出し元で排他制御すること
+ */
+abstract class HashIndex {
+	static final int MIN_CAPACITY = 4;
+
+	/** エントリー数 */
+	int mSize;
+	/** エントリーの配列の容量 */
+	int mCapacity;
+	/**
+	 * ハッシュテーブル, 値はエントリーのインデックス+1で0は空きスロット
+	 * 容量は2のべき乗で常にエントリー数の2倍以上
+	 */
+	@NonNull
+	int[] mTable;
+	int mMask;
+
+	HashIndex(final int initialCapacity) {
+		mCapacity = Math.max(initialCapacity, MIN_CAPACITY);
+		mTable = new int[tableSizeFor(mCapacity)];
+		mMask = mTable.length - 1;
+	}
+
+	/**
+	 * エントリー数を取得
+	 * @return
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * 全てのエントリーを削除する
+	 */
+	public void clear() {
+		if (mSize > 0) {
+			Arrays.fill(mTable, 0);
+			clearEntries(0, mSize);
+			mSize = 0;
+		}
+	}
+
+	/**
+	 * 新しいエントリーを追加する準備をする
+	 * 必要であればエントリーの配列を拡張する
+	 * 呼び出し元で戻り値のインデックスへキーと値をセットしてから#commitInsertを呼ぶこと
+	 * @return 追加するエントリーのインデックス
+	 */
+	int prepareInsert() {
+		final int index = mSize;
+		if (index >= mCapacity) {
+			final int capacity = index + Math.max(index >> 1, MIN_CAPACITY);
+			growEntries(capacity);
+			mCapacity = capacity;
+		}
+		return index;
+	}
+
+	/**
+	 * #prepareInsertで準備したエントリーをハッシュテーブルへ登録する
+	 * @param emptySlot キーの探索で見つかった空きスロット
+	 * @param index #prepareInsertの戻り値
+	 */
+	void commitInsert(final int emptySlot, final int index) {
+		mSize = index + 1;
+		if (mSize * 2 > mTable.length) {
+			// ハッシュテーブルが半分以上埋まったときは拡張して再構築する
+			rehash(mTable.length * 2);
+		} else {
+			mTable[emptySlot] = index + 1;
+		}
+	}
+
+	/**
+	 * 指定したインデックスのエントリーを削除する
+	 * 最後のエントリーを削除した位置へ移動する
+	 * @param index
+	 */
+	void removeIndex(final int index) {
+		deleteSlot(slotOfIndex(index));
+		final int last = mSize - 1;
+		if (index != last) {
+			mTable[slotOfIndex(last)] = index + 1;
+			moveEntry(last, index);
+		}
+		clearEntries(last, last + 1);
+		mSize = last;
+	}
+
+	void checkIndex(final int index) throws ArrayIndexOutOfBoundsException {
+		if ((index < 0) || (index >= mSize)) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+	}
+
+	/**
+	 * 指定したインデックスのキーのハッシュ値を取得する
+	 * @param index
+	 * @return
+	 */
+	abstract int hashAt(final int index);
+
+	/**
+	 * エントリー(キーと値)の配列を指定した容量へ拡張する
+	 * @param capacity
+	 */
+	abstract void growEntries(final int capacity);
+
+	/**
+	 * エントリー(キーと値)をfromからtoへ移動する
+	 * @param from
+	 * @param to
+	 */
+	abstract void moveEntry(final int from, final int to);
+
+	/**
+	 * 指定した範囲のエントリーの値をクリアする(参照を解放する)
+	 * @param from
+	 * @param to
+	 */
+	abstract void clearEntries(final int from, final int to);
+
+	/**
+	 * 指定したインデックスのエントリーのハッシュテーブル上のスロットを探す
+	 * キーを比較せずにインデックスで探すのでキーの型に依存しない
+	 * @param index 0〜size()-1
+	 * @return
+	 */
+	private int slotOfIndex(final int index) {
+		int slot = hashAt(index) & mMask;
+		while (mTable[slot] != index + 1) {
+			slot = (slot + 1) & mMask;
+		}
+		return slot;
+	}
+
+	/**
+	 * ハッシュテーブルからスロットを削除する
+	 * 線形探索が途切れないように後続のスロットを前へ詰める(tombstoneは使わない)
+	 * @param slot
+	 */
+	private void deleteSlot(final int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mMask;
+		for ( ; ; ) {
+			final int v = mTable[next];
+			if (v == 0) {
+				break;
+			}
+			final int home = hashAt(v - 1) & mMask;
+			if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+				mTable[hole] = v;
+				hole = next;
+			}
+			next = (next + 1) & mMask;
+		}
+		mTable[hole] = 0;
+	}
+
+	private void rehash(final int tableSize) {
+		mTable = new int[tableSize];
+		mMask = tableSize - 1;
+		for (int i = 0; i < mSize; i++) {
+			int slot = hashAt(i) & mMask;
+			while (mTable[slot] != 0) {
+				slot = (slot + 1) & mMask;
+			}
+			mTable[slot] = i + 1;
+		}
+	}
+
+	private static int tableSizeFor(final int capacity) {
+		int n = MIN_CAPACITY * 2;
+		while (n < capacity * 2) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	/**
+	 * 連続したキー(サーフェースID等)でも偏らないようにビットを撹拌する
+	 * @param key
+	 * @return
+	 */
+	static int hash(final int key) {
+		final int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * long値のキー用のハッシュ関数
+	 * @param key
+	 * @return
+	 */
+	static int hash(final long key) {
+		return hash((int)(key ^ (key >>> 32)));
+	}
+}
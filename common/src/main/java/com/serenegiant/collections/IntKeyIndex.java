@@ -0,0 +1,152 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * intをキーとするマップ(IntObjectMap/IntIntMap)の共通部分
+ * キーと値はインデックス0〜size-1の密な配列へ保持し、
+ * キーからインデックスへの対応はオープンアドレス法(線形探索)のハッシュテーブル(HashIndex)で保持する
+ * そのためSparseArrayと同様にインデックスを指定してメモリー確保なしでイテレートでき、
+ * キーの検索は二分探索ではなくハッシュテーブルなのでO(1)になる
+ * 削除時は最後のエントリーを削除した位置へ移動するので
+ * イテレート中にremoveAtで削除するときは後ろから前へイテレートすること
+ * スレッドセーフではないので必要であれば呼び出し元で排他制御すること
+ */
+abstract class IntKeyIndex extends HashIndex {
+	/** キー, インデックス0〜mSize-1が有効 */
+	@NonNull
+	int[] mKeys;
+
+	IntKeyIndex(final int initialCapacity) {
+		super(initialCapacity);
+		mKeys = new int[mCapacity];
+	}
+
+	/**
+	 * 指定したキーが存在するかどうか
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(final int key) {
+		return findSlot(key) >= 0;
+	}
+
+	/**
+	 * 指定したキーのインデックスを取得する
+	 * @param key
+	 * @return 存在しなければ-1
+	 */
+	public int indexOfKey(final int key) {
+		final int slot = findSlot(key);
+		return slot >= 0 ? mTable[slot] - 1 : -1;
+	}
+
+	/**
+	 * 指定したインデックスのキーを取得する
+	 * @param index 0〜size()-1
+	 * @return
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public int keyAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return mKeys[index];
+	}
+
+	/**
+	 * キーを追加する, 既に存在するときは何もしない
+	 * 値は呼び出し元で戻り値のインデックスへセットすること
+	 * @param key
+	 * @return 追加したときは追加したインデックス, 既に存在していたときは-(インデックス+1)
+	 */
+	int insertKey(final int key) {
+		final int slot = findSlot(key);
+		if (slot >= 0) {
+			return -mTable[slot];
+		}
+		final int index = prepareInsert();
+		mKeys[index] = key;
+		commitInsert(~slot, index);
+		return index;
+	}
+
+	/**
+	 * 値の配列を指定した容量へ拡張する
+	 * @param capacity
+	 */
+	abstract void growValues(final int capacity);
+
+	/**
+	 * 値をfromからtoへ移動する
+	 * @param from
+	 * @param to
+	 */
+	abstract void moveValue(final int from, final int to);
+
+	/**
+	 * 指定した範囲の値をクリアする(参照を解放する)
+	 * @param from
+	 * @param to
+	 */
+	abstract void clearValues(final int from, final int to);
+
+	@Override
+	final int hashAt(final int index) {
+		return hash(mKeys[index]);
+	}
+
+	@Override
+	final void growEntries(final int capacity) {
+		mKeys = Arrays.copyOf(mKeys, capacity);
+		growValues(capacity);
+	}
+
+	@Override
+	final void moveEntry(final int from, final int to) {
+		mKeys[to] = mKeys[from];
+		moveValue(from, to);
+	}
+
+	@Override
+	final void clearEntries(final int from, final int to) {
+		clearValues(from, to);
+	}
+
+	/**
+	 * 指定したキーのハッシュテーブル上のスロットを探す
+	 * @param key
+	 * @return 存在すればスロット, 存在しなければ~(キーを追加する空きスロット)
+	 */
+	private int findSlot(final int key) {
+		int slot = hash(key) & mMask;
+		for ( ; ; ) {
+			final int v = mTable[slot];
+			if (v == 0) {
+				return ~slot;
+			}
+			if (mKeys[v - 1] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+	}
+}
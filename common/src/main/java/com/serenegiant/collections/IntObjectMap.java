@@ -0,0 +1,184 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * intをキーとしてオブジェクトを保持するマップ
+ * SparseArrayと同様のインデックスアクセス(#keyAt/#valueAt/#removeAt)ができるが
+ * キーの検索は二分探索ではなくオープンアドレス法のハッシュテーブルで行う
+ * キーのボクシングやエントリーの生成は行わず、インデックスでのイテレートはメモリー確保しない
+ * インデックス順はSparseArrayと異なりキー順ではなく追加順で、削除時は最後のエントリーを
+ * 削除した位置へ移動するので追加順も保たれない
+ * イテレート中に#removeAtで削除するときは後ろから前へイテレートすること
+ * スレッドセーフではないので必要であれば呼び出し元で排他制御すること
+ * @param <V>
+ */
+public class IntObjectMap<V> extends IntKeyIndex {
+	@NonNull
+	private Object[] mValues;
+
+	/**
+	 * コンストラクタ
+	 */
+	public IntObjectMap() {
+		this(8);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initialCapacity
+	 */
+	public IntObjectMap(final int initialCapacity) {
+		super(initialCapacity);
+		mValues = new Object[mKeys.length];
+	}
+
+	/**
+	 * 指定したキーに対応する値を取得する
+	 * @param key
+	 * @return 存在しなければnull
+	 */
+	@Nullable
+	public V get(final int key) {
+		return get(key, null);
+	}
+
+	/**
+	 * 指定したキーに対応する値を取得する
+	 * @param key
+	 * @param valueIfKeyNotFound
+	 * @return 存在しなければvalueIfKeyNotFound
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final int key, final V valueIfKeyNotFound) {
+		final int index = indexOfKey(key);
+		return index >= 0 ? (V)mValues[index] : valueIfKeyNotFound;
+	}
+
+	/**
+	 * 指定したキーと値を追加する, 既に存在するときは値を置き換える
+	 * @param key
+	 * @param value
+	 * @return 以前の値, 存在しなかったときはnull
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable
+	public V put(final int key, final V value) {
+		final int index = insertKey(key);
+		if (index >= 0) {
+			mValues[index] = value;
+			return null;
+		} else {
+			final V prev = (V)mValues[-index - 1];
+			mValues[-index - 1] = value;
+			return prev;
+		}
+	}
+
+	/**
+	 * SparseArrayとの互換性のため, #putと同じ
+	 * @param key
+	 * @param value
+	 */
+	public void append(final int key, final V value) {
+		put(key, value);
+	}
+
+	/**
+	 * 指定したキーのエントリーを削除する
+	 * @param key
+	 * @return 削除した値, 存在しなかったときはnull
+	 */
+	@Nullable
+	public V remove(final int key) {
+		final int index = indexOfKey(key);
+		return index >= 0 ? removeAt(index) : null;
+	}
+
+	/**
+	 * 指定したインデックスのエントリーを削除する
+	 * 最後のエントリーを削除した位置へ移動する
+	 * @param index
+	 * @return 削除した値
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	@SuppressWarnings("unchecked")
+	public V removeAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		final V result = (V)mValues[index];
+		removeIndex(index);
+		return result;
+	}
+
+	/**
+	 * 指定したインデックスの値を取得する
+	 * @param index 0〜size()-1
+	 * @return
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return (V)mValues[index];
+	}
+
+	/**
+	 * 指定したインデックスの値を置き換える
+	 * @param index 0〜size()-1
+	 * @param value
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public void setValueAt(final int index, final V value) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		mValues[index] = value;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < mSize; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(mKeys[i]).append('=').append(mValues[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+	@Override
+	void growValues(final int capacity) {
+		mValues = Arrays.copyOf(mValues, capacity);
+	}
+
+	@Override
+	void moveValue(final int from, final int to) {
+		mValues[to] = mValues[from];
+	}
+
+	@Override
+	void clearValues(final int from, final int to) {
+		Arrays.fill(mValues, from, to, null);
+	}
+}
@@ -0,0 +1,211 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * long値を保持する可変長配列
+ * List<Long>と違ってボクシングしない
+ * スレッドセーフではないので必要であれば呼び出し元で排他制御すること
+ */
+public class LongArrayList {
+	private static final int MIN_CAPACITY = 4;
+
+	@NonNull
+	private long[] mValues;
+	private int mSize;
+
+	/**
+	 * コンストラクタ
+	 */
+	public LongArrayList() {
+		this(8);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initialCapacity
+	 */
+	public LongArrayList(final int initialCapacity) {
+		mValues = new long[Math.max(initialCapacity, MIN_CAPACITY)];
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * 末尾へ追加する
+	 * @param value
+	 */
+	public void add(final long value) {
+		ensureCapacity(mSize + 1);
+		mValues[mSize++] = value;
+	}
+
+	/**
+	 * 指定した位置へ挿入する
+	 * @param index 0〜size()
+	 * @param value
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public void add(final int index, final long value) throws ArrayIndexOutOfBoundsException {
+		if ((index < 0) || (index > mSize)) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		ensureCapacity(mSize + 1);
+		System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+		mValues[index] = value;
+		mSize++;
+	}
+
+	/**
+	 * 配列の値を全て末尾へ追加する
+	 * @param values
+	 */
+	public void addAll(@NonNull final long[] values) {
+		ensureCapacity(mSize + values.length);
+		System.arraycopy(values, 0, mValues, mSize, values.length);
+		mSize += values.length;
+	}
+
+	/**
+	 * 指定した位置の値を取得する
+	 * @param index 0〜size()-1
+	 * @return
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public long get(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return mValues[index];
+	}
+
+	/**
+	 * 指定した位置の値を置き換える
+	 * @param index 0〜size()-1
+	 * @param value
+	 * @return 以前の値
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public long set(final int index, final long value) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		final long result = mValues[index];
+		mValues[index] = value;
+		return result;
+	}
+
+	/**
+	 * 指定した位置の値を削除する, 後ろの値は前へ詰める
+	 * @param index 0〜size()-1
+	 * @return 削除した値
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public long removeAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		final long result = mValues[index];
+		System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+		mSize--;
+		return result;
+	}
+
+	/**
+	 * 指定した値を最初に見つかった位置から削除する
+	 * @param value
+	 * @return true: 削除した, false: 見つからなかった
+	 */
+	public boolean removeValue(final long value) {
+		final int index = indexOf(value);
+		if (index >= 0) {
+			removeAt(index);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 指定した値の位置を取得する
+	 * @param value
+	 * @return 見つからなければ-1
+	 */
+	public int indexOf(final long value) {
+		for (int i = 0; i < mSize; i++) {
+			if (mValues[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean contains(final long value) {
+		return indexOf(value) >= 0;
+	}
+
+	/**
+	 * 全ての値を削除する
+	 */
+	public void clear() {
+		mSize = 0;
+	}
+
+	/**
+	 * 値をコピーした配列を返す
+	 * @return
+	 */
+	@NonNull
+	public long[] toArray() {
+		return Arrays.copyOf(mValues, mSize);
+	}
+
+	/**
+	 * 少なくとも指定した数の値を保持できるように容量を拡張する
+	 * @param capacity
+	 */
+	public void ensureCapacity(final int capacity) {
+		if (capacity > mValues.length) {
+			mValues = Arrays.copyOf(mValues,
+				Math.max(capacity, mValues.length + (mValues.length >> 1)));
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < mSize; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(mValues[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+	private void checkIndex(final int index) throws ArrayIndexOutOfBoundsException {
+		if ((index < 0) || (index >= mSize)) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+	}
+}
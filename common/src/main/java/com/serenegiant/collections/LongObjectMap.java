@@ -0,0 +1,248 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * longをキーとしてオブジェクトを保持するマップ
+ * LongSparseArrayと同様のインデックスアクセス(#keyAt/#valueAt/#removeAt)ができるが
+ * キーの検索は二分探索ではなくオープンアドレス法(線形探索)のハッシュテーブル(HashIndex)で行う
+ * キーのボクシングやエントリーの生成は行わず、インデックスでのイテレートはメモリー確保しない
+ * インデックス順はLongSparseArrayと異なりキー順ではなく追加順で、
+ * 削除時は最後のエントリーを削除した位置へ移動するので
+ * イテレート中に#removeAtで削除するときは後ろから前へイテレートすること
+ * スレッドセーフではないので必要であれば呼び出し元で排他制御すること
+ * @param <V>
+ */
+public class LongObjectMap<V> extends HashIndex {
+	/** キー, インデックス0〜mSize-1が有効 */
+	@NonNull
+	private long[] mKeys;
+	@NonNull
+	private Object[] mValues;
+
+	/**
+	 * コンストラクタ
+	 */
+	public LongObjectMap() {
+		this(8);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initialCapacity
+	 */
+	public LongObjectMap(final int initialCapacity) {
+		super(initialCapacity);
+		mKeys = new long[mCapacity];
+		mValues = new Object[mCapacity];
+	}
+
+	/**
+	 * 指定したキーが存在するかどうか
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(final long key) {
+		return findSlot(key) >= 0;
+	}
+
+	/**
+	 * 指定したキーのインデックスを取得する
+	 * @param key
+	 * @return 存在しなければ-1
+	 */
+	public int indexOfKey(final long key) {
+		final int slot = findSlot(key);
+		return slot >= 0 ? mTable[slot] - 1 : -1;
+	}
+
+	/**
+	 * 指定したキーに対応する値を取得する
+	 * @param key
+	 * @return 存在しなければnull
+	 */
+	@Nullable
+	public V get(final long key) {
+		return get(key, null);
+	}
+
+	/**
+	 * 指定したキーに対応する値を取得する
+	 * @param key
+	 * @param valueIfKeyNotFound
+	 * @return 存在しなければvalueIfKeyNotFound
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long key, final V valueIfKeyNotFound) {
+		final int index = indexOfKey(key);
+		return index >= 0 ? (V)mValues[index] : valueIfKeyNotFound;
+	}
+
+	/**
+	 * 指定したキーと値を追加する, 既に存在するときは値を置き換える
+	 * @param key
+	 * @param value
+	 * @return 以前の値, 存在しなかったときはnull
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable
+	public V put(final long key, final V value) {
+		final int slot = findSlot(key);
+		if (slot >= 0) {
+			final int index = mTable[slot] - 1;
+			final V prev = (V)mValues[index];
+			mValues[index] = value;
+			return prev;
+		}
+		final int index = prepareInsert();
+		mKeys[index] = key;
+		mValues[index] = value;
+		commitInsert(~slot, index);
+		return null;
+	}
+
+	/**
+	 * LongSparseArrayとの互換性のため, #putと同じ
+	 * @param key
+	 * @param value
+	 */
+	public void append(final long key, final V value) {
+		put(key, value);
+	}
+
+	/**
+	 * 指定したキーのエントリーを削除する
+	 * @param key
+	 * @return 削除した値, 存在しなかったときはnull
+	 */
+	@Nullable
+	public V remove(final long key) {
+		final int index = indexOfKey(key);
+		return index >= 0 ? removeAt(index) : null;
+	}
+
+	/**
+	 * 指定したインデックスのエントリーを削除する
+	 * 最後のエントリーを削除した位置へ移動する
+	 * @param index
+	 * @return 削除した値
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	@SuppressWarnings("unchecked")
+	public V removeAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		final V result = (V)mValues[index];
+		removeIndex(index);
+		return result;
+	}
+
+	/**
+	 * 指定したインデックスのキーを取得する
+	 * @param index 0〜size()-1
+	 * @return
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public long keyAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return mKeys[index];
+	}
+
+	/**
+	 * 指定したインデックスの値を取得する
+	 * @param index 0〜size()-1
+	 * @return
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return (V)mValues[index];
+	}
+
+	/**
+	 * 指定したインデックスの値を置き換える
+	 * @param index 0〜size()-1
+	 * @param value
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public void setValueAt(final int index, final V value) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		mValues[index] = value;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < mSize; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(mKeys[i]).append('=').append(mValues[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+//--------------------------------------------------------------------------------
+	@Override
+	int hashAt(final int index) {
+		return hash(mKeys[index]);
+	}
+
+	@Override
+	void growEntries(final int capacity) {
+		mKeys = Arrays.copyOf(mKeys, capacity);
+		mValues = Arrays.copyOf(mValues, capacity);
+	}
+
+	@Override
+	void moveEntry(final int from, final int to) {
+		mKeys[to] = mKeys[from];
+		mValues[to] = mValues[from];
+	}
+
+	@Override
+	void clearEntries(final int from, final int to) {
+		Arrays.fill(mValues, from, to, null);
+	}
+
+	/**
+	 * 指定したキーのハッシュテーブル上のスロットを探す
+	 * @param key
+	 * @return 存在すればスロット, 存在しなければ~(キーを追加する空きスロット)
+	 */
+	private int findSlot(final long key) {
+		int slot = hash(key) & mMask;
+		for ( ; ; ) {
+			final int v = mTable[slot];
+			if (v == 0) {
+				return ~slot;
+			}
+			if (mKeys[v - 1] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+	}
+}
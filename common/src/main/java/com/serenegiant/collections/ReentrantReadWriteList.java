@@ -21,17 +21,24 @@ package com.serenegiant.collections;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.RandomAccess;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 読み込みロックと書き込みロックを個別に制御できるようにするためのList実装
+ * コンストラクタでcopy on writeモードを指定すると書き込み時に変更不可なスナップショットを
+ * 生成して公開するので、読み込み/イテレート時にはロックせずメモリー確保も行わない
+ * (毎フレームイテレートするが追加/削除はほとんどないリスナーのリスト等向け)
+ * 書き込みが多い場合(プール等)はデフォルトのロックモードを使うこと
  * @param <V>
  */
 public class ReentrantReadWriteList<V> implements List<V> {
@@ -44,7 +51,64 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	/** hold key/value pairs */
 	@NonNull
 	private final List<V> mList = new ArrayList<V>();
-	
+	/**
+	 * copy on writeモードかどうか
+	 */
+	private final boolean mCopyOnWrite;
+	/**
+	 * copy on writeモード時に書き込み毎に公開するスナップショット
+	 * ロックモードの時は常に空
+	 */
+	@NonNull
+	private volatile Snapshot<V> mSnapshot;
+
+	/**
+	 * コンストラクタ
+	 * ロックモードで生成する
+	 */
+	public ReentrantReadWriteList() {
+		this(false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param copyOnWrite true: copy on writeモード, 読み込み/イテレートはロックせずスナップショットから行う
+	 *                    false: ロックモード, 全てのアクセスで読み込みロック/書き込みロックする
+	 */
+	@SuppressWarnings("unchecked")
+	public ReentrantReadWriteList(final boolean copyOnWrite) {
+		mCopyOnWrite = copyOnWrite;
+		mSnapshot = (Snapshot<V>)Snapshot.EMPTY;
+	}
+
+	/**
+	 * copy on writeモードかどうか
+	 * @return
+	 */
+	public boolean isCopyOnWrite() {
+		return mCopyOnWrite;
+	}
+
+	/**
+	 * 現在の内容の変更不可なスナップショットを取得する
+	 * copy on writeモードの時はロックもメモリー確保もしないので
+	 * インデックスでアクセスすればメモリー確保せずにイテレートできる
+	 * ロックモードの時はコピーを生成して返す
+	 * @return
+	 */
+	@NonNull
+	public List<V> snapshot() {
+		if (mCopyOnWrite) {
+			return mSnapshot;
+		}
+		mReadLock.lock();
+		try {
+			return new Snapshot<V>(mList.toArray());
+		} finally {
+			mReadLock.unlock();
+		}
+	}
+
 	/**
 	 *
 	 * @param ix
@@ -53,6 +117,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	 */
 	@Nullable
 	public V get(final int ix) throws IndexOutOfBoundsException {
+		if (mCopyOnWrite) {
+			return mSnapshot.get(ix);
+		}
 		mReadLock.lock();
 		try {
 			return mList.get(ix);
@@ -63,6 +130,10 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	
 	@Nullable
 	public V tryGet(final int ix) {
+		if (mCopyOnWrite) {
+			final Snapshot<V> snapshot = mSnapshot;
+			return ix >= 0 && ix < snapshot.size() ? snapshot.get(ix) : null;
+		}
 		if (mReadLock.tryLock()) {
 			try {
 				return ix >= 0 && ix < mList.size() ? mList.get(ix) : null;
@@ -87,12 +158,16 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			return mList.set(ix, value);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 	}
 	
 	@Override
 	public int indexOf(final Object o) {
+		if (mCopyOnWrite) {
+			return mSnapshot.indexOf(o);
+		}
 		mReadLock.lock();
 		try {
 			return mList.indexOf(o);
@@ -103,6 +178,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	
 	@Override
 	public int lastIndexOf(final Object o) {
+		if (mCopyOnWrite) {
+			return mSnapshot.lastIndexOf(o);
+		}
 		mReadLock.lock();
 		try {
 			return mList.lastIndexOf(o);
@@ -118,6 +196,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public ListIterator<V> listIterator() {
+		if (mCopyOnWrite) {
+			return mSnapshot.listIterator();
+		}
 		mReadLock.lock();
 		try {
 			return Collections.unmodifiableList(mList).listIterator();
@@ -129,6 +210,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public ListIterator<V> listIterator(final int ix) {
+		if (mCopyOnWrite) {
+			return mSnapshot.listIterator(ix);
+		}
 		mReadLock.lock();
 		try {
 			return Collections.unmodifiableList(mList).listIterator(ix);
@@ -146,6 +230,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public List<V> subList(final int fromIx, final int toIx) {
+		if (mCopyOnWrite) {
+			return mSnapshot.subList(fromIx, toIx);
+		}
 		List<V> result;
 		mReadLock.lock();
 		try {
@@ -158,6 +245,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	
 	@Override
 	public boolean containsAll(@NonNull final Collection<?> collection) {
+		if (mCopyOnWrite) {
+			return mSnapshot.containsAll(collection);
+		}
 		boolean result;
 		mReadLock.lock();
 		try {
@@ -180,6 +270,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.add(value);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -197,6 +288,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			mList.add(ix, value);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 	}
@@ -212,10 +304,11 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		mWriteLock.lock();
 		try {
 			result = !mList.contains(value);
-			if (!result) {
+			if (result) {
 				mList.add(value);
 			}
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -228,6 +321,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.addAll(collection);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -240,6 +334,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.addAll(ix, collection);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -252,6 +347,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			return ((ix >= 0) && (ix < mList.size())) ? mList.remove(ix) : null;
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 	}
@@ -262,6 +358,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			return !mList.isEmpty() ? mList.remove(mList.size() - 1) : null;
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 	}
@@ -273,6 +370,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.remove(value);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -285,6 +383,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.removeAll(collection);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -297,6 +396,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			result = mList.retainAll(collection);
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 		return result;
@@ -308,12 +408,16 @@ public class ReentrantReadWriteList<V> implements List<V> {
 		try {
 			mList.clear();
 		} finally {
+			publishLocked();
 			mWriteLock.unlock();
 		}
 	}
 
 	@Override
 	public int size() {
+		if (mCopyOnWrite) {
+			return mSnapshot.size();
+		}
 		mReadLock.lock();
 		try {
 			return mList.size();
@@ -324,6 +428,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 
 	@Override
 	public boolean contains(final Object value) {
+		if (mCopyOnWrite) {
+			return mSnapshot.contains(value);
+		}
 		mReadLock.lock();
 		try {
 			return mList.contains(value);
@@ -334,6 +441,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 
 	@Override
 	public boolean isEmpty() {
+		if (mCopyOnWrite) {
+			return mSnapshot.isEmpty();
+		}
 		mReadLock.lock();
 		try {
 			return mList.isEmpty();
@@ -349,6 +459,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public Iterator<V> iterator() {
+		if (mCopyOnWrite) {
+			return mSnapshot.iterator();
+		}
 		mReadLock.lock();
 		try {
 			return Collections.unmodifiableList(mList).iterator();
@@ -360,6 +473,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public Object[] toArray() {
+		if (mCopyOnWrite) {
+			return mSnapshot.toArray();
+		}
 		mReadLock.lock();
 		try {
 			if (mList.isEmpty()) {
@@ -380,6 +496,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	@NonNull
 	@Override
 	public <T> T[] toArray(@NonNull final T[] ts) {
+		if (mCopyOnWrite) {
+			return mSnapshot.toArray(ts);
+		}
 		mReadLock.lock();
 		try {
 			return mList.toArray(ts);
@@ -394,6 +513,9 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	 */
 	@NonNull
 	public Collection<V> values() {
+		if (mCopyOnWrite) {
+			return mSnapshot;
+		}
 		mReadLock.lock();
 		try {
 			return Collections.unmodifiableCollection(mList);
@@ -434,6 +556,7 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	 * unlock write access
 	 */
 	protected void writeUnlock() {
+		publishLocked();
 		mWriteLock.unlock();
 	}
 
@@ -445,4 +568,49 @@ public class ReentrantReadWriteList<V> implements List<V> {
 	protected List<V> Locked() {
 		return mList;
 	}
+
+	/**
+	 * copy on writeモードの時に現在の内容のスナップショットを公開する
+	 * 書き込みロック中に呼ぶこと
+	 */
+	@SuppressWarnings("unchecked")
+	private void publishLocked() {
+		if (mCopyOnWrite) {
+			mSnapshot = mList.isEmpty()
+				? (Snapshot<V>)Snapshot.EMPTY : new Snapshot<V>(mList.toArray());
+		}
+	}
+
+	/**
+	 * 変更不可なスナップショット
+	 * 生成後は内容が変わらないので複数のスレッドからロックせずにアクセスできる
+	 * @param <V>
+	 */
+	private static final class Snapshot<V> extends AbstractList<V> implements RandomAccess {
+		private static final Snapshot<Object> EMPTY = new Snapshot<Object>(new Object[0]);
+
+		@NonNull
+		private final Object[] mValues;
+
+		private Snapshot(@NonNull final Object[] values) {
+			mValues = values;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public V get(final int ix) {
+			return (V)mValues[ix];
+		}
+
+		@Override
+		public int size() {
+			return mValues.length;
+		}
+
+		@NonNull
+		@Override
+		public Object[] toArray() {
+			return Arrays.copyOf(mValues, mValues.length);
+		}
+	}
 }
@@ -0,0 +1,406 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.ArraySet;
+
+/**
+ * キーのハッシュ値で複数のストライプ(ReentrantReadWriteLock + HashMap)へ分割したMap実装
+ * ReentrantReadWriteMapは読み込み時にも1つの読み込みロックを全スレッドで取り合うので
+ * 複数スレッドから頻繁に#getを呼び出すと読み込みロックのカウンターの更新が競合する
+ * StripedReadWriteMapはキー毎に異なるストライプのロックを使うので
+ * 異なるキーへのアクセスが競合しにくくなる
+ * (StampedLockはAPI>=24なので楽観的読み込みの代わりにロックを分割する)
+ * #size/#clear/#keySet等の複数のストライプにまたがる操作はストライプ毎に順にロックするので
+ * ConcurrentHashMapと同様に他のスレッドからの変更に対してアトミックではない
+ * @param <K>
+ * @param <V>
+ */
+public class StripedReadWriteMap<K, V> implements Map<K, V> {
+	/**
+	 * デフォルトのストライプ数
+	 */
+	private static final int DEFAULT_STRIPES = 16;
+	private static final int MAX_STRIPES = 256;
+
+	@NonNull
+	private final Stripe<K, V>[] mStripes;
+	private final int mShift;
+
+	/**
+	 * コンストラクタ
+	 * デフォルトのストライプ数(16)を使う
+	 */
+	public StripedReadWriteMap() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param stripes ストライプ数, 2のべき乗に切り上げる
+	 */
+	public StripedReadWriteMap(@IntRange(from=1) final int stripes) {
+		int n = 1;
+		int bits = 0;
+		while ((n < stripes) && (n < MAX_STRIPES)) {
+			n <<= 1;
+			bits++;
+		}
+		mShift = 32 - bits;
+		@SuppressWarnings("unchecked")
+		final Stripe<K, V>[] array = (Stripe<K, V>[])new Stripe<?, ?>[n];
+		for (int i = 0; i < n; i++) {
+			array[i] = new Stripe<K, V>();
+		}
+		mStripes = array;
+	}
+
+	@Nullable
+	@Override
+	public V get(final Object key) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.readLock.lock();
+		try {
+			return stripe.map.get(key);
+		} finally {
+			stripe.readLock.unlock();
+		}
+	}
+
+	/**
+	 * 読み込みロックを取得できたときのみ値を取得する
+	 * 書き込み中のときは待機せずにnullを返す
+	 * @param key
+	 * @return
+	 */
+	@Nullable
+	public V tryGet(@NonNull final K key) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		if (stripe.readLock.tryLock()) {
+			try {
+				return stripe.map.get(key);
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * put specific value into this map
+	 * @param key
+	 * @param value
+	 * @return the previous value associated with key or null if no value mapped.
+	 */
+	@Override
+	public V put(@NonNull final K key, @NonNull final V value) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.writeLock.lock();
+		try {
+			return stripe.map.put(key, value);
+		} finally {
+			stripe.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * If the specified key is not already associated with a value (or is mapped to null)
+	 * associates it with the given value and returns null, else returns the current value.
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	@Override
+	public V putIfAbsent(final K key, final V value) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.writeLock.lock();
+		try {
+			V v = stripe.map.get(key);
+			if (v == null) {
+				v = stripe.map.put(key, value);
+			}
+			return v;
+		} finally {
+			stripe.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void putAll(@NonNull final Map<? extends K, ? extends V> map) {
+		for (final Map.Entry<? extends K, ? extends V> entry: map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public V remove(final Object key) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.writeLock.lock();
+		try {
+			return stripe.map.remove(key);
+		} finally {
+			stripe.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the entry for the specified key only if it is currently mapped to the specified value.
+	 * @param key
+	 * @param value
+	 * @return specific removed value or null if no mapping existed
+	 */
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.writeLock.lock();
+		try {
+			// ここの実装はAPI>=24のMap#remove(Object,Object)と基本的には同じ
+			final Object curValue = stripe.map.get(key);
+			if (!isEquals(curValue, value) ||
+				((curValue == null) && !stripe.map.containsKey(key))) {
+				return false;
+			}
+			stripe.map.remove(key);
+			return true;
+		} finally {
+			stripe.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 全ての値を取り除いて返す
+	 * @return
+	 */
+	@NonNull
+	public Collection<V> removeAll() {
+		final Collection<V> result = new ArrayList<>();
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.writeLock.lock();
+			try {
+				result.addAll(stripe.map.values());
+				stripe.map.clear();
+			} finally {
+				stripe.writeLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.writeLock.lock();
+			try {
+				stripe.map.clear();
+			} finally {
+				stripe.writeLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int result = 0;
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				result += stripe.map.size();
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.readLock.lock();
+		try {
+			return stripe.map.containsKey(key);
+		} finally {
+			stripe.readLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsValue(final Object value) {
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				if (stripe.map.containsValue(value)) {
+					return true;
+				}
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public V getOrDefault(final Object key, @Nullable final V defaultValue) {
+		final Stripe<K, V> stripe = stripeFor(key);
+		stripe.readLock.lock();
+		try {
+			return stripe.map.containsKey(key) ? stripe.map.get(key) : defaultValue;
+		} finally {
+			stripe.readLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				if (!stripe.map.isEmpty()) {
+					return false;
+				}
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return true;
+	}
+
+	@NonNull
+	@Override
+	public Set<K> keySet() {
+		final Set<K> result = new ArraySet<>();
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				result.addAll(stripe.map.keySet());
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * return copy of keys
+	 * @return
+	 */
+	@NonNull
+	public Collection<K> keys() {
+		final Collection<K> result = new ArrayList<K>();
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				result.addAll(stripe.map.keySet());
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * return copy of mapped values
+	 * @return
+	 */
+	@NonNull
+	@Override
+	public Collection<V> values() {
+		final Collection<V> result = new ArrayList<V>();
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				if (!stripe.map.isEmpty()) {
+					result.addAll(stripe.map.values());
+				}
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * return copy of entries
+	 * @return
+	 */
+	@NonNull
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		final Set<Map.Entry<K, V>> result = new HashSet<>();
+		for (final Stripe<K, V> stripe: mStripes) {
+			stripe.readLock.lock();
+			try {
+				result.addAll(stripe.map.entrySet());
+			} finally {
+				stripe.readLock.unlock();
+			}
+		}
+		return result;
+	}
+
+//================================================================================
+	/**
+	 * キーに対応するストライプを取得する
+	 * ストライプ内のHashMapは下位ビットでバケットを選択するので
+	 * 偏らないようにストライプの選択には上位ビットを使う
+	 * @param key
+	 * @return
+	 */
+	@NonNull
+	private Stripe<K, V> stripeFor(@Nullable final Object key) {
+		if (mShift >= 32) {
+			return mStripes[0];
+		}
+		int h = key != null ? key.hashCode() : 0;
+		h ^= (h >>> 16);
+		return mStripes[(h * 0x9e3779b9) >>> mShift];
+	}
+
+	private static final boolean isEquals(final Object a, final Object b) {
+		// API>=19のObjects.equalsと同じ実装, このライブラリはAPI>=16なのでObjects.equalsは使えない
+		return (a == b) || (a != null && a.equals(b));
+	}
+
+	/**
+	 * ストライプ毎のロックとHashMap
+	 * @param <K>
+	 * @param <V>
+	 */
+	private static final class Stripe<K, V> {
+		@NonNull
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		@NonNull
+		private final Lock readLock = lock.readLock();
+		@NonNull
+		private final Lock writeLock = lock.writeLock();
+		@NonNull
+		private final Map<K, V> map = new HashMap<K, V>();
+	}
+}
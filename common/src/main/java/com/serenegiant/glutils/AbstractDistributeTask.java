@@ -21,9 +21,10 @@ package com.serenegiant.glutils;
 import android.annotation.SuppressLint;
 import android.opengl.GLES20;
 import android.util.Log;
-import android.util.SparseArray;
 
+import com.serenegiant.collections.IntObjectMap;
 import com.serenegiant.math.Fraction;
+import com.serenegiant.utils.MessageTask;
 import com.serenegiant.utils.ThreadUtils;
 
 import androidx.annotation.AnyThread;
@@ -52,13 +53,14 @@ public abstract class AbstractDistributeTask {
 	@NonNull
 	private final Object mSync = new Object();
 	/**
-	 * 描画先のRendererTargetを保持するSparseArrayインスタンス
+	 * 描画先のRendererTargetを保持するIntObjectMapインスタンス
+	 * 描画毎にイテレートするのでキーのボクシングやイテレート時のメモリー確保をしないIntObjectMapを使う
 	 * add/removeを除いて描画スレッド上からしか読み書きしないので
 	 * 基本的には排他制御は不要(add/remove処理時のみ排他制御する)
 	 */
 	@NonNull
-	private final SparseArray<RendererTarget>
-		mTargets = new SparseArray<>();
+	private final IntObjectMap<RendererTarget>
+		mTargets = new IntObjectMap<>();
 	private int mVideoWidth, mVideoHeight;
 	@IRendererCommon.MirrorMode
 	private int mMirror = MIRROR_NORMAL;
@@ -440,6 +442,40 @@ public abstract class AbstractDistributeTask {
 		return false;
 	}
 
+	/**
+	 * 要求コードが統合可能(最新のものだけを処理すればよい)かどうかを返す
+	 * MessageTaskのバッチモードで使う
+	 * 描画要求はhandleDrawで未処理の描画要求を削除しているので最新のものだけを処理する
+	 * @param request
+	 * @return
+	 */
+	protected boolean isCoalescable(final int request) {
+		return request == REQUEST_DRAW;
+	}
+
+	/**
+	 * 要求コードに対応する優先度を返す
+	 * MessageTaskの優先度付きキューで使う
+	 * 描画要求が溜まっていてもサイズ変更と分配描画先の追加/削除は
+	 * 先に処理するために高優先度にする(終了要求はMessageTask側で最優先になる)
+	 * それ以外(描画要求やqueueEvent/offerAndWaitによる要求等)は
+	 * 描画要求との順序が変わらないように通常の優先度にする
+	 * @param request
+	 * @return
+	 */
+	@MessageTask.Priority
+	protected int getPriority(final int request) {
+		switch (request) {
+		case REQUEST_UPDATE_SIZE:
+		case REQUEST_ADD_SURFACE:
+		case REQUEST_REMOVE_SURFACE:
+		case REQUEST_REMOVE_SURFACE_ALL:
+			return MessageTask.PRIORITY_HIGH;
+		default:
+			return MessageTask.PRIORITY_NORMAL;
+		}
+	}
+
 	@WorkerThread
 	protected Object handleRequest(final int request,
 		final int arg1, final int arg2, final Object obj) {
@@ -668,12 +704,13 @@ public abstract class AbstractDistributeTask {
 	private void checkTarget() {
 		if (DEBUG) Log.v(TAG, "checkTarget:");
 		final int n = mTargets.size();
-		for (int i = 0; i < n; i++) {
+		// removeAtで削除すると最後のエントリーが削除した位置へ移動するので後ろからチェックする
+		for (int i = n - 1; i >= 0; i--) {
 			final RendererTarget target = mTargets.valueAt(i);
 			if ((target != null) && !target.isValid()) {
 				final int id = mTargets.keyAt(i);
 				if (DEBUG) Log.i(TAG, "checkTarget:found invalid surface:id=" + id);
-				mTargets.remove(id);
+				mTargets.removeAt(i);
 				target.release();
 			}
 		}
@@ -818,6 +855,32 @@ public abstract class AbstractDistributeTask {
 	public abstract boolean offer(final int request, final int arg1, final int arg2, final Object obj);
 	public abstract void removeRequest(final int request);
 
+	/**
+	 * 描画要求をまとめて処理するバッチモードを有効/無効にする
+	 * MessageTaskを使わない実装では何もしない
+	 * @param batchMode
+	 */
+	public void setBatchMode(final boolean batchMode) {
+	}
+
+	/**
+	 * 要求コード毎の処理時間の記録を有効/無効にする
+	 * MessageTaskを使わない実装では何もしない
+	 * @param enabled
+	 */
+	public void setLatencyStatsEnabled(final boolean enabled) {
+	}
+
+	/**
+	 * 要求コード毎のキューでの待ち時間と処理時間のスナップショットを取得する
+	 * MessageTaskを使わない実装では常に空
+	 * @return
+	 */
+	@NonNull
+	public MessageTask.LatencyStats[] getLatencyStats() {
+		return new MessageTask.LatencyStats[0];
+	}
+
 	@NonNull
 	public abstract EGLBase getEgl();
 	@NonNull
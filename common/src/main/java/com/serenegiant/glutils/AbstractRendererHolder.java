@@ -36,6 +36,7 @@ import android.view.Surface;
 
 import com.serenegiant.math.Fraction;
 import com.serenegiant.system.BuildCheck;
+import com.serenegiant.utils.MessageTask;
 
 import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
@@ -388,6 +389,33 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 		mRendererTask.queueEvent(task);
 	}
 
+	/**
+	 * レンダリングスレッドのバッチモードを有効/無効にする(デフォルトは無効)
+	 * 有効にすると映像入力毎の描画要求をまとめて処理するので
+	 * 描画先の処理が追いつかないときに古いフレームの描画を省略できる
+	 * @param batchMode
+	 */
+	public void setBatchMode(final boolean batchMode) {
+		mRendererTask.setBatchMode(batchMode);
+	}
+
+	/**
+	 * レンダリングスレッドでの要求コード毎の処理時間の記録を有効/無効にする
+	 * @param enabled
+	 */
+	public void setLatencyStatsEnabled(final boolean enabled) {
+		mRendererTask.setLatencyStatsEnabled(enabled);
+	}
+
+	/**
+	 * レンダリングスレッドでの要求コード毎のキューでの待ち時間と処理時間のスナップショットを取得する
+	 * @return
+	 */
+	@NonNull
+	public MessageTask.LatencyStats[] getLatencyStats() {
+		return mRendererTask.getLatencyStats();
+	}
+
 	/**
 	 * パス文字列の拡張子を調べて静止画圧縮フォーマットを取得する。
 	 * jpeg(jpg)/png/webpのいずれでもなければIllegalArgumentExceptionを投げる
@@ -555,6 +583,16 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 
 					return handleRequest(request, arg1, arg2, obj);
 				}
+
+				@Override
+				protected boolean isCoalescable(final int request) {
+					return BaseRendererTask.this.isCoalescable(request);
+				}
+
+				@Override
+				protected int getPriority(final int request) {
+					return BaseRendererTask.this.getPriority(request);
+				}
 			};
 		}
 
@@ -615,6 +653,22 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 			mEglTask.removeRequest(request);
 		}
 
+		@Override
+		public void setBatchMode(final boolean batchMode) {
+			mEglTask.setBatchMode(batchMode);
+		}
+
+		@Override
+		public void setLatencyStatsEnabled(final boolean enabled) {
+			mEglTask.setLatencyStatsEnabled(enabled);
+		}
+
+		@NonNull
+		@Override
+		public MessageTask.LatencyStats[] getLatencyStats() {
+			return mEglTask.getLatencyStats();
+		}
+
 		@NonNull
 		@Override
 		public EGLBase getEgl() {
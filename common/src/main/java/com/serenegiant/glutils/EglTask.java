@@ -24,6 +24,9 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import com.serenegiant.utils.MessageTask;
+import com.serenegiant.utils.MessageTaskExecutor;
+
+import java.util.concurrent.Executor;
 
 /**
  * Looper/Handler経由での実装だと少なくともAPI22未満では
@@ -33,6 +36,8 @@ import com.serenegiant.utils.MessageTask;
  * ヘルパークラスMessageTaskへEGL/GLコンテキスト関係の
  * 処理を追加したヘルパークラス
  * EglTaskまたはその継承クラスをTreadへ引き渡して実行する
+ * またはMessageTaskExecutor#newSingleThreadExecutorで生成したMessageTaskExecutorを
+ * #start(Executor)へ引き渡して実行する
  */
 public abstract class EglTask extends MessageTask {
 //	private static final boolean DEBUG = false;
@@ -108,6 +113,37 @@ public abstract class EglTask extends MessageTask {
 		return result;
 	}
 
+	/**
+	 * EGL/GLコンテキストはスレッドに紐付くので、ワーカースレッドが1つだけで
+	 * 終了しないMessageTaskExecutor(MessageTaskExecutor#newSingleThreadExecutorで生成したもの)
+	 * 上でのみ実行できる。同じMessageTaskExecutorで複数のEglTaskを実行することもできる
+	 * @param executor
+	 * @throws IllegalArgumentException executorがMessageTaskExecutor#newSingleThreadExecutorで
+	 *                                  生成したものではない
+	 * @throws IllegalStateException すでに実行開始している
+	 */
+	@Override
+	public void start(@NonNull final Executor executor)
+		throws IllegalArgumentException, IllegalStateException {
+
+		if (!(executor instanceof MessageTaskExecutor)
+			|| !((MessageTaskExecutor)executor).isSingleThread()) {
+			throw new IllegalArgumentException("EglTask needs single thread MessageTaskExecutor");
+		}
+		super.start(executor);
+	}
+
+	/**
+	 * MessageTaskの実装
+	 * 同じワーカースレッド上で他のEglTaskが自分のGLコンテキストを
+	 * カレントにしている可能性があるのでGLコンテキストをカレントに戻す
+	 */
+	@WorkerThread
+	@Override
+	protected void onBeforeDrain() {
+		mGLContext.makeDefault();
+	}
+
 	/**
 	 * MessageTaskの実装
 	 */
@@ -26,8 +26,8 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import android.util.Log;
-import android.util.SparseArray;
 
+import com.serenegiant.collections.IntObjectMap;
 import com.serenegiant.glutils.es2.GLHelper;
 
 /**
@@ -157,6 +157,19 @@ public class StaticTextureSource {
 		}
 	}
 
+	/**
+	 * 描画スレッドのバッチモードを有効/無効にする(デフォルトは無効)
+	 * 有効にすると溜まっている描画要求をまとめて1回の描画として処理する
+	 * @param batchMode
+	 */
+	public void setBatchMode(final boolean batchMode) {
+		synchronized (mSync) {
+			if (mRendererTask != null) {
+				mRendererTask.setBatchMode(batchMode);
+			}
+		}
+	}
+
 	/**
 	 * 追加されている分配描画用のSurfaceの数を取得
 	 * @return
@@ -205,8 +218,8 @@ public class StaticTextureSource {
 	private static final int REQUEST_SET_BITMAP = 7;
 
 	private static class RendererTask extends EglTask {
-		private final SparseArray<RendererTarget> mTargets
-			= new SparseArray<>();
+		private final IntObjectMap<RendererTarget> mTargets
+			= new IntObjectMap<>();
 		private final StaticTextureSource mParent;
 		private final long mIntervalsNs;
 		private GLDrawer2D mDrawer;
@@ -223,6 +236,24 @@ public class StaticTextureSource {
 			mIntervalsNs = fps <= 0 ? 100000000L : (long)(1000000000L / fps);
 		}
 
+		@Override
+		protected boolean isCoalescable(final int request) {
+			return request == REQUEST_DRAW;
+		}
+
+		@Override
+		protected int getPriority(final int request) {
+			// 分配描画先の追加/削除は溜まっている描画要求よりも先に処理する
+			// それ以外は描画要求との順序が変わらないように通常の優先度にする
+			switch (request) {
+			case REQUEST_ADD_SURFACE:
+			case REQUEST_REMOVE_SURFACE:
+				return PRIORITY_HIGH;
+			default:
+				return PRIORITY_NORMAL;
+			}
+		}
+
 		/**
 		 * ワーカースレッド開始時の処理(ここはワーカースレッド上)
 		 */
@@ -510,13 +541,14 @@ public class StaticTextureSource {
 			if (DEBUG) Log.v(TAG, "checkTarget");
 			synchronized (mTargets) {
 				final int n = mTargets.size();
-				for (int i = 0; i < n; i++) {
+				// removeAtで削除すると最後のエントリーが削除した位置へ移動するので後ろからチェックする
+				for (int i = n - 1; i >= 0; i--) {
 					final RendererTarget target = mTargets.valueAt(i);
 					if ((target != null) && !target.isValid()) {
 						final int id = mTargets.keyAt(i);
 						if (DEBUG) Log.i(TAG, "checkTarget:found invalid surface:id=" + id);
-						mTargets.valueAt(i).release();
-						mTargets.remove(id);
+						target.release();
+						mTargets.removeAt(i);
 					}
 				}
 			}
@@ -29,59 +29,226 @@ OTHER DEALINGS IN THE SOFTWARE.
 For more information, please refer to <http://unlicense.org/>
  */
 
+import com.serenegiant.utils.ByteBufferArena;
+
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 
 /**
  * Wraps a {@link ByteBuffer} so it can be used like an {@link OutputStream}. This is similar to a
  * {@link java.io.ByteArrayOutputStream}, just that this uses a {@code ByteBuffer} instead of a
  * {@code byte[]} as internal storage.
+ * ByteBufferArenaを指定して生成するとセグメントモードになる
+ * セグメントモードでは固定サイズのセグメント(ByteBufferArenaから取得)を連結して保持するので
+ * 拡張時に既に書き込んだデータをコピーしない
+ * 書き込んだデータは#toByteBuffersでセグメント毎のByteBuffer配列として取得して
+ * gathering writeで書き込める(#writeTo)
+ * #toByteBufferは連続したByteBufferが必要なときのみ呼ぶこと(セグメントモードではコピーが発生する)
+ * 使い終わったら#closeを呼んでセグメントをByteBufferArenaへ返却すること
+ * スレッドセーフではない
  */
 public class ByteBufferOutputStream extends OutputStream implements IWritable {
-	
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;	// 64KB
+
 	private ByteBuffer wrappedBuffer;
 	private final boolean autoEnlarge;
+	/**
+	 * セグメントモード時のセグメント取得元, セグメントモードでなければnull
+	 */
+	@Nullable
+	private final ByteBufferArena arena;
+	private final int segmentSize;
+	/**
+	 * セグメントモード時のいっぱいになったセグメント(flip済み)
+	 * wrappedBufferが書き込み中のセグメント
+	 */
+	@NonNull
+	private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	/**
+	 * いっぱいになったセグメントの合計バイト数
+	 */
+	private long segmentsBytes;
 	
 	public ByteBufferOutputStream(final ByteBuffer wrappedBuffer, final boolean autoEnlarge) {
 		
 		this.wrappedBuffer = wrappedBuffer;
 		this.autoEnlarge = autoEnlarge;
+		this.arena = null;
+		this.segmentSize = 0;
+	}
+
+	/**
+	 * セグメントモードのコンストラクタ
+	 * セグメントサイズは64KB
+	 * @param arena セグメントの取得元
+	 */
+	public ByteBufferOutputStream(@NonNull final ByteBufferArena arena) {
+		this(arena, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * セグメントモードのコンストラクタ
+	 * @param arena セグメントの取得元
+	 * @param segmentSize セグメントのサイズ, ByteBufferArenaのサイズクラスに切り上げる
+	 */
+	public ByteBufferOutputStream(@NonNull final ByteBufferArena arena,
+		@IntRange(from=1) final int segmentSize) {
+
+		this.arena = arena;
+		this.segmentSize = arena.classSize(Math.max(segmentSize, 1));
+		this.autoEnlarge = true;
+		this.wrappedBuffer = arena.obtain(this.segmentSize);
+	}
+
+	/**
+	 * セグメントモードかどうか
+	 * @return
+	 */
+	public boolean isSegmented() {
+		return arena != null;
 	}
 	
 	/**
 	 * create and return a new byte buffer that shares this buffer's content as read only ByteBuffer
+	 * セグメントモードでは新しく確保したByteBufferへ全てのセグメントをコピーする
+	 * (セグメントは#reset/#closeでByteBufferArenaへ返却されて再利用されるので
+	 * セグメントが1つだけの時もバッファを共有せずにコピーする)
 	 * @return
 	 */
 	public ByteBuffer toByteBuffer() {
 		
-		final ByteBuffer byteBuffer = wrappedBuffer.duplicate();
-		byteBuffer.flip();
-		return byteBuffer.asReadOnlyBuffer();
+		if (arena == null) {
+			final ByteBuffer byteBuffer = wrappedBuffer.duplicate();
+			byteBuffer.flip();
+			return byteBuffer.asReadOnlyBuffer();
+		}
+		final long total = segmentsBytes + wrappedBuffer.position();
+		if (total > Integer.MAX_VALUE) {
+			throw new OutOfMemoryError();
+		}
+		final ByteBuffer result = wrappedBuffer.isDirect()
+			? ByteBuffer.allocateDirect((int)total)
+			: ByteBuffer.allocate((int)total);
+		for (final ByteBuffer segment: segments) {
+			result.put(segment.duplicate());
+		}
+		final ByteBuffer last = wrappedBuffer.duplicate();
+		last.flip();
+		result.put(last);
+		result.flip();
+		return result.asReadOnlyBuffer();
+	}
+
+	/**
+	 * 書き込んだデータをコピーせずにセグメント毎の読み込み専用ByteBufferの配列として取得する
+	 * セグメントモードでなければ要素数1の配列を返す
+	 * 返したByteBufferはこのストリームのバッファを共有するので
+	 * #reset/#close後や書き込み後は使わないこと
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer[] toByteBuffers() {
+		final int n = segments.size();
+		final ByteBuffer[] result = new ByteBuffer[n + 1];
+		for (int i = 0; i < n; i++) {
+			result[i] = segments.get(i).asReadOnlyBuffer();
+		}
+		final ByteBuffer last = wrappedBuffer.duplicate();
+		last.flip();
+		result[n] = last.asReadOnlyBuffer();
+		return result;
+	}
+
+	/**
+	 * 書き込んだデータをチャネルへ書き込む
+	 * チャネルがGatheringByteChannelなら全セグメントをgathering writeで書き込む
+	 * ストリームの内容は変更しない
+	 * @param channel
+	 * @return 書き込んだバイト数
+	 * @throws IOException
+	 */
+	public long writeTo(@NonNull final WritableByteChannel channel) throws IOException {
+		final ByteBuffer[] buffers = toByteBuffers();
+		long total = 0;
+		for (final ByteBuffer buf: buffers) {
+			total += buf.remaining();
+		}
+		if (channel instanceof GatheringByteChannel) {
+			final GatheringByteChannel gathering = (GatheringByteChannel)channel;
+			for (long remain = total; remain > 0; ) {
+				remain -= gathering.write(buffers);
+			}
+		} else {
+			for (final ByteBuffer buf: buffers) {
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+		}
+		return total;
 	}
 	
 	/**
 	 * Resets the <code>count</code> field of this byte array output stream to zero, so that all
 	 * currently accumulated output in the output stream is discarded. The output stream can be used
 	 * again, reusing the already allocated buffer space.
+	 * セグメントモードでは先頭のセグメント以外はByteBufferArenaへ返却する
 	 *
 	 * @see java.io.ByteArrayInputStream#count
 	 */
 	public void reset() {
-		wrappedBuffer.rewind();
+		if (!segments.isEmpty()) {
+			final ByteBuffer first = segments.get(0);
+			recycle(wrappedBuffer);
+			for (int i = segments.size() - 1; i > 0; i--) {
+				recycle(segments.get(i));
+			}
+			segments.clear();
+			segmentsBytes = 0;
+			wrappedBuffer = first;
+			wrappedBuffer.clear();
+		} else {
+			wrappedBuffer.rewind();
+		}
 	}
 	
 	/**
 	 * return current size of the buffer,
 	 * this value is a position of backed ByteBuffer (not a limit, capacity)
 	 * added saki
+	 * セグメントモードでは全セグメントの合計バイト数, 2GBを超える時はInteger.MAX_VALUE
 	 * @return
 	 */
 	public int size() {
-		return wrappedBuffer.position();
+		return (int)Math.min(Integer.MAX_VALUE, segmentsBytes + wrappedBuffer.position());
+	}
+
+	/**
+	 * セグメントモードであれば全てのセグメントをByteBufferArenaへ返却する
+	 * close後は書き込みできない
+	 */
+	@Override
+	public void close() {
+		if (arena != null) {
+			for (final ByteBuffer segment: segments) {
+				recycle(segment);
+			}
+			segments.clear();
+			segmentsBytes = 0;
+			if (wrappedBuffer.capacity() > 0) {
+				recycle(wrappedBuffer);
+				wrappedBuffer = ByteBuffer.allocate(0);
+			}
+		}
 	}
 
 	/**
@@ -115,15 +282,54 @@ public class ByteBufferOutputStream extends OutputStream implements IWritable {
 		oldWrappedBuffer.flip();
 		wrappedBuffer.put(oldWrappedBuffer);
 	}
+
+	/**
+	 * セグメントモードで書き込み中のセグメントに空きがなければ新しいセグメントを追加する
+	 * @return 書き込み中のセグメント
+	 */
+	@NonNull
+	private ByteBuffer segment() {
+		if (!wrappedBuffer.hasRemaining()) {
+			if (wrappedBuffer.capacity() == 0) {
+				throw new IllegalStateException("already closed");
+			}
+			wrappedBuffer.flip();
+			segments.add(wrappedBuffer);
+			segmentsBytes += wrappedBuffer.remaining();
+			//noinspection ConstantConditions
+			wrappedBuffer = arena.obtain(segmentSize);
+		}
+		return wrappedBuffer;
+	}
+
+	private void recycle(@NonNull final ByteBuffer segment) {
+		//noinspection ConstantConditions
+		arena.recycle(segment);
+	}
 	
 	@Override
 	public void write(final ByteBuffer src) throws IOException {
-		wrappedBuffer.put(src);
+		if (arena != null) {
+			while (src.hasRemaining()) {
+				final ByteBuffer dst = segment();
+				final int n = Math.min(src.remaining(), dst.remaining());
+				final ByteBuffer part = src.duplicate();
+				part.limit(part.position() + n);
+				dst.put(part);
+				src.position(src.position() + n);
+			}
+		} else {
+			wrappedBuffer.put(src);
+		}
 	}
 
 	@Override
 	public void write(final int bty) {
 		
+		if (arena != null) {
+			segment().put((byte) bty);
+			return;
+		}
 		try {
 			wrappedBuffer.put((byte) bty);
 		} catch (final BufferOverflowException ex) {
@@ -140,6 +346,10 @@ public class ByteBufferOutputStream extends OutputStream implements IWritable {
 	@Override
 	public void write(@NonNull final byte[] bytes) {
 		
+		if (arena != null) {
+			write(bytes, 0, bytes.length);
+			return;
+		}
 		int oldPosition = 0;
 		try {
 			oldPosition = wrappedBuffer.position();
@@ -159,6 +369,18 @@ public class ByteBufferOutputStream extends OutputStream implements IWritable {
 	@Override
 	public void write(@NonNull final byte[] bytes, final int off, final int len) {
 		
+		if (arena != null) {
+			if ((off | len | (off + len) | (bytes.length - (off + len))) < 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			for (int i = 0; i < len; ) {
+				final ByteBuffer dst = segment();
+				final int n = Math.min(len - i, dst.remaining());
+				dst.put(bytes, off + i, n);
+				i += n;
+			}
+			return;
+		}
 		int oldPosition = 0;
 		try {
 			oldPosition = wrappedBuffer.position();
@@ -174,4 +396,4 @@ public class ByteBufferOutputStream extends OutputStream implements IWritable {
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -23,6 +23,8 @@ import com.serenegiant.nio.CharsetsUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -33,11 +35,46 @@ import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * 全部ネットワークバイトオーダー = ビッグエンディアンやからな
+ * 同じチャネルから繰り返し読み書きする場合はワーク用のByteBufferを再利用する
+ * ChannelReader/ChannelWriterを使うこと
+ * ヘッダーとペイロードのように複数のByteBufferをまとめて読み書きする場合は
+ * #writeGathering/#readScatteringを使うとシステムコールの回数を減らすことができる
+ * ファイルの内容を別のチャネルへ転送する場合は#transferTo/#transferFromを使うと
+ * ユーザー空間の配列を経由せずに転送できる(ゼロコピー)
  */
 public class ChannelHelper {
+	/**
+	 * #transferTo/#transferFromで1回のFileChannel#transferTo/transferFromで転送する最大バイト数
+	 * 進捗コールバックの間隔を兼ねる
+	 */
+	private static final long TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+	/**
+	 * FileChannel#transferTo/transferFromが使えないときのフォールバック用のバッファーサイズ
+	 */
+	private static final int FALLBACK_BUFFER_BYTES = 64 * 1024;
+
+	/**
+	 * #transferTo/#transferFrom/#transferの進捗を受け取るためのコールバックインターフェース
+	 */
+	public interface TransferCallback {
+		/**
+		 * 転送の進捗
+		 * 転送処理を実行しているスレッド上で呼ばれる
+		 * @param transferred 転送済みのバイト数
+		 * @param total 転送するバイト数, 不明な場合は負
+		 * @return true: 転送を継続する, false: 転送を中断する
+		 */
+		public boolean onProgress(final long transferred, final long total);
+	}
+
 	private ChannelHelper() {
 		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
 	}
@@ -225,11 +262,7 @@ public class ChannelHelper {
 	public static float readFloat(@NonNull final ByteChannel channel)
 		throws IOException {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(4);
-		final int readBytes = channel.read(buf);
-		if (readBytes != 4) throw new IOException();
-		buf.clear();
-		return buf.getFloat();
+		return readFloat(channel, null);
 	}
 	
 	/**
@@ -1045,7 +1078,259 @@ public class ChannelHelper {
 		write(channel, value.remaining());
 		channel.write(value);
 	}
+
+	/**
+	 * ByteBufferをバイト数と一緒にGatheringByteChannelへ書き込む
+	 * #write(ByteChannel, ByteBuffer)と同じフォーマットだけど
+	 * バイト数とデータを1回のgathering writeで書き込むのでシステムコール/パケットの数が減る
+	 * @param channel
+	 * @param value
+	 * @param work バイト数書き込み用のワーク, nullまたは容量が4バイト未満なら内部で生成する
+	 * @throws IOException
+	 */
+	public static void write(@NonNull final GatheringByteChannel channel,
+		@NonNull final ByteBuffer value,
+		@Nullable final ByteBuffer work) throws IOException {
+
+		final ByteBuffer header = checkBuffer(work, 4);
+		header.putInt(value.remaining());
+		header.flip();
+		writeGathering(channel, header, value);
+	}
+
+	/**
+	 * 複数のByteBufferを1回のgathering writeで書き込む
+	 * (ヘッダーとペイロード等)
+	 * 全てのByteBufferのremainingが0になるまで書き込む
+	 * @param channel
+	 * @param buffers
+	 * @return 書き込んだバイト数
+	 * @throws IOException
+	 */
+	public static long writeGathering(@NonNull final GatheringByteChannel channel,
+		@NonNull final ByteBuffer... buffers) throws IOException {
+
+		final long total = remaining(buffers);
+		long written = 0;
+		while (written < total) {
+			written += channel.write(buffers);
+		}
+		return written;
+	}
+
+	/**
+	 * 複数のByteBufferへ1回のscattering readで読み込む
+	 * 各ByteBufferのlimitを読み込むサイズに合わせておくこと(固定長のヘッダー＋ペイロード等)
+	 * 全てのByteBufferのremainingが0になるまで読み込む
+	 * @param channel
+	 * @param buffers
+	 * @return 読み込んだバイト数
+	 * @throws IOException 全てを読み込む前にチャネルの終端に達した場合
+	 */
+	public static long readScattering(@NonNull final ScatteringByteChannel channel,
+		@NonNull final ByteBuffer... buffers) throws IOException {
+
+		final long total = remaining(buffers);
+		long read = 0;
+		while (read < total) {
+			final long n = channel.read(buffers);
+			if (n < 0) throw new IOException("unexpected end of stream");
+			read += n;
+		}
+		return read;
+	}
+
+	/**
+	 * 複数のByteBufferのremainingの合計を取得
+	 * @param buffers
+	 * @return
+	 */
+	private static long remaining(@NonNull final ByteBuffer[] buffers) {
+		long result = 0;
+		for (final ByteBuffer buf: buffers) {
+			result += buf.remaining();
+		}
+		return result;
+	}
 	
+	/**
+	 * ファイルの内容を全てチャネルへ転送する
+	 * @param src
+	 * @param dst
+	 * @param callback
+	 * @return 転送したバイト数
+	 * @throws IOException
+	 */
+	public static long transferTo(@NonNull final File src,
+		@NonNull final WritableByteChannel dst,
+		@Nullable final TransferCallback callback) throws IOException {
+
+		final FileInputStream in = new FileInputStream(src);
+		try {
+			final FileChannel channel = in.getChannel();
+			return transferTo(channel, 0, channel.size(), dst, callback);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * FileChannelの指定した範囲をチャネルへ転送する
+	 * FileChannel#transferToを使うのでユーザー空間の配列を経由しない(カーネル内でコピーされる)
+	 * 転送先がゼロコピーに対応していないなどでtransferToが転送できなかった場合は
+	 * ダイレクトバッファー経由でチャンク毎に転送する
+	 * srcのpositionは変更しない
+	 * @param src
+	 * @param position 転送開始位置
+	 * @param count 転送するバイト数, ファイルの終端を超える場合は終端までを転送する
+	 * @param dst
+	 * @param callback 進捗コールバック, falseを返すと中断する
+	 * @return 転送したバイト数
+	 * @throws IOException
+	 */
+	public static long transferTo(@NonNull final FileChannel src,
+		final long position, final long count,
+		@NonNull final WritableByteChannel dst,
+		@Nullable final TransferCallback callback) throws IOException {
+
+		if ((position < 0) || (count < 0)) {
+			throw new IllegalArgumentException("position=" + position + ",count=" + count);
+		}
+		final long total = Math.max(0, Math.min(count, src.size() - position));
+		long transferred = 0;
+		ByteBuffer fallback = null;
+		while (transferred < total) {
+			final long n = Math.min(total - transferred, TRANSFER_CHUNK_BYTES);
+			long bytes = src.transferTo(position + transferred, n, dst);
+			if (bytes <= 0) {
+				// ゼロコピーで転送できなかったときはバッファー経由で転送する
+				if (fallback == null) {
+					fallback = ByteBuffer.allocateDirect(FALLBACK_BUFFER_BYTES);
+				}
+				fallback.clear();
+				if (fallback.remaining() > n) {
+					fallback.limit((int)n);
+				}
+				bytes = src.read(fallback, position + transferred);
+				if (bytes <= 0) break;	// ファイルが切り詰められた
+				fallback.flip();
+				while (fallback.hasRemaining()) {
+					dst.write(fallback);
+				}
+			}
+			transferred += bytes;
+			if ((callback != null) && !callback.onProgress(transferred, total)) {
+				break;
+			}
+		}
+		return transferred;
+	}
+
+	/**
+	 * チャネルからFileChannelの指定した位置へ転送する
+	 * FileChannel#transferFromを使うのでユーザー空間の配列を経由しない
+	 * transferFromが転送できなかった場合はダイレクトバッファー経由でチャンク毎に転送する
+	 * dstのpositionは変更しない
+	 * srcはブロッキングモードのチャネルであること(ノンブロッキングだとデータが来るまでビジーループになる)
+	 * @param src
+	 * @param dst
+	 * @param position 書き込み開始位置
+	 * @param count 転送するバイト数, 負ならsrcの終端まで転送する
+	 * @param callback 進捗コールバック, falseを返すと中断する
+	 * @return 転送したバイト数
+	 * @throws IOException
+	 */
+	public static long transferFrom(@NonNull final ReadableByteChannel src,
+		@NonNull final FileChannel dst,
+		final long position, final long count,
+		@Nullable final TransferCallback callback) throws IOException {
+
+		if (position < 0) {
+			throw new IllegalArgumentException("position=" + position);
+		}
+		final long total = count >= 0 ? count : Long.MAX_VALUE;
+		long transferred = 0;
+		ByteBuffer fallback = null;
+		while (transferred < total) {
+			final long n = Math.min(total - transferred, TRANSFER_CHUNK_BYTES);
+			long bytes = dst.transferFrom(src, position + transferred, n);
+			if (bytes <= 0) {
+				// 終端に達したかtransferFromで転送できなかったときはバッファー経由で読み込んで確認する
+				if (fallback == null) {
+					fallback = ByteBuffer.allocateDirect(FALLBACK_BUFFER_BYTES);
+				}
+				fallback.clear();
+				if (fallback.remaining() > n) {
+					fallback.limit((int)n);
+				}
+				bytes = src.read(fallback);
+				if (bytes < 0) break;	// 終端に達した
+				fallback.flip();
+				long pos = position + transferred;
+				while (fallback.hasRemaining()) {
+					pos += dst.write(fallback, pos);
+				}
+			}
+			transferred += bytes;
+			if ((callback != null) && !callback.onProgress(transferred, count)) {
+				break;
+			}
+		}
+		return transferred;
+	}
+
+	/**
+	 * チャネル間で転送する
+	 * srcがFileChannelなら#transferTo, dstがFileChannelなら#transferFromを使う
+	 * どちらでもなければダイレクトバッファー経由でチャンク毎に転送する
+	 * FileChannelの場合も現在のpositionから読み書きしてpositionを進める
+	 * @param src
+	 * @param dst
+	 * @param count 転送するバイト数, 負ならsrcの終端まで転送する
+	 * @param callback 進捗コールバック, falseを返すと中断する
+	 * @return 転送したバイト数
+	 * @throws IOException
+	 */
+	public static long transfer(@NonNull final ReadableByteChannel src,
+		@NonNull final WritableByteChannel dst,
+		final long count,
+		@Nullable final TransferCallback callback) throws IOException {
+
+		long result;
+		if (src instanceof FileChannel) {
+			final FileChannel in = (FileChannel)src;
+			final long pos = in.position();
+			result = transferTo(in, pos, count >= 0 ? count : Long.MAX_VALUE, dst, callback);
+			in.position(pos + result);
+		} else if (dst instanceof FileChannel) {
+			final FileChannel out = (FileChannel)dst;
+			final long pos = out.position();
+			result = transferFrom(src, out, pos, count, callback);
+			out.position(pos + result);
+		} else {
+			final ByteBuffer buf = ByteBuffer.allocateDirect(FALLBACK_BUFFER_BYTES);
+			final long total = count >= 0 ? count : Long.MAX_VALUE;
+			result = 0;
+			while (result < total) {
+				buf.clear();
+				if (buf.remaining() > total - result) {
+					buf.limit((int)(total - result));
+				}
+				final int bytes = src.read(buf);
+				if (bytes < 0) break;
+				buf.flip();
+				while (buf.hasRemaining()) {
+					dst.write(buf);
+				}
+				result += bytes;
+				if ((callback != null) && !callback.onProgress(result, count)) {
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * 作業用のバッファーのサイズをチェックして足りなければ新規に確保して返す
 	 * 作業用バッファーは必要サイズ分がremainingになるように
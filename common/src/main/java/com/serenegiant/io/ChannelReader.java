@@ -0,0 +1,625 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * ChannelHelper#readXXXと同じフォーマット(ビッグエンディアン)でReadableByteChannelから読み込むためのヘルパークラス
+ * ChannelHelperと違って内部で再利用するワーク用のByteBufferを保持するので
+ * 値を読み込む毎にByteBufferを生成しない
+ * #readInto系のメソッドを使うと呼び出し元が用意した配列へ読み込むので配列の生成もしない
+ * 先読みはしない(必要なバイト数だけ読み込む)ので、ChannelHelperやチャネルの直接読み込みと混在させてもよい
+ * スレッドセーフではないので複数のスレッドから同時に読み込まないこと
+ */
+public class ChannelReader {
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	@NonNull
+	private final ReadableByteChannel mChannel;
+	/**
+	 * ワーク用のByteBuffer, 8の倍数でかつ8バイト以上
+	 */
+	@NonNull
+	private final ByteBuffer mWork;
+	/**
+	 * 文字列読み込み用のワーク
+	 */
+	@NonNull
+	private byte[] mStringWork = new byte[64];
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 */
+	public ChannelReader(@NonNull final ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 * @param bufferSize ワーク用のByteBufferのサイズ, 配列読み込み時に1回で読み込む最大バイト数
+	 */
+	public ChannelReader(@NonNull final ReadableByteChannel channel, final int bufferSize) {
+		mChannel = channel;
+		final int sz = Math.max(bufferSize, 8) & ~7;
+		mWork = ByteBuffer.allocateDirect(sz).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * 読み込み元のチャネルを取得
+	 * @return
+	 */
+	@NonNull
+	public ReadableByteChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * booleanを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean readBoolean() throws IOException {
+		return fill(1).get() != 0;
+	}
+
+	/**
+	 * byteを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public byte readByte() throws IOException {
+		return fill(1).get();
+	}
+
+	/**
+	 * charを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public char readChar() throws IOException {
+		return fill(2).getChar();
+	}
+
+	/**
+	 * shortを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public short readShort() throws IOException {
+		return fill(2).getShort();
+	}
+
+	/**
+	 * intを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public int readInt() throws IOException {
+		return fill(4).getInt();
+	}
+
+	/**
+	 * longを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public long readLong() throws IOException {
+		return fill(8).getLong();
+	}
+
+	/**
+	 * floatを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public float readFloat() throws IOException {
+		return fill(4).getFloat();
+	}
+
+	/**
+	 * doubleを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	public double readDouble() throws IOException {
+		return fill(8).getDouble();
+	}
+
+	/**
+	 * Stringを読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public String readString() throws IOException {
+		final int bytes = readLength();
+		if (mStringWork.length < bytes) {
+			mStringWork = new byte[bytes];
+		}
+		readBytes(mStringWork, 0, bytes);
+		return new String(mStringWork, 0, bytes, CharsetsUtils.UTF8);
+	}
+
+	/**
+	 * 指定したバイト数を読み飛ばす
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void skip(final int bytes) throws IOException {
+		for (int remain = bytes; remain > 0; ) {
+			final int n = Math.min(remain, mWork.capacity());
+			fill(n);
+			remain -= n;
+		}
+	}
+
+	/**
+	 * 配列の要素数を読み込んで要素部分を読み飛ばす
+	 * @param elementBytes 1要素あたりのバイト数
+	 * @return 読み飛ばした要素数
+	 * @throws IOException
+	 */
+	public int skipArray(final int elementBytes) throws IOException {
+		final int n = readLength();
+		skip(n * elementBytes);
+		return n;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * boolean配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public boolean[] readBooleanArray() throws IOException {
+		final boolean[] result = new boolean[readLength()];
+		readBooleans(result, result.length);
+		return result;
+	}
+
+	/**
+	 * byte配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public byte[] readByteArray() throws IOException {
+		final byte[] result = new byte[readLength()];
+		readBytes(result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * char配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public char[] readCharArray() throws IOException {
+		final char[] result = new char[readLength()];
+		readChars(result, result.length);
+		return result;
+	}
+
+	/**
+	 * short配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public short[] readShortArray() throws IOException {
+		final short[] result = new short[readLength()];
+		readShorts(result, result.length);
+		return result;
+	}
+
+	/**
+	 * int配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public int[] readIntArray() throws IOException {
+		final int[] result = new int[readLength()];
+		readInts(result, result.length);
+		return result;
+	}
+
+	/**
+	 * long配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public long[] readLongArray() throws IOException {
+		final long[] result = new long[readLength()];
+		readLongs(result, result.length);
+		return result;
+	}
+
+	/**
+	 * float配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public float[] readFloatArray() throws IOException {
+		final float[] result = new float[readLength()];
+		readFloats(result, result.length);
+		return result;
+	}
+
+	/**
+	 * double配列を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public double[] readDoubleArray() throws IOException {
+		final double[] result = new double[readLength()];
+		readDoubles(result, result.length);
+		return result;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 呼び出し元が用意した配列へboolean配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final boolean[] dst) throws IOException {
+		final int n = readLength(dst.length, 1);
+		readBooleans(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へbyte配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final byte[] dst) throws IOException {
+		final int n = readLength(dst.length, 1);
+		readBytes(dst, 0, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へchar配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final char[] dst) throws IOException {
+		final int n = readLength(dst.length, 2);
+		readChars(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へshort配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final short[] dst) throws IOException {
+		final int n = readLength(dst.length, 2);
+		readShorts(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へint配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final int[] dst) throws IOException {
+		final int n = readLength(dst.length, 4);
+		readInts(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へlong配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final long[] dst) throws IOException {
+		final int n = readLength(dst.length, 8);
+		readLongs(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へfloat配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final float[] dst) throws IOException {
+		final int n = readLength(dst.length, 4);
+		readFloats(dst, n);
+		return n;
+	}
+
+	/**
+	 * 呼び出し元が用意した配列へdouble配列を読み込む
+	 * 配列の要素数がdstより多い場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return 読み込んだ要素数
+	 * @throws IOException
+	 */
+	public int readInto(@NonNull final double[] dst) throws IOException {
+		final int n = readLength(dst.length, 8);
+		readDoubles(dst, n);
+		return n;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * ByteBufferを読み込む
+	 * 読み込むサイズのダイレクトバッファーを新たに生成して返す
+	 * @return positionは0, limitはデータの最後
+	 * @throws IOException
+	 */
+	@NonNull
+	public ByteBuffer readByteBuffer() throws IOException {
+		final int n = readLength();
+		final ByteBuffer result = ByteBuffer.allocateDirect(n);
+		readFully(result);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * 呼び出し元が用意したByteBufferへ読み込む
+	 * ChannelHelper#readByteBuffer(ByteChannel, ByteBuffer)と同様に
+	 * dstの現在のpositionから読み込み、remainingが足りない場合は読み飛ばした後IOExceptionを投げる
+	 * @param dst
+	 * @return dst, positionは元のまま(読んだデータの先頭), limitはデータの最後
+	 * @throws IOException
+	 */
+	@NonNull
+	public ByteBuffer readInto(@NonNull final ByteBuffer dst) throws IOException {
+		final int n = readLength(dst.remaining(), 1);
+		final int pos = dst.position();
+		dst.limit(pos + n);
+		readFully(dst);
+		dst.position(pos);
+		return dst;
+	}
+
+	/**
+	 * 指定したバイト数をワーク用のByteBufferへまとめて読み込む
+	 * 固定長のヘッダー等を1回の読み込みで取得してから解析するときに使う
+	 * 返り値はワーク用のByteBufferそのものなので、次にこのChannelReaderから読み込むまでの間だけ有効
+	 * @param bytes ワーク用のByteBufferの容量以下
+	 * @return 読み込んだデータの先頭にpositionをセットしたByteBuffer(ビッグエンディアン)
+	 * @throws IOException
+	 * @throws IllegalArgumentException bytesがワーク用のByteBufferの容量より大きいとき
+	 */
+	@NonNull
+	public ByteBuffer readBlock(final int bytes) throws IOException {
+		if ((bytes < 0) || (bytes > mWork.capacity())) {
+			throw new IllegalArgumentException("bytes=" + bytes + ",capacity=" + mWork.capacity());
+		}
+		return fill(bytes);
+	}
+
+	/**
+	 * 複数のByteBufferのremainingが全て0になるまでチャネルから読み込む
+	 * チャネルがScatteringByteChannelならscattering readで読み込む
+	 * @param dsts
+	 * @throws IOException
+	 */
+	public void readFully(@NonNull final ByteBuffer... dsts) throws IOException {
+		if (mChannel instanceof ScatteringByteChannel) {
+			ChannelHelper.readScattering((ScatteringByteChannel)mChannel, dsts);
+		} else {
+			for (final ByteBuffer dst: dsts) {
+				readFully(dst);
+			}
+		}
+	}
+
+	/**
+	 * ByteBufferのremainingが0になるまでチャネルから読み込む
+	 * @param dst
+	 * @throws IOException
+	 */
+	public void readFully(@NonNull final ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (mChannel.read(dst) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * ワーク用のByteBufferへ指定したバイト数を読み込む
+	 * @param bytes ワーク用のByteBufferの容量以下
+	 * @return 読み込んだデータの先頭にpositionをセットしたワーク用のByteBuffer
+	 * @throws IOException
+	 */
+	private ByteBuffer fill(final int bytes) throws IOException {
+		final ByteBuffer buf = mWork;
+		buf.clear();
+		buf.limit(bytes);
+		readFully(buf);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * 配列等の要素数を読み込む
+	 * @return
+	 * @throws IOException
+	 */
+	private int readLength() throws IOException {
+		final int n = readInt();
+		if (n < 0) throw new IOException("invalid length " + n);
+		return n;
+	}
+
+	/**
+	 * 配列等の要素数を読み込む
+	 * 要素数がmaxを超える場合には要素部分を読み飛ばしてからIOExceptionを投げる
+	 * @param max
+	 * @param elementBytes
+	 * @return
+	 * @throws IOException
+	 */
+	private int readLength(final int max, final int elementBytes) throws IOException {
+		final int n = readLength();
+		if (n > max) {
+			skip(n * elementBytes);
+			throw new IOException("buffer too small, required=" + n + ",available=" + max);
+		}
+		return n;
+	}
+
+	/**
+	 * 1回でワーク用のByteBufferへ読み込む要素数を計算
+	 * @param remain
+	 * @param elementBytes
+	 * @return
+	 */
+	private int chunk(final int remain, final int elementBytes) {
+		return Math.min(remain, mWork.capacity() / elementBytes);
+	}
+
+	private void readBytes(@NonNull final byte[] dst,
+		final int offset, final int n) throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 1);
+			fill(m).get(dst, offset + i, m);
+			i += m;
+		}
+	}
+
+	private void readBooleans(@NonNull final boolean[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 1);
+			final ByteBuffer buf = fill(m);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.get() != 0;
+			}
+		}
+	}
+
+	private void readChars(@NonNull final char[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 2);
+			final ByteBuffer buf = fill(m * 2);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getChar();
+			}
+		}
+	}
+
+	private void readShorts(@NonNull final short[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 2);
+			final ByteBuffer buf = fill(m * 2);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getShort();
+			}
+		}
+	}
+
+	private void readInts(@NonNull final int[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 4);
+			final ByteBuffer buf = fill(m * 4);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getInt();
+			}
+		}
+	}
+
+	private void readLongs(@NonNull final long[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 8);
+			final ByteBuffer buf = fill(m * 8);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getLong();
+			}
+		}
+	}
+
+	private void readFloats(@NonNull final float[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 4);
+			final ByteBuffer buf = fill(m * 4);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getFloat();
+			}
+		}
+	}
+
+	private void readDoubles(@NonNull final double[] dst, final int n)
+		throws IOException {
+
+		for (int i = 0; i < n; ) {
+			final int m = chunk(n - i, 8);
+			final ByteBuffer buf = fill(m * 8);
+			for (int j = 0; j < m; j++) {
+				dst[i++] = buf.getDouble();
+			}
+		}
+	}
+}
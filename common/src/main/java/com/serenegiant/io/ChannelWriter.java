@@ -0,0 +1,311 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * ChannelHelper#writeと同じフォーマット(ビッグエンディアン)でWritableByteChannelへ書き込むためのヘルパークラス
+ * ChannelHelperと違って内部で再利用するワーク用のByteBufferを保持するので
+ * 値を書き込む毎にByteBufferを生成しない
+ * 書き込んだデータはワーク用のByteBufferがいっぱいになるか#flushを呼ぶまでチャネルへ書き込まないので
+ * 一連のデータ(メッセージやフレームヘッダー等)を書き込んだ後は#flushを呼ぶこと
+ * ByteBufferの書き込み時はワーク用のByteBufferの内容と一緒に書き込む
+ * (チャネルがGatheringByteChannelなら1回のgathering writeで書き込む)
+ * スレッドセーフではないので複数のスレッドから同時に書き込まないこと
+ */
+public class ChannelWriter {
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	@NonNull
+	private final WritableByteChannel mChannel;
+	/**
+	 * ワーク用のByteBuffer, 8の倍数でかつ8バイト以上
+	 */
+	@NonNull
+	private final ByteBuffer mWork;
+	/**
+	 * gathering write用の配列, 書き込み後は参照を残さないようにクリアする
+	 */
+	@NonNull
+	private ByteBuffer[] mGather = new ByteBuffer[2];
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 */
+	public ChannelWriter(@NonNull final WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 * @param bufferSize ワーク用のByteBufferのサイズ
+	 */
+	public ChannelWriter(@NonNull final WritableByteChannel channel, final int bufferSize) {
+		mChannel = channel;
+		final int sz = Math.max(bufferSize, 8) & ~7;
+		mWork = ByteBuffer.allocateDirect(sz).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * 書き込み先のチャネルを取得
+	 * @return
+	 */
+	@NonNull
+	public WritableByteChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * ワーク用のByteBufferに溜まっているデータをチャネルへ書き込む
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		final ByteBuffer buf = mWork;
+		if (buf.position() > 0) {
+			buf.flip();
+			try {
+				writeFully(buf);
+			} finally {
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * #flushで書き込まれていないデータを破棄する
+	 */
+	public void discard() {
+		mWork.clear();
+	}
+
+	public void write(final boolean value) throws IOException {
+		ensure(1).put((byte)(value ? 1 : 0));
+	}
+
+	public void write(final byte value) throws IOException {
+		ensure(1).put(value);
+	}
+
+	public void write(final char value) throws IOException {
+		ensure(2).putChar(value);
+	}
+
+	public void write(final short value) throws IOException {
+		ensure(2).putShort(value);
+	}
+
+	public void write(final int value) throws IOException {
+		ensure(4).putInt(value);
+	}
+
+	public void write(final long value) throws IOException {
+		ensure(8).putLong(value);
+	}
+
+	public void write(final float value) throws IOException {
+		ensure(4).putFloat(value);
+	}
+
+	public void write(final double value) throws IOException {
+		ensure(8).putDouble(value);
+	}
+
+	public void write(@NonNull final String value) throws IOException {
+		write(value.getBytes(CharsetsUtils.UTF8));
+	}
+
+	public void write(@NonNull final boolean[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(1).put((byte)(value[i] ? 1 : 0));
+		}
+	}
+
+	public void write(@NonNull final byte[] value) throws IOException {
+		write(value, 0, value.length);
+	}
+
+	/**
+	 * byte配列の一部を書き込む
+	 * ChannelHelper#write(ByteChannel, byte[])と同じく先頭に要素数(バイト数)を書き込む
+	 * @param value
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(@NonNull final byte[] value,
+		final int offset, final int length) throws IOException {
+
+		write(length);
+		for (int i = 0; i < length; ) {
+			final ByteBuffer buf = ensure(1);
+			final int m = Math.min(length - i, buf.remaining());
+			buf.put(value, offset + i, m);
+			i += m;
+		}
+	}
+
+	public void write(@NonNull final char[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(2).putChar(value[i]);
+		}
+	}
+
+	public void write(@NonNull final short[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(2).putShort(value[i]);
+		}
+	}
+
+	public void write(@NonNull final int[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(4).putInt(value[i]);
+		}
+	}
+
+	public void write(@NonNull final long[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(8).putLong(value[i]);
+		}
+	}
+
+	public void write(@NonNull final float[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(4).putFloat(value[i]);
+		}
+	}
+
+	public void write(@NonNull final double[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; i++) {
+			ensure(8).putDouble(value[i]);
+		}
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでを書き込む
+	 * ChannelHelper#write(ByteChannel, ByteBuffer)と同じく先頭にバイト数を書き込む
+	 * ワーク用のByteBufferへはコピーせずに、ワーク用のByteBufferに溜まっているデータ(ヘッダー等)と一緒に
+	 * チャネルへ書き込む
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final ByteBuffer value) throws IOException {
+		write(value.remaining());
+		if (mChannel instanceof GatheringByteChannel) {
+			// 可変長引数の配列を生成しないように直接セットする
+			mGather[1] = value;
+			gather(2);
+		} else {
+			flush();
+			writeFully(value);
+		}
+	}
+
+	/**
+	 * ワーク用のByteBufferに溜まっているデータと指定したByteBufferを続けてチャネルへ書き込む
+	 * #write(ByteBuffer)と違ってバイト数は書き込まない
+	 * チャネルがGatheringByteChannelなら1回のgathering writeで書き込む
+	 * @param buffers
+	 * @throws IOException
+	 */
+	public void writeGathering(@NonNull final ByteBuffer... buffers) throws IOException {
+		if (mChannel instanceof GatheringByteChannel) {
+			final int n = buffers.length + 1;
+			if (mGather.length < n) {
+				mGather = new ByteBuffer[n];
+			}
+			System.arraycopy(buffers, 0, mGather, 1, buffers.length);
+			gather(n);
+		} else {
+			flush();
+			for (final ByteBuffer buf: buffers) {
+				writeFully(buf);
+			}
+		}
+	}
+
+	/**
+	 * ワーク用のByteBufferとmGather[1]〜mGather[n-1]を1回のgathering writeで書き込む
+	 * @param n
+	 * @throws IOException
+	 */
+	private void gather(final int n) throws IOException {
+		final ByteBuffer[] gather = mGather;
+		final ByteBuffer work = mWork;
+		work.flip();
+		gather[0] = work;
+		try {
+			final GatheringByteChannel channel = (GatheringByteChannel)mChannel;
+			long remain = 0;
+			for (int i = 0; i < n; i++) {
+				remain += gather[i].remaining();
+			}
+			while (remain > 0) {
+				remain -= channel.write(gather, 0, n);
+			}
+		} finally {
+			work.clear();
+			Arrays.fill(gather, 0, n, null);
+		}
+	}
+
+	/**
+	 * ワーク用のByteBufferに指定したバイト数の空きがなければ#flushする
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer ensure(final int bytes) throws IOException {
+		if (mWork.remaining() < bytes) {
+			flush();
+		}
+		return mWork;
+	}
+
+	private void writeFully(@NonNull final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			mChannel.write(buf);
+		}
+	}
+}
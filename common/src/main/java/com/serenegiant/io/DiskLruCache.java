@@ -15,36 +15,47 @@ package com.serenegiant.io;
  * limitations under the License.
  */
 import com.serenegiant.nio.CharsetsUtils;
+import com.serenegiant.utils.ByteBufferArena;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  ******************************************************************************
@@ -99,17 +110,97 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String INDEX_FILE = "journal.idx";
+    static final String INDEX_FILE_TMP = "journal.idx.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    /** バイナリジャーナルのマジックナンバー("DLRC") */
+    static final int JOURNAL_MAGIC = 0x444c5243;
+    /** インデックススナップショットのマジックナンバー("DLRI") */
+    static final int INDEX_MAGIC = 0x444c5249;
+    static final int VERSION_2 = 2;
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    /** バイナリジャーナル/インデックススナップショットのヘッダーサイズ */
+    private static final int JOURNAL_HEADER_BYTES = 4 + 4 + 4 + 4;
+    private static final int INDEX_HEADER_BYTES = JOURNAL_HEADER_BYTES + 8 + 4 + 4;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Snapshot#getByteBuffer/Editor#getByteBufferでこのサイズ以上の値はメモリーマップする
+     * これより小さい値はメモリーマップするよりも読み込む方が速いので
+     * プールしているヒープ上のバッファへ読み込む
+     */
+    private static final int MAP_THRESHOLD = 32 * 1024;
+    /** 小さい値の読み込み用バッファのプールのサイズクラス毎のバジェット */
+    private static final long VALUE_BUFFER_BUDGET = 256 * 1024;
+    /** キー毎のロックのストライプ数(2のべき乗) */
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    /**
+     * ジャーナルをファイルへ書き込んだ後にfsyncしない(デフォルト)
+     * ジャーナルはジャーナル書き込みスレッドがまとめて書き込む
+     */
+    public static final int SYNC_NONE = 0;
+    /**
+     * ジャーナル書き込みスレッドがジャーナルを書き込む毎にfsyncする
+     * Editor#commitはfsyncを待たない
+     */
+    public static final int SYNC_ASYNC = 1;
+    /**
+     * Editor#commitで値のファイルとジャーナルのfsyncが完了するまで待つ
+     */
+    public static final int SYNC_ON_COMMIT = 2;
+
+    @IntDef({
+        SYNC_NONE,
+        SYNC_ASYNC,
+        SYNC_ON_COMMIT,
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SyncMode {}
+
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a binary journal file named "journal". The journal
+     * starts with a 16 byte header: the magic number 0x444c5243 ("DLRC"),
+     * the journal version (2), the application's version and the value count,
+     * each as a big endian 32 bit integer.
+     *
+     * Each of the subsequent records tracks the state of a cache entry and
+     * consists of a one byte state, the key as a length prefixed UTF-8 byte
+     * sequence (a 32 bit byte count followed by the bytes) and optional
+     * state-specific values.
+     *   o DIRTY records track that an entry is actively being created or
+     *     updated. Every successful DIRTY action should be followed by a CLEAN
+     *     or REMOVE action. DIRTY records without a matching CLEAN or REMOVE
+     *     indicate that temporary files may need to be deleted.
+     *   o CLEAN records track a cache entry that has been successfully
+     *     published and may be read. A publish record is followed by the
+     *     lengths of each of its values as 64 bit integers.
+     *   o READ records track accesses for LRU.
+     *   o REMOVE records track entries that have been deleted.
+     * A record that was only partially written (e.g. the process died while
+     * appending) is ignored and the journal is rebuilt when the cache is opened.
+     *
+     * The journal file is appended to as cache operations occur. Records are
+     * encoded into memory by the thread that performs the operation (while
+     * holding the cache lock, so the order of records matches the order of
+     * operations) and written to the file in batches by a dedicated writer
+     * thread. A DIRTY record is always written before the dirty files of that
+     * edit are created. The journal is
+     * compacted by dropping redundant records once they outnumber the live
+     * entries. A temporary file named "journal.tmp" will be used during
+     * compaction; that file should be deleted if it exists when the cache is
+     * opened.
+     *
+     * Journals written by older versions of this class are text files that
+     * look like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -119,44 +210,62 @@ public final class DiskLruCache implements Closeable {
      *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
      *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
      *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
-     *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-     *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
      *     READ 335c4c6028171cfddfbaae1a9c313c52
-     *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+     * They are read once and replaced by a binary journal when the cache is
+     * opened.
      *
-     * The first five lines of the journal form its header. They are the
-     * constant string "libcore.io.DiskLruCache", the disk cache's version,
-     * the application's version, the value count, and a blank line.
-     *
-     * Each of the subsequent lines in the file is a record of the state of a
-     * cache entry. Each line contains space-separated values: a state, a key,
-     * and optional state-specific values.
-     *   o DIRTY lines track that an entry is actively being created or updated.
-     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
-     *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
-     *     temporary files may need to be deleted.
-     *   o CLEAN lines track a cache entry that has been successfully published
-     *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
-     *   o REMOVE lines track entries that have been deleted.
-     *
-     * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * When the index snapshot is enabled, a file named "journal.idx" holding
+     * all entries in LRU order is written when the cache is closed. It records
+     * the length of the journal at that time and is used instead of replaying
+     * the journal when the journal has not been modified since.
      */
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File indexFile;
+    private final File indexFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final boolean useIndexSnapshot;
     private long size = 0;
-    private Writer journalWriter;
+    /**
+     * ジャーナル書き込み用, nullならクローズ済み
+     * ロック無しで#checkNotClosedからアクセスするのでvolatile
+     */
+    private volatile JournalWriter journalWriter;
+    @SyncMode
+    private volatile int syncMode = SYNC_NONE;
+    /**
+     * キー毎の読み書きロック(キーのハッシュでストライプ化)
+     * Snapshotを取得する時のファイルのオープンは読み込みロック、
+     * コミット時のファイルのリネームや削除、編集開始は書き込みロックを保持した状態で行う
+     * ロックの順番は常にキー毎のロック→キャッシュ自体のロック(synchronized)
+     * →JournalWriterのロックの順にすること
+     */
+    private final ReentrantReadWriteLock[] keyLocks
+            = new ReentrantReadWriteLock[KEY_LOCK_STRIPES];
+    /** MAP_THRESHOLDより小さい値の読み込み用バッファのプール */
+    private final ByteBufferArena valueBuffers
+            = new ByteBufferArena(false, 1024, MAP_THRESHOLD, VALUE_BUFFER_BUDGET);
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    /** ジャーナル読み込み時に末尾の書き込み途中のレコードを見つけたかどうか */
+    private boolean journalTruncated;
+    /** ジャーナル読み込み時のキー変換用ワーク */
+    private byte[] keyWork;
+    /** 追い出しポリシー, nullならLRU */
+    @Nullable
+    private EvictionPolicy evictionPolicy;
+    /** #getで見つかった回数 */
+    private long hitCount;
+    /** #getで見つからなかった回数 */
+    private long missCount;
+    /** #trimToSizeで追い出したエントリー数 */
+    private long evictionCount;
+    /** #trimToSizeで追い出したバイト数 */
+    private long evictedBytes;
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -257,26 +366,35 @@ public final class DiskLruCache implements Closeable {
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            if (journalWriter == null) {
+                return null; // closed
+            }
+            trimToSize();
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
-                    redundantOpCount = 0;
                 }
             }
             return null;
         }
     };
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean useIndexSnapshot) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.indexFileTmp = new File(directory, INDEX_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.useIndexSnapshot = useIndexSnapshot;
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            keyLocks[i] = new ReentrantReadWriteLock();
+        }
     }
     /**
      * Opens the cache in {@code directory}, creating a cache if none exists
@@ -290,6 +408,24 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     * useIndexSnapshot=trueならクローズ時にインデックススナップショット(journal.idx)を書き出し、
+     * 次回のオープン時にジャーナルが変更されていなければジャーナルを再生する代わりに
+     * メモリーマップしたインデックススナップショットからエントリーを読み込む
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param useIndexSnapshot インデックススナップショットを使うかどうか
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean useIndexSnapshot) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -297,13 +433,18 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException("valueCount <= 0");
         }
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                useIndexSnapshot);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                final boolean binary = cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (binary && !cache.journalTruncated) {
+                    cache.openJournalWriter();
+                } else {
+                    // migrate the text journal / drop the partially written record
+                    cache.rebuildJournal();
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -313,11 +454,138 @@ public final class DiskLruCache implements Closeable {
         }
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, useIndexSnapshot);
         cache.rebuildJournal();
         return cache;
     }
-    private void readJournal() throws IOException {
+    /**
+     * ジャーナル(またはインデックススナップショット)を読み込む
+     * @return true: バイナリジャーナル, false: 旧形式のテキストジャーナル
+     * @throws IOException
+     */
+    private boolean readJournal() throws IOException {
+        final long journalLength = journalFile.length();
+        if (useIndexSnapshot && readIndexSnapshot(journalLength)) {
+            return true;
+        }
+        final ByteBuffer buf = map(journalFile);
+        if ((buf.remaining() < 4) || (buf.getInt(0) != JOURNAL_MAGIC)) {
+            // 旧形式のテキストジャーナル
+            readTextJournal();
+            return false;
+        }
+        if ((buf.remaining() < JOURNAL_HEADER_BYTES)
+                || (buf.getInt() != JOURNAL_MAGIC)
+                || (buf.getInt() != VERSION_2)
+                || (buf.getInt() != appVersion)
+                || (buf.getInt() != valueCount)) {
+            throw new IOException("unexpected journal header");
+        }
+        int recordCount = 0;
+        while (buf.hasRemaining()) {
+            if (!readJournalRecord(buf)) {
+                journalTruncated = true;
+                break;
+            }
+            recordCount++;
+        }
+        redundantOpCount = recordCount - lruEntries.size();
+        return true;
+    }
+    /**
+     * バイナリジャーナルのレコードを1つ読み込む
+     * @param buf
+     * @return false: レコードが途中までしか書き込まれていない
+     * @throws IOException
+     */
+    private boolean readJournalRecord(final ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 5) {
+            return false;
+        }
+        final byte op = buf.get();
+        final int keyLength = buf.getInt();
+        if (keyLength < 0) {
+            throw new IOException("unexpected journal record: key length=" + keyLength);
+        }
+        final int valuesBytes = op == OP_CLEAN ? valueCount * 8 : 0;
+        if (buf.remaining() < (long)keyLength + valuesBytes) {
+            return false;
+        }
+        final String key = readKey(buf, keyLength);
+        switch (op) {
+        case OP_REMOVE:
+            lruEntries.remove(key);
+            break;
+        case OP_CLEAN:
+        {
+            final Entry entry = getOrCreateEntry(key);
+            entry.readable = true;
+            entry.currentEditor = null;
+            for (int i = 0; i < valueCount; i++) {
+                entry.lengths[i] = buf.getLong();
+            }
+            break;
+        }
+        case OP_DIRTY:
+        {
+            final Entry entry = getOrCreateEntry(key);
+            entry.currentEditor = new Editor(entry);
+            break;
+        }
+        case OP_READ:
+            // LRUの順番を更新するだけ
+            lruEntries.get(key);
+            break;
+        default:
+            throw new IOException("unexpected journal record: op=" + op);
+        }
+        return true;
+    }
+    /**
+     * インデックススナップショットが有効であれば読み込む
+     * @param journalLength 現在のジャーナルのサイズ
+     * @return true: インデックススナップショットから読み込んだ
+     */
+    private boolean readIndexSnapshot(final long journalLength) {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try {
+            final ByteBuffer buf = map(indexFile);
+            if ((buf.remaining() < INDEX_HEADER_BYTES)
+                    || (buf.getInt() != INDEX_MAGIC)
+                    || (buf.getInt() != VERSION_2)
+                    || (buf.getInt() != appVersion)
+                    || (buf.getInt() != valueCount)
+                    || (buf.getLong() != journalLength)) {
+                return false;
+            }
+            final int redundant = buf.getInt();
+            final int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                final int keyLength = buf.getInt();
+                if ((keyLength < 0) || (buf.remaining() < (long)keyLength + valueCount * 8)) {
+                    throw new IOException("unexpected index snapshot");
+                }
+                final Entry entry = getOrCreateEntry(readKey(buf, keyLength));
+                entry.readable = true;
+                for (int j = 0; j < valueCount; j++) {
+                    entry.lengths[j] = buf.getLong();
+                }
+            }
+            redundantOpCount = redundant;
+            return true;
+        } catch (final Exception e) {
+            // 壊れている時はジャーナルを再生する
+            lruEntries.clear();
+            return false;
+        }
+    }
+    /**
+     * 旧形式のテキストジャーナルを読み込む
+     * @throws IOException
+     */
+    private void readTextJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
@@ -354,11 +622,7 @@ public final class DiskLruCache implements Closeable {
             lruEntries.remove(key);
             return;
         }
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        }
+        Entry entry = getOrCreateEntry(key);
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
@@ -371,12 +635,51 @@ public final class DiskLruCache implements Closeable {
             throw new IOException("unexpected journal line: " + line);
         }
     }
+    private Entry getOrCreateEntry(String key) {
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        return entry;
+    }
+    /**
+     * バッファからUTF-8のキーを読み込む
+     * @param buf
+     * @param keyLength
+     * @return
+     */
+    private String readKey(final ByteBuffer buf, final int keyLength) {
+        if ((keyWork == null) || (keyWork.length < keyLength)) {
+            keyWork = new byte[Math.max(keyLength, 64)];
+        }
+        buf.get(keyWork, 0, keyLength);
+        return new String(keyWork, 0, keyLength, CharsetsUtils.UTF8);
+    }
+    /**
+     * ファイル全体を読み込み専用でメモリーマップする
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static ByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.BIG_ENDIAN);
+        } finally {
+            // マップしたバッファはチャネルを閉じた後も有効
+            closeQuietly(raf);
+        }
+    }
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(indexFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -393,34 +696,105 @@ public final class DiskLruCache implements Closeable {
             }
         }
     }
+    /**
+     * 追記用にジャーナルを開く
+     * @throws IOException
+     */
+    private void openJournalWriter() throws IOException {
+        final FileChannel channel = new FileOutputStream(journalFile, true).getChannel();
+        if (journalWriter == null) {
+            journalWriter = new JournalWriter(channel);
+        } else {
+            journalWriter.setChannel(channel);
+        }
+    }
+    /**
+     * ジャーナルへレコードを書き込む(ChannelWriterのバッファへ書き込むだけ)
+     * JournalWriter#appendと同じフォーマット
+     * @param writer
+     * @param op
+     * @param entry
+     * @throws IOException
+     */
+    private void writeRecord(final ChannelWriter writer,
+            final byte op, final Entry entry) throws IOException {
+        writer.write(op);
+        writer.write(entry.keyBytes);
+        if (op == OP_CLEAN) {
+            for (final long length : entry.lengths) {
+                writer.write(length);
+            }
+        }
+    }
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
         if (journalWriter != null) {
-            journalWriter.close();
-        }
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            // まだ書き込んでいないレコードは新しいジャーナルに含まれるので破棄する
+            journalWriter.discard();
+        }
+        // ジャーナルが変わるのでインデックススナップショットは無効
+        deleteIfExists(indexFile);
+        final FileChannel channel = new FileOutputStream(journalFileTmp).getChannel();
+        try {
+            final ChannelWriter writer = new ChannelWriter(channel, IO_BUFFER_SIZE);
+            writer.write(JOURNAL_MAGIC);
+            writer.write(VERSION_2);
+            writer.write(appVersion);
+            writer.write(valueCount);
+            for (Entry entry : lruEntries.values()) {
+                writeRecord(writer, entry.currentEditor != null ? OP_DIRTY : OP_CLEAN, entry);
+            }
+            writer.flush();
+            if (syncMode != SYNC_NONE) {
+                channel.force(false);
             }
+        } finally {
+            channel.close();
         }
-        writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalTruncated = false;
+        redundantOpCount = 0;
+        openJournalWriter();
+    }
+    /**
+     * インデックススナップショットを書き出す
+     * ジャーナルを閉じた後に呼ぶこと
+     * @throws IOException
+     */
+    private void writeIndexSnapshot() throws IOException {
+        final FileChannel channel = new FileOutputStream(indexFileTmp).getChannel();
+        try {
+            final ChannelWriter writer = new ChannelWriter(channel, IO_BUFFER_SIZE);
+            writer.write(INDEX_MAGIC);
+            writer.write(VERSION_2);
+            writer.write(appVersion);
+            writer.write(valueCount);
+            writer.write(journalFile.length());
+            writer.write(redundantOpCount);
+            int n = 0;
+            for (Entry entry : lruEntries.values()) {
+                if (entry.readable) {
+                    n++;
+                }
+            }
+            writer.write(n);
+            for (Entry entry : lruEntries.values()) {
+                if (!entry.readable) {
+                    continue;
+                }
+                writer.write(entry.keyBytes);
+                for (final long length : entry.lengths) {
+                    writer.write(length);
+                }
+            }
+            writer.flush();
+        } finally {
+            channel.close();
+        }
+        indexFileTmp.renameTo(indexFile);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -444,54 +818,86 @@ public final class DiskLruCache implements Closeable {
     public boolean contains(final String key) {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if ((entry == null) || !entry.readable) {
-            return false;
-        }
-        for (int i = 0; i < valueCount; i++) {
-            final File f= entry.getCleanFile(i);
-            if (!f.exists() || !f.canRead()) {
+        final ReentrantReadWriteLock.ReadLock lock = lockFor(key).readLock();
+        lock.lock();
+        try {
+            final Entry entry;
+            synchronized (this) {
+                entry = lruEntries.get(key);
+            }
+            if ((entry == null) || !entry.readable) {
                 return false;
             }
+            for (int i = 0; i < valueCount; i++) {
+                final File f= entry.getCleanFile(i);
+                if (!f.exists() || !f.canRead()) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return true;
     }
 
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     * キー毎の読み込みロックを保持した状態でファイルを開くので
+     * 他のキーのコミットや同じキーの読み込みとは並行して実行できる
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-        if (!entry.readable) {
-            return null;
-        }
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
+        final ReentrantReadWriteLock.ReadLock lock = lockFor(key).readLock();
+        lock.lock();
         try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            final Entry entry;
+            final long sequenceNumber;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if ((entry == null) || !entry.readable) {
+                    missCount++;
+                    if (evictionPolicy != null) {
+                        evictionPolicy.onMiss(key);
+                    }
+                    return null;
+                }
+                hitCount++;
+                if (evictionPolicy != null) {
+                    evictionPolicy.onHit(key);
+                }
+                sequenceNumber = entry.sequenceNumber;
+                redundantOpCount++;
+                journalWriter.append(OP_READ, entry);
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             * The clean files are not renamed or deleted while the read lock is held.
+             */
+            FileInputStream[] ins = new FileInputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                return null;
+            }
+            return new Snapshot(key, sequenceNumber, ins);
+        } finally {
+            lock.unlock();
         }
-        return new Snapshot(key, entry.sequenceNumber, ins);
     }
     /**
      * Returns an editor for the entry named {@code key}, or null if another
@@ -500,26 +906,35 @@ public final class DiskLruCache implements Closeable {
     public Editor edit(String key) throws IOException {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
+        final ReentrantReadWriteLock.WriteLock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                checkNotClosed();
+                Entry entry = lruEntries.get(key);
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                    return null; // snapshot is stale
+                }
+                if (entry == null) {
+                    entry = new Entry(key);
+                    lruEntries.put(key, entry);
+                } else if (entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
+                Editor editor = new Editor(entry);
+                entry.currentEditor = editor;
+                // the dirty files are created after this record has been written
+                // (see Editor#newOutputStream) to prevent file leaks
+                editor.dirtyTicket = journalWriter.append(OP_DIRTY, entry);
+                return editor;
+            }
+        } finally {
+            lock.unlock();
         }
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
     }
     /**
      * Returns the directory where this cache stores its data.
@@ -542,50 +957,141 @@ public final class DiskLruCache implements Closeable {
     public synchronized long size() {
         return size;
     }
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
+    /**
+     * trimToSizeで追い出すエントリーを選択する追い出しポリシーを設定する
+     * 既存のエントリーはLRUの古い順にEvictionPolicy#onWriteで追加する
+     * (アクセス頻度等の情報は引き継がない)
+     * @param policy nullならLRU(デフォルト)
+     */
+    public synchronized void setEvictionPolicy(@Nullable EvictionPolicy policy) {
+        if (evictionPolicy != null) {
+            evictionPolicy.clear();
         }
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                final File dirtyFile = entry.getDirtyFile(i);
-                if (!dirtyFile.exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file:" + dirtyFile);
+        evictionPolicy = policy;
+        if (policy != null) {
+            policy.clear();
+            for (Entry entry : lruEntries.values()) {
+                if (entry.readable) {
+                    policy.onWrite(entry.key, entry.totalLength());
                 }
             }
         }
-        for (int i = 0; i < valueCount; i++) {
-            final File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+    }
+    /**
+     * 追い出しポリシーを取得する
+     * @return nullならLRU
+     */
+    @Nullable
+    public synchronized EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+    /**
+     * 統計情報を取得する
+     * @return
+     */
+    @NonNull
+    public synchronized Stats getStats() {
+        return new Stats(lruEntries.size(), size, maxSize,
+                hitCount, missCount, evictionCount, evictedBytes);
+    }
+    /**
+     * 統計情報をリセットする
+     */
+    public synchronized void resetStats() {
+        hitCount = missCount = evictionCount = evictedBytes = 0;
+    }
+    /**
+     * ジャーナルのfsyncの方法を設定
+     * @param mode SYNC_NONE, SYNC_ASYNC, SYNC_ON_COMMIT
+     */
+    public void setSyncMode(@SyncMode final int mode) {
+        syncMode = mode;
+    }
+    /**
+     * ジャーナルのfsyncの方法を取得
+     * @return
+     */
+    @SyncMode
+    public int getSyncMode() {
+        return syncMode;
+    }
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        final long ticket;
+        final ReentrantReadWriteLock.WriteLock lock = lockFor(entry.key).writeLock();
+        lock.lock();
+        try {
+            final boolean readable;
+            synchronized (this) {
+                if (entry.currentEditor != editor) {
+                    throw new IllegalStateException();
                 }
-            } else {
-                deleteIfExists(dirty);
+                readable = entry.readable;
             }
-        }
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    final File dirtyFile = entry.getDirtyFile(i);
+                    if (!dirtyFile.exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file:" + dirtyFile);
+                    }
+                }
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            // rename/delete the files without holding the cache lock, the write lock
+            // for the key keeps readers of this entry away
+            final long[] newLengths = success ? new long[valueCount] : null;
+            for (int i = 0; i < valueCount; i++) {
+                final File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        newLengths[i] = clean.length();
+                    } else {
+                        newLengths[i] = -1;
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+            synchronized (this) {
+                if (success) {
+                    for (int i = 0; i < valueCount; i++) {
+                        if (newLengths[i] >= 0) {
+                            size = size - entry.lengths[i] + newLengths[i];
+                            entry.lengths[i] = newLengths[i];
+                        }
+                    }
+                }
+                redundantOpCount++;
+                entry.currentEditor = null;
+                if (entry.readable | success) {
+                    entry.readable = true;
+                    ticket = journalWriter.append(OP_CLEAN, entry);
+                    if (success) {
+                        entry.sequenceNumber = nextSequenceNumber++;
+                        if (evictionPolicy != null) {
+                            evictionPolicy.onWrite(entry.key, entry.totalLength());
+                        }
+                    }
+                } else {
+                    lruEntries.remove(entry.key);
+                    ticket = journalWriter.append(OP_REMOVE, entry);
+                }
+                if (size > maxSize || journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        editor.releaseBuffers();
+        if (success && (syncMode == SYNC_ON_COMMIT)) {
+            final JournalWriter journal = journalWriter;
+            if (journal != null) {
+                journal.await(ticket, true);
+            }
         }
     }
     /**
@@ -603,28 +1109,46 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
-        }
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+        final ReentrantReadWriteLock.WriteLock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            final Entry entry;
+            synchronized (this) {
+                entry = lruEntries.get(key);
+                if (entry == null || entry.currentEditor != null) {
+                    return false;
+                }
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            // edits of this key can not start while the write lock is held
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            }
+            synchronized (this) {
+                checkNotClosed();
+                for (int i = 0; i < valueCount; i++) {
+                    size -= entry.lengths[i];
+                    entry.lengths[i] = 0;
+                }
+                redundantOpCount++;
+                journalWriter.append(OP_REMOVE, entry);
+                lruEntries.remove(key);
+                if (evictionPolicy != null) {
+                    evictionPolicy.onRemove(key);
+                }
+                if (journalRebuildRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return true;
     }
     /**
      * Returns true if this cache has been closed.
@@ -640,32 +1164,103 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        final JournalWriter journal = journalWriter;
+        if (journal != null) {
+            journal.flush();
+        }
     }
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
+    public void close() throws IOException {
+        final List<Editor> editors = new ArrayList<Editor>();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // already closed
+            }
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    editors.add(entry.currentEditor);
+                }
+            }
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        // abort without holding the cache lock to keep the lock order
+        for (Editor editor : editors) {
+            try {
+                editor.abort();
+            } catch (IllegalStateException e) {
+                // already completed
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // already closed
+            }
+            final JournalWriter journal = journalWriter;
+            journalWriter = null;
+            journal.close();
+            if (useIndexSnapshot) {
+                try {
+                    writeIndexSnapshot();
+                } catch (IOException e) {
+                    // インデックススナップショットは無くても次回はジャーナルを再生するだけ
+                    deleteIfExists(indexFileTmp);
+                    deleteIfExists(indexFile);
+                }
+            }
+        }
     }
+    /**
+     * 最大サイズ以下になるまでエントリーを削除する
+     * 追い出しポリシーが設定されていればポリシーが選択したエントリーを、
+     * そうでなければ(またはポリシーが選択したエントリーを削除できなければ)古いエントリーから削除する
+     * キー毎のロックを取得するのでキャッシュ自体のロックを保持した状態で呼んではいけない
+     * @throws IOException
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        while (true) {
+            String toEvict = null;
+            long evictSize = 0;
+            synchronized (this) {
+                if (size <= maxSize) {
+                    return;
+                }
+                if (evictionPolicy != null) {
+                    final String key = evictionPolicy.victim();
+                    // XXX access orderなのでget()するとLRUの順番が変わるが直後に削除するので問題ない
+                    final Entry entry = key != null ? lruEntries.get(key) : null;
+                    if ((entry != null) && (entry.currentEditor == null)) {
+                        toEvict = key;
+                        evictSize = entry.totalLength();
+                    } else if ((key != null) && (entry == null)) {
+                        // ポリシーとキャッシュのエントリーが食い違っている
+                        evictionPolicy.onRemove(key);
+                    }
+                }
+                if (toEvict == null) {
+                    // 編集中のエントリーは削除できないのでスキップする
+                    for (Entry entry : lruEntries.values()) {
+                        if (entry.currentEditor == null) {
+                            toEvict = entry.key;
+                            evictSize = entry.totalLength();
+                            break;
+                        }
+                    }
+                }
+            }
+            if (toEvict == null) {
+                return;
+            }
+            if (remove(toEvict)) {
+                synchronized (this) {
+                    evictionCount++;
+                    evictedBytes += evictSize;
+                }
+            }
         }
     }
     /**
@@ -677,6 +1272,15 @@ public final class DiskLruCache implements Closeable {
         close();
         deleteContents(directory);
     }
+    /**
+     * 指定したキーに対応するロックを取得
+     * @param key
+     * @return
+     */
+    private ReentrantReadWriteLock lockFor(String key) {
+        final int h = key.hashCode();
+        return keyLocks[(h ^ (h >>> 16)) & (KEY_LOCK_STRIPES - 1)];
+    }
     private void validateKey(String key) {
         if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
             throw new IllegalArgumentException(
@@ -686,17 +1290,155 @@ public final class DiskLruCache implements Closeable {
     private static String inputStreamToString(InputStream in) throws IOException {
         return readFully(new InputStreamReader(in, CharsetsUtils.UTF8));
     }
+    /**
+     * 値のファイルを読み込み専用のByteBufferとして取得する
+     * MAP_THRESHOLD以上であればメモリーマップし、
+     * それより小さければプールから取得したヒープ上のバッファへ読み込む
+     * @param channel 値のファイルのチャネル, チャネルの位置は変更しない
+     * @param pooled プールから取得したバッファを返却用に保持する配列
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer readValue(FileChannel channel,
+            ByteBuffer[] pooled, int index) throws IOException {
+        final long length = channel.size();
+        if (length >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        final ByteBuffer buf = valueBuffers.obtain((int)length);
+        buf.limit((int)length);
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } catch (IOException e) {
+            valueBuffers.recycle(buf);
+            throw e;
+        }
+        buf.flip();
+        pooled[index] = buf;
+        return buf.asReadOnlyBuffer();
+    }
+    /**
+     * #readValueでプールから取得したバッファを返却する
+     * @param pooled
+     */
+    private void recycleValues(ByteBuffer[] pooled) {
+        for (int i = 0; i < pooled.length; i++) {
+            if (pooled[i] != null) {
+                valueBuffers.recycle(pooled[i]);
+                pooled[i] = null;
+            }
+        }
+    }
+    /**
+     * trimToSizeで追い出すエントリーを選択するための追い出しポリシー
+     * 各メソッドはキャッシュ自体のロックを保持した状態で呼ばれるので
+     * 時間のかかる処理をしてはいけない
+     */
+    public interface EvictionPolicy {
+        /**
+         * #getでエントリーが見つかった時
+         * @param key
+         */
+        public void onHit(@NonNull String key);
+        /**
+         * #getでエントリーが見つからなかった時
+         * @param key
+         */
+        public void onMiss(@NonNull String key);
+        /**
+         * エントリーを追加または更新した時
+         * @param key
+         * @param size エントリーの全ての値の合計バイト数
+         */
+        public void onWrite(@NonNull String key, long size);
+        /**
+         * エントリーを削除した時(追い出した時も含む)
+         * @param key
+         */
+        public void onRemove(@NonNull String key);
+        /**
+         * 次に追い出すエントリーを選択する
+         * 選択したエントリーを削除できなかった時はLRUで追い出すエントリーを選択する
+         * @return 追い出すエントリーのキー, nullならLRUで選択する
+         */
+        @Nullable
+        public String victim();
+        /**
+         * 保持している全てのエントリーを破棄する
+         */
+        public void clear();
+    }
+    /**
+     * キャッシュの統計情報
+     */
+    public static class Stats {
+        /** エントリー数 */
+        public final int count;
+        /** 使用中のバイト数 */
+        public final long size;
+        /** 最大バイト数 */
+        public final long maxSize;
+        /** #getで見つかった回数 */
+        public final long hits;
+        /** #getで見つからなかった回数 */
+        public final long misses;
+        /** 追い出したエントリー数 */
+        public final long evictions;
+        /** 追い出したバイト数 */
+        public final long evictedBytes;
+
+        public Stats(final int count, final long size, final long maxSize,
+                final long hits, final long misses,
+                final long evictions, final long evictedBytes) {
+            this.count = count;
+            this.size = size;
+            this.maxSize = maxSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.evictedBytes = evictedBytes;
+        }
+
+        /**
+         * #getでエントリーが見つかった割合
+         * @return 0〜1
+         */
+        public float hitRatio() {
+            final long total = hits + misses;
+            return total > 0 ? hits / (float)total : 0.0f;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "DiskLruCache.Stats{count=%d,size=%d,maxSize=%d,hits=%d,misses=%d,hitRatio=%.4f,evictions=%d,evictedBytes=%d}",
+                    count, size, maxSize, hits, misses, hitRatio(), evictions, evictedBytes);
+        }
+    }
     /**
      * A snapshot of the values for an entry.
      */
     public final class Snapshot implements Closeable {
         private final String key;
         private final long sequenceNumber;
-        private final InputStream[] ins;
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private final FileInputStream[] ins;
+        /** #getByteBufferで返したByteBuffer */
+        private final ByteBuffer[] buffers;
+        /** #getByteBufferでプールから取得したバッファ */
+        private final ByteBuffer[] pooled;
+        private boolean closed;
+        private Snapshot(String key, long sequenceNumber, FileInputStream[] ins) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.buffers = new ByteBuffer[ins.length];
+            this.pooled = new ByteBuffer[ins.length];
         }
         /**
          * Returns an editor for this snapshot's entry, or null if either the
@@ -718,10 +1460,36 @@ public final class DiskLruCache implements Closeable {
         public String getString(int index) throws IOException {
             return inputStreamToString(getInputStream(index));
         }
-        @Override public void close() {
+        /**
+         * 指定したインデックスの値を読み込み専用のByteBufferとして取得する
+         * 値がMAP_THRESHOLD(32KB)以上であればこのSnapshotが開いているファイルをメモリーマップした
+         * MappedByteBufferを返すのでストリーム経由でコピーせずに値へアクセスできる
+         * それより小さい値はプールしているヒープ上のバッファへ読み込んで返す
+         * #getInputStreamで取得したストリームの読み込み位置には影響しない
+         * 返したByteBufferは#closeを呼ぶまで有効で、#close後は
+         * (プールへ返却したバッファが別の値の読み込みに再利用されるので)アクセスしてはいけない
+         * @param index
+         * @return 呼び出す毎に独立したposition/limitを持つ読み込み専用のByteBuffer
+         * @throws IOException
+         * @throws IllegalStateException #close済みの時
+         */
+        public synchronized ByteBuffer getByteBuffer(int index) throws IOException {
+            if (closed) {
+                throw new IllegalStateException("snapshot is closed");
+            }
+            if (buffers[index] == null) {
+                buffers[index] = readValue(ins[index].getChannel(), pooled, index);
+            }
+            return buffers[index].duplicate();
+        }
+        @Override public synchronized void close() {
+            closed = true;
             for (InputStream in : ins) {
                 closeQuietly(in);
             }
+            // メモリーマップはGCされるまで解除されないが参照を残さないようにする
+            Arrays.fill(buffers, null);
+            recycleValues(pooled);
         }
     }
     /**
@@ -730,6 +1498,10 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        /** DIRTYレコードのJournalWriter#appendの戻り値 */
+        private long dirtyTicket;
+        /** #getByteBufferでプールから取得したバッファ */
+        private ByteBuffer[] pooled;
         private Editor(Entry entry) {
             this.entry = entry;
         }
@@ -756,6 +1528,43 @@ public final class DiskLruCache implements Closeable {
             InputStream in = newInputStream(index);
             return in != null ? inputStreamToString(in) : null;
         }
+        /**
+         * 最後にコミットされた値を読み込み専用のByteBufferとして取得する
+         * Snapshot#getByteBufferと同様に大きな値はメモリーマップし、小さな値はプールしている
+         * ヒープ上のバッファへ読み込む
+         * 返したByteBufferは#commit/#abortを呼ぶか同じインデックスで再度呼ぶまで有効
+         * @param index
+         * @return 値がコミットされていなければnull
+         * @throws IOException
+         */
+        public ByteBuffer getByteBuffer(int index) throws IOException {
+            final FileInputStream in = (FileInputStream)newInputStream(index);
+            if (in == null) {
+                return null;
+            }
+            try {
+                synchronized (this) {
+                    if (pooled == null) {
+                        pooled = new ByteBuffer[valueCount];
+                    } else if (pooled[index] != null) {
+                        valueBuffers.recycle(pooled[index]);
+                        pooled[index] = null;
+                    }
+                    return readValue(in.getChannel(), pooled, index);
+                }
+            } finally {
+                // メモリーマップはチャネルを閉じた後も有効
+                closeQuietly(in);
+            }
+        }
+        /**
+         * #getByteBufferでプールから取得したバッファを返却する
+         */
+        private synchronized void releaseBuffers() {
+            if (pooled != null) {
+                recycleValues(pooled);
+            }
+        }
         /**
          * Returns a new unbuffered output stream to write the value at
          * {@code index}. If the underlying output stream encounters errors
@@ -764,12 +1573,17 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
+            final JournalWriter journal;
             synchronized (DiskLruCache.this) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                checkNotClosed();
+                journal = journalWriter;
             }
+            // wait for the DIRTY record before creating files to prevent file leaks
+            journal.await(dirtyTicket, syncMode == SYNC_ON_COMMIT);
+            return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
         }
         /**
          * Sets the value at {@code index} to {@code value}.
@@ -803,8 +1617,10 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
         private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
+            private final FileOutputStream fileOut;
+            private FaultHidingOutputStream(FileOutputStream out) {
                 super(out);
+                fileOut = out;
             }
             @Override public void write(int oneByte) {
                 try {
@@ -822,6 +1638,10 @@ public final class DiskLruCache implements Closeable {
             }
             @Override public void close() {
                 try {
+                    if (syncMode == SYNC_ON_COMMIT) {
+                        // commit renames this file, make sure its contents are on the disk
+                        fileOut.getFD().sync();
+                    }
                     out.close();
                 } catch (IOException e) {
                     hasErrors = true;
@@ -836,8 +1656,217 @@ public final class DiskLruCache implements Closeable {
             }
         }
     }
+    /**
+     * ジャーナルへの追記をまとめて書き込むためのヘルパークラス
+     * #appendは呼び出し元スレッドでレコードをヒープ上のバッファへエンコードするだけで
+     * ファイルへの書き込み(とfsync)はジャーナル書き込み用のスレッドでまとめて行う
+     * #appendはキャッシュ自体のロックを保持した状態で呼ぶのでレコードの順番は操作の順番と一致する
+     */
+    private final class JournalWriter {
+        /** ジャーナル書き込み用のスレッド, 書き込むものが無い状態が続くと終了する */
+        private final ExecutorService executor = new ThreadPoolExecutor(0, 1,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        private final Runnable drainTask = new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        };
+        private FileChannel channel;
+        /** #appendでエンコードしたレコード */
+        private ByteBuffer pending = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        /** ジャーナル書き込みスレッドが書き込み中のレコード */
+        private ByteBuffer writing = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        /** #appendしたバイト数の累計 */
+        private long appended;
+        /** ファイルへ書き込んだバイト数の累計 */
+        private long written;
+        /** fsyncしたバイト数の累計 */
+        private long synced;
+        /** ジャーナル書き込みスレッドで書き込み中かどうか */
+        private boolean scheduled;
+        private IOException error;
+
+        private JournalWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+        /**
+         * レコードを追加する
+         * @param op
+         * @param entry
+         * @return このレコードまで書き込まれたかどうかを#awaitで待つための値
+         * @throws IOException 以前のジャーナルの書き込みでエラーが発生していた
+         */
+        synchronized long append(byte op, Entry entry) throws IOException {
+            checkError();
+            final int bytes = 1 + 4 + entry.keyBytes.length
+                    + (op == OP_CLEAN ? valueCount * 8 : 0);
+            if (pending.remaining() < bytes) {
+                final ByteBuffer buf = ByteBuffer.allocate(
+                        Math.max(pending.capacity() * 2, pending.position() + bytes));
+                pending.flip();
+                buf.put(pending);
+                pending = buf;
+            }
+            pending.put(op);
+            pending.putInt(entry.keyBytes.length);
+            pending.put(entry.keyBytes);
+            if (op == OP_CLEAN) {
+                for (final long length : entry.lengths) {
+                    pending.putLong(length);
+                }
+            }
+            appended += bytes;
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(drainTask);
+            }
+            return appended;
+        }
+        /**
+         * #appendの戻り値のレコードまでファイルへ書き込まれるのを待つ
+         * @param ticket
+         * @param sync trueならfsyncされるまで待つ
+         * @throws IOException
+         */
+        synchronized void await(long ticket, boolean sync) throws IOException {
+            boolean interrupted = false;
+            try {
+                while ((sync ? synced : written) < ticket) {
+                    checkError();
+                    if (sync && !scheduled) {
+                        // 書き込み済みだけどfsyncされていない(途中でSyncModeを変更した)
+                        channel.force(false);
+                        synced = written;
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                checkError();
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        /**
+         * 追加済みのレコードを全てファイルへ書き込む
+         * SyncModeがSYNC_NONEでなければfsyncされるまで待つ
+         * @throws IOException
+         */
+        synchronized void flush() throws IOException {
+            await(appended, syncMode != SYNC_NONE);
+        }
+        /**
+         * 書き込んでいないレコードを破棄する
+         * ジャーナル書き込みスレッドが書き込み中であれば終了するまで待つ
+         * (ジャーナルを再構築する時に使う)
+         */
+        synchronized void discard() {
+            waitIdle();
+            pending.clear();
+            written = synced = appended;
+        }
+        /**
+         * ジャーナルファイルを切り替える
+         * @param channel
+         */
+        synchronized void setChannel(FileChannel channel) {
+            waitIdle();
+            closeQuietly(this.channel);
+            this.channel = channel;
+            // 新しいジャーナルへ書き込むので以前のエラーはクリアする
+            error = null;
+        }
+        /**
+         * 追加済みのレコードを全てファイルへ書き込んでからジャーナルファイルを閉じる
+         * @throws IOException
+         */
+        synchronized void close() throws IOException {
+            try {
+                await(appended, syncMode != SYNC_NONE);
+            } finally {
+                waitIdle();
+                executor.shutdown();
+                channel.close();
+            }
+        }
+        private void waitIdle() {
+            boolean interrupted = false;
+            while (scheduled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        private void checkError() throws IOException {
+            if (error != null) {
+                throw new IOException("failed to write journal", error);
+            }
+        }
+        /**
+         * ジャーナル書き込みスレッドの処理
+         * 書き込むレコードが無くなるまでpendingとwritingを入れ替えながら書き込む
+         */
+        private void drain() {
+            while (true) {
+                final ByteBuffer buf;
+                final FileChannel ch;
+                final long target;
+                synchronized (this) {
+                    if ((pending.position() == 0) || (error != null)) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    buf = pending;
+                    pending = writing;
+                    writing = buf;
+                    ch = channel;
+                    target = appended;
+                }
+                IOException err = null;
+                boolean forced = false;
+                buf.flip();
+                try {
+                    while (buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    if (syncMode != SYNC_NONE) {
+                        ch.force(false);
+                        forced = true;
+                    }
+                } catch (IOException e) {
+                    err = e;
+                } finally {
+                    buf.clear();
+                }
+                synchronized (this) {
+                    if (err != null) {
+                        error = err;
+                    } else {
+                        written = target;
+                        if (forced) {
+                            synced = target;
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
     private final class Entry {
         private final String key;
+        /** UTF-8 encoded key for the journal. */
+        private final byte[] keyBytes;
         /** Lengths of this entry's files. */
         private final long[] lengths;
         /** True if this entry has ever been published */
@@ -848,14 +1877,15 @@ public final class DiskLruCache implements Closeable {
         private long sequenceNumber;
         private Entry(String key) {
             this.key = key;
+            this.keyBytes = key.getBytes(CharsetsUtils.UTF8);
             this.lengths = new long[valueCount];
         }
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
+        private long totalLength() {
+            long result = 0;
+            for (long length : lengths) {
+                result += length;
             }
-            return result.toString();
+            return result;
         }
         /**
          * Set lengths using decimal numbers like "10123".
@@ -0,0 +1,355 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * W-TinyLFU(Window TinyLFU)によるDiskLruCache用の追い出しポリシー
+ * 新しいエントリーはまず小さなウインドウ(LRU, 最大サイズの1%)へ追加し、
+ * ウインドウから溢れたエントリーはメイン領域(セグメント化LRU: probation 20% + protected 80%)の
+ * 追い出し候補と比較して、アクセス頻度(Count-Min Sketchで推定)が高い方だけをメイン領域へ残す
+ * probationのエントリーへ再度アクセスするとprotectedへ昇格する
+ * 一度しか参照されないエントリー(ギャラリーのスクロール等)が大量に追加されても
+ * 頻繁に参照されるエントリーが追い出されにくい
+ * DiskLruCacheのロック内から呼ばれるのでスレッドセーフではない
+ */
+public class WTinyLfuEvictionPolicy implements DiskLruCache.EvictionPolicy {
+	/** ウインドウのサイズ(最大サイズに対する割合[%]) */
+	private static final int WINDOW_PERCENT = 1;
+	/** protectedのサイズ(メイン領域に対する割合[%]) */
+	private static final int PROTECTED_PERCENT = 80;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	@NonNull
+	private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+	/** セグメント毎のLRUリスト, 0:ウインドウ, 1:probation, 2:protected */
+	@NonNull
+	private final Segment[] mSegments = new Segment[3];
+	@NonNull
+	private final FrequencySketch mSketch;
+	private final long mWindowMax;
+	private final long mMainMax;
+	private final long mProtectedMax;
+
+	/**
+	 * コンストラクタ
+	 * @param maxSize DiskLruCacheの最大バイト数
+	 * @param expectedEntries 想定するエントリー数, 頻度推定用のスケッチのサイズに使う
+	 */
+	public WTinyLfuEvictionPolicy(final long maxSize, final int expectedEntries) {
+		mWindowMax = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+		mMainMax = Math.max(1, maxSize - mWindowMax);
+		mProtectedMax = mMainMax * PROTECTED_PERCENT / 100;
+		for (int i = 0; i < mSegments.length; i++) {
+			mSegments[i] = new Segment();
+		}
+		mSketch = new FrequencySketch(expectedEntries);
+	}
+
+	@Override
+	public void onHit(@NonNull final String key) {
+		mSketch.increment(key.hashCode());
+		final Node node = mNodes.get(key);
+		if (node == null) {
+			return;
+		}
+		if (node.segment == PROBATION) {
+			// probationで再度アクセスされたのでprotectedへ昇格する
+			moveTo(node, PROTECTED);
+			final Segment prot = mSegments[PROTECTED];
+			while ((prot.size > mProtectedMax) && (prot.head != prot.tail)) {
+				// protectedから溢れたエントリーはprobationへ戻す
+				moveTo(prot.head, PROBATION);
+			}
+		} else {
+			mSegments[node.segment].moveToTail(node);
+		}
+	}
+
+	@Override
+	public void onMiss(@NonNull final String key) {
+		mSketch.increment(key.hashCode());
+	}
+
+	@Override
+	public void onWrite(@NonNull final String key, final long size) {
+		Node node = mNodes.get(key);
+		if (node != null) {
+			final Segment segment = mSegments[node.segment];
+			segment.size += size - node.size;
+			node.size = size;
+			segment.moveToTail(node);
+		} else {
+			node = new Node(key, size);
+			mNodes.put(key, node);
+			mSegments[WINDOW].add(node);
+		}
+	}
+
+	@Override
+	public void onRemove(@NonNull final String key) {
+		final Node node = mNodes.remove(key);
+		if (node != null) {
+			mSegments[node.segment].remove(node);
+		}
+	}
+
+	@Nullable
+	@Override
+	public String victim() {
+		final Segment window = mSegments[WINDOW];
+		while (true) {
+			// ウインドウから溢れたエントリーがメイン領域への追加候補
+			final Node candidate = window.size > mWindowMax ? window.head : null;
+			if ((candidate != null) && (mainSize() + candidate.size <= mMainMax)) {
+				// メイン領域に空きがあればそのまま移動する
+				moveTo(candidate, PROBATION);
+				continue;
+			}
+			final Node victim = mainVictim();
+			if (candidate == null) {
+				return victim != null ? victim.key : (window.head != null ? window.head.key : null);
+			}
+			if (victim == null) {
+				return candidate.key;
+			}
+			// 頻度が高い方を残す(同じときは既にメイン領域にある方を残す)
+			if (mSketch.frequency(candidate.key.hashCode())
+				> mSketch.frequency(victim.key.hashCode())) {
+
+				moveTo(candidate, PROBATION);
+				return victim.key;
+			} else {
+				return candidate.key;
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		mNodes.clear();
+		for (final Segment segment: mSegments) {
+			segment.clear();
+		}
+		mSketch.clear();
+	}
+
+	/**
+	 * 保持しているエントリー数を取得
+	 * @return
+	 */
+	public int size() {
+		return mNodes.size();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * メイン領域から追い出す候補を取得する
+	 * @return probationの最も古いエントリー, probationが空ならprotectedの最も古いエントリー
+	 */
+	@Nullable
+	private Node mainVictim() {
+		final Node result = mSegments[PROBATION].head;
+		return result != null ? result : mSegments[PROTECTED].head;
+	}
+
+	private long mainSize() {
+		return mSegments[PROBATION].size + mSegments[PROTECTED].size;
+	}
+
+	private void moveTo(@NonNull final Node node, final int segment) {
+		mSegments[node.segment].remove(node);
+		node.segment = segment;
+		mSegments[segment].add(node);
+	}
+
+	/**
+	 * エントリー
+	 * Segmentの双方向リストのノードを兼ねる
+	 */
+	private static final class Node {
+		@NonNull
+		private final String key;
+		private long size;
+		private int segment = WINDOW;
+		@Nullable
+		private Node prev;
+		@Nullable
+		private Node next;
+
+		private Node(@NonNull final String key, final long size) {
+			this.key = key;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * LRUリスト, headが最も古い
+	 */
+	private static final class Segment {
+		@Nullable
+		private Node head;
+		@Nullable
+		private Node tail;
+		private long size;
+
+		private void add(@NonNull final Node node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail != null) {
+				tail.next = node;
+			} else {
+				head = node;
+			}
+			tail = node;
+			size += node.size;
+		}
+
+		private void remove(@NonNull final Node node) {
+			if (node.prev != null) {
+				node.prev.next = node.next;
+			} else {
+				head = node.next;
+			}
+			if (node.next != null) {
+				node.next.prev = node.prev;
+			} else {
+				tail = node.prev;
+			}
+			node.prev = node.next = null;
+			size -= node.size;
+		}
+
+		private void moveToTail(@NonNull final Node node) {
+			if (tail != node) {
+				remove(node);
+				add(node);
+			}
+		}
+
+		private void clear() {
+			head = tail = null;
+			size = 0;
+		}
+	}
+
+	/**
+	 * アクセス頻度を推定するためのCount-Min Sketch
+	 * 4ビットのカウンター(最大15)を1つのlongに16個詰めて保持し、
+	 * 1つのキーに対して4つのカウンターを使う
+	 * 加算回数がテーブルサイズの10倍に達すると全てのカウンターを半分にして
+	 * 古いアクセスの影響を減らす(エージング)
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+			0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+		};
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		@NonNull
+		private final long[] mTable;
+		private final int mMask;
+		private final int mSampleSize;
+		private int mAdditions;
+
+		private FrequencySketch(final int expectedEntries) {
+			int n = 64;
+			while (n < expectedEntries) {
+				n <<= 1;
+			}
+			mTable = new long[n];
+			mMask = n - 1;
+			mSampleSize = 10 * n;
+		}
+
+		/**
+		 * 推定したアクセス頻度を取得
+		 * @param hash
+		 * @return 0〜15
+		 */
+		private int frequency(final int hash) {
+			final int h = spread(hash);
+			final int start = (h & 3) << 2;
+			int result = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				final int index = indexOf(h, i);
+				final int count = (int)((mTable[index] >>> ((start + i) << 2)) & 0x0fL);
+				result = Math.min(result, count);
+			}
+			return result;
+		}
+
+		/**
+		 * アクセス頻度を加算する
+		 * @param hash
+		 */
+		private void increment(final int hash) {
+			final int h = spread(hash);
+			final int start = (h & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				final int index = indexOf(h, i);
+				final int offset = (start + i) << 2;
+				final long mask = 0x0fL << offset;
+				if ((mTable[index] & mask) != mask) {
+					mTable[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && (++mAdditions >= mSampleSize)) {
+				reset();
+			}
+		}
+
+		private void clear() {
+			Arrays.fill(mTable, 0);
+			mAdditions = 0;
+		}
+
+		/**
+		 * 全てのカウンターを半分にする
+		 */
+		private void reset() {
+			for (int i = 0; i < mTable.length; i++) {
+				mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+			}
+			mAdditions >>>= 1;
+		}
+
+		private int indexOf(final int item, final int i) {
+			long hash = (item + SEEDS[i]) * SEEDS[i];
+			hash += hash >>> 32;
+			return ((int)hash) & mMask;
+		}
+
+		private static int spread(final int hash) {
+			int h = hash * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
@@ -114,7 +114,7 @@ public abstract class AbstractFakeEncoder implements Encoder {
 	/**
 	 * フレームキュー
 	 */
-	private final MemMediaQueue mFrameQueue;
+	private final IMediaQueue<RecycleMediaData> mFrameQueue;
 	/**
 	 * フレーム情報(ワーク用)
 	 */
@@ -165,7 +165,7 @@ public abstract class AbstractFakeEncoder implements Encoder {
 		FRAME_SZ = frameSz;
 		mRecorder = recorder;
 		mListener = listener;
-		mFrameQueue = new MemMediaQueue(Math.min(maxPoolSz, 2), maxPoolSz, maxQueueSz);
+		mFrameQueue = new RingMediaQueue(Math.min(maxPoolSz, 2), maxPoolSz, maxQueueSz);
 		
 		recorder.addEncoder(this);
 	}
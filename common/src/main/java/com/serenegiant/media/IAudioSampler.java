@@ -136,7 +136,7 @@ public abstract class IAudioSampler {
 	private static final int MAX_QUEUE_SIZE = 200;
 
 	// 音声データキュー用
-	private final MemMediaQueue mAudioQueue;
+	private final IMediaQueue<RecycleMediaData> mAudioQueue;
 
 	// コールバック用
 	private CallbackThread mCallbackThread;
@@ -148,7 +148,7 @@ public abstract class IAudioSampler {
 	protected volatile boolean mIsCapturing;
 
 	public IAudioSampler() {
-		mAudioQueue = new MemMediaQueue(MAX_POOL_SIZE, MAX_POOL_SIZE, MAX_QUEUE_SIZE);
+		mAudioQueue = new RingMediaQueue(MAX_POOL_SIZE, MAX_POOL_SIZE, MAX_QUEUE_SIZE);
 	}
 
 	/**
@@ -18,6 +18,8 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
+import com.serenegiant.utils.Pool;
+
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
@@ -84,4 +86,22 @@ public interface IMediaQueue<T extends IRecycleBuffer> extends IRecycleParent<T>
 	 * キュー内の個数を取得
 	 */
 	public int count();
+
+	/**
+	 * 統計情報を取得
+	 * 統計情報を取らない実装用に、キュー内の個数以外は0の統計情報を返すデフォルト実装を持つ
+	 * @return
+	 */
+	@NonNull
+	public default MediaQueueStats getStats() {
+		return new MediaQueueStats(new Pool.Stats(0, 0, 0, 0, 0, 0, 0, 0, 0),
+			count(), -1, 0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * 統計情報をリセット
+	 * デフォルト実装は何もしない
+	 */
+	public default void resetStats() {
+	}
 }
@@ -49,7 +49,7 @@ public class MediaAVSplitRecorder extends Recorder {
 	
 	/**
 	 * コンストラクタ
-	 * バッファ用のキューはMemMediaQueueのデフォルトを使う
+	 * バッファ用のキューはRingMediaQueueのデフォルトを使う
 	 * @param context
 	 * @param callback
 	 * @param outputDir 出力先ディレクトリ
@@ -100,7 +100,7 @@ public class MediaAVSplitRecorder extends Recorder {
 
 	/**
 	 * コンストラクタ
-	 * バッファ用のキューはMemMediaQueueのデフォルトを使う
+	 * バッファ用のキューはRingMediaQueueのデフォルトを使う
 	 * @param context
 	 * @param callback
 	 * @param outputDir 出力先ディレクトリ
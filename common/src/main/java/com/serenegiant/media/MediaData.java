@@ -252,13 +252,60 @@ public class MediaData {
 	 * @return
 	 */
 	public MediaData resize(@IntRange(from=0)final int newSize) {
-		if ((mBuffer == null) || (mBuffer.capacity() < newSize)) {
-			mBuffer = ByteBuffer.allocateDirect(newSize)
+		if ((mBuffer == null) || !isSuitableCapacity(mBuffer.capacity(), newSize)) {
+			final ByteBuffer prev = mBuffer;
+			mBuffer = allocateBuffer(newSize)
 				.order(mByteOrder);
+			if (prev != null) {
+				releaseBuffer(prev);
+			}
 		}
 		mBuffer.clear();
 		return this;
 	}
+
+	/**
+	 * 内部バッファを破棄する
+	 * 再度データをセットしたときは内部バッファを再生成する
+	 */
+	public void release() {
+		mSize = mFlags = 0;
+		if (mBuffer != null) {
+			final ByteBuffer buffer = mBuffer;
+			mBuffer = null;
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * 内部バッファを確保する
+	 * デフォルトではByteBuffer#allocateDirectで確保する
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	protected ByteBuffer allocateBuffer(@IntRange(from=0) final int size) {
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * 不要になった内部バッファを破棄する
+	 * デフォルトでは何もしない(GCに任せる)
+	 * @param buffer
+	 */
+	protected void releaseBuffer(@NonNull final ByteBuffer buffer) {
+	}
+
+	/**
+	 * 現在の内部バッファの容量で指定したサイズのデータを保持するかどうか
+	 * デフォルトでは容量が足りていればtrue
+	 * @param capacity 現在の内部バッファの容量
+	 * @param newSize 保持するデータのサイズ
+	 * @return false: 内部バッファを再確保する
+	 */
+	protected boolean isSuitableCapacity(final int capacity, @IntRange(from=0) final int newSize) {
+		return capacity >= newSize;
+	}
 	
 	/**
 	 * データをクリア
@@ -0,0 +1,244 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.serenegiant.utils.Pool;
+import com.serenegiant.utils.StripedCounter;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+/**
+ * IMediaQueueの統計情報のスナップショット
+ * 録画時のフレーム落ちの原因がプールの枯渇なのかキューが一杯なのか
+ * コンシューマーの処理が遅いのかを切り分けるために使う
+ */
+public class MediaQueueStats {
+	/** プールの統計情報 */
+	@NonNull
+	public final Pool.Stats pool;
+	/** 現在キューに入っているフレーム数 */
+	public final int queued;
+	/** キューの最大保持数, 不明なら-1 */
+	public final int maxQueueSz;
+	/** キューに入ったフレーム数の最大値 */
+	public final int highWatermark;
+	/** キューへ追加したフレーム数の累計 */
+	public final long enqueued;
+	/** キューが一杯で追加できなかったフレーム数の累計 */
+	public final long queueFull;
+	/** キューから取り出したフレーム数の累計 */
+	public final long dequeued;
+	/** フレームがキューに入っていた時間の累計[ナノ秒] */
+	public final long totalQueuedNs;
+	/** フレームがキューに入っていた時間の最大値[ナノ秒] */
+	public final long maxQueuedNs;
+
+	public MediaQueueStats(@NonNull final Pool.Stats pool,
+		final int queued, final int maxQueueSz, final int highWatermark,
+		final long enqueued, final long queueFull, final long dequeued,
+		final long totalQueuedNs, final long maxQueuedNs) {
+
+		this.pool = pool;
+		this.queued = queued;
+		this.maxQueueSz = maxQueueSz;
+		this.highWatermark = highWatermark;
+		this.enqueued = enqueued;
+		this.queueFull = queueFull;
+		this.dequeued = dequeued;
+		this.totalQueuedNs = totalQueuedNs;
+		this.maxQueuedNs = maxQueuedNs;
+	}
+
+	/**
+	 * フレームがキューに入っていた時間の平均値[マイクロ秒]
+	 * @return
+	 */
+	public float avgQueuedUs() {
+		return dequeued > 0 ? totalQueuedNs / (dequeued * 1000.0f) : 0.0f;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"MediaQueueStats{queued=%d/%d,highWatermark=%d,enqueued=%d,queueFull=%d,dequeued=%d,avgQueuedUs=%.1f,maxQueuedUs=%.1f,%s}",
+			queued, maxQueueSz, highWatermark, enqueued, queueFull, dequeued,
+			avgQueuedUs(), maxQueuedNs / 1000.0f, pool);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 統計情報を受け取るためのコールバックリスナー
+	 */
+	public interface OnStatsListener {
+		public void onStats(@NonNull final IMediaQueue<?> queue, @NonNull final MediaQueueStats stats);
+	}
+
+	/**
+	 * 一定時間毎にIMediaQueueの統計情報を取得してOnStatsListenerへ通知するためのヘルパークラス
+	 * コールバックはコンストラクタへ引き渡したHandlerのスレッド上で呼ばれる
+	 */
+	public static class Reporter {
+		private static final String TAG = Reporter.class.getSimpleName();
+
+		@NonNull
+		private final Handler mHandler;
+		@NonNull
+		private final IMediaQueue<?> mQueue;
+		private final long mIntervalMs;
+		@NonNull
+		private final OnStatsListener mListener;
+		private volatile boolean mRunning;
+
+		/**
+		 * コンストラクタ
+		 * @param handler
+		 * @param queue
+		 * @param intervalMs 通知間隔[ミリ秒]
+		 * @param listener
+		 */
+		public Reporter(@NonNull final Handler handler,
+			@NonNull final IMediaQueue<?> queue, final long intervalMs,
+			@NonNull final OnStatsListener listener) {
+
+			mHandler = handler;
+			mQueue = queue;
+			mIntervalMs = Math.max(intervalMs, 1L);
+			mListener = listener;
+		}
+
+		/**
+		 * 通知を開始する
+		 */
+		public synchronized void start() {
+			if (!mRunning) {
+				mRunning = true;
+				mHandler.postDelayed(mReportTask, mIntervalMs);
+			}
+		}
+
+		/**
+		 * 通知を停止する
+		 */
+		public synchronized void stop() {
+			mRunning = false;
+			mHandler.removeCallbacks(mReportTask);
+		}
+
+		private final Runnable mReportTask = new Runnable() {
+			@Override
+			public void run() {
+				if (mRunning) {
+					try {
+						mListener.onStats(mQueue, mQueue.getStats());
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+					if (mRunning) {
+						mHandler.postDelayed(this, mIntervalMs);
+					}
+				}
+			}
+		};
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * IMediaQueue実装でキューの統計情報を集計するためのヘルパークラス
+	 */
+	static class Recorder {
+		@NonNull
+		private final StripedCounter mEnqueued = new StripedCounter();
+		@NonNull
+		private final StripedCounter mQueueFull = new StripedCounter();
+		@NonNull
+		private final StripedCounter mDequeued = new StripedCounter();
+		@NonNull
+		private final StripedCounter mTotalQueuedNs = new StripedCounter();
+		@NonNull
+		private final AtomicLong mMaxQueuedNs = new AtomicLong();
+		@NonNull
+		private final AtomicLong mHighWatermark = new AtomicLong();
+
+		/**
+		 * キューへ追加する直前の処理
+		 * コンシューマーが取り出す前にセットされるようにキューへ追加する前に呼ぶこと
+		 * @param buffer
+		 */
+		void beforeEnqueue(@NonNull final RecycleMediaData buffer) {
+			buffer.queuedTimeNs(System.nanoTime());
+		}
+
+		/**
+		 * キューへ追加したときの処理
+		 * @param count 追加後のキュー内のフレーム数
+		 */
+		void onEnqueued(final int count) {
+			mEnqueued.increment();
+			StripedCounter.updateMax(mHighWatermark, count);
+		}
+
+		/**
+		 * キューが一杯で追加できなかったときの処理
+		 */
+		void onQueueFull() {
+			mQueueFull.increment();
+		}
+
+		/**
+		 * キューから取り出したときの処理
+		 * @param buffer
+		 */
+		void onDequeued(@NonNull final RecycleMediaData buffer) {
+			final long queuedNs = buffer.queuedTimeNs();
+			if (queuedNs != 0) {
+				final long elapsed = System.nanoTime() - queuedNs;
+				buffer.queuedTimeNs(0);
+				mDequeued.increment();
+				mTotalQueuedNs.add(elapsed);
+				StripedCounter.updateMax(mMaxQueuedNs, elapsed);
+			}
+		}
+
+		void reset() {
+			mEnqueued.reset();
+			mQueueFull.reset();
+			mDequeued.reset();
+			mTotalQueuedNs.reset();
+			mMaxQueuedNs.set(0);
+			mHighWatermark.set(0);
+		}
+
+		@NonNull
+		MediaQueueStats snapshot(@NonNull final Pool.Stats pool,
+			final int queued, final int maxQueueSz) {
+
+			return new MediaQueueStats(pool, queued, maxQueueSz,
+				(int)mHighWatermark.get(),
+				mEnqueued.sum(), mQueueFull.sum(), mDequeued.sum(),
+				mTotalQueuedNs.sum(), mMaxQueuedNs.get());
+		}
+	}
+}
@@ -23,10 +23,13 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.serenegiant.io.ChannelWriter;
+
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 
 import androidx.annotation.NonNull;
 
@@ -98,7 +101,26 @@ abstract class MediaRawChannelWriter extends PostMuxCommon {
 	}
 	
 //================================================================================
-	private ByteChannel mOut;
+	private FileChannel mOut;
+	/**
+	 * mOutへの書き込み用, フレームヘッダーの書き込み毎にByteBufferを生成しないようにする
+	 * mOutはFileChannel(GatheringByteChannel)なので
+	 * フレームヘッダーとフレームデータは1回のgathering writeで書き込まれる
+	 */
+	private ChannelWriter mWriter;
+	/**
+	 * フレームインデックスファイル
+	 */
+	private FileChannel mIndexOut;
+	/**
+	 * mIndexOutへの書き込み用, ワーク用バッファーがいっぱいになった時にまとめて書き込む
+	 * フレームインデックスの書き込みに失敗した時はnull
+	 */
+	private ChannelWriter mIndexWriter;
+	/**
+	 * 次に書き込むフレームのrawファイル内の位置
+	 */
+	private long mOffset;
 	private int mFrameCounts;
 	
 	/**
@@ -118,9 +140,20 @@ abstract class MediaRawChannelWriter extends PostMuxCommon {
 		@NonNull final String name) throws IOException {
 
 		if (DEBUG) Log.v(TAG, "コンストラクタ:");
-		mOut = new FileOutputStream(tempDir.endsWith("/")
-			? tempDir + name : tempDir + "/" + name, false).getChannel();
-		writeFormat(mOut, configFormat, outputFormat);
+		final File rawFile = new File(tempDir, name);
+		mOut = new FileOutputStream(rawFile, false).getChannel();
+		mWriter = new ChannelWriter(mOut);
+		writeFormat(mWriter, configFormat, outputFormat);
+		mOffset = mOut.position();
+		try {
+			mIndexOut = new FileOutputStream(indexFileOf(rawFile), false).getChannel();
+			mIndexWriter = new ChannelWriter(mIndexOut);
+			writeIndexHeader(mIndexWriter, FRAME_OVERHEAD_CHANNEL);
+		} catch (final IOException e) {
+			// フレームインデックスが無くてもrawファイルを先頭から読めばmp4を生成できるので続行する
+			Log.w(TAG, e);
+			releaseIndex();
+		}
 	}
 	
 	@Override
@@ -144,9 +177,33 @@ abstract class MediaRawChannelWriter extends PostMuxCommon {
 				Log.w(TAG, e);
 			}
 			mOut = null;
+			mWriter = null;
+			if (mIndexWriter != null) {
+				try {
+					mIndexWriter.flush();
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+			releaseIndex();
 			if (DEBUG) Log.v(TAG, "release:finished");
 		}
 	}
+
+	/**
+	 * フレームインデックスファイルを閉じる
+	 */
+	private void releaseIndex() {
+		if (mIndexOut != null) {
+			try {
+				mIndexOut.close();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			mIndexOut = null;
+		}
+		mIndexWriter = null;
+	}
 	
 	/**
 	 * エンコード済みのフレームデータの出力処理
@@ -160,7 +217,16 @@ abstract class MediaRawChannelWriter extends PostMuxCommon {
 
 		if (info.size != 0) {
 			mFrameCounts++;
-			writeStream(mOut, 0, mFrameCounts, info, buffer);
+			writeStream(mWriter, 0, mFrameCounts, info, buffer);
+			if (mIndexWriter != null) {
+				try {
+					writeIndex(mIndexWriter, mOffset, info);
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+					releaseIndex();
+				}
+			}
+			mOffset += FRAME_OVERHEAD_CHANNEL + info.size;
 		}
 	}
 
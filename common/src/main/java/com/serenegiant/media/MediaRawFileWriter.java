@@ -25,6 +25,7 @@ import android.util.Log;
 
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -100,6 +101,16 @@ abstract class MediaRawFileWriter extends PostMuxCommon {
 	
 //================================================================================
 	private DataOutputStream mOut;
+	/**
+	 * フレームインデックスファイルへの書き込み用
+	 * フレームインデックスの書き込みに失敗した時はnull
+	 */
+	private DataOutputStream mIndexOut;
+	/**
+	 * 次に書き込むフレームのrawファイル内の位置
+	 * DataOutputStream#sizeは2GBを超えると正しく取得できないので自前で計算する
+	 */
+	private long mOffset;
 	private int mFrameCounts;
 	
 	/**
@@ -119,10 +130,20 @@ abstract class MediaRawFileWriter extends PostMuxCommon {
 		@NonNull final String name) throws IOException {
 
 		if (DEBUG) Log.v(TAG, "コンストラクタ:");
+		final File rawFile = new File(tempDir, name);
 		mOut = new DataOutputStream(new BufferedOutputStream(
-			new FileOutputStream(tempDir.endsWith("/")
-				? tempDir + name : tempDir + "/" + name, false)));
+			new FileOutputStream(rawFile, false)));
 		writeFormat(mOut, configFormat, outputFormat);
+		mOffset = mOut.size();
+		try {
+			mIndexOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFileOf(rawFile), false)));
+			writeIndexHeader(mIndexOut, FRAME_OVERHEAD_STREAM);
+		} catch (final IOException e) {
+			// フレームインデックスが無くてもrawファイルを先頭から読めばmp4を生成できるので続行する
+			Log.w(TAG, e);
+			releaseIndex();
+		}
 	}
 	
 	@Override
@@ -147,9 +168,25 @@ abstract class MediaRawFileWriter extends PostMuxCommon {
 				Log.w(TAG, e);
 			}
 			mOut = null;
+			releaseIndex();
 			if (DEBUG) Log.v(TAG, "release:finished");
 		}
 	}
+
+	/**
+	 * フレームインデックスファイルを閉じる
+	 */
+	private void releaseIndex() {
+		if (mIndexOut != null) {
+			try {
+				mIndexOut.flush();
+				mIndexOut.close();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			mIndexOut = null;
+		}
+	}
 	
 	/** リアロケーション避けにワーク用byte配列を保持する */
 	private byte[] temp;
@@ -170,6 +207,15 @@ abstract class MediaRawFileWriter extends PostMuxCommon {
 			}
 			mFrameCounts++;
 			writeStream(mOut, 0, mFrameCounts, info, buffer, temp);
+			if (mIndexOut != null) {
+				try {
+					writeIndex(mIndexOut, mOffset, info);
+				} catch (final IOException e) {
+					Log.w(TAG, e);
+					releaseIndex();
+				}
+			}
+			mOffset += FRAME_OVERHEAD_STREAM + info.size;
 		}
 	}
 
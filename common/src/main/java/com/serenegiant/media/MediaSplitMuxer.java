@@ -98,6 +98,10 @@ public class MediaSplitMuxer implements IMuxer {
 	private final String mSegmentPrefix;
 	@NonNull
 	private final IMediaQueue<RecycleMediaData> mQueue;
+	/**
+	 * mQueueを自前で生成したかどうか, 自前で生成したときは#releaseで破棄する
+	 */
+	private final boolean mOwnQueue;
 	private final long mSplitSize;
 	@NonNull
 	private final IMuxerFactory mMuxerFactory;
@@ -116,7 +120,7 @@ public class MediaSplitMuxer implements IMuxer {
 	
 	/**
 	 * コンストラクタ
-	 * キューはMemMediaQueueを使う
+	 * キューはSpillMediaQueueを使う
 	 * @param context
 	 * @param outputDir 最終出力ディレクトリ
 	 * @param name 出力ファイル名(拡張子なし)
@@ -135,7 +139,7 @@ public class MediaSplitMuxer implements IMuxer {
 	/**
 	 * コンストラクタ
 	 * @param context
-	 * @param queue バッファリング用IMediaQueue
+	 * @param queue バッファリング用IMediaQueue, nullならSpillMediaQueueを使う
 	 * @param outputDir 最終出力ディレクトリ
 	 * @param name 出力ファイル名(拡張子なし)
 	 * @param splitSize 出力ファイルサイズの目安, 0以下ならデフォルト値
@@ -152,8 +156,9 @@ public class MediaSplitMuxer implements IMuxer {
 		mWeakContext = new WeakReference<Context>(context);
 		mVideoConfig = config != null ? config : new VideoConfig();
 		mMuxerFactory = factory != null ? factory : new DefaultFactory();
+		mOwnQueue = queue == null;
 		mQueue = queue != null
-			? queue : new MemMediaQueue(INI_POOL_NUM, MAX_POOL_NUM);
+			? queue : createDefaultQueue(context);
 		mOutputDir = outputDir;
 		mOutputDoc = null;
 		mOutputName = name;
@@ -181,7 +186,7 @@ public class MediaSplitMuxer implements IMuxer {
 	/**
 	 * コンストラクタ
 	 * @param context
-	 * @param queue バッファリング用IMediaQueue
+	 * @param queue バッファリング用IMediaQueue, nullならSpillMediaQueueを使う
 	 * @param outputDir 最終出力ディレクトリ
 	 * @param name 出力ファイル名(拡張子なし)
 	 * @param splitSize 出力ファイルサイズの目安, 0以下ならデフォルト値
@@ -197,8 +202,9 @@ public class MediaSplitMuxer implements IMuxer {
 		mWeakContext = new WeakReference<Context>(context);
 		mVideoConfig = config != null ? config : new VideoConfig();
 		mMuxerFactory = factory != null ? factory : new DefaultFactory();
+		mOwnQueue = queue == null;
 		mQueue = queue != null
-			? queue : new MemMediaQueue(INI_POOL_NUM, MAX_POOL_NUM);
+			? queue : createDefaultQueue(context);
 		mOutputDir = null;
 		mOutputDoc = outputDir;
 		mOutputName = name;
@@ -208,6 +214,22 @@ public class MediaSplitMuxer implements IMuxer {
 		mMuxer = createMuxer(0);
 	}
 
+	/**
+	 * デフォルトのバッファリング用IMediaQueueを生成する
+	 * 分割時のファイル切り替え等でmux処理が滞ってもフレームを取りこぼさないように
+	 * オンメモリーのキューが一杯になったときは退避用ファイルへ退避するSpillMediaQueueを使う
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private static IMediaQueue<RecycleMediaData> createDefaultQueue(
+		@NonNull final Context context) throws IOException {
+
+		// 退避中のフレームを読み込むためのバッファを確保できるように最大生成数より少しだけ小さくする
+		return new SpillMediaQueue(context, INI_POOL_NUM, MAX_POOL_NUM, MAX_POOL_NUM - 2);
+	}
+
 	@Override
 	protected void finalize() throws Throwable {
 		try {
@@ -230,7 +252,11 @@ public class MediaSplitMuxer implements IMuxer {
 					stop();
 				}
 				mIsRunning = false;
-				mQueue.clear();
+				if (mOwnQueue && (mQueue instanceof SpillMediaQueue)) {
+					((SpillMediaQueue)mQueue).release();
+				} else {
+					mQueue.clear();
+				}
 				if (DEBUG) Log.v(TAG, "release:finished");
 			}
 		}
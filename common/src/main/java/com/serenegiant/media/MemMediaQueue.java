@@ -18,6 +18,7 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
+import com.serenegiant.utils.ByteBufferArena;
 import com.serenegiant.utils.Pool;
 
 import java.nio.ByteOrder;
@@ -38,12 +39,34 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
 	@NonNull
 	private final Pool<RecycleMediaData> mPool;
+	private final int mMaxQueueSz;
+	@NonNull
+	private final MediaQueueStats.Recorder mStats = new MediaQueueStats.Recorder();
 	
 	/**
 	 * MemMediaQueue用のデフォルトファクトリークラス
 	 *　RecycleMediaDataを生成する
 	 */
 	public static class DefaultFactory implements IRecycleBuffer.Factory<RecycleMediaData> {
+		@Nullable
+		private final ByteBufferArena mArena;
+
+		/**
+		 * コンストラクタ
+		 * 内部バッファは全てのDefaultFactoryで共有するダイレクトバッファのByteBufferArenaから確保する
+		 */
+		public DefaultFactory() {
+			this(SharedArenaHolder.ARENA);
+		}
+
+		/**
+		 * コンストラクタ
+		 * @param arena 内部バッファの確保/返却に使うByteBufferArena, nullなら都度確保する
+		 */
+		public DefaultFactory(@Nullable final ByteBufferArena arena) {
+			mArena = arena;
+		}
+
 		@NonNull
 		@Override
 		public RecycleMediaData create(@NonNull final IRecycleParent<RecycleMediaData> parent,
@@ -60,7 +83,10 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 					}
 				}
 			}
-			if ((sz > 0) && (order != null)) {
+			if (mArena != null) {
+				return new RecycleMediaData(parent, mArena, sz,
+					order != null ? order : ByteOrder.nativeOrder());
+			} else if ((sz > 0) && (order != null)) {
 				return new RecycleMediaData(parent, sz, order);
 			} else if (sz > 0) {
 				return new RecycleMediaData(parent, sz);
@@ -72,6 +98,15 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		}
 	}
 
+	/**
+	 * DefaultFactory()で共有するByteBufferArena
+	 * 最初に使うときに生成する
+	 */
+	private static final class SharedArenaHolder {
+		@NonNull
+		private static final ByteBufferArena ARENA = new ByteBufferArena(true);
+	}
+
 	/**
 	 * コンストラクタ
 	 * DefaultFactoryをファクトリーとして使う
@@ -104,6 +139,7 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
 
 		mQueue = new LinkedBlockingQueue<RecycleMediaData>(maxQueueSz);
+		mMaxQueueSz = maxQueueSz;
 		mFactory = factory != null ? factory : new DefaultFactory();
 		mPool = new Pool<RecycleMediaData>(initNum, maxNumInPool) {
 			@NonNull
@@ -138,6 +174,33 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		return mPool.obtain(args);
 	}
 
+	/**
+	 * プールからデータ保持用オブジェクトを取得する
+	 * プールが空で最大生成数に達している場合は他のスレッドから返却されるまで最大で指定時間待機する
+	 * @param timeout 最大待機時間, 0以下なら待機しない
+	 * @param unit
+	 * @param args
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	public RecycleMediaData obtain(final long timeout, @NonNull final TimeUnit unit,
+		@Nullable final Object[] args) throws InterruptedException {
+
+		return mPool.obtain(timeout, unit, args);
+	}
+
+	/**
+	 * プールのスレッド毎のキャッシュの最大保持数を設定する
+	 * @param size 0ならスレッド毎のキャッシュを使わない(デフォルト)
+	 * @return
+	 * @see Pool#setThreadCacheSize(int)
+	 */
+	public MemMediaQueue setThreadCacheSize(final int size) {
+		mPool.setThreadCacheSize(size);
+		return this;
+	}
+
 	/**
 	 * キューにデータを追加する
 	 * @param buffer
@@ -145,7 +208,14 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	 */
 	@Override
 	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
-		return mQueue.offer(buffer);
+		mStats.beforeEnqueue(buffer);
+		if (mQueue.offer(buffer)) {
+			mStats.onEnqueued(mQueue.size());
+			return true;
+		} else {
+			mStats.onQueueFull();
+			return false;
+		}
 	}
 	
 	@Override
@@ -157,7 +227,11 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	@Override
 	@Nullable
 	public RecycleMediaData poll() {
-		return mQueue.poll();
+		final RecycleMediaData result = mQueue.poll();
+		if (result != null) {
+			mStats.onDequeued(result);
+		}
+		return result;
 	}
 	
 	@Override
@@ -165,7 +239,11 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
 		throws InterruptedException {
 
-		return mQueue.poll(timeout, unit);
+		final RecycleMediaData result = mQueue.poll(timeout, unit);
+		if (result != null) {
+			mStats.onDequeued(result);
+		}
+		return result;
 	}
 	
 	@Override
@@ -173,9 +251,26 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		return mQueue.size();
 	}
 	
+	@NonNull
+	@Override
+	public MediaQueueStats getStats() {
+		return mStats.snapshot(mPool.getStats(), mQueue.size(), mMaxQueueSz);
+	}
+
+	@Override
+	public void resetStats() {
+		mStats.reset();
+		mPool.resetStats();
+	}
+
 	@Override
 	public boolean recycle(@NonNull final RecycleMediaData buffer) {
-		return mPool.recycle(buffer);
+		final boolean result = mPool.recycle(buffer);
+		if (!result) {
+			// プールへ戻せなかったときは内部バッファを解放する
+			buffer.release();
+		}
+		return result;
 	}
 
 }
@@ -25,6 +25,8 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.util.Log;
 
+import com.serenegiant.io.ChannelReader;
+
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
@@ -32,6 +34,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -367,16 +370,19 @@ class PostMuxBuilder extends PostMuxCommon {
 		if (DEBUG) Log.v(TAG, "internalBuild:");
 		int videoTrack = -1;
 		int audioTrack = -1;
-		if (videoIn != null) {
-			final MediaFormat format = readFormat(videoIn);
+		// フレーム毎にワーク用のByteBufferを生成しないようにChannelReaderを使う
+		final ChannelReader videoReader = videoIn != null ? new ChannelReader(videoIn) : null;
+		final ChannelReader audioReader = audioIn != null ? new ChannelReader(audioIn) : null;
+		if (videoReader != null) {
+			final MediaFormat format = readFormat(videoReader);
 			if (format != null) {
 				videoTrack = muxer.addTrack(format);
 				if (DEBUG) Log.v(TAG, "found video data:format=" + format
 					+ "track=" + videoTrack);
 			}
 		}
-		if (audioIn != null) {
-			final MediaFormat format = readFormat(audioIn);
+		if (audioReader != null) {
+			final MediaFormat format = readFormat(audioReader);
 			if (format != null) {
 				audioTrack = muxer.addTrack(format);
 				if (DEBUG) Log.v(TAG, "found audio data:format=" + format
@@ -408,7 +414,7 @@ class PostMuxBuilder extends PostMuxCommon {
 			for (; mIsRunning && ((videoTrack >= 0) || (audioTrack >= 0)); ) {
 				if (videoTrack >= 0) {
 					try {
-						videoBuf = readStream(videoIn, videoFrameHeader, videoBuf);
+						videoBuf = readStream(videoReader, videoFrameHeader, videoBuf);
 						videoFrameHeader.asBufferInfo(videoBufInfo);
 						if (videoSequence !=  videoFrameHeader.sequence) {
 							videoSequence = videoFrameHeader.sequence;
@@ -430,7 +436,7 @@ class PostMuxBuilder extends PostMuxCommon {
 				}
 				if (audioTrack >= 0) {
 					try {
-						audioBuf = readStream(audioIn, audioFrameHeader, audioBuf);
+						audioBuf = readStream(audioReader, audioFrameHeader, audioBuf);
 						audioFrameHeader.asBufferInfo(audioBufInfo);
 						if (audioSequence !=  audioFrameHeader.sequence) {
 							audioSequence = audioFrameHeader.sequence;
@@ -460,4 +466,228 @@ class PostMuxBuilder extends PostMuxCommon {
 			audioIn.close();
 		}
 	}
+
+	/**
+	 * 一時ファイルとフレームインデックスファイルから指定した範囲だけのmp4ファイルを生成する
+	 * MediaRawFileWriter/MediaRawChannelWriterのどちらで書き出したrawファイルでもよい
+	 * フレームインデックスを使って開始位置へ直接シークするので
+	 * rawファイルを先頭から読み込まない
+	 * 映像は開始時刻以前で最も新しいキーフレームから開始し、
+	 * 出力するmp4ファイルのpresentationTimeUsはそのキーフレームの時刻が0になるように調整する
+	 * クラッシュ等でrawファイルの末尾が欠けていてもフレームインデックスに記録済みの
+	 * 完全なフレームまでは生成できる
+	 * 映像に範囲内のキーフレームが無いときや音声に範囲内のフレームが無いとき、
+	 * rawファイルはあるがフレームインデックスファイルが無いときはそのトラックを出力しない
+	 * 終了まで返らないのでUIスレッドでは呼び出さないこと
+	 * @param context
+	 * @param tempDirPath
+	 * @param output
+	 * @param startTimeUs 開始時刻(rawファイル内のpresentationTimeUs), 0以下なら先頭から
+	 * @param endTimeUs 終了時刻(rawファイル内のpresentationTimeUs), 負なら最後まで
+	 * @throws IOException フレームインデックスファイルが無いとき、範囲内に出力するフレームが無いとき
+	 */
+	@SuppressLint("NewApi")
+	public void buildRange(@NonNull final Context context,
+		@NonNull final String tempDirPath,
+		@NonNull final DocumentFile output,
+		final long startTimeUs, final long endTimeUs) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "buildRange:start=" + startTimeUs + ",end=" + endTimeUs);
+		final File tempDir = new File(tempDirPath);
+		final File videoFile = new File(tempDir, VIDEO_NAME);
+		final File audioFile = new File(tempDir, AUDIO_NAME);
+		final FrameIndex videoIndex = loadIndex(videoFile);
+		final FrameIndex audioIndex = loadIndex(audioFile);
+		if ((videoIndex == null) && (audioIndex == null)) {
+			throw new IOException("frame index not found");
+		}
+		final IMuxer muxer = mMuxerFactory.createMuxer(context, mUseMediaMuxer, output);
+		if (muxer == null) {
+			throw new IOException("Failed to create muxer");
+		}
+		FileInputStream videoIn = null;
+		FileInputStream audioIn = null;
+		try {
+			videoIn = videoIndex != null ? new FileInputStream(videoFile) : null;
+			audioIn = audioIndex != null ? new FileInputStream(audioFile) : null;
+			internalBuildRange(muxer, videoIn, videoIndex, audioIn, audioIndex,
+				startTimeUs, endTimeUs);
+		} finally {
+			mIsRunning = false;
+			muxer.release();
+			if (videoIn != null) {
+				videoIn.close();
+			}
+			if (audioIn != null) {
+				audioIn.close();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "buildRange:finished");
+	}
+
+	/**
+	 * #buildRange用にrawファイルのフレームインデックスを読み込む
+	 * rawファイルが存在するのにフレームインデックスを読み込めないときは
+	 * そのトラックを出力しないのでログを出力する
+	 * @param rawFile
+	 * @return rawファイルまたはフレームインデックスが無いときはnull
+	 */
+	@Nullable
+	private static FrameIndex loadIndex(@NonNull final File rawFile) {
+		if (!rawFile.canRead()) {
+			return null;
+		}
+		final FrameIndex index = FrameIndex.load(rawFile);
+		if (index == null) {
+			Log.w(TAG, "buildRange:skip " + rawFile.getName()
+				+ ", frame index is missing or invalid");
+		}
+		return index;
+	}
+
+	/**
+	 * #buildRangeの実態
+	 * フレームインデックスの位置からフレームデータを直接読み込み、
+	 * 映像と音声をpresentationTimeUsの順に書き込む
+	 * @param muxer
+	 * @param videoIn
+	 * @param videoIndex
+	 * @param audioIn
+	 * @param audioIndex
+	 * @param startTimeUs
+	 * @param endTimeUs
+	 * @throws IOException
+	 */
+	private void internalBuildRange(@NonNull final IMuxer muxer,
+		@Nullable final FileInputStream videoIn, @Nullable final FrameIndex videoIndex,
+		@Nullable final FileInputStream audioIn, @Nullable final FrameIndex audioIndex,
+		final long startTimeUs, final long endTimeUs) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "internalBuildRange:video=" + videoIndex + ",audio=" + audioIndex);
+		final long end = endTimeUs >= 0 ? endTimeUs : Long.MAX_VALUE;
+		// 映像は開始時刻以前のキーフレームから開始する(キーフレームからでないとデコードできない)
+		long baseTimeUs = Math.max(startTimeUs, 0);
+		// 範囲内に書き込むフレームが無いトラックはサンプル数0のトラックにならないように追加しない
+		int videoTrack = -1;
+		int videoPos = 0, videoEnd = 0;
+		if (videoIn != null) {
+			final int keyFrame = videoIndex.findKeyFrame(baseTimeUs);
+			final int last = (keyFrame >= 0) && (end < Long.MAX_VALUE)
+				? videoIndex.findFrame(keyFrame, end + 1) : videoIndex.size();
+			if ((keyFrame < 0) || (keyFrame >= last)) {
+				Log.w(TAG, "internalBuildRange:skip video track, no key frame in range");
+			} else {
+				final MediaFormat format = readFormat(videoIn, videoIndex);
+				if (format != null) {
+					videoTrack = muxer.addTrack(format);
+					videoPos = keyFrame;
+					videoEnd = last;
+					baseTimeUs = videoIndex.presentationTimeUs(keyFrame);
+				} else {
+					Log.w(TAG, "internalBuildRange:skip video track, failed to read format");
+				}
+			}
+		}
+		int audioTrack = -1;
+		int audioPos = 0, audioEnd = 0;
+		if (audioIn != null) {
+			final int first = audioIndex.findFrame(0, baseTimeUs);
+			final int last = end < Long.MAX_VALUE
+				? audioIndex.findFrame(first, end + 1) : audioIndex.size();
+			if (first >= last) {
+				Log.w(TAG, "internalBuildRange:skip audio track, no frame in range");
+			} else {
+				final MediaFormat format = readFormat(audioIn, audioIndex);
+				if (format != null) {
+					audioTrack = muxer.addTrack(format);
+					audioPos = first;
+					audioEnd = last;
+				} else {
+					Log.w(TAG, "internalBuildRange:skip audio track, failed to read format");
+				}
+			}
+		}
+		if ((videoTrack < 0) && (audioTrack < 0)) {
+			throw new IOException("no frame in range");
+		}
+		if (DEBUG) Log.v(TAG, "start muxing:video=" + videoPos + "-" + videoEnd
+			+ ",audio=" + audioPos + "-" + audioEnd + ",base=" + baseTimeUs);
+		mIsRunning = true;
+		final FileChannel videoChannel = videoIn != null ? videoIn.getChannel() : null;
+		final FileChannel audioChannel = audioIn != null ? audioIn.getChannel() : null;
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		ByteBuffer buf = null;
+		muxer.start();
+		while (mIsRunning && ((videoPos < videoEnd) || (audioPos < audioEnd))) {
+			// presentationTimeUsが小さい方から書き込む
+			final boolean isVideo = (videoPos < videoEnd)
+				&& ((audioPos >= audioEnd)
+					|| (videoIndex.presentationTimeUs(videoPos)
+						<= audioIndex.presentationTimeUs(audioPos)));
+			final FrameIndex index = isVideo ? videoIndex : audioIndex;
+			final int pos = isVideo ? videoPos++ : audioPos++;
+			final int size = index.frameSize(pos);
+			if ((buf == null) || (buf.capacity() < size)) {
+				buf = ByteBuffer.allocateDirect(size);
+			}
+			buf.clear();
+			buf.limit(size);
+			readFrame(isVideo ? videoChannel : audioChannel,
+				index.offset(pos) + index.frameOverhead(), buf);
+			buf.flip();
+			info.set(0, size, index.presentationTimeUs(pos) - baseTimeUs, index.flags(pos));
+			try {
+				muxer.writeSampleData(isVideo ? videoTrack : audioTrack, buf, info);
+			} catch (final IllegalArgumentException e) {
+				if (DEBUG) Log.d(TAG, "internalBuildRange:isVideo=" + isVideo
+					+ ",pos=" + pos, e);
+				if (isVideo) {
+					videoEnd = videoPos;	// end
+				} else {
+					audioEnd = audioPos;	// end
+				}
+			}
+		}
+		muxer.stop();
+	}
+
+	/**
+	 * rawファイルの先頭からMediaFormatを読み込む
+	 * フレームインデックスのフレーム当たりのオーバーヘッドで
+	 * MediaRawFileWriter/MediaRawChannelWriterのどちらで書き込んだかを判断する
+	 * @param in
+	 * @param index
+	 * @return
+	 */
+	@Nullable
+	private static MediaFormat readFormat(@NonNull final FileInputStream in,
+		@NonNull final FrameIndex index) {
+
+		if (index.frameOverhead() == FRAME_OVERHEAD_CHANNEL) {
+			return readFormat(new ChannelReader(in.getChannel()));
+		} else {
+			return readFormat(new DataInputStream(new BufferedInputStream(in)));
+		}
+	}
+
+	/**
+	 * rawファイルの指定した位置からByteBufferのremainingが0になるまで読み込む
+	 * チャネルの位置は変更しない
+	 * @param channel
+	 * @param position
+	 * @param dst
+	 * @throws IOException
+	 */
+	private static void readFrame(@NonNull final FileChannel channel,
+		final long position, @NonNull final ByteBuffer dst) throws IOException {
+
+		long pos = position;
+		while (dst.hasRemaining()) {
+			final int n = channel.read(dst, pos);
+			if (n < 0) {
+				throw new IOException("unexpected EOF at " + pos);
+			}
+			pos += n;
+		}
+	}
 }
@@ -24,19 +24,22 @@ import android.media.MediaFormat;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ChannelReader;
+import com.serenegiant.io.ChannelWriter;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 import androidx.annotation.IntDef;
@@ -66,6 +69,11 @@ public class PostMuxCommon {
 
 	/*package*/ static final String VIDEO_NAME = "video.raw";
 	/*package*/ static final String AUDIO_NAME = "audio.raw";
+	/**
+	 * フレームインデックス(サイドカー)ファイルの拡張子
+	 * rawファイル名にこの拡張子を付加したファイルへ出力する(video.raw.idx, audio.raw.idx)
+	 */
+	/*package*/ static final String INDEX_SUFFIX = ".idx";
 
 	/**
 	 * write MediaFormat data into intermediate file
@@ -98,7 +106,7 @@ public class PostMuxCommon {
 	 * @throws IOException
 	 */
 	/*package*/ static final void writeFormat(
-		@NonNull final ByteChannel out,
+		@NonNull final ChannelWriter out,
 		@NonNull final MediaFormat codecFormat,
 		@NonNull final MediaFormat outputFormat) throws IOException {
 
@@ -109,8 +117,9 @@ public class PostMuxCommon {
 			+ (TextUtils.isEmpty(outputFormatStr) ? 0 : outputFormatStr.length());
 
 		writeHeader(out, 0, 0, -1, size, 0);
-		ChannelHelper.write(out, codecFormatStr);
-		ChannelHelper.write(out, outputFormatStr);
+		out.write(codecFormatStr);
+		out.write(outputFormatStr);
+		out.flush();
 	}
 
 	/**
@@ -137,13 +146,13 @@ public class PostMuxCommon {
 	 * @param in
 	 * @return
 	 */
-	/*package*/ static MediaFormat readFormat(@NonNull final ByteChannel in) {
+	/*package*/ static MediaFormat readFormat(@NonNull final ChannelReader in) {
 		if (DEBUG) Log.v(TAG, "readFormat:");
 		MediaFormat format = null;
 		try {
 			readHeader(in);
-			ChannelHelper.readString(in); // skip MediaFormat data for configure
-			format = asMediaFormat(ChannelHelper.readString(in));
+			in.skipArray(1); // skip MediaFormat data for configure
+			format = asMediaFormat(in.readString());
 		} catch (final IOException e) {
 			Log.e(TAG, "readFormat:", e);
 		}
@@ -346,6 +355,11 @@ public class PostMuxCommon {
 //----------------------------------------------------------------------
 	/** 将来の拡張に備えてダミーデータを書くためのバッファ, longを5個 = 8バイト x 5 = 40バイト */
 	private static final byte[] RESERVED = new byte[40];
+	/**
+	 * ChannelWriter/ChannelReaderで読み書きするときのフレームヘッダーのバイト数
+	 * sequence(4)+frameNumber(4)+presentationTimeUs(8)+size(4)+flags(4)+RESERVEDのバイト数(4)+RESERVED(40)
+	 */
+	private static final int FRAME_HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 40;
 	
 	/**
 	 * フレームデータの前に付加するフレームヘッダー,
@@ -397,18 +411,12 @@ public class PostMuxCommon {
 		
 		/**
 		 * フレームヘッダーを中間ファイルへ出力
+		 * ChannelWriterへ書き込むだけなので必要に応じて呼び出し元でChannelWriter#flushを呼ぶこと
  		 * @param out
 		 * @throws IOException
 		 */
-		public void writeTo(@NonNull final ByteChannel out) throws IOException {
-			ChannelHelper.write(out, sequence);
-			ChannelHelper.write(out, sequence);
-			ChannelHelper.write(out, frameNumber);
-			ChannelHelper.write(out, presentationTimeUs);
-			ChannelHelper.write(out, size);
-			ChannelHelper.write(out, flags);
-			//
-			ChannelHelper.write(out, RESERVED);
+		public void writeTo(@NonNull final ChannelWriter out) throws IOException {
+			writeHeader(out, sequence, frameNumber, presentationTimeUs, size, flags);
 		}
 
 		@NonNull
@@ -445,6 +453,7 @@ public class PostMuxCommon {
 	
 	/**
 	 * フレームヘッダーを書き込む
+	 * ChannelWriterのワーク用バッファーへ書き込むだけなのでチャネルへの書き込みは呼び出し元で行うこと
 	 * @param sequence
 	 * @param frame_number
 	 * @param presentation_time_us
@@ -452,18 +461,18 @@ public class PostMuxCommon {
 	 * @param flag
 	 * @throws IOException
 	 */
-	/*package*/ static void writeHeader(@NonNull final ByteChannel out,
+	/*package*/ static void writeHeader(@NonNull final ChannelWriter out,
 		final int sequence, final int frame_number,
 		final long presentation_time_us, final int size, final int flag)
 			throws IOException {
 
-		ChannelHelper.write(out, sequence);
-		ChannelHelper.write(out, frame_number);
-		ChannelHelper.write(out, presentation_time_us);
-		ChannelHelper.write(out, size);
-		ChannelHelper.write(out, flag);
+		out.write(sequence);
+		out.write(frame_number);
+		out.write(presentation_time_us);
+		out.write(size);
+		out.write(flag);
 		//
-		ChannelHelper.write(out, RESERVED);
+		out.write(RESERVED);
 	}
 	
 	/**
@@ -506,16 +515,18 @@ public class PostMuxCommon {
 	 * @return
 	 * @throws IOException
 	 */
-	/*package*/ static MediaFrameHeader readHeader(@NonNull final ByteChannel in,
+	/*package*/ static MediaFrameHeader readHeader(@NonNull final ChannelReader in,
 		@NonNull final MediaFrameHeader header) throws IOException {
 
 		header.size = 0;
-		header.sequence = ChannelHelper.readInt(in);
-		header.frameNumber = ChannelHelper.readInt(in);	// frame number
-		header.presentationTimeUs = ChannelHelper.readLong(in);
-		header.size = ChannelHelper.readInt(in);
-		header.flags = ChannelHelper.readInt(in);
-		ChannelHelper.readByteArray(in);
+		// 固定長のフレームヘッダーを1回で読み込んでから解析する
+		final ByteBuffer buf = in.readBlock(FRAME_HEADER_BYTES);
+		header.sequence = buf.getInt();
+		header.frameNumber = buf.getInt();	// frame number
+		header.presentationTimeUs = buf.getLong();
+		header.size = buf.getInt();
+		header.flags = buf.getInt();
+		// RESERVEDは読み飛ばす
 		return header;
 	}
 
@@ -525,7 +536,7 @@ public class PostMuxCommon {
 	 * @return
 	 * @throws IOException
 	 */
-	/*package*/ static MediaFrameHeader readHeader(@NonNull final ByteChannel in)
+	/*package*/ static MediaFrameHeader readHeader(@NonNull final ChannelReader in)
 		throws IOException {
 
 		final MediaFrameHeader header = new MediaFrameHeader();
@@ -551,7 +562,7 @@ public class PostMuxCommon {
 	 * @return
 	 * @throws IOException
 	 */
-	/*package*/ static int readFrameSize(@NonNull final ByteChannel in)
+	/*package*/ static int readFrameSize(@NonNull final ChannelReader in)
 		throws IOException {
 
 		final MediaFrameHeader header = readHeader(in);
@@ -594,7 +605,7 @@ public class PostMuxCommon {
 	 * @param buffer
 	 * @throws IOException
 	 */
-	/*package*/ static final void writeStream(@NonNull final ByteChannel out,
+	/*package*/ static final void writeStream(@NonNull final ChannelWriter out,
 		final int sequence, final int frameNumber,
 		@NonNull final MediaCodec.BufferInfo info,
 		@NonNull final ByteBuffer buffer) throws IOException {
@@ -604,7 +615,8 @@ public class PostMuxCommon {
 		try {
 			writeHeader(out, sequence, frameNumber,
 				info.presentationTimeUs, info.size, info.flags);
-			ChannelHelper.write(out, buffer);
+			// フレームヘッダー＋バイト数とフレームデータを1回のgathering writeで書き込む
+			out.write(buffer);
 		} catch (IOException e) {
 			throw e;
 		}
@@ -650,7 +662,7 @@ public class PostMuxCommon {
 	 * @throws BufferOverflowException
 	 */
 	/*package*/ static ByteBuffer readStream(
-		@NonNull final ByteChannel in,
+		@NonNull final ChannelReader in,
 		@NonNull final MediaFrameHeader header,
 		@Nullable ByteBuffer buffer) throws IOException {
 
@@ -659,7 +671,301 @@ public class PostMuxCommon {
 			buffer = ByteBuffer.allocateDirect(header.size);
 		}
 		buffer.clear();
-		ChannelHelper.readByteBuffer(in, buffer);
+		in.readInto(buffer);
 		return buffer;
 	}
+
+//----------------------------------------------------------------------
+	/** フレームインデックスファイルのマジックナンバー"PMIX" */
+	private static final int INDEX_MAGIC = 0x504d4958;
+	private static final int INDEX_VERSION = 1;
+	/**
+	 * フレームインデックスファイルのヘッダーのバイト数
+	 * magic(4)+version(4)+フレームヘッダーとフレームデータ以外のバイト数(4)
+	 */
+	private static final int INDEX_HEADER_BYTES = 4 + 4 + 4;
+	/**
+	 * フレームインデックスの1フレーム当たりのバイト数
+	 * offset(8)+presentationTimeUs(8)+size(4)+flags(4)
+	 */
+	private static final int INDEX_ENTRY_BYTES = 8 + 8 + 4 + 4;
+	/**
+	 * DataOutputStreamで書き込んだrawファイルのフレーム当たりのオーバーヘッド
+	 * (フレームヘッダー, RESERVEDのバイト数は書き込まない)
+	 * sequence(4)+frameNumber(4)+presentationTimeUs(8)+size(4)+flags(4)+RESERVED(40)
+	 */
+	/*package*/ static final int FRAME_OVERHEAD_STREAM = 4 + 4 + 8 + 4 + 4 + 40;
+	/**
+	 * ChannelWriterで書き込んだrawファイルのフレーム当たりのオーバーヘッド
+	 * (フレームヘッダー+フレームデータのバイト数(4))
+	 */
+	/*package*/ static final int FRAME_OVERHEAD_CHANNEL = FRAME_HEADER_BYTES + 4;
+
+	/**
+	 * rawファイルに対応するフレームインデックスファイルを取得
+	 * @param rawFile
+	 * @return
+	 */
+	@NonNull
+	/*package*/ static File indexFileOf(@NonNull final File rawFile) {
+		return new File(rawFile.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * フレームインデックスファイルのヘッダーを書き込む
+	 * @param out
+	 * @param frameOverhead FRAME_OVERHEAD_STREAMまたはFRAME_OVERHEAD_CHANNEL
+	 * @throws IOException
+	 */
+	/*package*/ static void writeIndexHeader(@NonNull final DataOutputStream out,
+		final int frameOverhead) throws IOException {
+
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(INDEX_VERSION);
+		out.writeInt(frameOverhead);
+	}
+
+	/**
+	 * フレームインデックスファイルのヘッダーを書き込む
+	 * ChannelWriterのワーク用バッファーへ書き込むだけなのでチャネルへの書き込みは呼び出し元で行うこと
+	 * @param out
+	 * @param frameOverhead FRAME_OVERHEAD_STREAMまたはFRAME_OVERHEAD_CHANNEL
+	 * @throws IOException
+	 */
+	/*package*/ static void writeIndexHeader(@NonNull final ChannelWriter out,
+		final int frameOverhead) throws IOException {
+
+		out.write(INDEX_MAGIC);
+		out.write(INDEX_VERSION);
+		out.write(frameOverhead);
+	}
+
+	/**
+	 * フレームインデックスを1フレーム分書き込む
+	 * @param out
+	 * @param offset rawファイル内のフレームヘッダーの先頭位置
+	 * @param info
+	 * @throws IOException
+	 */
+	/*package*/ static void writeIndex(@NonNull final DataOutputStream out,
+		final long offset, @NonNull final MediaCodec.BufferInfo info) throws IOException {
+
+		out.writeLong(offset);
+		out.writeLong(info.presentationTimeUs);
+		out.writeInt(info.size);
+		out.writeInt(info.flags);
+	}
+
+	/**
+	 * フレームインデックスを1フレーム分書き込む
+	 * ChannelWriterのワーク用バッファーへ書き込むだけなのでチャネルへの書き込みは呼び出し元で行うこと
+	 * @param out
+	 * @param offset rawファイル内のフレームヘッダーの先頭位置
+	 * @param info
+	 * @throws IOException
+	 */
+	/*package*/ static void writeIndex(@NonNull final ChannelWriter out,
+		final long offset, @NonNull final MediaCodec.BufferInfo info) throws IOException {
+
+		out.write(offset);
+		out.write(info.presentationTimeUs);
+		out.write(info.size);
+		out.write(info.flags);
+	}
+
+	/**
+	 * rawファイルのフレームインデックス
+	 * rawファイルと一緒に書き出したフレームインデックスファイルから読み込む
+	 * フレーム毎のrawファイル内の位置, presentationTimeUs, サイズ, フラグ(キーフレームかどうか)を保持するので
+	 * rawファイルを先頭から読まなくても任意のフレームへシークできる
+	 */
+	/*package*/ static class FrameIndex {
+		@NonNull
+		private final long[] mOffsets;
+		@NonNull
+		private final long[] mPresentationTimeUs;
+		@NonNull
+		private final int[] mSizes;
+		@NonNull
+		private final int[] mFlags;
+		private final int mFrameOverhead;
+		private int mCount;
+
+		private FrameIndex(final int capacity, final int frameOverhead) {
+			mOffsets = new long[capacity];
+			mPresentationTimeUs = new long[capacity];
+			mSizes = new int[capacity];
+			mFlags = new int[capacity];
+			mFrameOverhead = frameOverhead;
+		}
+
+		/**
+		 * rawファイルに対応するフレームインデックスファイルを読み込む
+		 * クラッシュ等でrawファイルまたはフレームインデックスファイルの末尾が欠けている場合は
+		 * rawファイル内に完全に存在するフレームまでを有効とする
+		 * @param rawFile
+		 * @return フレームインデックスファイルが存在しないか不正な場合はnull
+		 */
+		@Nullable
+		/*package*/ static FrameIndex load(@NonNull final File rawFile) {
+			final File indexFile = indexFileOf(rawFile);
+			if (!indexFile.canRead()) {
+				return null;
+			}
+			try {
+				final FileInputStream in = new FileInputStream(indexFile);
+				try {
+					final FileChannel channel = in.getChannel();
+					final long length = channel.size();
+					if ((length < INDEX_HEADER_BYTES) || (length > Integer.MAX_VALUE)) {
+						return null;
+					}
+					final ByteBuffer buf = ByteBuffer.allocate((int)length);
+					while (buf.hasRemaining()) {
+						if (channel.read(buf) < 0) break;
+					}
+					buf.flip();
+					if ((buf.getInt() != INDEX_MAGIC) || (buf.getInt() != INDEX_VERSION)) {
+						return null;
+					}
+					final int frameOverhead = buf.getInt();
+					// 書き込み途中のエントリーは無視する
+					final int n = buf.remaining() / INDEX_ENTRY_BYTES;
+					final FrameIndex index = new FrameIndex(n, frameOverhead);
+					final long rawLength = rawFile.length();
+					for (int i = 0; i < n; i++) {
+						final long offset = buf.getLong();
+						final long pts = buf.getLong();
+						final int size = buf.getInt();
+						final int flags = buf.getInt();
+						if (offset + frameOverhead + size > rawLength) {
+							// rawファイル内に完全に存在しないフレーム以降は無効
+							break;
+						}
+						index.mOffsets[i] = offset;
+						index.mPresentationTimeUs[i] = pts;
+						index.mSizes[i] = size;
+						index.mFlags[i] = flags;
+						index.mCount = i + 1;
+					}
+					return index;
+				} finally {
+					in.close();
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, "FrameIndex#load:", e);
+				return null;
+			}
+		}
+
+		/**
+		 * フレーム数を取得
+		 * @return
+		 */
+		public int size() {
+			return mCount;
+		}
+
+		/**
+		 * フレーム当たりのオーバーヘッドを取得
+		 * @return FRAME_OVERHEAD_STREAMまたはFRAME_OVERHEAD_CHANNEL
+		 */
+		public int frameOverhead() {
+			return mFrameOverhead;
+		}
+
+		/**
+		 * 指定したフレームのrawファイル内のフレームヘッダーの先頭位置を取得
+		 * @param index 0〜size()-1
+		 * @return
+		 */
+		public long offset(final int index) {
+			return mOffsets[index];
+		}
+
+		public long presentationTimeUs(final int index) {
+			return mPresentationTimeUs[index];
+		}
+
+		public int frameSize(final int index) {
+			return mSizes[index];
+		}
+
+		public int flags(final int index) {
+			return mFlags[index];
+		}
+
+		public boolean isKeyFrame(final int index) {
+			return (mFlags[index] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+		}
+
+		/**
+		 * rawファイル内のインデックス済みの最後のフレームの次の位置を取得
+		 * クラッシュ後の復旧時にこの位置以降だけを走査すればよい
+		 * @return
+		 */
+		public long endOffset() {
+			if (mCount > 0) {
+				final int last = mCount - 1;
+				return mOffsets[last] + mFrameOverhead + mSizes[last];
+			} else {
+				return -1;
+			}
+		}
+
+		/**
+		 * 指定した時刻以前で最も新しいキーフレームを探す
+		 * 指定した時刻以前にキーフレームがなければ最初のキーフレーム
+		 * presentationTimeUsは書き込み順に増加しているので二分探索で指定した時刻の
+		 * フレームを探してから直前のキーフレームまで遡る
+		 * @param presentationTimeUs
+		 * @return キーフレームのインデックス, キーフレームが無ければ-1
+		 */
+		public int findKeyFrame(final long presentationTimeUs) {
+			// 指定した時刻より後の最初のフレーム
+			final int next = presentationTimeUs < Long.MAX_VALUE
+				? findFrame(0, presentationTimeUs + 1) : mCount;
+			for (int i = next - 1; i >= 0; i--) {
+				if (isKeyFrame(i)) {
+					return i;
+				}
+			}
+			// 指定した時刻以前にキーフレームが無いときは最初のキーフレーム
+			for (int i = next; i < mCount; i++) {
+				if (isKeyFrame(i)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * 指定したインデックス以降で指定した時刻以降の最初のフレームを探す
+		 * presentationTimeUsは書き込み順に増加しているので二分探索する
+		 * @param from
+		 * @param presentationTimeUs
+		 * @return 見つからなければsize()
+		 */
+		public int findFrame(final int from, final long presentationTimeUs) {
+			int low = Math.max(from, 0);
+			int high = mCount;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (mPresentationTimeUs[mid] < presentationTimeUs) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"FrameIndex(frames=%d,frameOverhead=%d,endOffset=%d)",
+				mCount, mFrameOverhead, endOffset());
+		}
+	}
 }
@@ -18,11 +18,15 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
+import com.serenegiant.utils.ByteBufferArena;
+
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * IRecycleBufferを実装したMediaData
@@ -30,6 +34,16 @@ import androidx.annotation.NonNull;
 public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 	@NonNull
 	private final WeakReference<IRecycleParent<RecycleMediaData>> mWeakParent;
+	/**
+	 * 内部バッファの確保/返却に使うアリーナ, nullなら都度確保する
+	 * (スーパークラスのコンストラクタから#allocateBufferが呼ばれることがあるのでfinalにしない)
+	 */
+	@Nullable
+	private ByteBufferArena mArena;
+	/**
+	 * キューへ追加した時刻[ナノ秒], 統計情報用
+	 */
+	private long mQueuedTimeNs;
 
 	/**
 	 * コンストラクタ
@@ -77,6 +91,26 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 		mWeakParent = new WeakReference<IRecycleParent<RecycleMediaData>>(parent);
 	}
 
+	/**
+	 * コンストラクタ
+	 * 内部バッファはarenaから取得してデータサイズに応じたサイズクラスのバッファへ入れ替える
+	 * @param parent 親となるIRecycleParentオブジェクト
+	 * @param arena 内部バッファの確保/返却に使うByteBufferArena, nullなら都度確保する
+	 * @param size データ保持用の内部バッファのデフォルトサイズ, 0なら使用時に確保する
+	 * @param order データ保持用の内部バッファのエンディアン
+	 */
+	public RecycleMediaData(@NonNull final IRecycleParent<RecycleMediaData> parent,
+		@Nullable final ByteBufferArena arena,
+		@IntRange(from = 0L) final int size, @NonNull final ByteOrder order) {
+
+		super(order);
+		mWeakParent = new WeakReference<IRecycleParent<RecycleMediaData>>(parent);
+		mArena = arena;
+		if (size > 0) {
+			resize(size);
+		}
+	}
+
 	/**
 	 * コピーコンストラクタ
 	 * @param src
@@ -86,6 +120,48 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 		mWeakParent = new WeakReference<IRecycleParent<RecycleMediaData>>(src.mWeakParent.get());
 	}
 
+	@NonNull
+	@Override
+	protected ByteBuffer allocateBuffer(final int size) {
+		final ByteBufferArena arena = mArena;
+		return arena != null ? arena.obtain(size) : super.allocateBuffer(size);
+	}
+
+	@Override
+	protected void releaseBuffer(@NonNull final ByteBuffer buffer) {
+		final ByteBufferArena arena = mArena;
+		if (arena != null) {
+			arena.recycle(buffer);
+		}
+	}
+
+	@Override
+	protected boolean isSuitableCapacity(final int capacity, final int newSize) {
+		final ByteBufferArena arena = mArena;
+		if (arena != null) {
+			// 大き過ぎるバッファを保持し続けないように1つ上のサイズクラス以上なら入れ替える
+			return (capacity >= newSize) && (capacity / 2 < arena.classSize(newSize));
+		} else {
+			return super.isSuitableCapacity(capacity, newSize);
+		}
+	}
+
+	/**
+	 * キューへ追加した時刻をセットする, 統計情報用
+	 * @param timeNs
+	 */
+	void queuedTimeNs(final long timeNs) {
+		mQueuedTimeNs = timeNs;
+	}
+
+	/**
+	 * キューへ追加した時刻を取得する, 統計情報用
+	 * @return キューへ追加していなければ0
+	 */
+	long queuedTimeNs() {
+		return mQueuedTimeNs;
+	}
+
 	@Override
 	public void recycle() {
 		final IRecycleParent<RecycleMediaData> parent = mWeakParent.get();
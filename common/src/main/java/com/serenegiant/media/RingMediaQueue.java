@@ -0,0 +1,397 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.Pool;
+import com.serenegiant.utils.StripedCounter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * IMediaQueueのオンメモリー実装
+ * MemMediaQueueと違ってLinkedBlockingQueue/synchronizedを使わずに
+ * 事前確保した2のべき乗サイズのリングバッファでキューとプールを実装する
+ * キューへの追加/取り出し時にノードの生成等のメモリー確保は行わない
+ * 基本的にはプロデューサー(#obtain/#queueFrame)とコンシューマー(#poll/#recycle)が
+ * それぞれ1スレッドの場合を想定しているが、複数のプロデューサースレッドから
+ * #queueFrameを呼び出しても破綻しないようにスロット毎のシーケンス番号で排他している
+ * (MediaSplitMuxerのように映像と音声のエンコーダースレッドから書き込まれる場合など)
+ * 待機可能なコンシューマー(#poll(long, TimeUnit)を呼び出すスレッド)は1つだけ
+ */
+public class RingMediaQueue implements IMediaQueue<RecycleMediaData> {
+	/**
+	 * 空のキューから取り出す際にスレッドを停止させるまでにスピンする回数
+	 */
+	private static final int SPIN_COUNT = 64;
+
+	@NonNull
+	private final Ring<RecycleMediaData> mQueue;
+	@NonNull
+	private final Ring<RecycleMediaData> mPool;
+	@NonNull
+	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
+	private final int mInitNum;
+	private final int mMaxNumInPool;
+	private final int mMaxQueueSz;
+	@NonNull
+	private final AtomicInteger mCreatedObjects = new AtomicInteger();
+	/**
+	 * #poll(long, TimeUnit)で待機中のスレッド
+	 */
+	@Nullable
+	private volatile Thread mWaiter;
+	// 統計情報
+	@NonNull
+	private final MediaQueueStats.Recorder mStats = new MediaQueueStats.Recorder();
+	@NonNull
+	private final StripedCounter mStatsCreated = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsHits = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsMisses = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsFailed = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsRejected = new StripedCounter();
+
+	/**
+	 * コンストラクタ
+	 * MemMediaQueue.DefaultFactoryをファクトリーとして使う
+	 * @param initNum
+	 * @param maxNumInPool
+	 */
+	public RingMediaQueue(final int initNum, final int maxNumInPool) {
+		this(initNum, maxNumInPool, maxNumInPool, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * MemMediaQueue.DefaultFactoryをファクトリーとして使う
+	 * @param initNum
+	 * @param maxNumInPool
+	 * @param maxQueueSz
+	 */
+	public RingMediaQueue(final int initNum, final int maxNumInPool, final int maxQueueSz) {
+		this(initNum, maxNumInPool, maxQueueSz, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initNum
+	 * @param maxNumInPool 最大生成数, リングバッファの実際の容量はこれ以上の2のべき乗になる
+	 * @param maxQueueSz キューに保持できる最大数, リングバッファの実際の容量はこれ以上の2のべき乗になる
+	 * @param factory
+	 */
+	public RingMediaQueue(final int initNum, final int maxNumInPool, final int maxQueueSz,
+		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
+
+		mInitNum = initNum;
+		mMaxNumInPool = Math.max(maxNumInPool, 1);
+		mMaxQueueSz = Math.max(maxQueueSz, 1);
+		mQueue = new Ring<RecycleMediaData>(mMaxQueueSz);
+		mPool = new Ring<RecycleMediaData>(mMaxNumInPool);
+		mFactory = factory != null ? factory : new MemMediaQueue.DefaultFactory();
+	}
+
+	@Override
+	public void init(@Nullable final Object... args) {
+		clear();
+		for (int i = 0; (i < mInitNum) && (i < mMaxNumInPool); i++) {
+			if (mPool.offer(mFactory.create(this, args))) {
+				mCreatedObjects.incrementAndGet();
+				mStatsCreated.increment();
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		// 貸し出し中のオブジェクトは後で#recycleされるので、破棄した分だけ生成数から減らす
+		final int discarded = mQueue.clear() + mPool.clear();
+		if (discarded > 0) {
+			mCreatedObjects.addAndGet(-discarded);
+		}
+	}
+
+	/**
+	 * プールからデータ保持用オブジェクトを取得する
+	 * プールが空で最大生成数に達していなければ新規生成する
+	 * @param args
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData obtain(@Nullable final Object... args) {
+		RecycleMediaData result = mPool.poll();
+		if (result != null) {
+			mStatsHits.increment();
+		} else {
+			for ( ; ; ) {
+				final int created = mCreatedObjects.get();
+				if (created >= mMaxNumInPool) {
+					mStatsFailed.increment();
+					break;
+				}
+				if (mCreatedObjects.compareAndSet(created, created + 1)) {
+					result = mFactory.create(this, args);
+					mStatsCreated.increment();
+					mStatsMisses.increment();
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * キューにデータを追加する
+	 * @param buffer
+	 * @return true: 正常にキューに追加できた, false: キューが一杯だった
+	 */
+	@Override
+	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
+		mStats.beforeEnqueue(buffer);
+		if ((mQueue.size() < mMaxQueueSz) && mQueue.offer(buffer)) {
+			mStats.onEnqueued(mQueue.size());
+			final Thread waiter = mWaiter;
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+			return true;
+		}
+		mStats.onQueueFull();
+		return false;
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData peek() {
+		return mQueue.peek();
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData poll() {
+		final RecycleMediaData result = mQueue.poll();
+		if (result != null) {
+			mStats.onDequeued(result);
+		}
+		return result;
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
+		throws InterruptedException {
+
+		RecycleMediaData result = mQueue.poll();
+		for (int i = 0; (result == null) && (i < SPIN_COUNT); i++) {
+			Thread.yield();
+			result = mQueue.poll();
+		}
+		if (result == null) {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			final Thread current = Thread.currentThread();
+			mWaiter = current;
+			try {
+				for ( ; ; ) {
+					// mWaiterをセットしてから再確認しないとunparkを取りこぼす
+					result = mQueue.poll();
+					if (result != null) {
+						break;
+					}
+					final long remain = deadline - System.nanoTime();
+					if (remain <= 0) {
+						break;
+					}
+					LockSupport.parkNanos(this, remain);
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+				}
+			} finally {
+				mWaiter = null;
+			}
+		}
+		if (result != null) {
+			mStats.onDequeued(result);
+		}
+		return result;
+	}
+
+	@Override
+	public int count() {
+		return mQueue.size();
+	}
+
+	/**
+	 * 使用済みのデータ保持用オブジェクトをプールへ返却する
+	 * @param buffer
+	 * @return true: プールに返却できた, false: プールに返却できなかった(最大保持数より多くなってしまった)
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		if (mPool.offer(buffer)) {
+			return true;
+		} else {
+			mCreatedObjects.decrementAndGet();
+			mStatsRejected.increment();
+			// プールへ戻せなかったときは内部バッファを解放する
+			buffer.release();
+			return false;
+		}
+	}
+
+	@NonNull
+	@Override
+	public MediaQueueStats getStats() {
+		final Pool.Stats pool = new Pool.Stats(mPool.size(), mCreatedObjects.get(),
+			mStatsCreated.sum(), mStatsHits.sum(), mStatsMisses.sum(),
+			mStatsFailed.sum(), mStatsRejected.sum(), 0, 0);
+		return mStats.snapshot(pool, mQueue.size(), mMaxQueueSz);
+	}
+
+	@Override
+	public void resetStats() {
+		mStats.reset();
+		mStatsCreated.reset();
+		mStatsHits.reset();
+		mStatsMisses.reset();
+		mStatsFailed.reset();
+		mStatsRejected.reset();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * スロット毎にシーケンス番号を持つ固定長のリングバッファ
+	 * 要素追加/取り出し時にメモリー確保は行わない
+	 * @param <E>
+	 */
+	private static final class Ring<E> {
+		private final int mMask;
+		@NonNull
+		private final AtomicReferenceArray<E> mBuffer;
+		@NonNull
+		private final AtomicLongArray mSequences;
+		@NonNull
+		private final AtomicLong mHead = new AtomicLong();
+		@NonNull
+		private final AtomicLong mTail = new AtomicLong();
+
+		/**
+		 * コンストラクタ
+		 * @param capacity 最小容量, 実際の容量はこれ以上の2のべき乗になる
+		 */
+		private Ring(final int capacity) {
+			int sz = 1;
+			while (sz < capacity) {
+				sz <<= 1;
+			}
+			mMask = sz - 1;
+			mBuffer = new AtomicReferenceArray<E>(sz);
+			mSequences = new AtomicLongArray(sz);
+			for (int i = 0; i < sz; i++) {
+				mSequences.set(i, i);
+			}
+		}
+
+		/**
+		 * 末尾へ追加する
+		 * @param e
+		 * @return false: 一杯だった
+		 */
+		private boolean offer(@NonNull final E e) {
+			for ( ; ; ) {
+				final long tail = mTail.get();
+				final int ix = (int)(tail & mMask);
+				final long dif = mSequences.get(ix) - tail;
+				if (dif == 0) {
+					if (mTail.compareAndSet(tail, tail + 1)) {
+						mBuffer.lazySet(ix, e);
+						// 待機中のコンシューマーのunparkを取りこぼさないようにvolatileで書き込む
+						mSequences.set(ix, tail + 1);
+						return true;
+					}
+				} else if (dif < 0) {
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * 先頭を取り出す
+		 * @return 空ならnull
+		 */
+		@Nullable
+		private E poll() {
+			for ( ; ; ) {
+				final long head = mHead.get();
+				final int ix = (int)(head & mMask);
+				final long dif = mSequences.get(ix) - (head + 1);
+				if (dif == 0) {
+					if (mHead.compareAndSet(head, head + 1)) {
+						final E result = mBuffer.get(ix);
+						mBuffer.lazySet(ix, null);
+						mSequences.lazySet(ix, head + mMask + 1);
+						return result;
+					}
+				} else if (dif < 0) {
+					return null;
+				}
+			}
+		}
+
+		/**
+		 * 先頭を取り出さずに返す
+		 * @return 空ならnull
+		 */
+		@Nullable
+		private E peek() {
+			final long head = mHead.get();
+			final int ix = (int)(head & mMask);
+			return (mSequences.get(ix) == head + 1) ? mBuffer.get(ix) : null;
+		}
+
+		private int size() {
+			final long head = mHead.get();
+			final long tail = mTail.get();
+			return (int)Math.max(0, tail - head);
+		}
+
+		/**
+		 * 全ての要素を取り除く
+		 * @return 取り除いた要素数
+		 */
+		private int clear() {
+			int result = 0;
+			while (poll() != null) {
+				result++;
+			}
+			return result;
+		}
+	}
+}
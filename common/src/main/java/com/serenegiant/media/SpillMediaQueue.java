@@ -0,0 +1,495 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import com.serenegiant.utils.Pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * オンメモリーのキューが一杯になったときにメモリーマップトファイルへ
+ * 退避(スピル)するIMediaQueue実装
+ * MemMediaQueueはコンシューマー(muxer等)の処理が滞るとフレームを取りこぼすが、
+ * こちらは退避用ファイルの容量までは遅延が増えるだけでフレームを取りこぼさない
+ * 退避したフレームはtrackIx/flags/presentationTimeUsを保持したまま
+ * キューへ追加した順に取り出される
+ * 使用後は#releaseを呼んで退避用ファイルを削除すること
+ */
+public class SpillMediaQueue implements IMediaQueue<RecycleMediaData> {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SpillMediaQueue.class.getSimpleName();
+
+	/**
+	 * デフォルトの退避用ファイルのサイズ
+	 */
+	public static final int DEFAULT_SPILL_SIZE = 32 * 1024 * 1024;	// 32MB
+	/**
+	 * 退避レコードのヘッダーサイズ
+	 * size(int), trackIx(int), flags(int), presentationTimeUs(long), キューへ追加した時刻(long)
+	 */
+	private static final int HEADER_SZ = 4 + 4 + 4 + 8 + 8;
+	/**
+	 * 退避用ファイルの終端で折り返したことを示すマーカー
+	 */
+	private static final int WRAP_MARKER = -1;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final ArrayDeque<RecycleMediaData> mQueue;
+	@NonNull
+	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
+	@NonNull
+	private final Pool<RecycleMediaData> mPool;
+	/**
+	 * プールが空のときに退避中のフレームを読み込むために新規生成したバッファ
+	 * プールの生成数には含まれないので#recycleでプールへは戻さずに破棄する
+	 */
+	@NonNull
+	private final Set<RecycleMediaData> mExtraBuffers
+		= Collections.newSetFromMap(new IdentityHashMap<RecycleMediaData, Boolean>());
+	private final int mMaxQueueSz;
+	@NonNull
+	private final MediaQueueStats.Recorder mStats = new MediaQueueStats.Recorder();
+	@NonNull
+	private final File mSpillFile;
+	private final int mSpillSize;
+	@Nullable
+	private RandomAccessFile mRaf;
+	@Nullable
+	private MappedByteBuffer mSpill;
+	/**
+	 * 退避用ファイルからの読み込み用
+	 */
+	@Nullable
+	private ByteBuffer mSpillReader;
+	/** 退避用ファイル内の読み込み位置 */
+	private int mHead;
+	/** 退避用ファイル内の書き込み位置 */
+	private int mTail;
+	/** 退避用ファイルの使用中バイト数(折り返し時の未使用領域を含む) */
+	private int mUsed;
+	/** 退避中のフレーム数 */
+	private int mSpillCount;
+	private boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * 退避用ファイルはアプリのキャッシュディレクトリへ生成する
+	 * MemMediaQueue.DefaultFactoryをファクトリーとして使う
+	 * @param context
+	 * @param initNum
+	 * @param maxNumInPool
+	 * @param maxQueueSz オンメモリーで保持する最大フレーム数
+	 * @throws IOException
+	 */
+	public SpillMediaQueue(@NonNull final Context context,
+		final int initNum, final int maxNumInPool, final int maxQueueSz) throws IOException {
+
+		this(context.getCacheDir(), initNum, maxNumInPool, maxQueueSz, DEFAULT_SPILL_SIZE, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param dir 退避用ファイルを生成するディレクトリ
+	 * @param initNum
+	 * @param maxNumInPool オンメモリーで保持する最大フレーム数+2以上にすること
+	 * @param maxQueueSz オンメモリーで保持する最大フレーム数
+	 * @param spillSize 退避用ファイルのサイズ[バイト]
+	 * @param factory
+	 * @throws IOException
+	 */
+	public SpillMediaQueue(@NonNull final File dir,
+		final int initNum, final int maxNumInPool, final int maxQueueSz,
+		final int spillSize,
+		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) throws IOException {
+
+		mMaxQueueSz = Math.max(maxQueueSz, 1);
+		mQueue = new ArrayDeque<RecycleMediaData>(mMaxQueueSz);
+		mFactory = factory != null ? factory : new MemMediaQueue.DefaultFactory();
+		mPool = new Pool<RecycleMediaData>(initNum, maxNumInPool) {
+			@NonNull
+			@Override
+			protected RecycleMediaData createObject(
+				@Nullable final Object... args) {
+
+				return mFactory.create(SpillMediaQueue.this, args);
+			}
+		};
+		mSpillSize = spillSize > HEADER_SZ ? spillSize : DEFAULT_SPILL_SIZE;
+		mSpillFile = File.createTempFile("spill", ".raw", dir);
+		mSpillFile.deleteOnExit();
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * 関係するリソースを破棄する, 退避用ファイルは削除する
+	 * 再利用はできない
+	 */
+	public void release() {
+		synchronized (mSync) {
+			if (!mReleased) {
+				mReleased = true;
+				clear();
+				closeSpill();
+				//noinspection ResultOfMethodCallIgnored
+				mSpillFile.delete();
+				mSync.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void init(@Nullable final Object... args) {
+		clear();
+		mPool.init(args);
+	}
+
+	@Override
+	public void clear() {
+		synchronized (mSync) {
+			mQueue.clear();
+			resetSpill();
+		}
+		mPool.clear();
+	}
+
+	/**
+	 * プールからデータ保持用オブジェクトを取得する
+	 * @param args
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData obtain(@Nullable final Object... args) {
+		return mPool.obtain(args);
+	}
+
+	/**
+	 * キューにデータを追加する
+	 * オンメモリーのキューが一杯の時や既に退避中のフレームがある時は
+	 * 退避用ファイルへ書き込んでbufferはプールへ戻す
+	 * @param buffer
+	 * @return true: 正常にキューに追加できた, false: 退避用ファイルも一杯だった
+	 */
+	@Override
+	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
+		synchronized (mSync) {
+			if (mReleased) {
+				return false;
+			}
+			boolean result;
+			mStats.beforeEnqueue(buffer);
+			if ((mSpillCount == 0) && (mQueue.size() < mMaxQueueSz)) {
+				mQueue.addLast(buffer);
+				result = true;
+			} else {
+				// 順番が入れ替わらないように退避中のフレームがある間は全て退避する
+				result = writeSpill(buffer);
+				if (result) {
+					recycle(buffer);
+				}
+			}
+			if (result) {
+				mStats.onEnqueued(mQueue.size() + mSpillCount);
+				mSync.notifyAll();
+			} else {
+				mStats.onQueueFull();
+			}
+			return result;
+		}
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData peek() {
+		synchronized (mSync) {
+			fillFromSpill();
+			return mQueue.peekFirst();
+		}
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData poll() {
+		synchronized (mSync) {
+			fillFromSpill();
+			final RecycleMediaData result = mQueue.pollFirst();
+			if (result != null) {
+				mStats.onDequeued(result);
+			}
+			return result;
+		}
+	}
+
+	@Override
+	@Nullable
+	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
+		throws InterruptedException {
+
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (mSync) {
+			for ( ; ; ) {
+				fillFromSpill();
+				final RecycleMediaData result = mQueue.pollFirst();
+				if (result != null) {
+					mStats.onDequeued(result);
+					return result;
+				} else if (mReleased) {
+					return null;
+				}
+				final long remain = deadline - System.nanoTime();
+				if (remain <= 0) {
+					return null;
+				}
+				TimeUnit.NANOSECONDS.timedWait(mSync, remain);
+			}
+		}
+	}
+
+	@Override
+	public int count() {
+		synchronized (mSync) {
+			return mQueue.size() + mSpillCount;
+		}
+	}
+
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		final boolean extra;
+		synchronized (mSync) {
+			extra = mExtraBuffers.remove(buffer);
+			if (mSpillCount > 0) {
+				// 退避中のフレームを読み込むためのバッファが空くのを待っているかもしれないので起こす
+				mSync.notifyAll();
+			}
+		}
+		final boolean result = !extra && mPool.recycle(buffer);
+		if (!result) {
+			// プールへ戻せなかったときは内部バッファを解放する
+			buffer.release();
+		}
+		return result;
+	}
+
+	@NonNull
+	@Override
+	public MediaQueueStats getStats() {
+		return mStats.snapshot(mPool.getStats(), count(), mMaxQueueSz);
+	}
+
+	@Override
+	public void resetStats() {
+		mStats.reset();
+		mPool.resetStats();
+	}
+
+	/**
+	 * 退避中のフレーム数を取得
+	 * @return
+	 */
+	public int spillCount() {
+		synchronized (mSync) {
+			return mSpillCount;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * オンメモリーのキューが空で退避中のフレームがあれば1フレーム読み込んでキューへ追加する
+	 * プールからバッファを取得できない(最大生成数に達している)ときは新規生成する
+	 * (退避中のフレームがあるのに#poll/#peekがnullを返さないようにするため,
+	 * 新規生成したバッファは#recycleで破棄する)
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	private void fillFromSpill() {
+		if (mQueue.isEmpty() && (mSpillCount > 0)) {
+			RecycleMediaData buffer = mPool.obtain();
+			if (buffer == null) {
+				if (DEBUG) Log.w(TAG, "fillFromSpill:failed to get buffer from pool, create new one.");
+				buffer = mFactory.create(this);
+				mExtraBuffers.add(buffer);
+			}
+			readSpill(buffer);
+			mQueue.addLast(buffer);
+		}
+	}
+
+	/**
+	 * 退避用ファイルへフレームを書き込む
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param buffer
+	 * @return false: 退避用ファイルの空きが足りなかった
+	 */
+	private boolean writeSpill(@NonNull final RecycleMediaData buffer) {
+		final MappedByteBuffer spill;
+		try {
+			spill = openSpill();
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+			return false;
+		}
+		final int size = buffer.size();
+		final int len = HEADER_SZ + size;
+		int tail = mTail;
+		int waste = 0;
+		final boolean wrap = tail + len > mSpillSize;
+		if (wrap) {
+			// 終端までの残りには収まらないので先頭へ折り返す
+			waste = mSpillSize - tail;
+		}
+		if (mUsed + waste + len > mSpillSize) {
+			if (DEBUG) Log.w(TAG, "writeSpill:spill file is full");
+			return false;
+		}
+		if (wrap) {
+			if (waste >= HEADER_SZ) {
+				spill.putInt(tail, WRAP_MARKER);
+			}
+			tail = 0;
+		}
+		spill.position(tail);
+		spill.putInt(size);
+		spill.putInt(buffer.trackIx());
+		spill.putInt(buffer.flags());
+		spill.putLong(buffer.presentationTimeUs());
+		spill.putLong(buffer.queuedTimeNs());
+		if (size > 0) {
+			spill.put(buffer.get());
+		}
+		mTail = tail + len;
+		mUsed += waste + len;
+		mSpillCount++;
+		return true;
+	}
+
+	/**
+	 * 退避用ファイルから先頭のフレームを読み込む
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param buffer
+	 */
+	private void readSpill(@NonNull final RecycleMediaData buffer) {
+		final MappedByteBuffer spill = mSpill;
+		final ByteBuffer reader = mSpillReader;
+		if ((spill == null) || (reader == null)) {
+			return;
+		}
+		int head = mHead;
+		if ((mSpillSize - head < HEADER_SZ) || (spill.getInt(head) == WRAP_MARKER)) {
+			mUsed -= mSpillSize - head;
+			head = 0;
+		}
+		final int size = spill.getInt(head);
+		final int trackIx = spill.getInt(head + 4);
+		final int flags = spill.getInt(head + 8);
+		final long pts = spill.getLong(head + 12);
+		final long queuedNs = spill.getLong(head + 20);
+		// メタデータをセットして内部バッファを確保してから退避用ファイルの内容をコピーする
+		buffer.set(trackIx, (ByteBuffer)null, 0, size, pts, flags);
+		buffer.queuedTimeNs(queuedNs);
+		if (size > 0) {
+			final ByteBuffer dst = buffer.get();
+			reader.clear();
+			reader.position(head + HEADER_SZ);
+			reader.limit(head + HEADER_SZ + size);
+			dst.put(reader);
+			dst.flip();
+		}
+		final int len = HEADER_SZ + size;
+		mHead = head + len;
+		mUsed -= len;
+		mSpillCount--;
+		if (mSpillCount == 0) {
+			mHead = mTail = mUsed = 0;
+		}
+	}
+
+	/**
+	 * 必要であれば退避用ファイルを生成してメモリーマップする
+	 * mSyncをロックした状態で呼び出すこと
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private MappedByteBuffer openSpill() throws IOException {
+		if (mSpill == null) {
+			if (DEBUG) Log.v(TAG, "openSpill:" + mSpillFile);
+			final RandomAccessFile raf = new RandomAccessFile(mSpillFile, "rw");
+			try {
+				raf.setLength(mSpillSize);
+				mSpill = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSpillSize);
+				mSpillReader = mSpill.duplicate();
+				mRaf = raf;
+			} catch (final IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+		return mSpill;
+	}
+
+	/**
+	 * 退避用ファイルを閉じる
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	private void closeSpill() {
+		mSpill = null;
+		mSpillReader = null;
+		if (mRaf != null) {
+			try {
+				mRaf.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+			mRaf = null;
+		}
+	}
+
+	/**
+	 * 退避中のフレームを破棄する
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	private void resetSpill() {
+		mHead = mTail = mUsed = mSpillCount = 0;
+	}
+}
@@ -24,19 +24,26 @@ import android.graphics.Bitmap;
 import com.serenegiant.graphics.BitmapHelper;
 import com.serenegiant.utils.ThreadPool;
 
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * 非同期で画像読み込みを行うためのヘルパークラス(Runnableを実装)
  */
 public abstract class ImageLoader implements Runnable {
+	/**
+	 * ThreadPoolで実行するときのタスククラス名
+	 * ThreadPool#setMaxConcurrencyで同時実行数を制限できる
+	 */
+	public static final String TASK_CLASS = "image";
+
 	@NonNull
 	protected final LoaderDrawable mParent;
-	@NonNull
-	private final FutureTask<Bitmap> mTask;
+	@Nullable
+	private Future<?> mTask;
 	private final MediaInfo mInfo = new MediaInfo();
 	private Bitmap mBitmap;
 
@@ -46,7 +53,6 @@ public abstract class ImageLoader implements Runnable {
 	 */
     public ImageLoader(@NonNull final LoaderDrawable parent) {
     	mParent = parent;
-		mTask = new FutureTask<Bitmap>(this, null);
     }
 
 	public long id() {
@@ -57,17 +63,34 @@ public abstract class ImageLoader implements Runnable {
 	 * start loading
      * @param info
      */
-	public synchronized void startLoad(@NonNull final MediaInfo info) {
+	public void startLoad(@NonNull final MediaInfo info) {
+		startLoad(info, ThreadPool.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * 優先度を指定して読み込み開始する
+	 * @param info
+	 * @param priority 画面に表示中のアイテムならThreadPool.PRIORITY_HIGH
+	 */
+	public synchronized void startLoad(@NonNull final MediaInfo info,
+		@ThreadPool.Priority final int priority) {
+
 		mInfo.set(info);
 		mBitmap = null;
-		ThreadPool.queueEvent(mTask);
+		mTask = ThreadPool.submit(TASK_CLASS, this, priority);
 	}
 
 	/**
 	 * cancel loading
 	 */
 	public void cancelLoad() {
-		mTask.cancel(true);
+		final Future<?> task;
+		synchronized (this) {
+			task = mTask;
+		}
+		if (task != null) {
+			task.cancel(true);
+		}
 	}
 
 	/**
@@ -99,15 +122,17 @@ public abstract class ImageLoader implements Runnable {
 	@Override
 	public void run() {
 		final MediaInfo info;
+		final Future<?> task;
 		synchronized(this) {
 			info = new MediaInfo(mInfo);
+			task = mTask;
 		}
-		if (!mTask.isCancelled()) {
+		if ((task != null) && !task.isCancelled()) {
 			mBitmap = loadBitmap(mParent.getContext(),
 				info,
 				mParent.getIntrinsicWidth(), mParent.getIntrinsicHeight());
 		}
-		if (mTask.isCancelled() || !info.equals(mInfo) || (mBitmap == null)) {
+		if ((task == null) || task.isCancelled() || !info.equals(mInfo) || (mBitmap == null)) {
 			return;	// return without callback
 		}
 		// set callback
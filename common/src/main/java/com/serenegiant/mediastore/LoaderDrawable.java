@@ -33,6 +33,8 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 
+import com.serenegiant.utils.ThreadPool;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -256,10 +258,18 @@ public abstract class LoaderDrawable extends Drawable implements Runnable {
 	 * @param info
 	 */
 	public void startLoad(@NonNull final MediaInfo info) {
+		startLoad(info, ThreadPool.PRIORITY_NORMAL);
+	}
 
-		if (mLoader != null) {
-			mLoader.cancelLoad();
-		}
+	/**
+	 * start loading image asynchronously with specific priority
+	 * @param info
+	 * @param priority 画面に表示中のアイテムならThreadPool.PRIORITY_HIGH
+	 */
+	public void startLoad(@NonNull final MediaInfo info,
+		@ThreadPool.Priority final int priority) {
+
+		cancelLoad();
 
 		// キャッシュから取得を試みる
 		final Bitmap newBitmap = checkCache(info.id);
@@ -268,7 +278,7 @@ public abstract class LoaderDrawable extends Drawable implements Runnable {
 			mBitmap = null;
 			// re-using ThumbnailLoader will cause several problems on some devices...
 			mLoader = createImageLoader();
-			mLoader.startLoad(info);
+			mLoader.startLoad(info, priority);
 		} else {
 			// キャッシュから取得できたとき
 			setBitmap(newBitmap);
@@ -276,6 +286,17 @@ public abstract class LoaderDrawable extends Drawable implements Runnable {
 		invalidateSelf();
 	}
 
+	/**
+	 * 非同期読み込み中であれば中断要求する
+	 * 未実行ならスレッドプールのキューから削除される
+	 * (RecyclerViewでViewHolderがリサイクルされたとき等の画面外の読み込みの取り消し用)
+	 */
+	public void cancelLoad() {
+		if (mLoader != null) {
+			mLoader.cancelLoad();
+		}
+	}
+
 	private void setBitmap(@NonNull final Bitmap bitmap) {
 		if (bitmap != mBitmap) {
 			mBitmap = bitmap;
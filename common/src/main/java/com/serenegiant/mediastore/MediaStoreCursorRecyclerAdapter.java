@@ -169,6 +169,22 @@ public class MediaStoreCursorRecyclerAdapter
 		setInfo(holder, getMediaInfo(position, info));
 	}
 
+	/**
+	 * ViewHolderがリサイクルされたときは画面外になったので未完了のサムネイル読み込みを取り消す
+	 * @param holder
+	 */
+	@Override
+	public void onViewRecycled(@NonNull final ViewHolder holder) {
+		super.onViewRecycled(holder);
+		final ImageView iv = holder.mImageView;
+		if (iv != null) {
+			final Drawable drawable = iv.getDrawable();
+			if (drawable instanceof ThumbnailLoaderDrawable) {
+				((ThumbnailLoaderDrawable)drawable).cancelLoad();
+			}
+		}
+	}
+
 	@Override
 	public int getItemCount() {
 		synchronized (mSync) {
@@ -584,7 +600,7 @@ public class MediaStoreCursorRecyclerAdapter
 				drawable = new MyThumbnailLoaderDrawable(mContext, mThumbnailWidth, mThumbnailHeight);
 				iv.setImageDrawable(drawable);
 			}
-			((ThumbnailLoaderDrawable)drawable).startLoad(info);
+			((ThumbnailLoaderDrawable)drawable).startLoad(info, ThreadPool.PRIORITY_HIGH);
 		}
 		if (tv != null) {
 			tv.setVisibility(mShowTitle ? View.VISIBLE : View.GONE);
@@ -178,6 +178,22 @@ public class MediaStoreRecyclerAdapter
 		setInfo(holder, position, getMediaInfo(position, info));
 	}
 
+	/**
+	 * ViewHolderがリサイクルされたときは画面外になったので未完了のサムネイル読み込みを取り消す
+	 * @param holder
+	 */
+	@Override
+	public void onViewRecycled(@NonNull final ViewHolder holder) {
+		super.onViewRecycled(holder);
+		final ImageView iv = holder.mImageView;
+		if (iv != null) {
+			final Drawable drawable = iv.getDrawable();
+			if (drawable instanceof ThumbnailLoaderDrawable) {
+				((ThumbnailLoaderDrawable)drawable).cancelLoad();
+			}
+		}
+	}
+
 	@Override
 	public int getItemCount() {
 		synchronized (mValues) {
@@ -574,7 +590,7 @@ public class MediaStoreRecyclerAdapter
 
 		public void startLoad(@NonNull final MediaInfo info, final int position) {
 			mPosition = position;
-			super.startLoad(info);
+			super.startLoad(info, ThreadPool.PRIORITY_HIGH);
 		}
 
 		@NonNull
@@ -30,6 +30,7 @@ import android.util.Size;
 import com.serenegiant.common.BuildConfig;
 import com.serenegiant.graphics.BitmapHelper;
 import com.serenegiant.io.DiskLruCache;
+import com.serenegiant.io.WTinyLfuEvictionPolicy;
 import com.serenegiant.system.ContextUtils;
 
 import java.io.File;
@@ -56,6 +57,11 @@ public class ThumbnailCache {
 	private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 	private static final String DISK_CACHE_SUBDIR = ".thumbnailCache";
 	private static final int DISK_CACHE_INDEX = 0;
+	/**
+	 * ディスクキャッシュのサムネイル1つあたりの想定サイズ
+	 * 追い出しポリシーの頻度推定用のスケッチのサイズを決めるのに使う
+	 */
+	private static final int EXPECTED_THUMBNAIL_BYTES = 16 * 1024;
 
 	private static final Object sSync = new Object();
 	/**
@@ -119,7 +125,11 @@ public class ThumbnailCache {
 					}
 					if (DEBUG) Log.v(TAG, "prepareThumbnailCache:dir=" + cacheDir);
 					sDiskLruCache = DiskLruCache.open(cacheDir,
-						BuildConfig.VERSION_CODE, 1, sMaxDiskCacheBytes);
+						BuildConfig.VERSION_CODE, 1, sMaxDiskCacheBytes, true);
+					// ギャラリーのスクロール等で1回だけ参照されるサムネイルによって
+					// 頻繁に参照されるサムネイルが追い出されないようにW-TinyLFUを使う
+					sDiskLruCache.setEvictionPolicy(new WTinyLfuEvictionPolicy(
+						sMaxDiskCacheBytes, sMaxDiskCacheBytes / EXPECTED_THUMBNAIL_BYTES));
 				} catch (final IOException e) {
 					sDiskLruCache = null;
 					Log.w(TAG, e);
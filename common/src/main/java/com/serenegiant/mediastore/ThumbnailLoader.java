@@ -24,7 +24,7 @@ import android.net.Uri;
 
 import com.serenegiant.utils.ThreadPool;
 
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -33,13 +33,19 @@ import androidx.annotation.Nullable;
  * 非同期で画像読み込みを行うためのヘルパークラス(Runnableを実装)
  */
 public abstract class ThumbnailLoader implements Runnable {
+	/**
+	 * ThreadPoolで実行するときのタスククラス名
+	 * ThreadPool#setMaxConcurrencyで同時実行数を制限できる
+	 */
+	public static final String TASK_CLASS = "thumbnail";
+
 	private static final boolean DEBUG = false; // set false on production
 	private static final String TAG = ThumbnailLoader.class.getSimpleName();
 
 	@NonNull
 	protected final ThumbnailLoaderDrawable mParent;
-	@NonNull
-	private final FutureTask<Bitmap> mTask;
+	@Nullable
+	private Future<?> mTask;
 	@NonNull
 	private final MediaInfo mInfo = new MediaInfo();
 	@Nullable
@@ -51,7 +57,6 @@ public abstract class ThumbnailLoader implements Runnable {
 	 */
     public ThumbnailLoader(@NonNull final ThumbnailLoaderDrawable parent) {
     	mParent = parent;
-		mTask = new FutureTask<Bitmap>(this, null);
     }
 
 	public long id() {
@@ -67,17 +72,34 @@ public abstract class ThumbnailLoader implements Runnable {
 	 * 読み込み開始する
 	 * @param info
      */
-	public synchronized void startLoad(@NonNull final MediaInfo info) {
+	public void startLoad(@NonNull final MediaInfo info) {
+		startLoad(info, ThreadPool.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * 優先度を指定して読み込み開始する
+	 * @param info
+	 * @param priority 画面に表示中のアイテムならThreadPool.PRIORITY_HIGH
+	 */
+	public synchronized void startLoad(@NonNull final MediaInfo info,
+		@ThreadPool.Priority final int priority) {
+
 		mInfo.set(info);
 		mBitmap = null;
-		ThreadPool.queueEvent(mTask);
+		mTask = ThreadPool.submit(TASK_CLASS, this, priority);
 	}
 
 	/**
 	 * 読み込み中断要求する
 	 */
 	public void cancelLoad() {
-		mTask.cancel(true);
+		final Future<?> task;
+		synchronized (this) {
+			task = mTask;
+		}
+		if (task != null) {
+			task.cancel(true);
+		}
 	}
 
 	/**
@@ -97,14 +119,16 @@ public abstract class ThumbnailLoader implements Runnable {
 	@Override
 	public void run() {
 		final MediaInfo info;
+		final Future<?> task;
 		synchronized(this) {
 			info = new MediaInfo(mInfo);
+			task = mTask;
 		}
-		if (!mTask.isCancelled()) {
+		if ((task != null) && !task.isCancelled()) {
 			mBitmap = loadThumbnail(mParent.getContext(), info,
 				mParent.getIntrinsicWidth(), mParent.getIntrinsicHeight());
 		}
-		if (mTask.isCancelled() || !info.equals(mInfo)) {
+		if ((task == null) || task.isCancelled() || !info.equals(mInfo)) {
 			return;	// return without callback
 		}
 		// set callback
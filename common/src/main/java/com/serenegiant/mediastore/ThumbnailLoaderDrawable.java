@@ -34,6 +34,7 @@ import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 
 import com.serenegiant.graphics.MatrixUtils;
+import com.serenegiant.utils.ThreadPool;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -235,10 +236,18 @@ public abstract class ThumbnailLoaderDrawable extends Drawable implements Runnab
 	 * @param info
 	 */
 	public void startLoad(@NonNull final MediaInfo info) {
+		startLoad(info, ThreadPool.PRIORITY_NORMAL);
+	}
 
-		if (mLoader != null) {
-			mLoader.cancelLoad();
-		}
+	/**
+	 * start loading image asynchronously with specific priority
+	 * @param info
+	 * @param priority 画面に表示中のアイテムならThreadPool.PRIORITY_HIGH
+	 */
+	public void startLoad(@NonNull final MediaInfo info,
+		@ThreadPool.Priority final int priority) {
+
+		cancelLoad();
 
 		// キャッシュから取得を試みる
 		final Bitmap newBitmap = checkCache(info.id);
@@ -247,7 +256,7 @@ public abstract class ThumbnailLoaderDrawable extends Drawable implements Runnab
 			mBitmap = null;
 			// re-using ThumbnailLoader will cause several problems on some devices...
 			mLoader = createLoader();
-			mLoader.startLoad(info);
+			mLoader.startLoad(info, priority);
 		} else {
 			// キャッシュから取得できたとき
 			setBitmap(newBitmap);
@@ -255,6 +264,17 @@ public abstract class ThumbnailLoaderDrawable extends Drawable implements Runnab
 		invalidateSelf();
 	}
 
+	/**
+	 * 非同期読み込み中であれば中断要求する
+	 * 未実行ならスレッドプールのキューから削除される
+	 * (RecyclerViewでViewHolderがリサイクルされたとき等の画面外の読み込みの取り消し用)
+	 */
+	public void cancelLoad() {
+		if (mLoader != null) {
+			mLoader.cancelLoad();
+		}
+	}
+
 	protected void setBitmap(@Nullable final Bitmap bitmap) {
 		if (bitmap != mBitmap) {
 			mBitmap = bitmap;
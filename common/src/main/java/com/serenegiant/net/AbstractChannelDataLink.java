@@ -25,14 +25,19 @@ import androidx.annotation.Nullable;
 import android.util.Log;
 
 import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ChannelReader;
+import com.serenegiant.io.ChannelWriter;
 import com.serenegiant.utils.HandlerThreadHandler;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -157,6 +162,11 @@ public abstract class AbstractChannelDataLink {
 		private final WeakReference<AbstractChannelDataLink> mWeakParent;
 		@Nullable
 		protected ByteChannel mChannel;
+		/**
+		 * 送信用, 送信スレッド上でのみアクセスする
+		 */
+		@Nullable
+		private ChannelWriter mWriter;
 		private volatile boolean mIsRunning = true;
 		private volatile boolean mIsInit;
 		/** 送信データをワーカースレッド上で処理するためのHandler */
@@ -370,6 +380,38 @@ public abstract class AbstractChannelDataLink {
 		public void send(@NonNull final ByteBuffer value) throws IOException {
 			send(TYPE_BYTE_BUFFER, value);
 		}
+
+		/**
+		 * ファイルの内容を送信
+		 * 受信側ではByteBufferとして受信する(#send(ByteBuffer)と同じ)
+		 * ファイルの内容はFileChannel#transferToで送信するので
+		 * ユーザー空間の配列へ読み込まずに送信できる(録画済みのセグメントファイル等の送信用)
+		 * @param file 2GB未満のファイル
+		 * @throws IOException
+		 */
+		public void send(@NonNull final File file) throws IOException {
+			send(file, null);
+		}
+
+		/**
+		 * ファイルの内容を送信
+		 * 受信側ではByteBufferとして受信する(#send(ByteBuffer)と同じ)
+		 * ファイルの内容はFileChannel#transferToで送信するので
+		 * ユーザー空間の配列へ読み込まずに送信できる(録画済みのセグメントファイル等の送信用)
+		 * 送信途中でcallbackにより中断した場合等、途中までしか送信できなかったときは
+		 * 受信側とのフォーマットがずれるので接続を切断してからCallback#onErrorを呼ぶ
+		 * @param file 2GB未満のファイル
+		 * @param callback 送信の進捗コールバック, 送信スレッド上で呼ばれる
+		 * @throws IOException
+		 */
+		public void send(@NonNull final File file,
+			@Nullable final ChannelHelper.TransferCallback callback) throws IOException {
+
+			if (file.length() > Integer.MAX_VALUE) {
+				throw new IOException("file too large:" + file.length());
+			}
+			send(TYPE_BYTE_BUFFER, new FileTransfer(file, callback));
+		}
 		
 		/**
 		 * データを送信
@@ -381,6 +423,8 @@ public abstract class AbstractChannelDataLink {
 				send(TYPE_NULL, null);
 			} else if (value instanceof ByteBuffer) {
 				send(TYPE_BYTE_BUFFER, value);
+			} else if (value instanceof File) {
+				send((File)value);
 			} else if (value instanceof String) {
 				send(TYPE_STRING, value);
 			} else if (value instanceof CharSequence) {
@@ -468,54 +512,57 @@ public abstract class AbstractChannelDataLink {
 			throws IOException, ClassNotFoundException {
 			
 			if (DEBUG) Log.v(TAG, "Client#doReceiveLoop:");
-			
+			final ByteChannel channel = mChannel;
+			if (channel == null) throw new IOException("channel is null");
+			// 受信毎にワーク用のByteBufferを生成しないようにChannelReaderを使う
+			final ChannelReader reader = new ChannelReader(channel);
 			for (; mIsRunning; ) {
 				try {
 					// 先頭は種類
-					final int type = ChannelHelper.readInt(mChannel);
+					final int type = reader.readInt();
 					if (DEBUG) Log.v(TAG, "Client#doReceiveLoop:type=" + type);
 					switch (type) {
 					case TYPE_NULL:
 						callOnReceive(null);
 						break;
 					case TYPE_BYTE_BUFFER:
-						callOnReceive(ChannelHelper.readByteBuffer(mChannel));
+						callOnReceive(reader.readByteBuffer());
 						break;
 					case TYPE_BOOL:
-						callOnReceive(ChannelHelper.readBoolean(mChannel));
+						callOnReceive(reader.readBoolean());
 						break;
 					case TYPE_INT:
-						callOnReceive(ChannelHelper.readInt(mChannel));
+						callOnReceive(reader.readInt());
 						break;
 					case TYPE_LONG:
-						callOnReceive(ChannelHelper.readLong(mChannel));
+						callOnReceive(reader.readLong());
 						break;
 					case TYPE_FLOAT:
-						callOnReceive(ChannelHelper.readFloat(mChannel));
+						callOnReceive(reader.readFloat());
 						break;
 					case TYPE_DOUBLE:
-						callOnReceive(ChannelHelper.readDouble(mChannel));
+						callOnReceive(reader.readDouble());
 						break;
 					case TYPE_STRING:
-						callOnReceive(ChannelHelper.readString(mChannel));
+						callOnReceive(reader.readString());
 						break;
 					case TYPE_BYTE_ARRAY:
-						callOnReceive(ChannelHelper.readByteArray(mChannel));
+						callOnReceive(reader.readByteArray());
 						break;
 					case TYPE_BOOL_ARRAY:
-						callOnReceive(ChannelHelper.readBooleanArray(mChannel));
+						callOnReceive(reader.readBooleanArray());
 						break;
 					case TYPE_INT_ARRAY:
-						callOnReceive(ChannelHelper.readIntArray(mChannel));
+						callOnReceive(reader.readIntArray());
 						break;
 					case TYPE_LONG_ARRAY:
-						callOnReceive(ChannelHelper.readLongArray(mChannel));
+						callOnReceive(reader.readLongArray());
 						break;
 					case TYPE_FLOAT_ARRAY:
-						callOnReceive(ChannelHelper.readFloatArray(mChannel));
+						callOnReceive(reader.readFloatArray());
 						break;
 					case TYPE_DOUBLE_ARRAY:
-						callOnReceive(ChannelHelper.readDoubleArray(mChannel));
+						callOnReceive(reader.readDoubleArray());
 						break;
 					}
 				} catch (final SocketException | ClosedChannelException e) {
@@ -597,97 +644,118 @@ public abstract class AbstractChannelDataLink {
 					return true;
 				}
 				// データ送信
+				if ((mWriter == null) || (mWriter.channel() != mChannel)) {
+					mWriter = new ChannelWriter(mChannel);
+				}
+				final ChannelWriter writer = mWriter;
+				// 種類とデータをまとめて書き込めるようにChannelWriterを使う
 				switch (msg.what) {
 				case TYPE_NULL:
-					ChannelHelper.write(mChannel, TYPE_NULL);
+					writer.write(TYPE_NULL);
+					writer.flush();
 					return true;
 				case TYPE_BYTE_BUFFER:
 					if (msg.obj instanceof ByteBuffer) {
-						ChannelHelper.write(mChannel, TYPE_BYTE_BUFFER);
-						ChannelHelper.write(mChannel, (ByteBuffer)msg.obj);
+						writer.write(TYPE_BYTE_BUFFER);
+						writer.write((ByteBuffer)msg.obj);
+					} else if (msg.obj instanceof FileTransfer) {
+						sendFile(writer, (FileTransfer)msg.obj);
 					}
+					writer.flush();
 					return true;
 				case TYPE_BOOL:
 					if (msg.obj instanceof Boolean) {
-						ChannelHelper.write(mChannel, TYPE_BOOL);
-						ChannelHelper.write(mChannel, (boolean)msg.obj);
+						writer.write(TYPE_BOOL);
+						writer.write((boolean)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_INT:
 					if (msg.obj instanceof Integer) {
-						ChannelHelper.write(mChannel, TYPE_INT);
-						ChannelHelper.write(mChannel, (int)msg.obj);
+						writer.write(TYPE_INT);
+						writer.write((int)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_LONG:
 					if (msg.obj instanceof Long) {
-						ChannelHelper.write(mChannel, TYPE_LONG);
-						ChannelHelper.write(mChannel, (long)msg.obj);
+						writer.write(TYPE_LONG);
+						writer.write((long)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_FLOAT:
 					if (msg.obj instanceof Float) {
-						ChannelHelper.write(mChannel, TYPE_FLOAT);
-						ChannelHelper.write(mChannel, (float)msg.obj);
+						writer.write(TYPE_FLOAT);
+						writer.write((float)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_DOUBLE:
 					if (msg.obj instanceof Double) {
-						ChannelHelper.write(mChannel, TYPE_DOUBLE);
-						ChannelHelper.write(mChannel, (double)msg.obj);
+						writer.write(TYPE_DOUBLE);
+						writer.write((double)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_STRING:
 					if (msg.obj instanceof String) {
-						ChannelHelper.write(mChannel, TYPE_STRING);
-						ChannelHelper.write(mChannel, (String)msg.obj);
+						writer.write(TYPE_STRING);
+						writer.write((String)msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_BYTE_ARRAY:
 					if (msg.obj instanceof byte[]) {
-						ChannelHelper.write(mChannel, TYPE_BYTE_ARRAY);
-						ChannelHelper.write(mChannel, (byte[])msg.obj);
+						writer.write(TYPE_BYTE_ARRAY);
+						writer.write((byte[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_BOOL_ARRAY:
 					if (msg.obj instanceof boolean[]) {
-						ChannelHelper.write(mChannel, TYPE_BOOL_ARRAY);
-						ChannelHelper.write(mChannel, (boolean[])msg.obj);
+						writer.write(TYPE_BOOL_ARRAY);
+						writer.write((boolean[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_INT_ARRAY:
 					if (msg.obj instanceof int[]) {
-						ChannelHelper.write(mChannel, TYPE_INT_ARRAY);
-						ChannelHelper.write(mChannel, (int[])msg.obj);
+						writer.write(TYPE_INT_ARRAY);
+						writer.write((int[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_LONG_ARRAY:
 					if (msg.obj instanceof long[]) {
-						ChannelHelper.write(mChannel, TYPE_LONG_ARRAY);
-						ChannelHelper.write(mChannel, (long[])msg.obj);
+						writer.write(TYPE_LONG_ARRAY);
+						writer.write((long[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_FLOAT_ARRAY:
 					if (msg.obj instanceof float[]) {
-						ChannelHelper.write(mChannel, TYPE_FLOAT_ARRAY);
-						ChannelHelper.write(mChannel, (float[])msg.obj);
+						writer.write(TYPE_FLOAT_ARRAY);
+						writer.write((float[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
 				case TYPE_DOUBLE_ARRAY:
 					if (msg.obj instanceof double[]) {
-						ChannelHelper.write(mChannel, TYPE_DOUBLE_ARRAY);
-						ChannelHelper.write(mChannel, (double[])msg.obj);
+						writer.write(TYPE_DOUBLE_ARRAY);
+						writer.write((double[])msg.obj);
+						writer.flush();
 						return true;
 					}
 					break;
@@ -702,7 +770,64 @@ public abstract class AbstractChannelDataLink {
 			
 			return false;
 		}
-		
+
+		/**
+		 * ファイルの内容をByteBufferと同じフォーマットで送信する, 送信スレッド上で実行
+		 * サイズの確認と送信するサイズには送信時に取得した同じ値を使う
+		 * サイズを送信した後にコールバックで中断した場合やファイルが縮小した場合等で
+		 * 途中までしか送信できなかったときは、受信側とのフォーマットがずれて
+		 * 以降のデータを正しく受信できなくなるので接続を切断する
+		 * @param writer
+		 * @param transfer
+		 * @throws IOException
+		 */
+		private void sendFile(@NonNull final ChannelWriter writer,
+			@NonNull final FileTransfer transfer) throws IOException {
+
+			final FileInputStream in = new FileInputStream(transfer.file);
+			boolean sending = false;
+			try {
+				final FileChannel src = in.getChannel();
+				final long size = src.size();
+				if (size > Integer.MAX_VALUE) {
+					// まだ何も送信していないので接続はそのまま使える
+					throw new IOException("file too large:" + size);
+				}
+				sending = true;
+				writer.write(TYPE_BYTE_BUFFER);
+				writer.write((int)size);
+				writer.flush();
+				final long transferred = ChannelHelper.transferTo(
+					src, 0, size, writer.channel(), transfer.callback);
+				if (transferred != size) {
+					throw new IOException("transfer aborted:" + transferred + "/" + size);
+				}
+				sending = false;
+			} finally {
+				if (sending) {
+					// 途中までしか送信できなかったので接続を切断する
+					internalRelease();
+				}
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * ファイル送信要求保持用
+	 */
+	private static class FileTransfer {
+		@NonNull
+		private final File file;
+		@Nullable
+		private final ChannelHelper.TransferCallback callback;
+
+		private FileTransfer(@NonNull final File file,
+			@Nullable final ChannelHelper.TransferCallback callback) {
+
+			this.file = file;
+			this.callback = callback;
+		}
 	}
 
 }
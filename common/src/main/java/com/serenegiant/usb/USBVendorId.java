@@ -21,14 +21,15 @@ package com.serenegiant.usb;
 */
 
 import android.text.TextUtils;
-import android.util.SparseArray;
+
+import com.serenegiant.collections.IntObjectMap;
 
 import java.util.Locale;
 
 import androidx.annotation.NonNull;
 
 public class USBVendorId {
-	private static final SparseArray<String> IDS = new SparseArray<String>();
+	private static final IntObjectMap<String> IDS = new IntObjectMap<String>(1024);
 
 	private USBVendorId() {
 		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
@@ -0,0 +1,406 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 2のべき乗のサイズクラス毎にByteBufferを再利用するためのアリーナ
+ * 要求サイズ以上で最小のサイズクラスのバッファを返すので、
+ * サイズが大きく変動するデータ(映像のIフレームとPフレーム等)を扱っても
+ * バッファの再生成(GC)が起こりにくい
+ * サイズクラス毎にプール内に保持する最大バイト数(バジェット)を設定できる
+ * 最大サイズクラスより大きなバッファ要求やダイレクトバッファの確保に失敗したときは
+ * ヒープ上に要求サイズのバッファを確保する(フォールバック, プールへは戻さない)
+ */
+public class ByteBufferArena {
+	private static final int DEFAULT_MIN_SIZE = 1024;				// 1KB
+	// 最大サイズクラスでも1つ以上保持できるように最大サイズクラスはバジェット以下にする
+	private static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;	// 4MB
+	private static final long DEFAULT_BUDGET_PER_CLASS = 4 * 1024 * 1024;	// 4MB
+
+	private final boolean mDirect;
+	private final int mMinShift;
+	private final int mMaxShift;
+	@NonNull
+	private final SizeClass[] mClasses;
+	@NonNull
+	private final AtomicLong mFallbackCount = new AtomicLong();
+	@NonNull
+	private final AtomicLong mFallbackBytes = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 * サイズクラスは1KB〜4MB, サイズクラス毎のバジェットは4MB
+	 * @param direct true: ダイレクトバッファを確保する, false: ヒープ上に確保する
+	 */
+	public ByteBufferArena(final boolean direct) {
+		this(direct, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BUDGET_PER_CLASS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param direct true: ダイレクトバッファを確保する, false: ヒープ上に確保する
+	 * @param minSize 最小サイズクラス, 2のべき乗に切り上げる
+	 * @param maxSize 最大サイズクラス, 2のべき乗に切り上げる
+	 * @param budgetPerClass サイズクラス毎にプール内に保持する最大バイト数
+	 */
+	public ByteBufferArena(final boolean direct,
+		@IntRange(from=1) final int minSize, @IntRange(from=1) final int maxSize,
+		final long budgetPerClass) {
+
+		mDirect = direct;
+		mMinShift = shift(minSize);
+		mMaxShift = Math.max(mMinShift, shift(maxSize));
+		mClasses = new SizeClass[mMaxShift - mMinShift + 1];
+		for (int i = 0; i < mClasses.length; i++) {
+			mClasses[i] = new SizeClass(1 << (mMinShift + i), budgetPerClass);
+		}
+	}
+
+	/**
+	 * ダイレクトバッファを確保するかどうか
+	 * @return
+	 */
+	public boolean isDirect() {
+		return mDirect;
+	}
+
+	/**
+	 * 指定したサイズを保持するのに使うサイズクラスのバッファ容量を取得
+	 * 最大サイズクラスを超える場合は指定したサイズをそのまま返す
+	 * @param size
+	 * @return
+	 */
+	public int classSize(@IntRange(from=0) final int size) {
+		final int ix = classIndex(size);
+		return ix >= 0 ? mClasses[ix].size : size;
+	}
+
+	/**
+	 * 指定したサイズクラスのバジェットを設定する
+	 * 現在プールに保持しているバッファが新しいバジェットを超えている場合は破棄する
+	 * @param classSize サイズクラス(バッファ容量), 2のべき乗でない場合は切り上げる
+	 * @param budget プール内に保持する最大バイト数
+	 * @throws IllegalArgumentException サイズクラスの範囲外の時
+	 */
+	public void setBudget(final int classSize, final long budget)
+		throws IllegalArgumentException {
+
+		final int ix = classIndex(classSize);
+		if (ix < 0) {
+			throw new IllegalArgumentException("unknown size class," + classSize);
+		}
+		mClasses[ix].setBudget(budget);
+	}
+
+	/**
+	 * 指定したサイズ以上の容量を持つByteBufferを取得する
+	 * 返すByteBufferはclear済み(position=0, limit=capacity)でバイトオーダーはBIG_ENDIAN
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer obtain(@IntRange(from=0) final int size) {
+		final int ix = classIndex(size);
+		if (ix >= 0) {
+			final SizeClass sizeClass = mClasses[ix];
+			ByteBuffer result = sizeClass.poll(size);
+			if (result == null) {
+				try {
+					result = mDirect
+						? ByteBuffer.allocateDirect(sizeClass.size)
+						: ByteBuffer.allocate(sizeClass.size);
+				} catch (final OutOfMemoryError e) {
+					// ダイレクトバッファを確保できなかったときはヒープへフォールバックする
+					// (サイズクラスのミスとしては数えない)
+					return fallback(size);
+				}
+				sizeClass.allocated(size);
+			}
+			result.clear();
+			result.order(ByteOrder.BIG_ENDIAN);
+			return result;
+		} else {
+			return fallback(size);
+		}
+	}
+
+	/**
+	 * #obtainで取得したByteBufferを返却する
+	 * フォールバックで確保したバッファやこのアリーナのサイズクラスに一致しないバッファ、
+	 * バジェットを超える場合は破棄する
+	 * @param buffer
+	 * @return true: プールへ返却した, false: 破棄した
+	 */
+	public boolean recycle(@NonNull final ByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		if ((buffer.isDirect() == mDirect) && !buffer.isReadOnly()
+			&& (Integer.bitCount(capacity) == 1)) {
+
+			final int ix = classIndex(capacity);
+			if ((ix >= 0) && (mClasses[ix].size == capacity)) {
+				return mClasses[ix].offer(buffer);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * プール内に保持しているバッファを全て破棄する
+	 */
+	public void clear() {
+		for (final SizeClass sizeClass: mClasses) {
+			sizeClass.clear();
+		}
+	}
+
+	/**
+	 * 統計情報を取得する
+	 * @return
+	 */
+	@NonNull
+	public Stats getStats() {
+		final ClassStats[] classes = new ClassStats[mClasses.length];
+		for (int i = 0; i < mClasses.length; i++) {
+			classes[i] = mClasses[i].getStats();
+		}
+		return new Stats(mDirect, classes, mFallbackCount.get(), mFallbackBytes.get());
+	}
+
+	@NonNull
+	private ByteBuffer fallback(final int size) {
+		mFallbackCount.incrementAndGet();
+		mFallbackBytes.addAndGet(size);
+		return ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * サイズクラスのインデックスを取得する
+	 * @param size
+	 * @return 最大サイズクラスを超える時は-1
+	 */
+	private int classIndex(final int size) {
+		final int shift = Math.max(mMinShift, shift(size));
+		return shift <= mMaxShift ? shift - mMinShift : -1;
+	}
+
+	/**
+	 * 指定したサイズ以上の最小の2のべき乗の指数を取得する
+	 * @param size
+	 * @return
+	 */
+	private static int shift(final int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * サイズクラス毎のプール
+	 */
+	private static final class SizeClass {
+		private final int size;
+		@NonNull
+		private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<ByteBuffer>();
+		private long mBudget;
+		/** プールからの取得に成功した回数 */
+		private long mHits;
+		/** プールが空で新規確保した回数 */
+		private long mMisses;
+		/** バジェット超過で破棄した回数 */
+		private long mDiscarded;
+		/** 要求されたバイト数の累計 */
+		private long mRequestedBytes;
+
+		private SizeClass(final int size, final long budget) {
+			this.size = size;
+			mBudget = budget;
+		}
+
+		/**
+		 * プールからバッファを取得する
+		 * @param requested
+		 * @return プールが空ならnull, 呼び出し元で新規確保できれば#allocatedを呼ぶこと
+		 */
+		private synchronized ByteBuffer poll(final int requested) {
+			final ByteBuffer result = mPool.pollLast();
+			if (result != null) {
+				mHits++;
+				mRequestedBytes += requested;
+			}
+			return result;
+		}
+
+		/**
+		 * プールが空で新規確保したことを記録する
+		 * @param requested
+		 */
+		private synchronized void allocated(final int requested) {
+			mMisses++;
+			mRequestedBytes += requested;
+		}
+
+		private synchronized boolean offer(@NonNull final ByteBuffer buffer) {
+			if ((long)(mPool.size() + 1) * size <= mBudget) {
+				mPool.addLast(buffer);
+				return true;
+			} else {
+				mDiscarded++;
+				return false;
+			}
+		}
+
+		private synchronized void setBudget(final long budget) {
+			mBudget = budget;
+			while (!mPool.isEmpty() && ((long)mPool.size() * size > mBudget)) {
+				mPool.pollFirst();
+				mDiscarded++;
+			}
+		}
+
+		private synchronized void clear() {
+			mPool.clear();
+		}
+
+		@NonNull
+		private synchronized ClassStats getStats() {
+			return new ClassStats(size, mBudget, mPool.size(),
+				mHits, mMisses, mDiscarded, mRequestedBytes);
+		}
+	}
+
+	/**
+	 * サイズクラス毎の統計情報
+	 */
+	public static class ClassStats {
+		/** サイズクラス(バッファ容量) */
+		public final int classSize;
+		/** プール内に保持する最大バイト数 */
+		public final long budget;
+		/** プール内に保持しているバッファの数 */
+		public final int pooled;
+		/** プールから取得できた回数 */
+		public final long hits;
+		/** プールが空で新規確保した回数 */
+		public final long misses;
+		/** バジェット超過で破棄した回数 */
+		public final long discarded;
+		/** 要求されたバイト数の累計 */
+		public final long requestedBytes;
+
+		private ClassStats(final int classSize, final long budget, final int pooled,
+			final long hits, final long misses, final long discarded, final long requestedBytes) {
+
+			this.classSize = classSize;
+			this.budget = budget;
+			this.pooled = pooled;
+			this.hits = hits;
+			this.misses = misses;
+			this.discarded = discarded;
+			this.requestedBytes = requestedBytes;
+		}
+
+		/**
+		 * 割り当てたバイト数の累計
+		 * @return
+		 */
+		public long grantedBytes() {
+			return (hits + misses) * classSize;
+		}
+
+		/**
+		 * 内部断片化率(要求サイズに対して余分に割り当てたバイト数の割合)
+		 * @return 0〜1
+		 */
+		public float fragmentation() {
+			final long granted = grantedBytes();
+			return granted > 0 ? (granted - requestedBytes) / (float)granted : 0.0f;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"ClassStats{size=%d,budget=%d,pooled=%d,hits=%d,misses=%d,discarded=%d,fragmentation=%.3f}",
+				classSize, budget, pooled, hits, misses, discarded, fragmentation());
+		}
+	}
+
+	/**
+	 * ByteBufferArenaの統計情報
+	 */
+	public static class Stats {
+		public final boolean direct;
+		@NonNull
+		public final ClassStats[] classes;
+		/** ヒープへフォールバックした回数 */
+		public final long fallbackCount;
+		/** ヒープへフォールバックしたバイト数の累計 */
+		public final long fallbackBytes;
+
+		private Stats(final boolean direct, @NonNull final ClassStats[] classes,
+			final long fallbackCount, final long fallbackBytes) {
+
+			this.direct = direct;
+			this.classes = classes;
+			this.fallbackCount = fallbackCount;
+			this.fallbackBytes = fallbackBytes;
+		}
+
+		/**
+		 * プール内に保持しているバイト数
+		 * @return
+		 */
+		public long pooledBytes() {
+			long result = 0;
+			for (final ClassStats stats: classes) {
+				result += (long)stats.pooled * stats.classSize;
+			}
+			return result;
+		}
+
+		/**
+		 * 全サイズクラスでの内部断片化率
+		 * @return 0〜1
+		 */
+		public float fragmentation() {
+			long granted = 0, requested = 0;
+			for (final ClassStats stats: classes) {
+				granted += stats.grantedBytes();
+				requested += stats.requestedBytes;
+			}
+			return granted > 0 ? (granted - requested) / (float)granted : 0.0f;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Stats{direct=%b,pooledBytes=%d,fragmentation=%.3f,fallbackCount=%d,fallbackBytes=%d}",
+				direct, pooledBytes(), fragmentation(), fallbackCount, fallbackBytes);
+		}
+	}
+}
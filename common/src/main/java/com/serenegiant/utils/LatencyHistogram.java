@@ -0,0 +1,205 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.FloatRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 処理時間等の分布を記録するための固定バケットのヒストグラム
+ * HdrHistogramと同様に2のべき乗毎の区間を16分割した対数線形バケットを使うので
+ * 記録する値の大きさに関係なく相対誤差は最大で約6%になる
+ * 記録時(#record)にメモリー確保は行わない
+ * 値はナノ秒を想定しているが単位は問わない(負の値は0として扱う)
+ */
+public class LatencyHistogram {
+	/**
+	 * 2のべき乗毎の区間の分割数のビット数(4なら16分割)
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/**
+	 * 記録可能な最大値のビット数, 2^40ナノ秒≒18分
+	 * これより大きな値は最後のバケットへ入れる
+	 */
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	private static final int BUCKET_COUNT
+		= (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	@NonNull
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	@NonNull
+	private final AtomicLong mTotal = new AtomicLong();
+	@NonNull
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * 値を記録する
+	 * @param value
+	 */
+	public void record(final long value) {
+		final long v = Math.max(0, value);
+		mCounts.incrementAndGet(bucketIndex(Math.min(v, MAX_VALUE)));
+		mTotal.addAndGet(v);
+		StripedCounter.updateMax(mMax, v);
+	}
+
+	/**
+	 * 記録した値をクリアする
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mTotal.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * 現在の記録内容のスナップショットを取得する
+	 * 記録中に呼び出した場合は各値の間で厳密な整合性はない
+	 * @return
+	 */
+	@NonNull
+	public Snapshot snapshot() {
+		final long[] counts = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+			count += counts[i];
+		}
+		return new Snapshot(counts, count, mTotal.get(), mMax.get());
+	}
+
+	/**
+	 * 値に対応するバケットのインデックスを取得
+	 * @param value 0以上MAX_VALUE以下
+	 * @return
+	 */
+	private static int bucketIndex(final long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+		final int exp = 63 - Long.numberOfLeadingZeros(value);	// exp >= SUB_BUCKET_BITS
+		final int sub = (int)(value >>> (exp - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+	}
+
+	/**
+	 * バケットに入る値の最大値を取得
+	 * @param index
+	 * @return
+	 */
+	private static long bucketUpperBound(final int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		final int shift = index / SUB_BUCKET_COUNT - 1;
+		final long lower = (long)(SUB_BUCKET_COUNT + (index % SUB_BUCKET_COUNT)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * LatencyHistogramのスナップショット
+	 */
+	public static class Snapshot {
+		@NonNull
+		private final long[] mCounts;
+		/** 記録した値の数 */
+		public final long count;
+		/** 記録した値の合計 */
+		public final long total;
+		/** 記録した値の最大値 */
+		public final long max;
+
+		private Snapshot(@NonNull final long[] counts,
+			final long count, final long total, final long max) {
+
+			mCounts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * 平均値
+		 * @return
+		 */
+		public double mean() {
+			return count > 0 ? total / (double)count : 0.0;
+		}
+
+		/**
+		 * 指定したパーセンタイルの値を取得する
+		 * 対応するバケットの上限値を返すので実際の値よりも最大で約6%大きくなる
+		 * @param percentile 0-100
+		 * @return 記録がなければ0
+		 */
+		public long getValueAtPercentile(
+			@FloatRange(from=0.0, to=100.0) final double percentile) {
+
+			if (count <= 0) {
+				return 0;
+			}
+			final double p = Math.max(0.0, Math.min(100.0, percentile));
+			final long target = Math.max(1, (long)Math.ceil(p / 100.0 * count));
+			long accum = 0;
+			for (int i = 0; i < mCounts.length; i++) {
+				accum += mCounts[i];
+				if (accum >= target) {
+					return Math.min(bucketUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * 中央値(50パーセンタイル)
+		 * @return
+		 */
+		public long p50() {
+			return getValueAtPercentile(50.0);
+		}
+
+		/**
+		 * 99パーセンタイル
+		 * @return
+		 */
+		public long p99() {
+			return getValueAtPercentile(99.0);
+		}
+
+		/**
+		 * 値をナノ秒とみなしてマイクロ秒単位で文字列化する
+		 * @return
+		 */
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"{count=%d,mean=%.1fus,p50=%.1fus,p99=%.1fus,max=%.1fus}",
+				count, mean() / 1000.0, p50() / 1000.0, p99() / 1000.0, max / 1000.0);
+		}
+	}
+}
@@ -22,10 +22,23 @@ import android.util.Log;
 
 import com.serenegiant.collections.ReentrantReadWriteList;
 
-import java.util.concurrent.LinkedBlockingDeque;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
@@ -37,6 +50,15 @@ import androidx.annotation.WorkerThread;
  * Looper/Handlerを使わずに簡易的にメッセージ処理を行うための
  * ヘルパークラス
  * MessageTaskまたはその継承クラスをTreadへ引き渡して実行する
+ * #setBatchModeでバッチモードを有効にすると、ワーカースレッドが起床する毎に
+ * キュー内の要求メッセージをまとめて取り出し、#isCoalescableがtrueを返す
+ * 要求コードについては同じ要求コードの最新のもの以外を破棄してから処理する
+ * Threadへ引き渡す代わりに#start(Executor)で実行開始すると、専用のスレッドを使わずに
+ * MessageTaskExecutor等の共有ワーカースレッド上で要求メッセージを処理する
+ * 要求メッセージは優先度(PRIORITY_HIGH/NORMAL/LOW)毎のキューに入り、優先度の高いものから処理する
+ * 有効期限付きで追加した要求メッセージは期限切れになっていればprocessRequestを呼ばずに破棄する
+ * #setLatencyStatsEnabledで有効にすると要求コード毎にキューでの待ち時間と
+ * processRequestの実行時間をLatencyHistogramへ記録する
  */
 public abstract class MessageTask implements Runnable {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
@@ -72,6 +94,14 @@ public abstract class MessageTask implements Runnable {
 		int request_for_result;
 		Object result;
 		MessageCallback callback;
+		/**
+		 * 有効期限(System.nanoTime基準), 0なら期限なし
+		 */
+		long deadlineNs;
+		/**
+		 * キューへ追加した時刻(System.nanoTime基準), 処理時間を記録しないときは0
+		 */
+		long queuedNs;
 
 		private Request() {
 			request = request_for_result = REQUEST_TASK_NON;
@@ -125,6 +155,7 @@ public abstract class MessageTask implements Runnable {
 				", arg2=" + arg2 +
 				", obj=" + obj +
 				", request_for_result=" + request_for_result +
+				", deadlineNs=" + deadlineNs +
 				", result=" + result +
 				", callback=" + callback +
 				'}';
@@ -138,6 +169,32 @@ public abstract class MessageTask implements Runnable {
 	protected static final int REQUEST_TASK_START = -8;
 	protected static final int REQUEST_TASK_QUIT = -9;
 
+	/**
+	 * 共有ワーカースレッド上で実行する場合に1回の起床で処理する要求メッセージの最大数
+	 */
+	private static final int MAX_REQUESTS_PER_DRAIN = 32;
+
+	/**
+	 * 優先度: 高, 制御用の要求メッセージ等
+	 */
+	public static final int PRIORITY_HIGH = 0;
+	/**
+	 * 優先度: 通常, offer(int, int, int, Object)等で追加したときのデフォルト
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	/**
+	 * 優先度: 低
+	 */
+	public static final int PRIORITY_LOW = 2;
+	private static final int NUM_PRIORITIES = 3;
+
+	@IntDef({
+		PRIORITY_HIGH,
+		PRIORITY_NORMAL,
+		PRIORITY_LOW})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Priority {}
+
 	@NonNull
 	private final Object mSync = new Object();
 	/** プール/キューのサイズ, -1なら無制限 */
@@ -145,8 +202,59 @@ public abstract class MessageTask implements Runnable {
 	@NonNull
 	private final ReentrantReadWriteList<Request> mRequestPool;
 	@NonNull
-	private final LinkedBlockingDeque<Request> mRequestQueue;
+	private final RequestQueue mRequestQueue;
+	/**
+	 * バッチモード時にキューからまとめて取り出した要求メッセージ
+	 * ワーカースレッド以外からも#removeRequestで参照するので自分自身で排他制御すること
+	 */
+	@NonNull
+	private final ArrayDeque<Request> mPendingRequests = new ArrayDeque<Request>();
+	/**
+	 * 要求メッセージを統合する際に処理済みの要求コードを保持するための作業用配列
+	 * ワーカースレッド上でのみアクセスする
+	 */
+	@NonNull
+	private int[] mCoalesceWork = new int[8];
+	/**
+	 * 統合により破棄する要求メッセージを一時的に保持するための作業用リスト
+	 * mPendingRequestsのロックを解放してからonRequestDroppedを呼ぶために使う
+	 * ワーカースレッド上でのみアクセスする
+	 */
+	@NonNull
+	private final ArrayList<Request> mCoalescedRequests = new ArrayList<Request>();
 	private volatile boolean mIsRunning, mFinished;
+	private volatile boolean mBatchMode;
+	/**
+	 * 共有ワーカースレッド上で実行する場合のExecutor, 専用スレッドで実行する場合はnull
+	 */
+	@Nullable
+	private volatile Executor mExecutor;
+	/**
+	 * 共有ワーカースレッド上での要求メッセージの処理をExecutorへ登録済みかどうか
+	 */
+	@NonNull
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	/**
+	 * 共有ワーカースレッド上で開始要求を処理したかどうか
+	 */
+	private volatile boolean mStarted;
+	/**
+	 * 期限切れまたは統合で破棄した要求メッセージの数
+	 */
+	@NonNull
+	private final AtomicLong mDroppedRequests = new AtomicLong();
+	/**
+	 * 要求コード毎の処理時間を記録するかどうか
+	 */
+	private volatile boolean mLatencyStatsEnabled;
+	/**
+	 * 要求コード毎の処理時間, 要求コード順にソート済み
+	 * 記録時にロックしなくていいように要求コードを追加するときは配列ごと置き換える
+	 */
+	@NonNull
+	private volatile RequestLatency[] mRequestLatencies = new RequestLatency[0];
+	@NonNull
+	private final Object mLatencySync = new Object();
 	private Thread mWorkerThread;
 	private long mWorkerThreadId;
 
@@ -176,13 +284,8 @@ public abstract class MessageTask implements Runnable {
 	 */
 	public MessageTask(final int max_request, final int init_num) {
 		mMaxRequest = max_request;
-		if (max_request > 0) {
-			mRequestPool = new ReentrantReadWriteList<Request>();
-			mRequestQueue = new LinkedBlockingDeque<Request>(max_request);
-		} else {
-			mRequestPool = new ReentrantReadWriteList<Request>();
-			mRequestQueue = new LinkedBlockingDeque<Request>();
-		}
+		mRequestPool = new ReentrantReadWriteList<Request>();
+		mRequestQueue = new RequestQueue(max_request);
 		for (int i = 0; i < init_num; i++) {
 			if (!mRequestPool.add(new Request())) break;
 		}
@@ -197,7 +300,8 @@ public abstract class MessageTask implements Runnable {
 	 */
 	protected void init(final int arg1, final int arg2, @Nullable final Object obj) {
 		mFinished = false;
-		mRequestQueue.offer(obtain(REQUEST_TASK_START, arg1, arg2, obj));
+		// 開始要求は優先度に関係なく最初に処理しないといけないので先頭へ追加する
+		mRequestQueue.offerFirst(obtain(REQUEST_TASK_START, arg1, arg2, obj));
 //		offer(REQUEST_TASK_START, arg1, arg2, obj);
 	}
 
@@ -237,9 +341,242 @@ public abstract class MessageTask implements Runnable {
 	protected abstract Object processRequest(final int request,
 		final int arg1, final int arg2, final Object obj) throws TaskBreak;
 
+	/**
+	 * 要求コードが統合可能かどうかを返す
+	 * バッチモード時にまとめて取り出した要求メッセージの中に統合可能な要求コードが
+	 * 複数含まれていれば、最後にキューへ追加されたもののみを残してそれ以外は破棄する
+	 * (破棄したときはonRequestDroppedが呼ばれる)
+	 * (描画要求のように最新のものだけを処理すればよい要求コードに対してtrueを返す)
+	 * 内部用の要求コードやofferAndWaitによる要求は統合しない
+	 * デフォルトは常にfalseを返す
+	 * @param request
+	 * @return
+	 */
+	protected boolean isCoalescable(final int request) {
+		return false;
+	}
+
+	/**
+	 * 要求コードに対応する優先度を返す
+	 * 優先度を指定しないofferで追加した要求メッセージはここで返した優先度のキューへ入る
+	 * 制御用の要求コードに対してPRIORITY_HIGHを返すと、溜まっている通常の
+	 * 要求メッセージよりも先に処理される
+	 * デフォルトは常にPRIORITY_NORMALを返す
+	 * @param request
+	 * @return
+	 */
+	@Priority
+	protected int getPriority(final int request) {
+		return PRIORITY_NORMAL;
+	}
+
+	/**
+	 * 有効期限切れまたはバッチモードでの統合で要求メッセージを破棄したときの処理
+	 * objが解放が必要なオブジェクトの場合等はオーバーライドして処理すること
+	 * デフォルトは何もしない
+	 * @param request
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 */
+	@WorkerThread
+	protected void onRequestDropped(final int request,
+		final int arg1, final int arg2, final Object obj) {
+	}
+
+	/**
+	 * 有効期限切れまたはバッチモードでの統合で破棄した要求メッセージの数を取得
+	 * @return
+	 */
+	public long getDroppedRequests() {
+		return mDroppedRequests.get();
+	}
+
+	/**
+	 * 有効期限切れまたはバッチモードでの統合で破棄した要求メッセージの数をクリアする
+	 */
+	public void resetDroppedRequests() {
+		mDroppedRequests.set(0);
+	}
+
+	/**
+	 * 要求コード毎のキューでの待ち時間とprocessRequestの実行時間の記録を有効/無効にする
+	 * 有効にした後に追加された要求メッセージから記録する
+	 * @param enabled
+	 */
+	public void setLatencyStatsEnabled(final boolean enabled) {
+		mLatencyStatsEnabled = enabled;
+	}
+
+	/**
+	 * 要求コード毎の処理時間を記録しているかどうか
+	 * @return
+	 */
+	public boolean isLatencyStatsEnabled() {
+		return mLatencyStatsEnabled;
+	}
+
+	/**
+	 * 要求コード毎のキューでの待ち時間とprocessRequestの実行時間のスナップショットを取得する
+	 * queueEventで追加したRunnableはREQUEST_TASK_RUNとして集計する
+	 * @return 要求コード順
+	 */
+	@NonNull
+	public LatencyStats[] getLatencyStats() {
+		final RequestLatency[] latencies = mRequestLatencies;
+		final LatencyStats[] result = new LatencyStats[latencies.length];
+		for (int i = 0; i < latencies.length; i++) {
+			final RequestLatency latency = latencies[i];
+			result[i] = new LatencyStats(latency.request,
+				latency.queueWait.snapshot(), latency.execution.snapshot());
+		}
+		return result;
+	}
+
+	/**
+	 * 要求コード毎の処理時間の記録をクリアする
+	 */
+	public void resetLatencyStats() {
+		synchronized (mLatencySync) {
+			mRequestLatencies = new RequestLatency[0];
+		}
+	}
+
+	/**
+	 * 要求コードに対応する処理時間記録用オブジェクトを取得する
+	 * 初めての要求コードであれば生成する
+	 * @param request
+	 * @return
+	 */
+	@NonNull
+	private RequestLatency getRequestLatency(final int request) {
+		RequestLatency[] latencies = mRequestLatencies;
+		int ix = RequestLatency.indexOf(latencies, request);
+		if (ix < 0) {
+			synchronized (mLatencySync) {
+				latencies = mRequestLatencies;
+				ix = RequestLatency.indexOf(latencies, request);
+				if (ix < 0) {
+					ix = -ix - 1;
+					final RequestLatency[] newLatencies = new RequestLatency[latencies.length + 1];
+					System.arraycopy(latencies, 0, newLatencies, 0, ix);
+					newLatencies[ix] = new RequestLatency(request);
+					System.arraycopy(latencies, ix, newLatencies, ix + 1, latencies.length - ix);
+					mRequestLatencies = latencies = newLatencies;
+				}
+			}
+		}
+		return latencies[ix];
+	}
+
+	/**
+	 * バッチモードを有効/無効にする(デフォルトは無効)
+	 * バッチモード時はワーカースレッドが起床する毎にキュー内の要求メッセージを
+	 * まとめて取り出すので起床回数とキューのロック回数が減る
+	 * ただしまとめて取り出した後にofferFirstで追加した要求メッセージは
+	 * 取り出し済みの要求メッセージを処理した後に実行される
+	 * @param batchMode
+	 */
+	public void setBatchMode(final boolean batchMode) {
+		mBatchMode = batchMode;
+	}
+
+	/**
+	 * バッチモードかどうかを取得
+	 * @return
+	 */
+	public boolean isBatchMode() {
+		return mBatchMode;
+	}
+
 	/** 要求メッセージを取り出す処理(要求メッセージがなければブロックされる) */
 	protected Request takeRequest() throws InterruptedException {
-		return mRequestQueue.take();
+		synchronized (mPendingRequests) {
+			// バッチモードを無効にした場合もまとめて取り出し済みの要求メッセージを先に処理する
+			final Request req = mPendingRequests.pollFirst();
+			if (req != null) {
+				return req;
+			}
+		}
+		final Request result = mRequestQueue.take();
+		if (mBatchMode && !mRequestQueue.isEmpty()) {
+			final Request req;
+			synchronized (mPendingRequests) {
+				mPendingRequests.add(result);
+				mRequestQueue.drainTo(mPendingRequests);
+				coalesceLocked();
+				req = mPendingRequests.pollFirst();
+			}
+			dropCoalesced();
+			return req;
+		}
+		return result;
+	}
+
+	/**
+	 * まとめて取り出した要求メッセージのうち統合可能な要求コードを持つものを
+	 * 最後に追加されたもの以外をmCoalescedRequestsへ移す
+	 * mPendingRequestsをロックした状態で呼び出すこと
+	 * ロックを解放した後でdropCoalescedを呼び出すこと
+	 */
+	private void coalesceLocked() {
+		int n = 0;
+		for (final Iterator<Request> itr = mPendingRequests.descendingIterator(); itr.hasNext(); ) {
+			final Request req = itr.next();
+			if ((req.request <= REQUEST_TASK_NON) || !isCoalescable(req.request)) {
+				continue;
+			}
+			boolean found = false;
+			for (int i = 0; i < n; i++) {
+				if (mCoalesceWork[i] == req.request) {
+					found = true;
+					break;
+				}
+			}
+			if (found) {
+				// 後から追加された同じ要求コードのRequestがあるので破棄する
+				itr.remove();
+				mCoalescedRequests.add(req);
+			} else {
+				if (n >= mCoalesceWork.length) {
+					final int[] work = new int[n * 2];
+					System.arraycopy(mCoalesceWork, 0, work, 0, n);
+					mCoalesceWork = work;
+				}
+				mCoalesceWork[n++] = req.request;
+			}
+		}
+	}
+
+	/**
+	 * coalesceLockedで統合により取り除いた要求メッセージを破棄する
+	 * mPendingRequestsのロックを解放した状態で呼び出すこと
+	 */
+	private void dropCoalesced() {
+		final int n = mCoalescedRequests.size();
+		if (n > 0) {
+			// mCoalescedRequestsの末尾が最も古い要求メッセージなので古い順に破棄する
+			for (int i = n - 1; i >= 0; i--) {
+				dropRequest(mCoalescedRequests.get(i));
+			}
+			mCoalescedRequests.clear();
+		}
+	}
+
+	/**
+	 * 要求メッセージを処理せずに破棄する
+	 * onRequestDroppedを呼び出してからプールへ返却する
+	 * @param request
+	 */
+	private void dropRequest(@NonNull final Request request) {
+		mDroppedRequests.incrementAndGet();
+		try {
+			onRequestDropped(request.request, request.arg1, request.arg2, request.obj);
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		request.request = request.request_for_result = REQUEST_TASK_NON;
+		mRequestPool.add(request);
 	}
 
 	public boolean waitReady() {
@@ -272,7 +609,9 @@ public abstract class MessageTask implements Runnable {
 	}
 
 	protected int getCurrentRequests() {
-		return mRequestQueue.size();
+		synchronized (mPendingRequests) {
+			return mRequestQueue.size() + mPendingRequests.size();
+		}
 	}
 
 	@Override
@@ -286,8 +625,201 @@ public abstract class MessageTask implements Runnable {
 			mIsRunning = false;
 			mFinished = true;
 		}
+		handleStart(request);
+		while (mIsRunning) {
+			try {
+				request = takeRequest();
+			} catch (final InterruptedException e) {
+				break;
+			}
+			if (!handleRequest(request)) {
+				break;
+			}
+		} // end of while
+		handleStop();
+	}
+
+	/**
+	 * 共有ワーカースレッド(Executor)上で実行開始する
+	 * 専用のスレッドを生成せずにExecutorのスレッドを複数のMessageTaskで共有するので
+	 * スレッド数を減らすことができる。要求メッセージの処理順序は専用スレッドの場合と同じで
+	 * 同時に複数の共有ワーカースレッド上で同じMessageTaskの要求メッセージが処理されることはない
+	 * ただしワーカースレッドは固定されないのでEglTaskのようにスレッドに依存する
+	 * (GLコンテキストを保持する等)場合には#newSingleThreadExecutorで生成した
+	 * MessageTaskExecutor以外では使えない。また要求メッセージを処理する毎に
+	 * #takeRequestは呼び出されないので、#takeRequestをオーバーライドしても無効
+	 * 代わりに共有ワーカースレッド上でまとめて要求メッセージを処理する前に#onBeforeDrainが呼ばれる
+	 * 共有ワーカースレッド上からofferAndWaitで他のMessageTaskの処理完了を待機する場合は
+	 * Executorのスレッド数が不足するとデッドロックするので注意
+	 * @param executor
+	 * @throws IllegalStateException すでに実行開始している
+	 */
+	public void start(@NonNull final Executor executor) throws IllegalStateException {
+		synchronized (mSync) {
+			if (mIsRunning || (mExecutor != null)) {
+				throw new IllegalStateException("already started");
+			}
+			mExecutor = executor;
+			mFinished = false;
+		}
+		schedule();
+	}
+
+	/**
+	 * 共有ワーカースレッド上で実行する場合に、要求メッセージをまとめて処理する前に呼ばれる
+	 * 直前に同じワーカースレッド上で他のMessageTaskが実行されていた可能性があるので
+	 * スレッドに紐付く状態を持つ場合はオーバーライドして復帰させること
+	 * デフォルトは何もしない
+	 */
+	@WorkerThread
+	protected void onBeforeDrain() {
+	}
+
+	/**
+	 * 共有ワーカースレッド上で実行中かどうか
+	 * @return
+	 */
+	protected boolean isShared() {
+		return mExecutor != null;
+	}
+
+	/**
+	 * 共有ワーカースレッド上で実行する場合に、未処理の要求メッセージがあれば
+	 * 要求メッセージの処理をExecutorへ登録する
+	 * すでに登録済みまたは処理中であれば何もしない
+	 */
+	private void schedule() {
+		final Executor executor = mExecutor;
+		if ((executor != null) && hasRequests()
+			&& mScheduled.compareAndSet(false, true)) {
+
+			try {
+				executor.execute(mDrainTask);
+			} catch (final RejectedExecutionException e) {
+				Log.w(TAG, e);
+				mScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * 未処理の要求メッセージがあるかどうか
+	 * @return
+	 */
+	private boolean hasRequests() {
+		if (!mRequestQueue.isEmpty()) {
+			return true;
+		}
+		synchronized (mPendingRequests) {
+			return !mPendingRequests.isEmpty();
+		}
+	}
+
+	/**
+	 * 共有ワーカースレッド上で要求メッセージを処理するためのRunnable
+	 */
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * 共有ワーカースレッド上で最大MAX_REQUESTS_PER_DRAIN個の要求メッセージを処理する
+	 * 他のMessageTaskが共有ワーカースレッドを使えるように、処理しきれなかった
+	 * 要求メッセージは改めてExecutorへ登録してから処理する
+	 */
+	private void drain() {
+		final Thread current = Thread.currentThread();
 		synchronized (mSync) {
-			if (mIsRunning) {
+			mWorkerThread = current;
+			mWorkerThreadId = current.getId();
+		}
+		boolean finished = false;
+		boolean resumed = false;
+		try {
+			for (int i = 0; i < MAX_REQUESTS_PER_DRAIN; i++) {
+				if (!mStarted) {
+					// 最初の要求メッセージはinitで追加した開始要求
+					final Request request = mRequestQueue.poll();
+					if (request == null) {
+						break;
+					}
+					mStarted = true;
+					mIsRunning = true;
+					handleStart(request);
+				}
+				if (!mIsRunning) {
+					finished = true;
+					break;
+				}
+				if (!resumed) {
+					resumed = true;
+					onBeforeDrain();
+				}
+				final Request request = pollRequest();
+				if (request == null) {
+					break;
+				}
+				if (!handleRequest(request)) {
+					finished = true;
+					break;
+				}
+			}
+		} finally {
+			if (!finished) {
+				// 例外が発生した場合もmScheduledをクリアしないと以降の要求メッセージが処理されなくなる
+				synchronized (mSync) {
+					mWorkerThread = null;
+					mWorkerThreadId = 0;
+				}
+				mScheduled.set(false);
+			}
+		}
+		if (finished) {
+			handleStop();
+		} else {
+			// mScheduledをクリアする前に追加された要求メッセージを取りこぼさないように再確認する
+			schedule();
+		}
+	}
+
+	/**
+	 * 共有ワーカースレッド上で実行する場合の要求メッセージを取り出す処理
+	 * 要求メッセージがなくてもブロックしない
+	 * @return 要求メッセージがなければnull
+	 */
+	@Nullable
+	private Request pollRequest() {
+		final Request result;
+		synchronized (mPendingRequests) {
+			final Request req = mPendingRequests.pollFirst();
+			if (req != null) {
+				return req;
+			}
+			if (mBatchMode && (mRequestQueue.size() > 1)) {
+				mRequestQueue.drainTo(mPendingRequests);
+				coalesceLocked();
+				result = mPendingRequests.pollFirst();
+			} else {
+				result = null;
+			}
+		}
+		if (result != null) {
+			dropCoalesced();
+			return result;
+		}
+		return mRequestQueue.poll();
+	}
+
+	/**
+	 * 開始要求の処理
+	 * @param request
+	 */
+	private void handleStart(@Nullable final Request request) {
+		synchronized (mSync) {
+			if (mIsRunning && (request != null)) {
 				mWorkerThread = Thread.currentThread();
 				mWorkerThreadId = mWorkerThread.getId();
 				try {
@@ -310,58 +842,88 @@ public abstract class MessageTask implements Runnable {
 				}
 			}
 		}
-LOOP:	while (mIsRunning) {
+	}
+
+	/**
+	 * 要求メッセージ1つ分の処理
+	 * @param request
+	 * @return false: 要求メッセージ処理ループを終了する
+	 */
+	private boolean handleRequest(@NonNull final Request request) {
+		if ((request.deadlineNs != 0) && (request.request > REQUEST_TASK_NON)
+			&& (System.nanoTime() - request.deadlineNs > 0)) {
+			// 有効期限切れなので処理せずに破棄する
+			dropRequest(request);
+			return true;
+		}
+		final long startNs = request.queuedNs != 0 ? System.nanoTime() : 0;
+		final int code = request.request == REQUEST_TASK_RUN_AND_WAIT
+			? request.request_for_result : request.request;
+		switch (request.request) {
+		case REQUEST_TASK_NON:
+			break;
+		case REQUEST_TASK_QUIT:
+			return false;
+		case REQUEST_TASK_RUN:
+			if (request.obj instanceof Runnable) {
+				try {
+					((Runnable)request.obj).run();
+				} catch (final Exception e) {
+					if (callOnError(e))
+						return false;
+				}
+			} else {
+				if (DEBUG) Log.w(TAG, "Unknown task");
+				// ここにくることはないはず
+			}
+			break;
+		case REQUEST_TASK_RUN_AND_WAIT:
 			try {
-				request = takeRequest();
-				switch (request.request) {
-				case REQUEST_TASK_NON:
-					break;
-				case REQUEST_TASK_QUIT:
-					break LOOP;
-				case REQUEST_TASK_RUN:
-					if (request.obj instanceof Runnable) {
-						try {
-							((Runnable)request.obj).run();
-						} catch (final Exception e) {
-							if (callOnError(e))
-								break LOOP;
-						}
-					} else {
-						if (DEBUG) Log.w(TAG, "Unknown task");
-						// ここにくることはないはず
-					}
-					break;
-				case REQUEST_TASK_RUN_AND_WAIT:
-					try {
-						request.setResult(processRequest(request.request_for_result, request.arg1, request.arg2, request.obj));
-					} catch (final TaskBreak e) {
-						request.setResult(null);
-						break LOOP;
-					} catch (final Exception e) {
-						request.setResult(null);
-						if (callOnError(e)) {
-							break LOOP;
-						}
-					}
-					break;
-				default:
-					try {
-						processRequest(request.request, request.arg1, request.arg2, request.obj);
-					} catch (final TaskBreak e) {
-						break LOOP;
-					} catch (final Exception e) {
-						if (callOnError(e))
-							break LOOP;
-					}
-					break;
+				request.setResult(processRequest(request.request_for_result, request.arg1, request.arg2, request.obj));
+			} catch (final TaskBreak e) {
+				request.setResult(null);
+				return false;
+			} catch (final Exception e) {
+				request.setResult(null);
+				if (callOnError(e)) {
+					return false;
 				}
-				request.request = request.request_for_result = REQUEST_TASK_NON;
-				// プールへ返却する
-				mRequestPool.add(request);
-			} catch (final InterruptedException e) {
-				break;
 			}
-		} // end of while
+			break;
+		default:
+			try {
+				processRequest(request.request, request.arg1, request.arg2, request.obj);
+			} catch (final TaskBreak e) {
+				return false;
+			} catch (final Exception e) {
+				if (callOnError(e))
+					return false;
+			}
+			break;
+		}
+		if ((startNs != 0) && (code != REQUEST_TASK_NON)) {
+			final RequestLatency latency = getRequestLatency(code);
+			latency.queueWait.record(startNs - request.queuedNs);
+			latency.execution.record(System.nanoTime() - startNs);
+		}
+		request.request = request.request_for_result = REQUEST_TASK_NON;
+		// プールへ返却する
+		mRequestPool.add(request);
+		return true;
+	}
+
+	/**
+	 * 要求メッセージ処理ループ終了時の処理
+	 */
+	private void handleStop() {
+		synchronized (mPendingRequests) {
+			// まとめて取り出したが未処理の要求メッセージをプールへ返却する
+			for (final Request req: mPendingRequests) {
+				req.request = req.request_for_result = REQUEST_TASK_NON;
+				mRequestPool.add(req);
+			}
+			mPendingRequests.clear();
+		}
 		final boolean interrupted = Thread.interrupted();
 		synchronized (mSync) {
 			mWorkerThread = null;
@@ -421,9 +983,12 @@ LOOP:	while (mIsRunning) {
 			req.request_for_result = REQUEST_TASK_NON;
 			req.result = null;
 			req.callback = null;
+			req.deadlineNs = 0;
 		} else {
 			req = new Request(request, arg1, arg2, obj);
 		}
+		req.queuedNs = mLatencyStatsEnabled && (request != REQUEST_TASK_START)
+			? System.nanoTime() : 0;
 		return req;
 	}
 
@@ -438,7 +1003,44 @@ LOOP:	while (mIsRunning) {
 	public boolean offer(final int request,
 		final int arg1, final int arg2, final Object obj) {
 
-		return !mFinished && mRequestQueue.offer(obtain(request, arg1, arg2, obj));
+		final boolean result = !mFinished
+			&& mRequestQueue.offer(obtain(request, arg1, arg2, obj), getPriority(request));
+		if (result) {
+			schedule();
+		}
+		return result;
+	}
+
+	/**
+	 * offer request to run on worker thread with priority and timeout
+	 * 有効期限を過ぎてもワーカースレッドで処理されなかった場合はprocessRequestを呼ばずに破棄する
+	 * (破棄したときはonRequestDroppedが呼ばれる)
+	 * @param request minus values and zero are reserved
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 * @param priority PRIORITY_HIGH, PRIORITY_NORMAL, PRIORITY_LOW
+	 * @param timeoutNs 有効期限[ナノ秒], 0以下なら期限なし
+	 * @return true if success offer
+	 */
+	public boolean offer(final int request,
+		final int arg1, final int arg2, final Object obj,
+		@Priority final int priority, final long timeoutNs) {
+
+		if (mFinished) {
+			return false;
+		}
+		final Request req = obtain(request, arg1, arg2, obj);
+		if (timeoutNs > 0) {
+			// 0は期限なしを示すので避ける
+			final long deadline = System.nanoTime() + timeoutNs;
+			req.deadlineNs = deadline != 0 ? deadline : 1;
+		}
+		final boolean result = mRequestQueue.offer(req, priority);
+		if (result) {
+			schedule();
+		}
+		return result;
 	}
 
 	/**
@@ -494,6 +1096,7 @@ LOOP:	while (mIsRunning) {
 
 	/**
 	 * offer request to run on worker thread on top of the request queue
+	 * 優先度に関係なく最初に処理される(PRIORITY_HIGHのキューの先頭へ追加する)
 	 * @param request minus values and zero are reserved
 	 * @param arg1
 	 * @param arg2
@@ -501,8 +1104,12 @@ LOOP:	while (mIsRunning) {
 	public boolean offerFirst(final int request,
 		final int arg1, final int arg2, final Object obj) {
 
-		return !mFinished && mIsRunning
+		final boolean result = !mFinished && mIsRunning
 			&& mRequestQueue.offerFirst(obtain(request, arg1, arg2, obj));
+		if (result) {
+			schedule();
+		}
+		return result;
 	}
 
 	/**
@@ -514,7 +1121,7 @@ LOOP:	while (mIsRunning) {
 	 * @param arg1
 	 * @param arg2
 	 * @param obj
-	 * @return
+	 * @return 要求をキューへ追加できなかったときはnull
 	 */
 	public Object offerAndWait(final int request,
 		final int arg1, final int arg2, final Object obj) {
@@ -534,10 +1141,15 @@ LOOP:	while (mIsRunning) {
 						sync.release();
 					}
 				};
-				mRequestQueue.offer(req);
+				if (!mRequestQueue.offer(req, getPriority(request))) {
+					// キューへ追加できなかったときは実行されないので待機せずに返る
+					mRequestPool.add(req);
+					return null;
+				}
+				schedule();
 				while (mIsRunning && (req.request_for_result != REQUEST_TASK_NON)) {
 					try {
-						sync.acquire(100);
+						sync.tryAcquire(100, TimeUnit.MILLISECONDS);
 					} catch (final InterruptedException e) {
 						break;
 					}
@@ -576,11 +1188,16 @@ LOOP:	while (mIsRunning) {
 	 * @param request
 	 */
 	public void removeRequest(final Request request) {
-		for (final Request req: mRequestQueue) {
-			if (!mIsRunning || mFinished || !mRequestQueue.contains(request)) break;
-			if (req.equals(request)) {
-				mRequestQueue.remove(req);
-				mRequestPool.add(req);
+		if (mIsRunning && !mFinished) {
+			mRequestQueue.removeAll(request, mRequestPool);
+		}
+		synchronized (mPendingRequests) {
+			for (final Iterator<Request> itr = mPendingRequests.iterator(); itr.hasNext(); ) {
+				final Request req = itr.next();
+				if (req.equals(request)) {
+					itr.remove();
+					mRequestPool.add(req);
+				}
 			}
 		}
 	}
@@ -590,11 +1207,16 @@ LOOP:	while (mIsRunning) {
 	 * @param request
 	 */
 	public void removeRequest(final int request) {
-		for (final Request req: mRequestQueue) {
-			if (!mIsRunning || mFinished) break;
-			if (req.request == request) {
-				mRequestQueue.remove(req);
-				mRequestPool.add(req);
+		if (mIsRunning && !mFinished) {
+			mRequestQueue.removeAll(request, mRequestPool);
+		}
+		synchronized (mPendingRequests) {
+			for (final Iterator<Request> itr = mPendingRequests.iterator(); itr.hasNext(); ) {
+				final Request req = itr.next();
+				if (req.request == request) {
+					itr.remove();
+					mRequestPool.add(req);
+				}
 			}
 		}
 	}
@@ -616,6 +1238,10 @@ LOOP:	while (mIsRunning) {
 		if (!mFinished) {
 			mRequestQueue.clear();
 			mRequestQueue.offerFirst(obtain(REQUEST_TASK_QUIT, 0, 0, null));
+			if (mExecutor != null) {
+				releaseShared(b);
+				return;
+			}
 			synchronized (mSync) {
 				if (b) {
 					final long current = Thread.currentThread().getId();
@@ -637,6 +1263,30 @@ LOOP:	while (mIsRunning) {
 		}
 	}
 
+	/**
+	 * 共有ワーカースレッド上で実行している場合の終了処理
+	 * 共有ワーカースレッドをinterruptすると他のMessageTaskへ影響するのでinterruptはしない
+	 * また共有ワーカースレッド上から呼び出した場合はデッドロックを避けるために終了を待機しない
+	 * @param wait 終了を待機するかどうか
+	 */
+	private void releaseShared(final boolean wait) {
+		final Executor executor = mExecutor;
+		schedule();
+		if (wait && !isOnWorkerThread()
+			&& !MessageTaskExecutor.isWorkerThread(executor)) {
+
+			synchronized (mSync) {
+				while (!mFinished) {
+					try {
+						mSync.wait(300);
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * 実行中のタスクが終了後開放する
 	 */
@@ -645,6 +1295,7 @@ LOOP:	while (mIsRunning) {
 		if (!mFinished) {
 			mRequestQueue.clear();
 			mRequestQueue.offerFirst(obtain(REQUEST_TASK_QUIT, 0, 0, null));
+			schedule();
 		}
 	}
 
@@ -656,4 +1307,297 @@ LOOP:	while (mIsRunning) {
 	public void userBreak() throws TaskBreak {
 		throw new TaskBreak();
 	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 要求コード毎の処理時間のスナップショット
+	 */
+	public static class LatencyStats {
+		/** 要求コード */
+		public final int request;
+		/** キューでの待ち時間[ナノ秒] */
+		@NonNull
+		public final LatencyHistogram.Snapshot queueWait;
+		/** processRequestの実行時間[ナノ秒] */
+		@NonNull
+		public final LatencyHistogram.Snapshot execution;
+
+		private LatencyStats(final int request,
+			@NonNull final LatencyHistogram.Snapshot queueWait,
+			@NonNull final LatencyHistogram.Snapshot execution) {
+
+			this.request = request;
+			this.queueWait = queueWait;
+			this.execution = execution;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "LatencyStats{request=" + request
+				+ ",queueWait=" + queueWait
+				+ ",execution=" + execution + "}";
+		}
+	}
+
+	/**
+	 * 要求コード毎の処理時間記録用
+	 */
+	private static final class RequestLatency {
+		private final int request;
+		@NonNull
+		private final LatencyHistogram queueWait = new LatencyHistogram();
+		@NonNull
+		private final LatencyHistogram execution = new LatencyHistogram();
+
+		private RequestLatency(final int request) {
+			this.request = request;
+		}
+
+		/**
+		 * 要求コード順にソートした配列から二分探索する
+		 * @param latencies
+		 * @param request
+		 * @return 見つからなければ(-(挿入位置) - 1)
+		 */
+		private static int indexOf(@NonNull final RequestLatency[] latencies, final int request) {
+			int low = 0;
+			int high = latencies.length - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				final int v = latencies[mid].request;
+				if (v < request) {
+					low = mid + 1;
+				} else if (v > request) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 優先度毎のキューを持つ要求メッセージキュー
+	 * 取り出す時は優先度の高いキューから取り出す
+	 */
+	private static final class RequestQueue {
+		@NonNull
+		private final ReentrantLock mLock = new ReentrantLock();
+		@NonNull
+		private final Condition mNotEmpty = mLock.newCondition();
+		@NonNull
+		private final ArrayDeque<Request>[] mLanes;
+		/**
+		 * 全ての優先度のキューを合わせた最大数, 0以下なら無制限
+		 */
+		private final int mCapacity;
+		private int mCount;
+
+		/**
+		 * コンストラクタ
+		 * @param capacity 0以下なら無制限
+		 */
+		@SuppressWarnings("unchecked")
+		private RequestQueue(final int capacity) {
+			mCapacity = capacity;
+			mLanes = (ArrayDeque<Request>[]) new ArrayDeque<?>[NUM_PRIORITIES];
+			for (int i = 0; i < NUM_PRIORITIES; i++) {
+				mLanes[i] = new ArrayDeque<Request>();
+			}
+		}
+
+		/**
+		 * 指定した優先度のキューの末尾へ追加する
+		 * @param req
+		 * @param priority 範囲外の場合はPRIORITY_NORMAL
+		 * @return false: キューが一杯
+		 */
+		boolean offer(@NonNull final Request req, final int priority) {
+			mLock.lock();
+			try {
+				if ((mCapacity > 0) && (mCount >= mCapacity)) {
+					return false;
+				}
+				lane(priority).addLast(req);
+				mCount++;
+				mNotEmpty.signal();
+				return true;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 最優先(PRIORITY_HIGHのキューの先頭)で追加する
+		 * @param req
+		 * @return false: キューが一杯
+		 */
+		boolean offerFirst(@NonNull final Request req) {
+			mLock.lock();
+			try {
+				if ((mCapacity > 0) && (mCount >= mCapacity)) {
+					return false;
+				}
+				mLanes[PRIORITY_HIGH].addFirst(req);
+				mCount++;
+				mNotEmpty.signal();
+				return true;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 先頭を取り出す, 空なら追加されるまでブロックする
+		 * @return
+		 * @throws InterruptedException
+		 */
+		@NonNull
+		Request take() throws InterruptedException {
+			mLock.lockInterruptibly();
+			try {
+				while (mCount == 0) {
+					mNotEmpty.await();
+				}
+				return dequeueLocked();
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 先頭を取り出す
+		 * @return 空ならnull
+		 */
+		@Nullable
+		Request poll() {
+			mLock.lock();
+			try {
+				return mCount > 0 ? dequeueLocked() : null;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 全ての要求メッセージを優先度順に取り出して引数のCollectionへ追加する
+		 * @param c
+		 * @return 取り出した数
+		 */
+		int drainTo(@NonNull final Collection<Request> c) {
+			mLock.lock();
+			try {
+				final int n = mCount;
+				for (final ArrayDeque<Request> lane: mLanes) {
+					c.addAll(lane);
+					lane.clear();
+				}
+				mCount = 0;
+				return n;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 指定したRequestと等価なものを全て取り除いて引数のCollectionへ追加する
+		 * @param request
+		 * @param removed
+		 */
+		void removeAll(@NonNull final Request request,
+			@NonNull final Collection<Request> removed) {
+
+			mLock.lock();
+			try {
+				for (final ArrayDeque<Request> lane: mLanes) {
+					for (final Iterator<Request> itr = lane.iterator(); itr.hasNext(); ) {
+						final Request req = itr.next();
+						if (req.equals(request)) {
+							itr.remove();
+							mCount--;
+							removed.add(req);
+						}
+					}
+				}
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		/**
+		 * 指定した要求コードを持つRequestを全て取り除いて引数のCollectionへ追加する
+		 * @param request
+		 * @param removed
+		 */
+		void removeAll(final int request,
+			@NonNull final Collection<Request> removed) {
+
+			mLock.lock();
+			try {
+				for (final ArrayDeque<Request> lane: mLanes) {
+					for (final Iterator<Request> itr = lane.iterator(); itr.hasNext(); ) {
+						final Request req = itr.next();
+						if (req.request == request) {
+							itr.remove();
+							mCount--;
+							removed.add(req);
+						}
+					}
+				}
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		int size() {
+			mLock.lock();
+			try {
+				return mCount;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		boolean isEmpty() {
+			return size() == 0;
+		}
+
+		void clear() {
+			mLock.lock();
+			try {
+				for (final ArrayDeque<Request> lane: mLanes) {
+					lane.clear();
+				}
+				mCount = 0;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		@NonNull
+		private ArrayDeque<Request> lane(final int priority) {
+			return (priority >= 0) && (priority < NUM_PRIORITIES)
+				? mLanes[priority] : mLanes[PRIORITY_NORMAL];
+		}
+
+		/**
+		 * ロックした状態で呼び出すこと, mCount > 0であること
+		 * @return
+		 */
+		@NonNull
+		private Request dequeueLocked() {
+			for (final ArrayDeque<Request> lane: mLanes) {
+				final Request req = lane.pollFirst();
+				if (req != null) {
+					mCount--;
+					return req;
+				}
+			}
+			// ここには来ないはず
+			throw new IllegalStateException();
+		}
+	}
 }
@@ -0,0 +1,211 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 複数のMessageTaskで共有するワーカースレッドのスレッドプール
+ * MessageTask#start(Executor)へ引き渡すと、MessageTask毎に専用のスレッドを
+ * 生成する代わりにこのスレッドプールのスレッド上で要求メッセージを処理する
+ * スレッド数は固定でアイドル状態が続くとスレッドを終了する
+ * ただし#newSingleThreadExecutorで生成した場合はワーカースレッドを1つだけ生成して
+ * shutdownするまで終了しないので、EglTaskのようにスレッドに依存するMessageTaskも実行できる
+ */
+public class MessageTaskExecutor implements Executor {
+	private static final int KEEP_ALIVE_TIME_SECS = 10;	// time periods while keep the idle thread
+	private static final int MIN_DEFAULT_THREADS = 2;
+	private static final int MAX_DEFAULT_THREADS = 4;
+
+	private static MessageTaskExecutor sDefault;
+
+	/**
+	 * デフォルトの共有ワーカースレッドを取得する
+	 * スレッド数はCPUコア数(最小2, 最大4)
+	 * @return
+	 */
+	@NonNull
+	public static synchronized MessageTaskExecutor getDefault() {
+		if ((sDefault == null) || sDefault.isShutdown()) {
+			final int n = Math.max(MIN_DEFAULT_THREADS,
+				Math.min(MAX_DEFAULT_THREADS, Runtime.getRuntime().availableProcessors()));
+			sDefault = new MessageTaskExecutor("MessageTaskExecutor", n);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * 指定したExecutorがMessageTaskExecutorで、呼び出し元スレッドが
+	 * そのワーカースレッドかどうかを取得する
+	 * @param executor
+	 * @return
+	 */
+	public static boolean isWorkerThread(@Nullable final Executor executor) {
+		final Thread current = Thread.currentThread();
+		return (executor != null) && (current instanceof SharedWorker)
+			&& (((SharedWorker)current).mOwner == executor);
+	}
+
+	/**
+	 * ワーカースレッドを1つだけ持ち、アイドル状態でもshutdownするまで終了しない
+	 * MessageTaskExecutorを生成する
+	 * EGL/GLコンテキストのようにスレッドに紐付く状態を持つMessageTaskは
+	 * このMessageTaskExecutorであればstart(Executor)で実行できる
+	 * @param name ワーカースレッド名
+	 * @return
+	 */
+	@NonNull
+	public static MessageTaskExecutor newSingleThreadExecutor(@NonNull final String name) {
+		return new MessageTaskExecutor(name, 1, false);
+	}
+
+	@NonNull
+	private final ThreadPoolExecutor mExecutor;
+	/**
+	 * アイドル状態のワーカースレッドを終了させるかどうか
+	 */
+	private final boolean mTimeout;
+	@NonNull
+	private final String mName;
+	@NonNull
+	private final AtomicInteger mThreadNum = new AtomicInteger();
+
+	/**
+	 * コンストラクタ
+	 * @param name ワーカースレッド名の接頭辞
+	 * @param numThreads ワーカースレッド数
+	 */
+	public MessageTaskExecutor(@NonNull final String name,
+		@IntRange(from=1) final int numThreads) {
+
+		this(name, numThreads, true);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param name ワーカースレッド名の接頭辞
+	 * @param numThreads ワーカースレッド数
+	 * @param timeout アイドル状態のワーカースレッドを終了させるかどうか
+	 */
+	private MessageTaskExecutor(@NonNull final String name,
+		@IntRange(from=1) final int numThreads, final boolean timeout) {
+
+		mName = name;
+		mTimeout = timeout;
+		final int n = Math.max(numThreads, 1);
+		mExecutor = new ThreadPoolExecutor(n, n,
+			KEEP_ALIVE_TIME_SECS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(@NonNull final Runnable r) {
+					return new SharedWorker(MessageTaskExecutor.this, r,
+						mName + "-" + mThreadNum.incrementAndGet());
+				}
+			});
+		mExecutor.allowCoreThreadTimeOut(timeout);
+	}
+
+	/**
+	 * Executorの実装
+	 * @param command
+	 * @throws RejectedExecutionException シャットダウン済み
+	 */
+	@Override
+	public void execute(@NonNull final Runnable command)
+		throws RejectedExecutionException {
+
+		mExecutor.execute(command);
+	}
+
+	/**
+	 * 最大ワーカースレッド数を取得
+	 * @return
+	 */
+	public int getMaxThreads() {
+		return mExecutor.getMaximumPoolSize();
+	}
+
+	/**
+	 * ワーカースレッドが1つだけでshutdownするまで終了しないかどうか
+	 * (#newSingleThreadExecutorで生成したかどうか)
+	 * @return
+	 */
+	public boolean isSingleThread() {
+		return !mTimeout && (mExecutor.getMaximumPoolSize() == 1);
+	}
+
+	/**
+	 * 現在のワーカースレッド数を取得
+	 * @return
+	 */
+	public int getPoolSize() {
+		return mExecutor.getPoolSize();
+	}
+
+	/**
+	 * 要求メッセージを処理中のワーカースレッド数を取得(概算値)
+	 * @return
+	 */
+	public int getActiveCount() {
+		return mExecutor.getActiveCount();
+	}
+
+	/**
+	 * シャットダウンしたかどうか
+	 * @return
+	 */
+	public boolean isShutdown() {
+		return mExecutor.isShutdown();
+	}
+
+	/**
+	 * ワーカースレッドの終了要求
+	 * 実行中のMessageTaskはすべて終了(release)させてから呼び出すこと
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * MessageTaskExecutorのワーカースレッド
+	 * 呼び出し元スレッドがワーカースレッドかどうかを判定するために使う
+	 */
+	private static class SharedWorker extends Thread {
+		@NonNull
+		private final MessageTaskExecutor mOwner;
+
+		private SharedWorker(@NonNull final MessageTaskExecutor owner,
+			@NonNull final Runnable target, @NonNull final String name) {
+
+			super(target, name);
+			mOwner = owner;
+		}
+	}
+}
@@ -1,11 +1,15 @@
 package com.serenegiant.utils;
 
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /*
  * libcommon
@@ -28,16 +32,58 @@ import java.util.List;
 
 /**
  * オブジェクトを再利用してオブジェクトの生成を抑制するためのプールオブジェクト
+ * #setThreadCacheSizeでスレッド毎のキャッシュ(マガジン)を有効にすると
+ * 取得/返却の大半はロックなしでスレッドローカルなキャッシュに対して行い、
+ * キャッシュが空/一杯になったときだけまとめて共有プールとやり取りする
  * @param <T>
  */
 public abstract class Pool<T> {
 
 	@NonNull
 	private final List<T> mPool = new ArrayList<T>();
+	/**
+	 * #obtain(long, TimeUnit, Object[])で待機中のスレッド, 先に待機したものから順に割り当てる
+	 */
+	@NonNull
+	private final ArrayDeque<Waiter<T>> mWaiters = new ArrayDeque<Waiter<T>>();
+	@NonNull
+	private final ThreadLocal<Magazine<T>> mMagazines = new ThreadLocal<Magazine<T>>();
 	private final int mInitNum;
 	private final int mMaxNumInPool;
 	private final int mLimitNum;
 	private int mCreatedObjects;
+	/**
+	 * 待機中のスレッド数, ロックせずに参照するのでvolatile
+	 */
+	private volatile int mWaiterCount;
+	/**
+	 * スレッド毎のキャッシュの最大保持数, 0ならキャッシュしない
+	 */
+	private volatile int mMagazineSize;
+	/**
+	 * 一度でもスレッド毎のキャッシュを有効にしたかどうか
+	 * キャッシュを無効にした後に各スレッドのキャッシュに残っているオブジェクトを戻すために使う
+	 */
+	private volatile boolean mMagazineUsed;
+	/**
+	 * #init/#clearでスレッド毎のキャッシュを無効にするための世代番号
+	 */
+	private volatile int mGeneration;
+	// 統計情報
+	@NonNull
+	private final StripedCounter mStatsCreated = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsHits = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsMisses = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsFailed = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsRejected = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsWaits = new StripedCounter();
+	@NonNull
+	private final StripedCounter mStatsWaitNs = new StripedCounter();
 	
 	/**
 	 * コンストラクタ
@@ -63,40 +109,148 @@ public abstract class Pool<T> {
 		init(args);
 	}
 	
+	/**
+	 * スレッド毎のキャッシュ(マガジン)の最大保持数を設定する
+	 * 同じスレッドで取得/返却を繰り返す場合に共有プールのロックを取る回数を減らせる
+	 * スレッド毎のキャッシュに保持しているオブジェクトは他のスレッドからは取得できないので
+	 * 多くのスレッドから使う場合や最大生成数が小さい場合は小さな値にすること
+	 * スレッドを終了する前には#flushThreadCacheを呼ぶこと
+	 * 変更前のサイズのキャッシュに保持しているオブジェクトは
+	 * 各スレッドが次にプールへアクセスしたときに共有プールへ戻す
+	 * @param size 0ならスレッド毎のキャッシュを使わない(デフォルト)
+	 * @return
+	 */
+	public Pool<T> setThreadCacheSize(@IntRange(from=0) final int size) {
+		if (size > 0) {
+			mMagazineUsed = true;
+		}
+		mMagazineSize = Math.max(size, 0);
+		return this;
+	}
+
+	/**
+	 * スレッド毎のキャッシュの最大保持数を取得する
+	 * @return
+	 */
+	public int getThreadCacheSize() {
+		return mMagazineSize;
+	}
+
 	/**
 	 * プール内のオブジェクトを破棄して新たに初期数まで確保する
 	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
 	 */
 	public void init(@Nullable final Object... args) {
 		synchronized (mPool) {
+			mGeneration++;
 			mPool.clear();
 			mCreatedObjects = 0;
 			for (int i = 0; (i < mInitNum) && (i < mMaxNumInPool); i++) {
 				final T obj = createObject(args);
 				mPool.add(obj);
 				mCreatedObjects++;
+				mStatsCreated.increment();
 			}
+			serveWaitersLocked();
 		}
 	}
 
 	/**
 	 * プールからオブジェクトTを取得する。もしプールが空で最大生成数を超えている場合にはnullを返す
-	 * XXX プールが空の時に一定時間待機するメソッドもあったほうがいいかもしれない
 	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
 	 * @return
 	 */
 	@Nullable
 	public T obtain(@Nullable final Object... args) {
-		T result = null;
+		final Magazine<T> magazine = magazine();
+		if ((magazine != null) && (magazine.count > 0)) {
+			mStatsHits.increment();
+			return magazine.pop();
+		}
+		final T result;
 		synchronized (mPool) {
-			if (!mPool.isEmpty()) {
-				result = mPool.remove(mPool.size() - 1);
-			}
-			if ((result == null) && (mCreatedObjects < mLimitNum)) {
-				result = createObject(args);
-				mCreatedObjects++;
+			result = obtainLocked(magazine, args);
+		}
+		if (result == null) {
+			mStatsFailed.increment();
+		}
+		return result;
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する。
+	 * もしプールが空で最大生成数を超えている場合には他のスレッドから返却されるまで最大で指定時間待機する
+	 * 待機中のスレッドへは待機を開始した順に返却されたオブジェクトを割り当てる
+	 * @param timeout 最大待機時間, 0以下なら待機しない
+	 * @param unit
+	 * @return 指定時間内に取得できなければnull
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	public T obtain(final long timeout, @NonNull final TimeUnit unit)
+		throws InterruptedException {
+
+		return obtain(timeout, unit, (Object[])null);
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する。
+	 * もしプールが空で最大生成数を超えている場合には他のスレッドから返却されるまで最大で指定時間待機する
+	 * 待機中のスレッドへは待機を開始した順に返却されたオブジェクトを割り当てる
+	 * #obtain(Object...)と区別できるようにargsは可変長引数にしていない
+	 * @param timeout 最大待機時間, 0以下なら待機しない
+	 * @param unit
+	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
+	 * @return 指定時間内に取得できなければnull
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	public T obtain(final long timeout, @NonNull final TimeUnit unit,
+		@Nullable final Object[] args) throws InterruptedException {
+
+		final Magazine<T> magazine = magazine();
+		if ((magazine != null) && (magazine.count > 0)) {
+			mStatsHits.increment();
+			return magazine.pop();
+		}
+		T result;
+		synchronized (mPool) {
+			result = obtainLocked(magazine, args);
+			if ((result == null) && (timeout > 0)) {
+				final Waiter<T> waiter = new Waiter<T>(args);
+				mWaiters.addLast(waiter);
+				mWaiterCount = mWaiters.size();
+				final long start = System.nanoTime();
+				final long deadline = start + unit.toNanos(timeout);
+				try {
+					for (long remain = unit.toNanos(timeout);
+						(waiter.item == null) && (remain > 0);
+						remain = deadline - System.nanoTime()) {
+
+						TimeUnit.NANOSECONDS.timedWait(mPool, remain);
+					}
+				} catch (final InterruptedException e) {
+					if (waiter.item != null) {
+						// 割り込まれる前に割り当てられていたときはプールへ戻す
+						final T obj = waiter.item;
+						waiter.item = null;
+						recycleLocked(obj);
+					}
+					throw e;
+				} finally {
+					if (waiter.item == null) {
+						mWaiters.remove(waiter);
+						mWaiterCount = mWaiters.size();
+					}
+					mStatsWaits.increment();
+					mStatsWaitNs.add(System.nanoTime() - start);
+				}
+				result = waiter.item;
 			}
 		}
+		if (result == null) {
+			mStatsFailed.increment();
+		}
 		return result;
 	}
 	
@@ -110,18 +264,28 @@ public abstract class Pool<T> {
 	
 	/**
 	 * 使用済みオブジェクトをプールに返却する
+	 * 待機中のスレッドがあれば先に待機したスレッドへ割り当てる
 	 * @param obj
 	 * @return true: プールに返却できた, false: プールに返却できなかった(最大保持数より多くなってしまった)
 	 */
 	public boolean recycle(@NonNull final T obj) {
-		synchronized (mPool) {
-			if (mPool.size() < mMaxNumInPool) {
-				return mPool.add(obj);
-			} else {
-				mCreatedObjects--;
-				return false;
+		final Magazine<T> magazine = mWaiterCount == 0 ? magazine() : null;
+		if (magazine != null) {
+			if (magazine.count < magazine.items.length) {
+				magazine.push(obj);
+				return true;
+			}
+			// スレッド毎のキャッシュが一杯なので半分を共有プールへ戻す
+			synchronized (mPool) {
+				for (int i = magazine.items.length / 2; (i > 0) && (magazine.count > 0); i--) {
+					recycleLocked(magazine.pop());
+				}
+				return recycleLocked(obj);
 			}
 		}
+		synchronized (mPool) {
+			return recycleLocked(obj);
+		}
 	}
 	
 	/**
@@ -147,14 +311,297 @@ public abstract class Pool<T> {
 			}
 		}
 	}
+
+	/**
+	 * 呼び出したスレッドのキャッシュに保持しているオブジェクトを共有プールへ戻す
+	 * スレッド毎のキャッシュを有効にしたときはスレッドを終了する前に呼ぶこと
+	 */
+	public void flushThreadCache() {
+		final Magazine<T> magazine = mMagazines.get();
+		if (magazine != null) {
+			flush(magazine);
+		}
+	}
 		
 	/**
 	 * プールを空にする
 	 */
 	public void clear() {
 		synchronized (mPool) {
+			mGeneration++;
 			mPool.clear();
 			mCreatedObjects = 0;
+			serveWaitersLocked();
+		}
+	}
+
+	/**
+	 * 統計情報を取得する
+	 * @return
+	 */
+	@NonNull
+	public Stats getStats() {
+		final int pooled, alive;
+		synchronized (mPool) {
+			pooled = mPool.size();
+			alive = mCreatedObjects;
+		}
+		return new Stats(pooled, alive,
+			mStatsCreated.sum(), mStatsHits.sum(), mStatsMisses.sum(),
+			mStatsFailed.sum(), mStatsRejected.sum(),
+			mStatsWaits.sum(), mStatsWaitNs.sum());
+	}
+
+	/**
+	 * 統計情報をリセットする
+	 */
+	public void resetStats() {
+		mStatsCreated.reset();
+		mStatsHits.reset();
+		mStatsMisses.reset();
+		mStatsFailed.reset();
+		mStatsRejected.reset();
+		mStatsWaits.reset();
+		mStatsWaitNs.reset();
+	}
+
+	/**
+	 * 呼び出したスレッドのキャッシュを取得する
+	 * @return スレッド毎のキャッシュが無効ならnull
+	 */
+	@Nullable
+	private Magazine<T> magazine() {
+		final int size = mMagazineSize;
+		Magazine<T> result = mMagazineUsed ? mMagazines.get() : null;
+		if ((result != null) && (result.items.length != size)) {
+			// キャッシュサイズが変更されたときは保持しているオブジェクトを
+			// 共有プールへ戻してから作り直す(そのまま破棄すると生成数が減らなくなる)
+			flush(result);
+			mMagazines.remove();
+			result = null;
+		}
+		if (size <= 0) {
+			return null;
+		}
+		final int generation = mGeneration;
+		if (result == null) {
+			result = new Magazine<T>(size, generation);
+			mMagazines.set(result);
+		} else if (result.generation != generation) {
+			// #init/#clearより前にキャッシュしたオブジェクトは破棄する
+			result.clear();
+			result.generation = generation;
+		}
+		return result;
+	}
+
+	/**
+	 * スレッド毎のキャッシュに保持しているオブジェクトを共有プールへ戻す
+	 * 共有プールに入りきらないオブジェクトは#recycleLockedで破棄して生成数を減らす
+	 * #init/#clearより前にキャッシュしたオブジェクトは生成数に含まれないのでそのまま破棄する
+	 * @param magazine
+	 */
+	private void flush(@NonNull final Magazine<T> magazine) {
+		if (magazine.count > 0) {
+			synchronized (mPool) {
+				if (magazine.generation == mGeneration) {
+					while (magazine.count > 0) {
+						recycleLocked(magazine.pop());
+					}
+				} else {
+					magazine.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する
+	 * スレッド毎のキャッシュが有効なら共有プールから最大保持数の半分を補充する
+	 * mPoolをロックした状態で呼び出すこと
+	 * @param magazine
+	 * @param args
+	 * @return
+	 */
+	@Nullable
+	private T obtainLocked(@Nullable final Magazine<T> magazine, @Nullable final Object... args) {
+		T result = null;
+		if (!mPool.isEmpty()) {
+			result = mPool.remove(mPool.size() - 1);
+			mStatsHits.increment();
+			if (magazine != null) {
+				for (int i = magazine.items.length / 2; (i > 0) && !mPool.isEmpty(); i--) {
+					magazine.push(mPool.remove(mPool.size() - 1));
+				}
+			}
+		}
+		if ((result == null) && (mCreatedObjects < mLimitNum)) {
+			result = createObject(args);
+			mCreatedObjects++;
+			mStatsCreated.increment();
+			mStatsMisses.increment();
+		}
+		return result;
+	}
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * mPoolをロックした状態で呼び出すこと
+	 * @param obj
+	 * @return
+	 */
+	private boolean recycleLocked(@NonNull final T obj) {
+		final Waiter<T> waiter = mWaiters.pollFirst();
+		if (waiter != null) {
+			mWaiterCount = mWaiters.size();
+			waiter.item = obj;
+			mPool.notifyAll();
+			return true;
+		} else if (mPool.size() < mMaxNumInPool) {
+			return mPool.add(obj);
+		} else {
+			mCreatedObjects--;
+			mStatsRejected.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * 最大生成数に達していなければ待機中のスレッドへ新規生成したオブジェクトを割り当てる
+	 * mPoolをロックした状態で呼び出すこと
+	 */
+	private void serveWaitersLocked() {
+		boolean served = false;
+		for ( ; ; ) {
+			final Waiter<T> waiter = mWaiters.peekFirst();
+			if (waiter == null) {
+				break;
+			}
+			T obj = null;
+			if (!mPool.isEmpty()) {
+				obj = mPool.remove(mPool.size() - 1);
+			} else if (mCreatedObjects < mLimitNum) {
+				obj = createObject(waiter.args);
+				mCreatedObjects++;
+				mStatsCreated.increment();
+			}
+			if (obj == null) {
+				break;
+			}
+			mWaiters.pollFirst();
+			waiter.item = obj;
+			served = true;
+		}
+		mWaiterCount = mWaiters.size();
+		if (served) {
+			mPool.notifyAll();
+		}
+	}
+
+	/**
+	 * プールの統計情報
+	 */
+	public static class Stats {
+		/** 共有プール内に保持しているオブジェクト数 */
+		public final int pooled;
+		/** 生成済みで破棄されていないオブジェクト数 */
+		public final int alive;
+		/** 生成したオブジェクト数の累計 */
+		public final long created;
+		/** プール(スレッド毎のキャッシュを含む)から取得できた回数 */
+		public final long hits;
+		/** プールが空で新規生成した回数 */
+		public final long misses;
+		/** オブジェクトを取得できなかった回数 */
+		public final long failed;
+		/** 最大保持数を超えていて返却できなかった回数 */
+		public final long rejected;
+		/** オブジェクトの返却を待機した回数 */
+		public final long waits;
+		/** オブジェクトの返却を待機した時間の累計[ナノ秒] */
+		public final long waitNs;
+
+		public Stats(final int pooled, final int alive,
+			final long created, final long hits, final long misses,
+			final long failed, final long rejected,
+			final long waits, final long waitNs) {
+
+			this.pooled = pooled;
+			this.alive = alive;
+			this.created = created;
+			this.hits = hits;
+			this.misses = misses;
+			this.failed = failed;
+			this.rejected = rejected;
+			this.waits = waits;
+			this.waitNs = waitNs;
+		}
+
+		/**
+		 * プールからの取得に成功した割合
+		 * @return 0〜1
+		 */
+		public float hitRatio() {
+			final long total = hits + misses + failed;
+			return total > 0 ? hits / (float)total : 0.0f;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Pool.Stats{pooled=%d,alive=%d,created=%d,hits=%d,misses=%d,failed=%d,rejected=%d,waits=%d,waitMs=%.3f}",
+				pooled, alive, created, hits, misses, failed, rejected, waits, waitNs / 1000000.0);
+		}
+	}
+
+	/**
+	 * #obtain(long, TimeUnit, Object[])で待機中のスレッドの情報
+	 * @param <T>
+	 */
+	private static final class Waiter<T> {
+		@Nullable
+		private final Object[] args;
+		@Nullable
+		private T item;
+
+		private Waiter(@Nullable final Object[] args) {
+			this.args = args;
+		}
+	}
+
+	/**
+	 * スレッド毎のキャッシュ
+	 * @param <T>
+	 */
+	private static final class Magazine<T> {
+		@NonNull
+		private final Object[] items;
+		private int count;
+		private int generation;
+
+		private Magazine(final int size, final int generation) {
+			items = new Object[size];
+			this.generation = generation;
+		}
+
+		private void push(@NonNull final T obj) {
+			items[count++] = obj;
+		}
+
+		@SuppressWarnings("unchecked")
+		@NonNull
+		private T pop() {
+			final T result = (T)items[--count];
+			items[count] = null;
+			return result;
+		}
+
+		private void clear() {
+			for (int i = 0; i < count; i++) {
+				items[i] = null;
+			}
+			count = 0;
 		}
 	}
 }
@@ -0,0 +1,132 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 複数のスレッドから頻繁に更新される統計情報用のカウンター
+ * スレッド毎に異なるセル(キャッシュラインが重ならないように間隔を空けている)を
+ * 更新するので1つのAtomicLongを更新するよりも競合しにくい
+ * (LongAdderはAPI>=24なので代わりに使う)
+ * 合計値の取得(#sum)は他のスレッドからの更新と同期しないので統計用途のみに使うこと
+ */
+public class StripedCounter {
+	/**
+	 * セル間の間隔(long 8個=64バイト)
+	 */
+	private static final int PADDING = 8;
+	private static final int MAX_STRIPES = 64;
+
+	private final int mMask;
+	private final AtomicLongArray mCells;
+
+	/**
+	 * コンストラクタ
+	 * CPUコア数分のセルを使う
+	 */
+	public StripedCounter() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param stripes セルの数, 2のべき乗に切り上げる
+	 */
+	public StripedCounter(@IntRange(from=1) final int stripes) {
+		int n = 1;
+		while ((n < stripes) && (n < MAX_STRIPES)) {
+			n <<= 1;
+		}
+		mMask = n - 1;
+		mCells = new AtomicLongArray(n * PADDING);
+	}
+
+	/**
+	 * カウンターへ加算する
+	 * @param x
+	 */
+	public void add(final long x) {
+		mCells.addAndGet(index(), x);
+	}
+
+	/**
+	 * カウンターへ1加算する
+	 */
+	public void increment() {
+		mCells.incrementAndGet(index());
+	}
+
+	/**
+	 * カウンターの合計値を取得する
+	 * @return
+	 */
+	public long sum() {
+		long result = 0;
+		for (int i = 0; i <= mMask; i++) {
+			result += mCells.get(i * PADDING);
+		}
+		return result;
+	}
+
+	/**
+	 * カウンターを0にする
+	 */
+	public void reset() {
+		for (int i = 0; i <= mMask; i++) {
+			mCells.set(i * PADDING, 0);
+		}
+	}
+
+	/**
+	 * 呼び出したスレッドが使うセルのインデックスを取得する
+	 * @return
+	 */
+	private int index() {
+		final long id = Thread.currentThread().getId();
+		int h = (int)(id ^ (id >>> 32));
+		h ^= (h >>> 16);
+		h *= 0x45d9f3b;
+		h ^= (h >>> 16);
+		return (h & mMask) * PADDING;
+	}
+
+	/**
+	 * 最大値を更新するためのヘルパーメソッド
+	 * @param target
+	 * @param value
+	 */
+	public static void updateMax(@NonNull final AtomicLong target, final long value) {
+		for (long current = target.get(); value > current; current = target.get()) {
+			if (target.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -18,20 +18,50 @@ package com.serenegiant.utils;
  *  limitations under the License.
  */
 
+import android.annotation.SuppressLint;
+import android.os.Build;
+
+import com.serenegiant.system.BuildCheck;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 /**
  * PausableThreadPoolExecutorをラップしたスレッドプール実装
+ * キューは優先度順(同じ優先度ならキューへ追加した順)に実行する
+ * #submitでタスククラス名を指定するとタスククラス毎に同時実行数を制限できる
+ * (サムネイル読み込みやキャッシュの書き込み等がスレッドプールを占有しないようにするため)
+ * #enableWorkStealingを呼ぶと#submitで追加したタスクはタスククラスの種類(I/O/CPU)毎の
+ * ForkJoinPoolで実行するようになり、短いCPU処理が長いI/O処理の後ろで待たされなくなる
+ * タスククラス毎のキューでの待ち時間と実行時間は#getTaskStatsで取得できる
  */
 public class ThreadPool {
 
@@ -40,7 +70,79 @@ public class ThreadPool {
 	private static final int MAX_POOL_SIZE = 32;		// maximum threads
 	private static final int KEEP_ALIVE_TIME_SECS = 10;	// time periods while keep the idle thread
 
+	/**
+	 * 優先度: 高, 画面に表示中のアイテムの読み込み等
+	 */
+	public static final int PRIORITY_HIGH = 0;
+	/**
+	 * 優先度: 通常, #queueEvent(Runnable)で追加したときのデフォルト
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	/**
+	 * 優先度: 低, 先読みやキャッシュの書き込み等
+	 */
+	public static final int PRIORITY_LOW = 2;
+
+	@IntDef({
+		PRIORITY_HIGH,
+		PRIORITY_NORMAL,
+		PRIORITY_LOW})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Priority {}
+
+	/**
+	 * タスクの種類: I/O待ちが主体のタスク(ファイル/SAF/ネットワークアクセス等)
+	 * タスククラスの種類を指定しなかったときのデフォルト
+	 */
+	public static final int TASK_TYPE_IO = 0;
+	/**
+	 * タスクの種類: CPU処理が主体の短いタスク(ビットマップの拡大縮小/CRC/ハッシュ計算等)
+	 */
+	public static final int TASK_TYPE_CPU = 1;
+
+	@IntDef({
+		TASK_TYPE_IO,
+		TASK_TYPE_CPU})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface TaskType {}
+
 	private static PausableThreadPoolExecutor EXECUTOR;
+	/**
+	 * work stealingモード時のI/Oタスク用のスレッドプール, 無効時はnull
+	 */
+	@Nullable
+	private static ExecutorService IO_EXECUTOR;
+	/**
+	 * work stealingモード時のCPUタスク用のスレッドプール, 無効時はnull
+	 */
+	@Nullable
+	private static ExecutorService CPU_EXECUTOR;
+	/**
+	 * 同じ優先度のタスクをキューへ追加した順に実行するためのシーケンス番号
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+	/**
+	 * タスククラス名をキーとするタスククラスのマップ
+	 */
+	@NonNull
+	private static final Map<String, TaskClass> TASK_CLASSES = new HashMap<>();
+
+	/**
+	 * 優先度が高い(値が小さい)順, 同じ優先度ならキューへ追加した順に並べるためのComparator
+	 */
+	private static final Comparator<Runnable> PRIORITY_COMPARATOR = new Comparator<Runnable>() {
+		@Override
+		public int compare(final Runnable o1, final Runnable o2) {
+			final int p1 = o1 instanceof Prioritized ? ((Prioritized)o1).getPriority() : PRIORITY_NORMAL;
+			final int p2 = o2 instanceof Prioritized ? ((Prioritized)o2).getPriority() : PRIORITY_NORMAL;
+			if (p1 != p2) {
+				return p1 < p2 ? -1 : 1;
+			}
+			final long s1 = o1 instanceof Prioritized ? ((Prioritized)o1).getSequence() : Long.MAX_VALUE;
+			final long s2 = o2 instanceof Prioritized ? ((Prioritized)o2).getSequence() : Long.MAX_VALUE;
+			return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+		}
+	};
 
 	static {
 		getInstance();
@@ -59,7 +161,8 @@ public class ThreadPool {
 		if (EXECUTOR == null) {
 			EXECUTOR = new PausableThreadPoolExecutor(
 				CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME_SECS,
-				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+				TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(16, PRIORITY_COMPARATOR));
 		}
 		return EXECUTOR;
 	}
@@ -77,6 +180,7 @@ public class ThreadPool {
 	 * 新規のタスクをキューに入れることができなくなる
 	 */
 	public static synchronized void shutdown() {
+		disableWorkStealing();
 		if (EXECUTOR != null) {
 			EXECUTOR.resume();
 			EXECUTOR.shutdown();
@@ -92,16 +196,127 @@ public class ThreadPool {
 	@NonNull
 	public static synchronized List<Runnable> shutdownNow() {
 		final List<Runnable> result = new ArrayList<>();
+		if (IO_EXECUTOR != null) {
+			result.addAll(IO_EXECUTOR.shutdownNow());
+			IO_EXECUTOR = null;
+		}
+		if (CPU_EXECUTOR != null) {
+			result.addAll(CPU_EXECUTOR.shutdownNow());
+			CPU_EXECUTOR = null;
+		}
 		if (EXECUTOR != null) {
 			final List<Runnable> list = EXECUTOR.shutdownNow();
 			if (list != null) {
-				result.addAll(list);
+				for (final Runnable task: list) {
+					result.add(task instanceof QueuedEvent
+						? ((QueuedEvent)task).mCommand : task);
+				}
 			}
 			EXECUTOR = null;
 		}
 		return result;
 	}
 
+	/**
+	 * #submitで追加したタスクをタスクの種類毎のForkJoinPoolで実行するようにする
+	 * I/Oタスク用はCPUコア数の2倍(最低4), CPUタスク用はCPUコア数の並列度で実行する
+	 * API<21ではForkJoinPoolが使えないので何もしない
+	 * @return true: work stealingモードになった
+	 */
+	public static boolean enableWorkStealing() {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		return enableWorkStealing(Math.max(cpus * 2, 4), cpus);
+	}
+
+	/**
+	 * #submitで追加したタスクをタスクの種類毎のForkJoinPoolで実行するようにする
+	 * 既にwork stealingモードの場合は並列度を変更して新しいスレッドプールへ切り替える
+	 * (それまでに追加したタスクは古いスレッドプールで実行される)
+	 * work stealingモードでは
+	 * ・スレッドプール内での実行順はタスクの種類毎に追加順で優先度は使わない
+	 *   (タスククラスの同時実行数が上限に達して待機している間は優先度順)
+	 * ・#pause/#resumeは#submitで追加したタスクには影響しない
+	 * ・#queueEventで追加したタスクは従来通りのスレッドプールで実行する
+	 * API<21ではForkJoinPoolが使えないので何もしない
+	 * @param ioParallelism I/Oタスク用スレッドプールの並列度
+	 * @param cpuParallelism CPUタスク用スレッドプールの並列度
+	 * @return true: work stealingモードになった
+	 */
+	public static synchronized boolean enableWorkStealing(
+		final int ioParallelism, final int cpuParallelism) {
+
+		if (!BuildCheck.isLollipop()) {
+			return false;
+		}
+		disableWorkStealing();
+		IO_EXECUTOR = createWorkStealingPool("io", Math.max(ioParallelism, 1));
+		CPU_EXECUTOR = createWorkStealingPool("cpu", Math.max(cpuParallelism, 1));
+		return true;
+	}
+
+	/**
+	 * work stealingモードを終了して#submitで追加したタスクを
+	 * 従来通りのスレッドプールで実行するようにする
+	 * それまでに追加したタスクはwork stealing用のスレッドプールで実行される
+	 */
+	public static synchronized void disableWorkStealing() {
+		if (IO_EXECUTOR != null) {
+			IO_EXECUTOR.shutdown();
+			IO_EXECUTOR = null;
+		}
+		if (CPU_EXECUTOR != null) {
+			CPU_EXECUTOR.shutdown();
+			CPU_EXECUTOR = null;
+		}
+	}
+
+	/**
+	 * work stealingモードかどうか
+	 * @return
+	 */
+	public static synchronized boolean isWorkStealingEnabled() {
+		return IO_EXECUTOR != null;
+	}
+
+	/**
+	 * work stealingモード用のForkJoinPoolを生成する
+	 * Executorとして使うのでasyncMode(FIFO)にする
+	 * @param name
+	 * @param parallelism
+	 * @return
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+	@NonNull
+	private static ExecutorService createWorkStealingPool(
+		@NonNull final String name, final int parallelism) {
+
+		return new ForkJoinPool(parallelism,
+			new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+					final ForkJoinWorkerThread result
+						= ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					result.setName("ThreadPool-" + name + "-" + result.getPoolIndex());
+					return result;
+				}
+			}, null, true);
+	}
+
+	/**
+	 * タスクを実行するスレッドプールを取得する
+	 * @param taskClass
+	 * @return
+	 */
+	@SuppressLint("NewApi")
+	@NonNull
+	private static synchronized ExecutorService getExecutor(@Nullable final TaskClass taskClass) {
+		if ((CPU_EXECUTOR != null)
+			&& (taskClass != null) && (taskClass.mType == TASK_TYPE_CPU)) {
+			return CPU_EXECUTOR;
+		}
+		return IO_EXECUTOR != null ? IO_EXECUTOR : getInstance();
+	}
+
 	/**
 	 * スレッドプールで待機しているタスクの実行を再開する
 	 */
@@ -152,22 +367,508 @@ public class ThreadPool {
 
 	/**
 	 * スレッドプールのキューにタスクを追加する
+	 * PRIORITY_NORMALで実行する
 	 * @param command
 	 * @throws RejectedExecutionException
 	 */
 	public static void queueEvent(@NonNull final Runnable command)
 		throws RejectedExecutionException {
 
-		getInstance().execute(command);
+		queueEvent(command, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * 優先度を指定してスレッドプールのキューにタスクを追加する
+	 * @param command
+	 * @param priority
+	 * @throws RejectedExecutionException
+	 */
+	public static void queueEvent(@NonNull final Runnable command, @Priority final int priority)
+		throws RejectedExecutionException {
+
+		getInstance().execute(new QueuedEvent(command, priority));
 	}
 
 	/**
 	 * 未実行のタスクをスレッドプールのキューから削除する
+	 * #queueEventで追加したタスク用, #submitで追加したタスクはFuture#cancelで取り消す
 	 * @param command
 	 * @return
 	 */
 	public static boolean removeEvent(@NonNull final Runnable command) {
-		return getInstance().remove(command);
+		final PausableThreadPoolExecutor executor = getInstance();
+		final Iterator<Runnable> it = executor.getQueue().iterator();
+		while (it.hasNext()) {
+			final Runnable task = it.next();
+			if ((task == command)
+				|| ((task instanceof QueuedEvent) && (((QueuedEvent)task).mCommand == command))) {
+
+				return executor.remove(task);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 優先度を指定してスレッドプールで実行する
+	 * @param task
+	 * @param priority
+	 * @return 実行結果取得/取り消し用のFuture, 未実行のまま取り消したときはキューからも削除される
+	 * @throws RejectedExecutionException
+	 */
+	@NonNull
+	public static <V> Future<V> submit(
+		@NonNull final Callable<V> task, @Priority final int priority)
+			throws RejectedExecutionException {
+
+		return submit(null, task, priority);
+	}
+
+	/**
+	 * タスククラスと優先度を指定してスレッドプールで実行する
+	 * タスククラスの同時実行数が上限に達しているときは実行中のタスクが終了するまで
+	 * スレッドプールのキューへ追加されない
+	 * @param taskClass タスククラス名, nullなら同時実行数の制限なし
+	 * @param task
+	 * @param priority
+	 * @return 実行結果取得/取り消し用のFuture, 未実行のまま取り消したときはキューからも削除される
+	 * @throws RejectedExecutionException
+	 */
+	@NonNull
+	public static <V> Future<V> submit(
+		@Nullable final String taskClass,
+		@NonNull final Callable<V> task, @Priority final int priority)
+			throws RejectedExecutionException {
+
+		final PriorityTask<V> result
+			= new PriorityTask<V>(task, priority, getTaskClass(taskClass));
+		enqueue(result);
+		return result;
+	}
+
+	/**
+	 * タスククラスと優先度を指定してスレッドプールで実行する
+	 * @param taskClass タスククラス名, nullなら同時実行数の制限なし
+	 * @param task
+	 * @param priority
+	 * @return 取り消し用のFuture, Future#getは実行終了時にnullを返す
+	 * @throws RejectedExecutionException
+	 */
+	@NonNull
+	public static Future<?> submit(
+		@Nullable final String taskClass,
+		@NonNull final Runnable task, @Priority final int priority)
+			throws RejectedExecutionException {
+
+		return submit(taskClass, Executors.callable(task), priority);
+	}
+
+	/**
+	 * タスククラスの同時実行数の上限を設定する
+	 * @param taskClass タスククラス名
+	 * @param maxConcurrency 同時実行数の上限, 0以下なら制限なし
+	 */
+	public static void setMaxConcurrency(@NonNull final String taskClass, final int maxConcurrency) {
+		final TaskClass tc = getTaskClass(taskClass);
+		if (tc != null) {
+			tc.setMaxConcurrency(maxConcurrency);
+		}
+	}
+
+	/**
+	 * タスククラスの同時実行数の上限を取得する
+	 * @param taskClass
+	 * @return 0以下なら制限なし
+	 */
+	public static int getMaxConcurrency(@NonNull final String taskClass) {
+		final TaskClass tc = getTaskClass(taskClass);
+		return tc != null ? tc.getMaxConcurrency() : 0;
+	}
+
+	/**
+	 * タスククラスの種類を設定する
+	 * work stealingモードのときに実行するスレッドプールの選択に使う
+	 * @param taskClass タスククラス名
+	 * @param taskType
+	 */
+	public static void setTaskType(@NonNull final String taskClass, @TaskType final int taskType) {
+		final TaskClass tc = getTaskClass(taskClass);
+		if (tc != null) {
+			tc.mType = taskType;
+		}
+	}
+
+	/**
+	 * タスククラス毎の統計情報を取得する
+	 * タスククラス名を指定して#submitで追加したタスクのみが対象
+	 * @return タスククラス名順
+	 */
+	@NonNull
+	public static TaskStats[] getTaskStats() {
+		final TaskClass[] classes;
+		synchronized (TASK_CLASSES) {
+			classes = TASK_CLASSES.values().toArray(new TaskClass[0]);
+		}
+		final TaskStats[] result = new TaskStats[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			result[i] = classes[i].getStats();
+		}
+		Arrays.sort(result, new Comparator<TaskStats>() {
+			@Override
+			public int compare(final TaskStats o1, final TaskStats o2) {
+				return o1.taskClass.compareTo(o2.taskClass);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * タスククラス毎の統計情報をリセットする
+	 */
+	public static void resetTaskStats() {
+		synchronized (TASK_CLASSES) {
+			for (final TaskClass tc: TASK_CLASSES.values()) {
+				tc.resetStats();
+			}
+		}
+	}
+
+	/**
+	 * タスククラス名に対応するTaskClassを取得する, 存在しなければ生成する
+	 * @param taskClass
+	 * @return taskClassがnullならnull
+	 */
+	@Nullable
+	private static TaskClass getTaskClass(@Nullable final String taskClass) {
+		if (taskClass == null) {
+			return null;
+		}
+		synchronized (TASK_CLASSES) {
+			TaskClass result = TASK_CLASSES.get(taskClass);
+			if (result == null) {
+				result = new TaskClass(taskClass);
+				TASK_CLASSES.put(taskClass, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * タスククラスの同時実行数の上限内であればスレッドプールのキューへ追加する
+	 * 上限に達していればタスククラスの待機キューへ追加する
+	 * @param task
+	 * @throws RejectedExecutionException
+	 */
+	private static void enqueue(@NonNull final PriorityTask<?> task)
+		throws RejectedExecutionException {
+
+		final TaskClass tc = task.mTaskClass;
+		if ((tc == null) || tc.tryAcquire(task)) {
+			execute(task);
+		}
+	}
+
+	/**
+	 * タスククラスの実行枠を確保済みのタスクをスレッドプールのキューへ追加する
+	 * @param task
+	 * @throws RejectedExecutionException
+	 */
+	private static void execute(@NonNull final PriorityTask<?> task)
+		throws RejectedExecutionException {
+
+		try {
+			getExecutor(task.mTaskClass).execute(task);
+		} catch (final RejectedExecutionException e) {
+			if (task.mTaskClass != null) {
+				task.mTaskClass.release();
+			}
+			throw e;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * タスククラス毎の統計情報
+	 * スレッドプールのサイズやタスククラスの同時実行数の上限を決めるために使う
+	 */
+	public static class TaskStats {
+		/** タスククラス名 */
+		@NonNull
+		public final String taskClass;
+		/** タスクの種類 */
+		@TaskType
+		public final int taskType;
+		/** 同時実行数の上限, 0以下なら制限なし */
+		public final int maxConcurrency;
+		/** 実行中(スレッドプールのキューに入っているものを含む)のタスク数 */
+		public final int running;
+		/** 同時実行数の上限に達しているため待機中のタスク数 */
+		public final int pending;
+		/** キューでの待ち時間[ナノ秒] */
+		@NonNull
+		public final LatencyHistogram.Snapshot queueWait;
+		/** 実行時間[ナノ秒] */
+		@NonNull
+		public final LatencyHistogram.Snapshot execution;
+
+		private TaskStats(@NonNull final String taskClass,
+			final int taskType, final int maxConcurrency,
+			final int running, final int pending,
+			@NonNull final LatencyHistogram.Snapshot queueWait,
+			@NonNull final LatencyHistogram.Snapshot execution) {
+
+			this.taskClass = taskClass;
+			this.taskType = taskType;
+			this.maxConcurrency = maxConcurrency;
+			this.running = running;
+			this.pending = pending;
+			this.queueWait = queueWait;
+			this.execution = execution;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "TaskStats{taskClass=" + taskClass
+				+ ",taskType=" + (taskType == TASK_TYPE_CPU ? "cpu" : "io")
+				+ ",maxConcurrency=" + maxConcurrency
+				+ ",running=" + running
+				+ ",pending=" + pending
+				+ ",queueWait=" + queueWait
+				+ ",execution=" + execution + "}";
+		}
+	}
+
+	/**
+	 * スレッドプールのキューの優先度比較用インターフェース
+	 */
+	private interface Prioritized {
+		public int getPriority();
+		public long getSequence();
+	}
+
+	/**
+	 * #queueEventで追加したタスクのラッパー
+	 * 従来通り例外はスレッドプールのスレッドへそのまま投げる
+	 */
+	private static final class QueuedEvent implements Runnable, Prioritized {
+		@NonNull
+		private final Runnable mCommand;
+		private final int mPriority;
+		private final long mSequence;
+
+		private QueuedEvent(@NonNull final Runnable command, final int priority) {
+			mCommand = command;
+			mPriority = priority;
+			mSequence = SEQUENCE.getAndIncrement();
+		}
+
+		@Override
+		public void run() {
+			mCommand.run();
+		}
+
+		@Override
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public long getSequence() {
+			return mSequence;
+		}
+	}
+
+	/**
+	 * #submitで追加したタスク
+	 * 実行前に取り消したときはスレッドプールのキュー/タスククラスの待機キューから削除する
+	 * @param <V>
+	 */
+	private static final class PriorityTask<V> extends FutureTask<V> implements Prioritized {
+		private final int mPriority;
+		private final long mSequence;
+		@Nullable
+		private final TaskClass mTaskClass;
+		/**
+		 * #submitを呼び出した時刻[ナノ秒]
+		 */
+		private final long mQueuedNs;
+
+		private PriorityTask(@NonNull final Callable<V> callable,
+			final int priority, @Nullable final TaskClass taskClass) {
+
+			super(callable);
+			mPriority = priority;
+			mSequence = SEQUENCE.getAndIncrement();
+			mTaskClass = taskClass;
+			mQueuedNs = taskClass != null ? System.nanoTime() : 0;
+		}
+
+		@Override
+		public void run() {
+			final long startNs = mTaskClass != null ? System.nanoTime() : 0;
+			// 取り消し済みのときはFutureTask#runは何もしないので統計には含めない
+			final boolean record = (mTaskClass != null) && !isDone();
+			if (record) {
+				mTaskClass.mQueueWait.record(startNs - mQueuedNs);
+			}
+			try {
+				super.run();
+			} finally {
+				if (mTaskClass != null) {
+					if (record) {
+						mTaskClass.mExecution.record(System.nanoTime() - startNs);
+					}
+					mTaskClass.release();
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final boolean result = super.cancel(mayInterruptIfRunning);
+			if (result) {
+				if ((mTaskClass != null) && mTaskClass.removePending(this)) {
+					// タスククラスの待機キューにいたときは実行枠を確保していない
+					return true;
+				}
+				final PausableThreadPoolExecutor executor;
+				synchronized (ThreadPool.class) {
+					executor = EXECUTOR;
+				}
+				if ((executor != null) && executor.remove(this)
+					&& (mTaskClass != null)) {
+					// スレッドプールのキューから削除できたときは#runが呼ばれないので
+					// ここで実行枠を解放する
+					mTaskClass.release();
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public int getPriority() {
+			return mPriority;
+		}
+
+		@Override
+		public long getSequence() {
+			return mSequence;
+		}
+	}
+
+	/**
+	 * タスククラス毎の同時実行数制限用
+	 */
+	private static final class TaskClass {
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final PriorityQueue<PriorityTask<?>> mPending
+			= new PriorityQueue<PriorityTask<?>>(16, PRIORITY_COMPARATOR);
+		/**
+		 * キューでの待ち時間(タスククラスの同時実行数の上限による待ち時間を含む)
+		 */
+		@NonNull
+		private final LatencyHistogram mQueueWait = new LatencyHistogram();
+		/**
+		 * 実行時間
+		 */
+		@NonNull
+		private final LatencyHistogram mExecution = new LatencyHistogram();
+		@TaskType
+		private volatile int mType = TASK_TYPE_IO;
+		private int mMaxConcurrency;
+		private int mRunning;
+
+		private TaskClass(@NonNull final String name) {
+			mName = name;
+		}
+
+		@NonNull
+		private TaskStats getStats() {
+			final int maxConcurrency, running, pending;
+			synchronized (this) {
+				maxConcurrency = mMaxConcurrency;
+				running = mRunning;
+				pending = mPending.size();
+			}
+			return new TaskStats(mName, mType, maxConcurrency, running, pending,
+				mQueueWait.snapshot(), mExecution.snapshot());
+		}
+
+		private void resetStats() {
+			mQueueWait.reset();
+			mExecution.reset();
+		}
+
+		private synchronized int getMaxConcurrency() {
+			return mMaxConcurrency;
+		}
+
+		private void setMaxConcurrency(final int maxConcurrency) {
+			synchronized (this) {
+				mMaxConcurrency = maxConcurrency;
+			}
+			// 上限を増やしたときは待機中のタスクを実行する
+			dispatchPending();
+		}
+
+		/**
+		 * 実行枠を確保する
+		 * @param task
+		 * @return true: 実行枠を確保できた, false: 上限に達しているので待機キューへ追加した
+		 */
+		private synchronized boolean tryAcquire(@NonNull final PriorityTask<?> task) {
+			if ((mMaxConcurrency <= 0) || (mRunning < mMaxConcurrency)) {
+				mRunning++;
+				return true;
+			}
+			mPending.add(task);
+			return false;
+		}
+
+		/**
+		 * 実行枠を解放して待機中のタスクがあれば実行する
+		 */
+		private void release() {
+			synchronized (this) {
+				mRunning--;
+			}
+			dispatchPending();
+		}
+
+		private synchronized boolean removePending(@NonNull final PriorityTask<?> task) {
+			return mPending.remove(task);
+		}
+
+		private void dispatchPending() {
+			for ( ; ; ) {
+				final PriorityTask<?> task;
+				synchronized (this) {
+					if ((mMaxConcurrency > 0) && (mRunning >= mMaxConcurrency)) {
+						break;
+					}
+					task = mPending.poll();
+					if (task == null) {
+						break;
+					}
+					mRunning++;
+				}
+				try {
+					execute(task);
+				} catch (final RejectedExecutionException e) {
+					// シャットダウン済みなので取り消す
+					task.cancel(false);
+				}
+			}
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "TaskClass{" + mName + "}";
+		}
 	}
 
 	/**
@@ -0,0 +1,328 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.DiskLruCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.io.DiskLruCacheのバイナリジャーナル用のローカルユニットテストクラス
+ */
+public class DiskLruCacheUnitTests {
+	private static final int APP_VERSION = 100;
+	private static final int VALUE_COUNT = 2;
+	private static final long MAX_SIZE = 1024 * 1024;
+	/** バイナリジャーナルのマジックナンバー("DLRC") */
+	private static final int JOURNAL_MAGIC = 0x444c5243;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+	private File mCacheDir;
+	private File mJournalFile;
+	private File mIndexFile;
+
+	@Before
+	public void setUp() throws Exception {
+		mCacheDir = mTempFolder.newFolder("cache");
+		mJournalFile = new File(mCacheDir, "journal");
+		mIndexFile = new File(mCacheDir, "journal.idx");
+	}
+
+	/**
+	 * 書き込み/削除/読み込みした内容がクローズして再オープンした後も
+	 * バイナリジャーナルから復元されることをテスト
+	 */
+	@Test
+	public void reopen() throws Exception {
+		DiskLruCache cache = open(false);
+		set(cache, "k1", "abc", "de");
+		set(cache, "k2", "fghi", "j");
+		set(cache, "k3", "klm", "nopq");
+		assertTrue(cache.remove("k2"));
+		set(cache, "k3", "r", "st");	// 上書き
+		assertValues(cache, "k1", "abc", "de");	// READレコード
+		cache.close();
+
+		assertEquals(JOURNAL_MAGIC, readMagic(mJournalFile));
+		cache = open(false);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertNull(cache.get("k2"));
+			assertValues(cache, "k3", "r", "st");
+			assertEquals(3 + 2 + 1 + 2, cache.size());
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * 最後のレコードが途中までしか書き込まれていないジャーナル(プロセスが追記中に終了した場合等)を
+	 * 再オープンしたときに、途中のレコードを無視して以前のレコードから復元し、
+	 * ジャーナルを再構築して以降の追記が正しく読み込めることをテスト
+	 */
+	@Test
+	public void tornLastRecord() throws Exception {
+		DiskLruCache cache = open(false);
+		set(cache, "k1", "abc", "de");
+		set(cache, "k2", "fghi", "j");
+		cache.close();
+
+		// CLEANレコードのキーの途中までを追記する
+		final OutputStream out = new FileOutputStream(mJournalFile, true);
+		try {
+			out.write(new byte[] {1, 0, 0, 0, 5, 'k', '9'});
+		} finally {
+			out.close();
+		}
+
+		cache = open(false);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertValues(cache, "k2", "fghi", "j");
+			set(cache, "k3", "klm", "n");
+		} finally {
+			cache.close();
+		}
+		// 途中までのレコードを除いて再構築されているはず
+		assertEquals(JOURNAL_MAGIC, readMagic(mJournalFile));
+
+		cache = open(false);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertValues(cache, "k2", "fghi", "j");
+			assertValues(cache, "k3", "klm", "n");
+			assertNull(cache.get("k9"));
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * ジャーナルの末尾が切り詰められて最後のCLEANレコードが失われた場合に
+	 * 対応するDIRTYレコードのエントリーが削除され、それ以外のエントリーは
+	 * 復元されることをテスト
+	 */
+	@Test
+	public void truncatedTail() throws Exception {
+		DiskLruCache cache = open(false);
+		set(cache, "k1", "abc", "de");
+		set(cache, "k2", "fghi", "j");
+		cache.close();
+
+		// k2のCLEANレコード(1+4+2+8*2バイト)の途中で切り詰める
+		final RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+		try {
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+
+		cache = open(false);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertNull(cache.get("k2"));
+			assertFalse(new File(mCacheDir, "k2.0").exists());
+			assertFalse(new File(mCacheDir, "k2.1").exists());
+			assertEquals(3 + 2, cache.size());
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * 旧形式のテキストジャーナルを読み込んでバイナリジャーナルへ移行することをテスト
+	 */
+	@Test
+	public void migrateTextJournal() throws Exception {
+		writeFile(new File(mCacheDir, "k1.0"), "abc");
+		writeFile(new File(mCacheDir, "k1.1"), "de");
+		writeFile(new File(mCacheDir, "k2.0"), "fghi");
+		writeFile(new File(mCacheDir, "k2.1"), "j");
+		writeFile(new File(mCacheDir, "k3.0.tmp"), "x");
+		writeFile(mJournalFile,
+			"libcore.io.DiskLruCache\n"
+			+ "1\n"
+			+ APP_VERSION + "\n"
+			+ VALUE_COUNT + "\n"
+			+ "\n"
+			+ "DIRTY k1\n"
+			+ "CLEAN k1 3 2\n"
+			+ "DIRTY k2\n"
+			+ "CLEAN k2 4 1\n"
+			+ "DIRTY k3\n"
+			+ "DIRTY k4\n"
+			+ "CLEAN k4 1 1\n"
+			+ "REMOVE k4\n"
+			+ "READ k1\n");
+
+		DiskLruCache cache = open(false);
+		try {
+			assertEquals(JOURNAL_MAGIC, readMagic(mJournalFile));
+			assertValues(cache, "k1", "abc", "de");
+			assertValues(cache, "k2", "fghi", "j");
+			assertNull(cache.get("k3"));	// DIRTYのままのエントリーは削除される
+			assertFalse(new File(mCacheDir, "k3.0.tmp").exists());
+			assertNull(cache.get("k4"));
+			assertEquals(3 + 2 + 4 + 1, cache.size());
+		} finally {
+			cache.close();
+		}
+
+		// 移行後のバイナリジャーナルから再オープンできること
+		cache = open(false);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertValues(cache, "k2", "fghi", "j");
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * インデックススナップショット(journal.idx)に記録されたジャーナルのサイズが
+	 * 現在のジャーナルと一致しないときはスナップショットを使わずに
+	 * ジャーナルを再生することをテスト
+	 */
+	@Test
+	public void staleIndexSnapshot() throws Exception {
+		DiskLruCache cache = open(true);
+		set(cache, "k1", "abc", "de");
+		cache.close();
+		assertTrue(mIndexFile.exists());
+		final byte[] staleIndex = readFile(mIndexFile);
+
+		cache = open(true);
+		set(cache, "k2", "fghi", "j");
+		assertTrue(cache.remove("k1"));
+		cache.close();
+
+		// k1だけを含む古いスナップショットに戻す
+		final OutputStream out = new FileOutputStream(mIndexFile);
+		try {
+			out.write(staleIndex);
+		} finally {
+			out.close();
+		}
+
+		cache = open(true);
+		try {
+			assertNull(cache.get("k1"));
+			assertValues(cache, "k2", "fghi", "j");
+			assertEquals(4 + 1, cache.size());
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * インデックススナップショットが有効なときにクローズ/再オープンで
+	 * 内容が復元されることをテスト
+	 */
+	@Test
+	public void reopenWithIndexSnapshot() throws Exception {
+		DiskLruCache cache = open(true);
+		set(cache, "k1", "abc", "de");
+		set(cache, "k2", "fghi", "j");
+		cache.close();
+		assertTrue(mIndexFile.exists());
+
+		cache = open(true);
+		try {
+			assertValues(cache, "k1", "abc", "de");
+			assertValues(cache, "k2", "fghi", "j");
+			assertEquals(3 + 2 + 4 + 1, cache.size());
+		} finally {
+			cache.close();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	private DiskLruCache open(final boolean useIndexSnapshot) throws IOException {
+		return DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE, useIndexSnapshot);
+	}
+
+	private static void set(final DiskLruCache cache,
+		final String key, final String v0, final String v1) throws IOException {
+
+		final DiskLruCache.Editor editor = cache.edit(key);
+		assertNotNull(editor);
+		editor.set(0, v0);
+		editor.set(1, v1);
+		editor.commit();
+	}
+
+	private static void assertValues(final DiskLruCache cache,
+		final String key, final String v0, final String v1) throws IOException {
+
+		final DiskLruCache.Snapshot snapshot = cache.get(key);
+		assertNotNull(key, snapshot);
+		try {
+			assertEquals(v0, snapshot.getString(0));
+			assertEquals(v1, snapshot.getString(1));
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	private static int readMagic(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(final File file, final String content) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFile(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			final byte[] result = new byte[(int)file.length()];
+			in.readFully(result);
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.Pool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.utils.Pool用のローカルユニットテストクラス
+ */
+public class PoolUnitTests {
+	private static final int MAX_NUM = 8;
+
+	/**
+	 * スレッド毎のキャッシュのサイズを変更した後も
+	 * 最大生成数までオブジェクトを取得できることをテスト
+	 */
+	@Test
+	public void resizeThreadCache() {
+		final Pool<Object> pool = newPool().setThreadCacheSize(4);
+		obtainAllAndRecycle(pool);
+		// 変更前のキャッシュに保持しているオブジェクトが失われないこと
+		pool.setThreadCacheSize(2);
+		obtainAllAndRecycle(pool);
+		pool.setThreadCacheSize(6);
+		obtainAllAndRecycle(pool);
+		// キャッシュを無効にしたときも同様
+		pool.setThreadCacheSize(0);
+		obtainAllAndRecycle(pool);
+		assertTrue(pool.getStats().alive <= MAX_NUM);
+	}
+
+	/**
+	 * スレッド毎のキャッシュを共有プールへ戻した後も
+	 * 最大生成数までオブジェクトを取得できることをテスト
+	 */
+	@Test
+	public void flushThreadCache() {
+		final Pool<Object> pool = newPool().setThreadCacheSize(4);
+		obtainAllAndRecycle(pool);
+		pool.flushThreadCache();
+		assertEquals(MAX_NUM, pool.getStats().pooled);
+		obtainAllAndRecycle(pool);
+	}
+
+//--------------------------------------------------------------------------------
+	private static Pool<Object> newPool() {
+		return new Pool<Object>(0, MAX_NUM) {
+			@Override
+			protected Object createObject(final Object... args) {
+				return new Object();
+			}
+		};
+	}
+
+	/**
+	 * 最大生成数までオブジェクトを取得できて、それ以上は取得できないことを確認してから
+	 * 取得したオブジェクトを全て返却する
+	 * @param pool
+	 */
+	private static void obtainAllAndRecycle(final Pool<Object> pool) {
+		final List<Object> objects = new ArrayList<Object>();
+		for (int i = 0; i < MAX_NUM; i++) {
+			final Object obj = pool.obtain();
+			assertNotNull("obtain#" + i, obj);
+			assertFalse(objects.contains(obj));
+			objects.add(obj);
+		}
+		assertNull(pool.obtain());
+		pool.recycle(objects);
+	}
+}